@@ -0,0 +1,185 @@
+package com.vim.common.cache;
+
+import com.google.common.cache.Cache;
+import io.micrometer.core.instrument.Counter;
+import org.springframework.cache.support.SimpleValueWrapper;
+import org.springframework.data.redis.serializer.RedisSerializationContext.SerializationPair;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+
+/**
+ * 两级缓存，本地缓存在前，redis 缓存在后
+ * 读：先读本地，没有再读 redis，读到后放进本地；写和删除：先改 redis，再改本地，并通知其他节点删除本地缓存。
+ * 本地缓存的 key 统一转成字符串，和 redis 缓存 key 的生成方式一致，其他节点按字符串删除。
+ * 本地缓存存的是和 redis 一样序列化以后的字节，每次读取都反序列化出新的对象，调用方修改拿到的对象不会改到缓存
+ *
+ * @author 乐天
+ */
+public class TieredCache implements org.springframework.cache.Cache {
+
+    private final String name;
+
+    /**
+     * 缓存 null 时存的值，序列化的结果不会是空数组
+     */
+    private static final byte[] NULL = new byte[0];
+
+    private final Cache<String, byte[]> local;
+
+    private final SerializationPair<Object> serializer;
+
+    private final org.springframework.cache.Cache remote;
+
+    private final TieredCacheManager manager;
+
+    private final Counter localHit;
+
+    private final Counter remoteHit;
+
+    private final Counter miss;
+
+    TieredCache(String name, Cache<String, byte[]> local, SerializationPair<Object> serializer, org.springframework.cache.Cache remote,
+                TieredCacheManager manager, Counter localHit, Counter remoteHit, Counter miss) {
+        this.name = name;
+        this.local = local;
+        this.serializer = serializer;
+        this.remote = remote;
+        this.manager = manager;
+        this.localHit = localHit;
+        this.remoteHit = remoteHit;
+        this.miss = miss;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Object getNativeCache() {
+        return remote.getNativeCache();
+    }
+
+    @Override
+    public ValueWrapper get(Object key) {
+        String localKey = String.valueOf(key);
+        byte[] bytes = local.getIfPresent(localKey);
+        if (bytes != null) {
+            localHit.increment();
+            return new SimpleValueWrapper(deserialize(bytes));
+        }
+        ValueWrapper wrapper = remote.get(key);
+        if (wrapper == null) {
+            miss.increment();
+            return null;
+        }
+        remoteHit.increment();
+        local.put(localKey, serialize(wrapper.get()));
+        return wrapper;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key, Class<T> type) {
+        ValueWrapper wrapper = get(key);
+        Object value = wrapper == null ? null : wrapper.get();
+        if (value != null && type != null && !type.isInstance(value)) {
+            throw new IllegalStateException("缓存 " + name + " 的值不是 " + type.getName() + " 类型: " + value);
+        }
+        return (T) value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key, Callable<T> valueLoader) {
+        String localKey = String.valueOf(key);
+        byte[] bytes = local.getIfPresent(localKey);
+        if (bytes != null) {
+            localHit.increment();
+            return (T) deserialize(bytes);
+        }
+        T value = remote.get(key, valueLoader);
+        local.put(localKey, serialize(value));
+        return value;
+    }
+
+    @Override
+    public void put(Object key, Object value) {
+        remote.put(key, value);
+        String localKey = String.valueOf(key);
+        local.put(localKey, serialize(value));
+        manager.publish(name, localKey);
+    }
+
+    @Override
+    public ValueWrapper putIfAbsent(Object key, Object value) {
+        ValueWrapper existing = remote.putIfAbsent(key, value);
+        evictLocal(String.valueOf(key));
+        manager.publish(name, String.valueOf(key));
+        return existing;
+    }
+
+    @Override
+    public void evict(Object key) {
+        remote.evict(key);
+        String localKey = String.valueOf(key);
+        evictLocal(localKey);
+        manager.publish(name, localKey);
+    }
+
+    @Override
+    public boolean evictIfPresent(Object key) {
+        boolean present = remote.evictIfPresent(key);
+        String localKey = String.valueOf(key);
+        evictLocal(localKey);
+        manager.publish(name, localKey);
+        return present;
+    }
+
+    @Override
+    public void clear() {
+        remote.clear();
+        clearLocal();
+        manager.publish(name, null);
+    }
+
+    private byte[] serialize(Object value) {
+        if (value == null) {
+            return NULL;
+        }
+        ByteBuffer buffer = serializer.write(value);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private Object deserialize(byte[] bytes) {
+        return bytes.length == 0 ? null : serializer.read(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * 只删除本地缓存，收到其他节点的通知时调用
+     *
+     * @param key 缓存 key
+     */
+    void evictLocal(String key) {
+        local.invalidate(key);
+    }
+
+    /**
+     * 只清空本地缓存，收到其他节点的通知时调用
+     */
+    void clearLocal() {
+        local.invalidateAll();
+    }
+
+    /**
+     * 本地缓存的条数
+     *
+     * @return 条数
+     */
+    long localSize() {
+        return local.size();
+    }
+}
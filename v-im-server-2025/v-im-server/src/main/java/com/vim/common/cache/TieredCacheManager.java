@@ -0,0 +1,185 @@
+package com.vim.common.cache;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONObject;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.vim.common.config.VimConfig;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.data.redis.cache.RedisCache;
+import org.springframework.data.redis.cache.RedisCacheManager;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializationContext.SerializationPair;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 两级缓存管理器，本地缓存（每个缓存单独配置条数和过期时间）加 redis 缓存
+ * 任何一个节点上的 put、@CacheEvict、clear 都会通过 redis 频道通知其他节点删除本地缓存，
+ * 本地缓存的过期时间比 redis 的短，通知丢了最多也只是在过期时间内读到旧值。
+ * 每个缓存导出 vim.cache.gets（level=local|remote, result=hit|miss）、vim.cache.evictions、vim.cache.size 指标
+ *
+ * @author 乐天
+ */
+@Slf4j
+public class TieredCacheManager implements CacheManager, InitializingBean, DisposableBean {
+
+    /**
+     * 缓存失效通知频道
+     */
+    public static final String CHANNEL = "vim:cache:invalidate";
+
+    private final RedisCacheManager redisCacheManager;
+
+    private final VimConfig.Cache config;
+
+    private final MeterRegistry meterRegistry;
+
+    private final StringRedisTemplate publisher;
+
+    private final RedisMessageListenerContainer container;
+
+    private final String nodeId = ManagementFactory.getRuntimeMXBean().getName();
+
+    private final Map<String, TieredCache> caches = new ConcurrentHashMap<>();
+
+    public TieredCacheManager(RedisCacheManager redisCacheManager, RedisConnectionFactory connectionFactory,
+                              VimConfig.Cache config, MeterRegistry meterRegistry) {
+        this.redisCacheManager = redisCacheManager;
+        this.config = config;
+        this.meterRegistry = meterRegistry;
+        this.publisher = new StringRedisTemplate(connectionFactory);
+        this.container = new RedisMessageListenerContainer();
+        this.container.setConnectionFactory(connectionFactory);
+        this.container.addMessageListener((message, pattern) -> onInvalidate(new String(message.getBody(), StandardCharsets.UTF_8)), new ChannelTopic(CHANNEL));
+    }
+
+    /**
+     * 按配置创建缓存管理器，关闭本地缓存时直接用 redis 缓存
+     *
+     * @param redisCacheManager redis 缓存
+     * @param connectionFactory redis 连接，用来收发失效通知
+     * @param config            两级缓存配置
+     * @param meterRegistry     指标
+     * @return CacheManager
+     */
+    public static CacheManager of(RedisCacheManager redisCacheManager, RedisConnectionFactory connectionFactory,
+                                  VimConfig.Cache config, MeterRegistry meterRegistry) {
+        if (!config.isEnabled()) {
+            return redisCacheManager;
+        }
+        return new TieredCacheManager(redisCacheManager, connectionFactory, config, meterRegistry);
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        redisCacheManager.afterPropertiesSet();
+        container.afterPropertiesSet();
+        container.start();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        container.destroy();
+    }
+
+    @Override
+    public Cache getCache(String name) {
+        TieredCache cache = caches.get(name);
+        if (cache != null) {
+            return cache;
+        }
+        Cache remote = redisCacheManager.getCache(name);
+        if (remote == null) {
+            return null;
+        }
+        return caches.computeIfAbsent(name, k -> create(k, remote));
+    }
+
+    @Override
+    public Collection<String> getCacheNames() {
+        return redisCacheManager.getCacheNames();
+    }
+
+    /**
+     * 通知其他节点删除本地缓存
+     *
+     * @param name 缓存名
+     * @param key  缓存 key，为空表示清空
+     */
+    void publish(String name, String key) {
+        JSONObject message = new JSONObject();
+        message.put("cache", name);
+        message.put("key", key);
+        message.put("origin", nodeId);
+        try {
+            publisher.convertAndSend(CHANNEL, message.toJSONString());
+        } catch (Exception e) {
+            log.error("通知其他节点删除本地缓存 {} {} 失败", name, key, e);
+        }
+    }
+
+    private void onInvalidate(String body) {
+        try {
+            JSONObject message = JSON.parseObject(body);
+            if (nodeId.equals(message.getString("origin"))) {
+                return;
+            }
+            TieredCache cache = caches.get(message.getString("cache"));
+            if (cache == null) {
+                return;
+            }
+            String key = message.getString("key");
+            if (key == null) {
+                cache.clearLocal();
+            } else {
+                cache.evictLocal(key);
+            }
+        } catch (Exception e) {
+            log.error("处理缓存失效通知失败: {}", body, e);
+        }
+    }
+
+    private TieredCache create(String name, Cache remote) {
+        VimConfig.CacheSpec spec = config.getCaches().getOrDefault(name, config.getDefaults());
+        Counter evictions = Counter.builder("vim.cache.evictions").tag("cache", name).register(meterRegistry);
+        RemovalListener<String, byte[]> listener = notification -> {
+            if (notification.wasEvicted()) {
+                evictions.increment();
+            }
+        };
+        com.google.common.cache.Cache<String, byte[]> local = CacheBuilder.newBuilder()
+                .maximumSize(spec.getMaxSize())
+                .expireAfterWrite(spec.getTtlSeconds(), TimeUnit.SECONDS)
+                .removalListener(listener)
+                .build();
+        // 本地缓存和 redis 用同一个序列化方式
+        SerializationPair<Object> serializer = remote instanceof RedisCache redisCache
+                ? redisCache.getCacheConfiguration().getValueSerializationPair()
+                : SerializationPair.fromSerializer(RedisSerializer.java());
+        TieredCache cache = new TieredCache(name, local, serializer, remote, this,
+                gets(name, "local", "hit"), gets(name, "remote", "hit"), gets(name, "remote", "miss"));
+        Gauge.builder("vim.cache.size", cache, TieredCache::localSize).tag("cache", name).register(meterRegistry);
+        return cache;
+    }
+
+    private Counter gets(String name, String level, String result) {
+        return Counter.builder("vim.cache.gets").tag("cache", name).tag("level", level).tag("result", result).register(meterRegistry);
+    }
+}
@@ -2,7 +2,9 @@ package com.vim.common.config;
 
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.vim.common.cache.TieredCacheManager;
 import io.lettuce.core.SslOptions;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.CacheManager;
@@ -238,17 +240,20 @@ public class RedisConfig implements CachingConfigurer {
     }
 
     /**
-     * 设置缓存默认过期时间
+     * 设置缓存默认过期时间，前面加一层本地缓存，见 TieredCacheManager
      *
      * @param redisConnectionFactory method
+     * @param vimConfig              vim 配置
+     * @param meterRegistry          指标
      * @return RedisScript
      */
     @Bean
-    public CacheManager cacheManager(RedisConnectionFactory redisConnectionFactory) {
+    public CacheManager cacheManager(RedisConnectionFactory redisConnectionFactory, VimConfig vimConfig, MeterRegistry meterRegistry) {
         RedisCacheConfiguration config = RedisCacheConfiguration.defaultCacheConfig()
                 // 设置缓存的默认过期时间 5分钟
                 .entryTtl(Duration.ofMinutes(5));
-        return RedisCacheManager.builder(redisConnectionFactory).cacheDefaults(config).build();
+        RedisCacheManager redisCacheManager = RedisCacheManager.builder(redisConnectionFactory).cacheDefaults(config).build();
+        return TieredCacheManager.of(redisCacheManager, redisConnectionFactory, vimConfig.getCache(), meterRegistry);
     }
 
     /**
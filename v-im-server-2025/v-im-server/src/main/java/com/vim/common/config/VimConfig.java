@@ -4,6 +4,11 @@ import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 @Data
 @Component
 @ConfigurationProperties(prefix = "vim")
@@ -56,6 +61,800 @@ public class VimConfig {
      */
     private int wsPort;
 
+    /**
+     * 集群配置
+     */
+    private Cluster cluster = new Cluster();
+
+    /**
+     * 群消息扇出配置
+     */
+    private Fanout fanout = new Fanout();
+
+    /**
+     * 离线消息补发配置
+     */
+    private Replay replay = new Replay();
+
+    /**
+     * 聊天消息异步批量入库配置
+     */
+    private Persist persist = new Persist();
+
+    /**
+     * 消息日志配置
+     */
+    private MessageLog messageLog = new MessageLog();
+
+    /**
+     * 聊天记录全文搜索配置
+     */
+    private Search search = new Search();
+
+    /**
+     * 消息集合索引配置
+     */
+    private Index index = new Index();
+
+    /**
+     * 消息分片配置
+     */
+    private Shard shard = new Shard();
+
+    /**
+     * 最近消息缓存配置
+     */
+    private Recent recent = new Recent();
+
+    /**
+     * 消息保留策略配置
+     */
+    private Retention retention = new Retention();
+
+    /**
+     * 离线收件箱配置
+     */
+    private Offline offline = new Offline();
+
+    /**
+     * 会话摘要配置
+     */
+    private Summary summary = new Summary();
+
+    /**
+     * 聊天列表配置
+     */
+    private ChatList chatList = new ChatList();
+
+    /**
+     * 已读时间配置
+     */
+    private ReadMark readMark = new ReadMark();
+
+    /**
+     * 群成员索引配置
+     */
+    private GroupIndex groupIndex = new GroupIndex();
+
+    /**
+     * 两级缓存配置
+     */
+    private Cache cache = new Cache();
+
+    /**
+     * 业务分发配置
+     */
+    private Dispatch dispatch = new Dispatch();
+
+    /**
+     * 发送队列限制配置
+     */
+    private Outbound outbound = new Outbound();
+
+    /**
+     * 合并写配置
+     */
+    private Batch batch = new Batch();
+
+    /**
+     * 集群配置，开启后消息会按用户所在节点转发
+     */
+    @Data
+    public static class Cluster {
+
+        /**
+         * 是否开启集群模式
+         */
+        private boolean enabled;
+
+        /**
+         * 节点id，不配置时使用 本机ip:ws端口
+         */
+        private String nodeId;
+
+        /**
+         * 节点心跳超时时间（秒），超过这个时间没有心跳的节点视为下线
+         */
+        private int nodeTtlSeconds = 30;
+
+        /**
+         * 节点间转发每批最多多少条消息
+         */
+        private int batchSize = 128;
+
+        /**
+         * 节点间转发最长等待时间（毫秒）
+         */
+        private long flushIntervalMillis = 5;
+
+        /**
+         * 本地缓存的 用户->节点 路由有效期（毫秒）
+         */
+        private long routeCacheMillis = 2000;
+    }
+
+    /**
+     * 群消息扇出配置，大群按分片在独立线程池里并行发送，不占用 tio 的处理线程
+     */
+    @Data
+    public static class Fanout {
+
+        /**
+         * 群在线连接数不超过这个值时直接在当前线程发送
+         */
+        private int inlineSize = 64;
+
+        /**
+         * 每个分片的连接数
+         */
+        private int sliceSize = 500;
+
+        /**
+         * 扇出线程数，0 表示 cpu 核数
+         */
+        private int threads;
+
+        /**
+         * 扇出任务队列长度，满了以后由提交的线程自己发送
+         */
+        private int queueCapacity = 10000;
+
+        /**
+         * 超过这个耗时（毫秒）的扇出会打警告日志
+         */
+        private long slowMillis = 200;
+
+        /**
+         * 耗时统计里保留最慢的多少个群
+         */
+        private int reportTop = 10;
+    }
+
+    /**
+     * 离线消息补发配置，连接就绪后分批发送离线消息，批次之间按间隔调度，不阻塞线程
+     */
+    @Data
+    public static class Replay {
+
+        /**
+         * 每批发送多少条，同时也是游标每批读取的条数
+         */
+        private int batchSize = 100;
+
+        /**
+         * 两批之间的间隔（毫秒）
+         */
+        private long intervalMillis = 50;
+
+        /**
+         * 补发线程数
+         */
+        private int threads = 2;
+
+        /**
+         * 一个群最多补发多少条未读，超过就只补发最近的 groupTail 条，并通知客户端按需拉取更早的
+         */
+        private int groupLimit = 200;
+
+        /**
+         * 群未读超过 groupLimit 时补发最近多少条
+         */
+        private int groupTail = 20;
+
+        /**
+         * 群最新消息时间的容差（毫秒），多个节点同时写入时最新时间可能被稍早的覆盖，在容差内仍然去查
+         */
+        private long skewMillis = 5000;
+    }
+
+    /**
+     * 聊天消息异步批量入库配置，消息先进有界队列，按集合分组后批量写入 mongo
+     */
+    @Data
+    public static class Persist {
+
+        /**
+         * 是否开启异步批量入库，关闭后每条消息同步保存
+         */
+        private boolean enabled = true;
+
+        /**
+         * 队列容量，决定最多占用多少内存
+         */
+        private int capacity = 20000;
+
+        /**
+         * 每批最多写入多少条
+         */
+        private int batchSize = 500;
+
+        /**
+         * 最长多久写一次（毫秒）
+         */
+        private long flushIntervalMillis = 20;
+
+        /**
+         * 队列满时最多等待多久（毫秒），超时后由调用线程同步写入
+         */
+        private long offerTimeoutMillis = 200;
+
+        /**
+         * 写入失败后重试的间隔（毫秒）
+         */
+        private long retryIntervalMillis = 500;
+
+        /**
+         * 写入失败最多重试几次，超过后把消息打到错误日志里放弃
+         */
+        private int maxRetries = 10;
+
+        /**
+         * 应用关闭时最多重试几次
+         */
+        private int shutdownRetries = 3;
+    }
+
+
+    /**
+     * 消息日志配置，日志先进无锁环形缓冲区，按天批量写入 mongo
+     */
+    @Data
+    public static class MessageLog {
+
+        /**
+         * 写入方式：buffer 批量写入 mongo，segment 先追加到本地段文件再异步导入
+         */
+        private String mode = "buffer";
+
+        /**
+         * 缓冲区容量，会向上取整到 2 的幂
+         */
+        private int capacity = 16384;
+
+        /**
+         * 每批最多写入多少条
+         */
+        private int batchSize = 1000;
+
+        /**
+         * 最长多久写一次（毫秒）
+         */
+        private long flushIntervalMillis = 100;
+
+        /**
+         * 缓冲区满时的处理方式：drop 丢弃，spill 写到本地文件，空闲时再导入
+         */
+        private String overflow = "drop";
+
+        /**
+         * spill 缓冲区容量，缓冲区满时日志先放这里，由写入线程写到 spill 文件，也满了就丢弃
+         */
+        private int spillCapacity = 16384;
+
+        /**
+         * spill 文件目录
+         */
+        private String spillDir = "./data/message-log";
+
+        /**
+         * segment 模式的段文件目录
+         */
+        private String segmentDir = "./data/message-log/segments";
+
+        /**
+         * 每个段文件的大小（字节）
+         */
+        private int segmentBytes = 64 * 1024 * 1024;
+
+        /**
+         * 当前段最长写多久就封存（毫秒），流量低时也能及时导入
+         */
+        private long sealIntervalMillis = 10000;
+
+        /**
+         * 段文件最长保留多久（小时），超过还没导入就删除
+         */
+        private long retentionHours = 72;
+
+        /**
+         * 每秒最多导入多少条
+         */
+        private long shipRecordsPerSecond = 20000;
+
+        /**
+         * 导入间隔（毫秒）
+         */
+        private long shipIntervalMillis = 1000;
+    }
+
+    /**
+     * 聊天记录全文搜索配置，开启后消息异步批量写入 elasticsearch，搜索走 elasticsearch，否则走 mongo
+     */
+    @Data
+    public static class Search {
+
+        /**
+         * 是否开启 elasticsearch 搜索
+         */
+        private boolean enabled = false;
+
+        /**
+         * 索引名
+         */
+        private String index = "vim-message";
+
+        /**
+         * 待索引缓冲区容量，满了丢弃
+         */
+        private int capacity = 65536;
+
+        /**
+         * 每批最多写入多少条
+         */
+        private int batchSize = 500;
+
+        /**
+         * 最长多久写一次（毫秒）
+         */
+        private long flushIntervalMillis = 500;
+
+        /**
+         * 是否在启动后从 mongo 补索引
+         */
+        private boolean reindex = false;
+
+        /**
+         * 补索引的版本，补完以后记在 redis 里，改成新的版本会从头再补一次
+         */
+        private String reindexVersion = "1";
+
+        /**
+         * 补索引每批读多少条
+         */
+        private int reindexBatchSize = 1000;
+
+        /**
+         * 补索引批次之间暂停多久（毫秒）
+         */
+        private long reindexPauseMillis = 100;
+    }
+
+    /**
+     * 消息集合索引配置，启动后并行给所有分片建索引，新集合第一次写入时建
+     */
+    @Data
+    public static class Index {
+
+        /**
+         * 是否自动建索引
+         */
+        private boolean enabled = true;
+
+        /**
+         * 建索引的线程数
+         */
+        private int threads = 8;
+
+        /**
+         * 检查缺少和没用过的索引的时间
+         */
+        private String reportCron = "0 30 4 * * ?";
+    }
+
+    /**
+     * 消息分片配置，和路由表不一致时发布新版本，并在后台把会话搬到新分片
+     */
+    @Data
+    public static class Shard {
+
+        /**
+         * 分片方式：modulo 取模（原来的方式），consistent-hash 一致性哈希
+         */
+        private String strategy = "modulo";
+
+        /**
+         * 分片数，私聊和群聊各这么多个集合
+         */
+        private int shards = 1000;
+
+        /**
+         * 一致性哈希每个分片的虚拟节点数
+         */
+        private int virtualNodes = 160;
+
+        /**
+         * 路由表刷新间隔（毫秒）
+         */
+        private long refreshMillis = 10000;
+
+        /**
+         * 发布新路由后等多久开始搬迁（毫秒），要大于刷新间隔，保证所有节点都已经写到新位置
+         */
+        private long graceMillis = 60000;
+
+        /**
+         * 每次搬迁多少个会话
+         */
+        private int migrateBatchSize = 200;
+
+        /**
+         * 搬迁间隔（毫秒）
+         */
+        private long migrateIntervalMillis = 1000;
+    }
+
+    /**
+     * 最近消息缓存配置，每个会话在 redis 里保留最近 size 条，查询最近消息时优先读缓存
+     */
+    @Data
+    public static class Recent {
+
+        /**
+         * 是否开启
+         */
+        private boolean enabled = true;
+
+        /**
+         * 每个会话缓存多少条，查询条数超过这个数直接查 mongo
+         */
+        private int size = 100;
+
+        /**
+         * 多久没有读写就过期（秒）
+         */
+        private long ttlSeconds = 86400;
+    }
+
+    /**
+     * 消息保留策略配置：redis 里每个会话保留最近多少条，mongo 里的聊天记录多久以后归档到冷存储
+     */
+    @Data
+    public static class Retention {
+
+        /**
+         * redis 里每个会话保留最近多少条
+         */
+        private int keepLatest = 100;
+
+        /**
+         * 清理 redis 的时间
+         */
+        private String redisCron = "0 0 4 * * ?";
+
+        /**
+         * 要清理的 key
+         */
+        private String redisPattern = "message-*";
+
+        /**
+         * 每次 SCAN 的 COUNT，也是每批 pipeline 的大致条数
+         */
+        private int scanCount = 500;
+
+        /**
+         * 两批之间暂停多久（毫秒），避免占满 redis 和 mongo
+         */
+        private long pauseMillis = 20;
+
+        /**
+         * 每次最多运行多久（分钟），归档没做完的下次从记录的集合继续，redis 裁剪下次从头遍历
+         */
+        private long maxRunMinutes = 60;
+
+        /**
+         * 是否归档 mongo 里的旧聊天记录，开启后消息集合会多一个 timestamp 索引
+         */
+        private boolean archiveEnabled = false;
+
+        /**
+         * 超过多少天的聊天记录归档
+         */
+        private int archiveAfterDays = 365;
+
+        /**
+         * 归档的时间
+         */
+        private String archiveCron = "0 30 2 * * ?";
+
+        /**
+         * 归档到哪里：collection 按月的压缩集合，file 按月的 gzip 文件
+         */
+        private String archiveTarget = "collection";
+
+        /**
+         * 归档文件目录，archiveTarget 为 file 时有效
+         */
+        private String archiveDir = "archive";
+
+        /**
+         * archiveTarget 为 file 时归档的聊天记录不能再在线读取，相当于从 mongo 删除，需要显式开启才会归档
+         */
+        private boolean archiveHardDelete = false;
+
+        /**
+         * 每批归档多少条
+         */
+        private int archiveBatchSize = 1000;
+    }
+
+    /**
+     * 离线收件箱配置，所有用户的离线消息在一个集合里，按 (user_id, timestamp) 索引，过期自动删除
+     */
+    @Data
+    public static class Offline {
+
+        /**
+         * 离线消息保留多少天，过期由 TTL 索引删除
+         */
+        private int ttlDays = 30;
+
+        /**
+         * 启动后是否在后台把原来每个用户一个的离线集合迁移到收件箱
+         */
+        private boolean migrate = true;
+
+        /**
+         * 迁移时每批多少条
+         */
+        private int migrateBatchSize = 1000;
+
+        /**
+         * 迁移完一个用户后暂停多久（毫秒）
+         */
+        private long migratePauseMillis = 10;
+
+        /**
+         * 是否在启动时按 (user_id, timestamp) 对收件箱分片，只有连的是 mongos 才有效
+         */
+        private boolean shardCollection = false;
+    }
+
+    /**
+     * 会话摘要配置，每个用户一个 redis hash，记录每个会话的最后一条消息、时间、未读数和是否被@
+     */
+    @Data
+    public static class Summary {
+
+        /**
+         * 是否开启
+         */
+        private boolean enabled = true;
+
+        /**
+         * 最后一条消息预览保留多少个字
+         */
+        private int previewLength = 30;
+
+        /**
+         * 群消息一次脚本调用更新多少个成员
+         */
+        private int batchSize = 500;
+    }
+
+    /**
+     * 聊天列表配置，聊天列表和置顶列表是按最后活动时间排序的 zset，会话内容在一个 hash 里
+     */
+    @Data
+    public static class ChatList {
+
+        /**
+         * 启动后是否在后台把原来 list 结构的聊天列表迁移过来
+         */
+        private boolean migrate = true;
+
+        /**
+         * 迁移时每次 SCAN 的条数
+         */
+        private int scanCount = 500;
+
+        /**
+         * 迁移完一个用户后暂停多久（毫秒）
+         */
+        private long migratePauseMillis = 5;
+    }
+
+    /**
+     * 已读时间配置，每个用户一个 hash，field 为会话id
+     */
+    @Data
+    public static class ReadMark {
+
+        /**
+         * 启动后是否在后台把原来每个会话一个的已读时间 key 迁移过来
+         */
+        private boolean migrate = true;
+
+        /**
+         * 迁移时每次 SCAN 的条数
+         */
+        private int scanCount = 1000;
+
+        /**
+         * 两批之间暂停多久（毫秒）
+         */
+        private long pauseMillis = 10;
+    }
+
+    /**
+     * 群成员索引配置，每个节点在内存里按需加载群成员，发群消息时检查权限用
+     */
+    @Data
+    public static class GroupIndex {
+
+        /**
+         * 最多加载多少个群，超过后清空重新加载
+         */
+        private int maxGroups = 100000;
+
+        /**
+         * 加载以后多久过期（秒），漏掉成员变动通知时最多这么久以后重新加载
+         */
+        private long ttlSeconds = 600;
+    }
+
+    /**
+     * 两级缓存配置，@Cacheable 先读本地缓存再读 redis，缓存变动通过 redis 频道通知其他节点
+     */
+    @Data
+    public static class Cache {
+
+        /**
+         * 是否开启本地缓存，关闭后只用 redis 缓存
+         */
+        private boolean enabled = true;
+
+        /**
+         * 没有单独配置的缓存用这个
+         */
+        private CacheSpec defaults = new CacheSpec();
+
+        /**
+         * 按缓存名单独配置，如 group:user:ids
+         */
+        private Map<String, CacheSpec> caches = new HashMap<>();
+    }
+
+    /**
+     * 一个缓存的本地配置
+     */
+    @Data
+    public static class CacheSpec {
+
+        /**
+         * 本地最多缓存多少条
+         */
+        private long maxSize = 10000;
+
+        /**
+         * 本地缓存写入后多久过期（秒），要比 redis 缓存的 5 分钟短
+         */
+        private long ttlSeconds = 60;
+    }
+
+    /**
+     * 业务分发配置，收到的消息在虚拟线程里处理，每个连接一个串行队列
+     */
+    @Data
+    public static class Dispatch {
+
+        /**
+         * 是否开启，关闭后在 tio 的处理线程里直接处理
+         */
+        private boolean enabled = true;
+
+        /**
+         * 每个连接最多排队多少条消息，超过后关闭连接
+         */
+        private int maxPending = 1000;
+
+        /**
+         * 每个用户同时处理的消息数（多端登录有多个连接）
+         */
+        private int userConcurrency = 2;
+    }
+
+    /**
+     * 发送队列限制配置，按连接统计交给 tio 还没发出去的帧
+     */
+    @Data
+    public static class Outbound {
+
+        /**
+         * 是否开启
+         */
+        private boolean enabled = true;
+
+        /**
+         * 超过高水位后的处理：drop 丢弃低优先级的帧，coalesce 低优先级的帧同一个发送码只留最新的一条，disconnect 断开
+         */
+        private String policy = "coalesce";
+
+        /**
+         * 高水位字节数，超过后进入拥塞状态
+         */
+        private long highBytes = 1024 * 1024;
+
+        /**
+         * 高水位帧数
+         */
+        private int highPackets = 1000;
+
+        /**
+         * 低水位字节数，降到以下退出拥塞状态
+         */
+        private long lowBytes = 256 * 1024;
+
+        /**
+         * 低水位帧数
+         */
+        private int lowPackets = 200;
+
+        /**
+         * 积压字节数上限，超过后断开
+         */
+        private long maxBytes = 8 * 1024 * 1024;
+
+        /**
+         * 积压帧数上限，超过后断开
+         */
+        private int maxPackets = 10000;
+
+        /**
+         * 低优先级的发送码，客户端自定义的发送码（正在输入等）都是低优先级
+         */
+        private List<String> lowPriorityCodes = new ArrayList<>(List.of("unread"));
+
+        /**
+         * 断开时提示客户端多久以后重连（毫秒）
+         */
+        private long resumeAfterMillis = 3000;
+
+        /**
+         * 每分钟输出积压最多的多少个连接
+         */
+        private int reportTop = 10;
+    }
+
+    /**
+     * 合并写配置，一个连接短时间内的多个帧合成一次写
+     */
+    @Data
+    public static class Batch {
+
+        /**
+         * 是否开启，关闭后每帧单独写
+         */
+        private boolean enabled = true;
+
+        /**
+         * 攒批的窗口（微秒），也是开启后每帧最多多等的时间
+         */
+        private long windowMicros = 1000;
 
+        /**
+         * 一个批次攒够多少字节立即写
+         */
+        private int maxBytes = 16 * 1024;
+    }
 
 }
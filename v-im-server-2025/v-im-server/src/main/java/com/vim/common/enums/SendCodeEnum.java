@@ -13,43 +13,94 @@ public enum SendCodeEnum {
     /**
      * 心跳
      */
-    PING("ping"),
+    PING("ping", (byte) 0),
 
     /**
      * 链接就绪
      */
-    READY("ready"),
+    READY("ready", (byte) 1),
 
     /**
      * 文本消息
      */
-    MESSAGE("message"),
+    MESSAGE("message", (byte) 2),
 
     /**
      * 消息已读回执
      */
-    READ("read"),
+    READ("read", (byte) 3),
 
     /**
      * 其他地方登录提醒
      */
-    OTHER_LOGIN("other-login"),
+    OTHER_LOGIN("other-login", (byte) 4),
 
     /**
      * 新增好友或者好友审核
      */
-    FRIEND_REQUEST("friend-request"),
+    FRIEND_REQUEST("friend-request", (byte) 5),
 
     /**
      * 群组验证
      */
-    GROUP_REQUEST("group-request");
+    GROUP_REQUEST("group-request", (byte) 6),
+
+    /**
+     * 群未读太多，只补发了最近的消息，更早的由客户端按需拉取
+     */
+    UNREAD("unread", (byte) 7),
+
+    /**
+     * 消息撤回
+     */
+    RECALL("recall", (byte) 8),
+
+    /**
+     * 发送队列积压，服务端即将断开，客户端稍后重连，离线消息按已读位置补发
+     */
+    RESUME("resume", (byte) 9);
 
 
     private final String code;
 
-    SendCodeEnum(String code) {
+    /**
+     * 二进制帧里的发送码，取值固定，不能修改
+     */
+    private final byte type;
+
+    SendCodeEnum(String code, byte type) {
         this.code = code;
+        this.type = type;
+    }
+
+    /**
+     * 根据二进制帧里的发送码查找
+     *
+     * @param type 发送码
+     * @return SendCodeEnum，找不到返回 null
+     */
+    public static SendCodeEnum of(byte type) {
+        for (SendCodeEnum value : values()) {
+            if (value.type == type) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 根据文本发送码查找
+     *
+     * @param code 发送码
+     * @return SendCodeEnum，找不到返回 null
+     */
+    public static SendCodeEnum of(String code) {
+        for (SendCodeEnum value : values()) {
+            if (value.code.equals(code)) {
+                return value;
+            }
+        }
+        return null;
     }
 
 }
@@ -0,0 +1,91 @@
+package com.vim.common.shard;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import cn.hutool.core.util.StrUtil;
+import com.vim.common.utils.ChatUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 一致性哈希分片，按 chat_key 的哈希落到环上，每个分片有 virtualNodes 个虚拟节点。
+ * 相邻的用户 id 不会再挤在同一个分片上；增加分片时只有大约 1/n 的会话需要搬迁
+ *
+ * @author 乐天
+ */
+public class ConsistentHashShardRouter implements ShardRouter {
+
+    private final int shards;
+
+    private final Ring single;
+
+    private final Ring group;
+
+    public ConsistentHashShardRouter(int shards, int virtualNodes) {
+        this.shards = shards;
+        this.single = new Ring(ChatUtils.COLLECTION_TEMPLATE_SINGLE, shards, virtualNodes);
+        this.group = new Ring(ChatUtils.COLLECTION_TEMPLATE_GROUP, shards, virtualNodes);
+    }
+
+    @Override
+    public String route(String chatKey) {
+        // message-s-{min}-{max} 是私聊，message-g-{id} 是群聊
+        return (chatKey.split("-").length == 4 ? single : group).route(chatKey);
+    }
+
+    @Override
+    public List<String> collections() {
+        List<String> names = new ArrayList<>(shards * 2);
+        for (int i = 0; i < shards; i++) {
+            names.add(single.names[i]);
+            names.add(group.names[i]);
+        }
+        return names;
+    }
+
+    /**
+     * 一个哈希环，按哈希值排好序，查找时二分
+     */
+    private static final class Ring {
+
+        private final String[] names;
+
+        private final int[] hashes;
+
+        private final int[] owners;
+
+        private Ring(String template, int shards, int virtualNodes) {
+            this.names = new String[shards];
+            long[] points = new long[shards * virtualNodes];
+            for (int i = 0; i < shards; i++) {
+                names[i] = StrUtil.format(template, i);
+                for (int v = 0; v < virtualNodes; v++) {
+                    int hash = MurmurHash.hash32(names[i] + "#" + v);
+                    // 高 32 位是哈希，低 32 位是分片序号，排序后哈希相同的按分片序号固定先后
+                    points[i * virtualNodes + v] = ((long) hash << 32) | i;
+                }
+            }
+            Arrays.sort(points);
+            this.hashes = new int[points.length];
+            this.owners = new int[points.length];
+            for (int i = 0; i < points.length; i++) {
+                hashes[i] = (int) (points[i] >> 32);
+                owners[i] = (int) points[i];
+            }
+        }
+
+        private String route(String chatKey) {
+            int hash = MurmurHash.hash32(chatKey);
+            int index = Arrays.binarySearch(hashes, hash);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            // 超过环上最大的点就回到第一个
+            if (index == hashes.length) {
+                index = 0;
+            }
+            return names[owners[index]];
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.vim.common.shard;
+
+import cn.hutool.core.util.StrUtil;
+import com.vim.common.utils.ChatUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 取模分片，私聊按 |fromId - chatId| % shards，群聊按 groupId % shards，和最初的分片方式一致
+ *
+ * @author 乐天
+ */
+public class ModuloShardRouter implements ShardRouter {
+
+    private final int shards;
+
+    public ModuloShardRouter(int shards) {
+        this.shards = shards;
+    }
+
+    @Override
+    public String route(String chatKey) {
+        String[] arr = chatKey.split("-");
+        if (arr.length == 4) {
+            long diff = Math.abs(Long.parseLong(arr[3]) - Long.parseLong(arr[2]));
+            return StrUtil.format(ChatUtils.COLLECTION_TEMPLATE_SINGLE, diff % shards);
+        }
+        return StrUtil.format(ChatUtils.COLLECTION_TEMPLATE_GROUP, Long.parseLong(arr[2]) % shards);
+    }
+
+    @Override
+    public List<String> collections() {
+        List<String> names = new ArrayList<>(shards * 2);
+        for (int i = 0; i < shards; i++) {
+            names.add(StrUtil.format(ChatUtils.COLLECTION_TEMPLATE_SINGLE, i));
+            names.add(StrUtil.format(ChatUtils.COLLECTION_TEMPLATE_GROUP, i));
+        }
+        return names;
+    }
+}
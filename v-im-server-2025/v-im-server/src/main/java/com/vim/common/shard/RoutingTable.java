@@ -0,0 +1,118 @@
+package com.vim.common.shard;
+
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+/**
+ * 分片路由表，存在 mongo 里，所有节点定时读取，版本号变化就换路由。
+ * 搬迁期间同时保留上一版的路由，读的时候新旧两个位置都查，搬迁完成后只留当前版本
+ *
+ * @author 乐天
+ */
+@Data
+public class RoutingTable implements Serializable {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 取模分片
+     */
+    public static final String MODULO = "modulo";
+
+    /**
+     * 一致性哈希分片
+     */
+    public static final String CONSISTENT_HASH = "consistent-hash";
+
+    /**
+     * 正常使用
+     */
+    public static final String ACTIVE = "active";
+
+    /**
+     * 正在从上一版搬迁
+     */
+    public static final String MIGRATING = "migrating";
+
+    @Id
+    private String id;
+
+    /**
+     * 版本号，每次换路由加一
+     */
+    private long version;
+
+    /**
+     * 分片方式
+     */
+    private String strategy;
+
+    /**
+     * 分片数
+     */
+    private int shards;
+
+    /**
+     * 一致性哈希每个分片的虚拟节点数
+     */
+    private int virtualNodes;
+
+    /**
+     * 状态 active、migrating
+     */
+    private String state;
+
+    /**
+     * 上一版的分片方式、分片数、虚拟节点数，搬迁期间才有
+     */
+    private String previousStrategy;
+
+    private int previousShards;
+
+    private int previousVirtualNodes;
+
+    /**
+     * 搬迁开始时间，发布新版本后等所有节点都换上新路由再开始搬
+     */
+    private long migrateAfter;
+
+    /**
+     * 搬迁进度：上一版的第几个集合、这个集合里搬到哪个会话了、一共搬了多少个会话
+     */
+    private int migrateCollection;
+
+    private String migrateLastKey;
+
+    private long migrated;
+
+    private long updateTime;
+
+    /**
+     * 当前版本的路由
+     *
+     * @return ShardRouter
+     */
+    public ShardRouter router() {
+        return create(strategy, shards, virtualNodes);
+    }
+
+    /**
+     * 上一版的路由，没有在搬迁时为空
+     *
+     * @return ShardRouter
+     */
+    public ShardRouter previousRouter() {
+        return MIGRATING.equals(state) ? create(previousStrategy, previousShards, previousVirtualNodes) : null;
+    }
+
+    public static ShardRouter create(String strategy, int shards, int virtualNodes) {
+        if (CONSISTENT_HASH.equals(strategy)) {
+            return new ConsistentHashShardRouter(shards, virtualNodes);
+        }
+        return new ModuloShardRouter(shards);
+    }
+}
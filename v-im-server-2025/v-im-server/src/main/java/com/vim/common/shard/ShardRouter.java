@@ -0,0 +1,26 @@
+package com.vim.common.shard;
+
+import java.util.List;
+
+/**
+ * 消息分片路由，决定一个会话的聊天记录存在哪个集合
+ *
+ * @author 乐天
+ */
+public interface ShardRouter {
+
+    /**
+     * 会话所在的集合
+     *
+     * @param chatKey 会话key，见 {@link com.vim.common.utils.ChatUtils#getChatKey}
+     * @return 集合名
+     */
+    String route(String chatKey);
+
+    /**
+     * 这个路由用到的所有集合
+     *
+     * @return 集合名
+     */
+    List<String> collections();
+}
@@ -0,0 +1,79 @@
+package com.vim.common.shard;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 当前生效的分片路由，{@link com.vim.common.utils.ChatUtils} 通过这里找集合。
+ * 默认是取模 1000 片，启动后由路由表覆盖
+ *
+ * @author 乐天
+ */
+public final class ShardRouting {
+
+    private static volatile State state = new State(0, new ModuloShardRouter(1000), null);
+
+    private ShardRouting() {
+    }
+
+    /**
+     * 换路由
+     *
+     * @param version  路由表版本
+     * @param current  当前路由，新消息写到这里
+     * @param previous 上一版路由，搬迁完成前读的时候也要查，没有传 null
+     */
+    public static void apply(long version, ShardRouter current, ShardRouter previous) {
+        state = new State(version, current, previous);
+    }
+
+    public static long version() {
+        return state.version;
+    }
+
+    /**
+     * 会话现在应该写到哪个集合
+     *
+     * @param chatKey 会话key
+     * @return 集合名
+     */
+    public static String route(String chatKey) {
+        return state.current.route(chatKey);
+    }
+
+    /**
+     * 会话的聊天记录可能在的集合，当前位置在前；搬迁期间新旧位置不同时有两个
+     *
+     * @param chatKey 会话key
+     * @return 集合名
+     */
+    public static List<String> locations(String chatKey) {
+        State s = state;
+        String current = s.current.route(chatKey);
+        if (s.previous == null) {
+            return List.of(current);
+        }
+        String previous = s.previous.route(chatKey);
+        return current.equals(previous) ? List.of(current) : List.of(current, previous);
+    }
+
+    /**
+     * 当前和上一版路由用到的所有集合
+     *
+     * @return 集合名
+     */
+    public static List<String> collections() {
+        State s = state;
+        if (s.previous == null) {
+            return s.current.collections();
+        }
+        Set<String> names = new LinkedHashSet<>(s.current.collections());
+        names.addAll(s.previous.collections());
+        return new ArrayList<>(names);
+    }
+
+    private record State(long version, ShardRouter current, ShardRouter previous) {
+    }
+}
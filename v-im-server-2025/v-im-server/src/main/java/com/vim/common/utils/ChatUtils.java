@@ -2,6 +2,9 @@ package com.vim.common.utils;
 
 import cn.hutool.core.util.StrUtil;
 import com.vim.common.enums.ChatTypeEnum;
+import com.vim.common.shard.ShardRouting;
+
+import java.util.List;
 
 /**
  * 封装的信息类型 UTILS
@@ -24,11 +27,17 @@ public class ChatUtils {
     public static final String GROUP_TEMPLATE = "message-g-{}";
 
     /**
-     * 存放聊的最后一次查看消息时间
-     * message-{userId：读取人}-{chatId：id}
+     * 原来存放聊的最后一次查看消息时间，每个会话一个 key，已经改成 {@link #READ_MARK_TEMPLATE}，只用于迁移
+     * read-{userId：读取人}-{chatId：id}
      */
     public static final String READ_TEMPLATE = "read-{}-{}";
 
+    /**
+     * 存放用户每个会话最后一次查看消息的时间，hash，field 为 chatId
+     * chat-read-{userId}
+     */
+    public static final String READ_MARK_TEMPLATE = "chat-read-{}";
+
     /**
      * 存放"私聊"的离线
      * message-{toUserId} 也是 chatId
@@ -36,14 +45,41 @@ public class ChatUtils {
     public static final String UNREAD_TEMPLATE = "offline-message-{}";
 
     /**
-     * 存放"私聊"的未收到回执消息
+     * 存放每个群最后一条消息的时间，hash，field 为群id；按群id分成 GROUP_LATEST_SHARDS 个 hash，
+     * 每条群消息都要写，放在一个 key 上会集中到 redis 集群的一个分片
      */
-    public static final String UN_ACK_TEMPLATE = "un-ack-message-{}";
+    public static final String GROUP_LATEST_TEMPLATE = "group-latest:{}";
+
+    public static final int GROUP_LATEST_SHARDS = 64;
+
+    /**
+     * 会话最近消息的 id，zset，score 为时间戳
+     * recent-{chatKey}
+     */
+    public static final String RECENT_TEMPLATE = "recent-{}";
+
+    /**
+     * 会话最近消息的内容，hash，field 为消息id
+     * recent-body-{chatKey}
+     */
+    public static final String RECENT_BODY_TEMPLATE = "recent-body-{}";
 
     /**
-     * 消息分片存储的分片数量（所有的消息分1000个片）
+     * 会话最近消息缓存的版本，删除消息和清空会话时加一
+     * recent-version-{chatKey}
      */
-    private static final long SPLIT = 1000L;
+    public static final String RECENT_VERSION_TEMPLATE = "recent-version-{}";
+
+    /**
+     * 用户的会话摘要，hash，field 为 {chatId}:t 时间、:p 预览、:f 发送人、:u 未读数、:m 是否被@
+     * chat-summary-{userId}
+     */
+    public static final String SUMMARY_TEMPLATE = "chat-summary-{}";
+
+    /**
+     * 存放"私聊"的未收到回执消息
+     */
+    public static final String UN_ACK_TEMPLATE = "un-ack-message-{}";
 
     /**
      * 存放私聊的已读消息
@@ -53,6 +89,12 @@ public class ChatUtils {
 
     public static final String COLLECTION_TEMPLATE_GROUP = "message-g-{}";
 
+    /**
+     * 按月的聊天记录归档集合
+     * archive-message-{yyyyMM}
+     */
+    public static final String ARCHIVE_COLLECTION_TEMPLATE = "archive-message-{}";
+
     /**
      * 获取一个固定的key来存储聊天记录到redis
      *
@@ -84,12 +126,17 @@ public class ChatUtils {
     }
 
     public static String getCollectionNameByChatKey(String chatKey) {
-        String[] arr = chatKey.split("-");
-        if (arr.length == 3) {
-            return getCollectionName(arr[1], arr[2], ChatTypeEnum.FRIEND.getCode());
-        } else {
-            return getCollectionName("0", arr[1], ChatTypeEnum.GROUP.getCode());
-        }
+        return ShardRouting.route(chatKey);
+    }
+
+    /**
+     * 会话的聊天记录可能在的集合，分片搬迁期间新旧两个位置都要查，当前位置在前
+     *
+     * @param chatKey 会话key
+     * @return 集合名
+     */
+    public static List<String> getCollectionNames(String chatKey) {
+        return ShardRouting.locations(chatKey);
     }
 
     /**
@@ -104,7 +151,7 @@ public class ChatUtils {
     }
 
     /**
-     * 根据分片算法获得聊天集合的集合名
+     * 根据分片路由获得聊天集合的集合名，见 {@link ShardRouting}
      *
      * @param fromId 来源
      * @param chatId 聊天id
@@ -112,19 +159,34 @@ public class ChatUtils {
      * @return chatId
      */
     public static String getCollectionName(String fromId, String chatId, String type) {
-        if (ChatTypeEnum.FRIEND.getCode().equals(type)) {
-            long f = Long.parseLong(fromId);
-            long c = Long.parseLong(chatId);
-            if (f < c) {
-                return StrUtil.format(COLLECTION_TEMPLATE_SINGLE, (c - f) % SPLIT);
-            } else {
-                return StrUtil.format(COLLECTION_TEMPLATE_SINGLE, (f - c) % SPLIT);
-            }
-        } else {
-            return StrUtil.format(COLLECTION_TEMPLATE_GROUP, (Long.parseLong(chatId)) % SPLIT);
-        }
+        return ShardRouting.route(getChatKey(fromId, chatId, type));
+    }
+
+    /**
+     * 群最后一条消息时间所在的 hash
+     *
+     * @param groupId 群id
+     * @return key
+     */
+    public static String getGroupLatestKey(String groupId) {
+        return StrUtil.format(GROUP_LATEST_TEMPLATE, Math.floorMod(groupId.hashCode(), GROUP_LATEST_SHARDS));
+    }
+
+    /**
+     * 所有的消息分片集合，搬迁期间包括上一版的集合
+     *
+     * @return 集合名
+     */
+    public static List<String> getShardCollectionNames() {
+        return ShardRouting.collections();
     }
 
+    /**
+     * 原来每个用户一个的离线消息集合，现在只在迁移到离线收件箱时用到
+     *
+     * @param chatId 用户id
+     * @return 集合名
+     */
     public static String getOffLineCollectionName(String chatId) {
         return StrUtil.format(ChatUtils.UNREAD_TEMPLATE, chatId);
     }
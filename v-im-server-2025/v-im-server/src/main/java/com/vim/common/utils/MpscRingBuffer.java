@@ -0,0 +1,90 @@
+package com.vim.common.utils;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 多生产者单消费者的无锁环形缓冲区
+ * 生产者用 CAS 抢占写入位置，满了直接返回 false，不会阻塞；只能有一个线程消费
+ *
+ * @param <E> 元素类型
+ * @author 乐天
+ */
+public final class MpscRingBuffer<E> {
+
+    private final AtomicReferenceArray<E> slots;
+
+    private final int mask;
+
+    /**
+     * 下一个写入位置，生产者竞争
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * 下一个读取位置，只有消费线程修改
+     */
+    private volatile long head;
+
+    /**
+     * @param capacity 容量，会向上取整到 2 的幂
+     */
+    public MpscRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * 放入一个元素
+     *
+     * @param e 元素
+     * @return 满了返回 false
+     */
+    public boolean offer(E e) {
+        long t;
+        do {
+            t = tail.get();
+            if (t - head > mask) {
+                return false;
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+        slots.lazySet((int) (t & mask), e);
+        return true;
+    }
+
+    /**
+     * 取出已经写好的元素，只能由消费线程调用
+     *
+     * @param collection 放到这里
+     * @param max        最多取多少个
+     * @return 取出的个数
+     */
+    public int drainTo(Collection<? super E> collection, int max) {
+        long h = head;
+        int count = 0;
+        while (count < max) {
+            int index = (int) (h & mask);
+            E e = slots.get(index);
+            // 为空说明已经取完，或者生产者抢到了位置还没写进来，下次再取
+            if (e == null) {
+                break;
+            }
+            slots.lazySet(index, null);
+            collection.add(e);
+            h++;
+            count++;
+        }
+        head = h;
+        return count;
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
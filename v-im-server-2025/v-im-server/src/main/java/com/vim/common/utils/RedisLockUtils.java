@@ -0,0 +1,77 @@
+package com.vim.common.utils;
+
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * 后台任务用的 redis 锁，值是持有锁的节点id
+ * 续期和释放都先比较持有者，用 lua 保证原子，锁过期被别的节点拿到以后不会被原来的节点续期或者删掉
+ *
+ * @author 乐天
+ */
+public class RedisLockUtils {
+
+    /**
+     * KEYS: 锁；ARGV: 持有者, 过期时间（毫秒）
+     */
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>("""
+            if redis.call('get', KEYS[1]) == ARGV[1] then
+                return redis.call('pexpire', KEYS[1], ARGV[2])
+            end
+            return 0
+            """, Long.class);
+
+    /**
+     * KEYS: 锁；ARGV: 持有者
+     */
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT = new DefaultRedisScript<>("""
+            if redis.call('get', KEYS[1]) == ARGV[1] then
+                return redis.call('del', KEYS[1])
+            end
+            return 0
+            """, Long.class);
+
+    private RedisLockUtils() {
+    }
+
+    /**
+     * 加锁
+     *
+     * @param redisTemplate redis
+     * @param key           锁
+     * @param owner         持有者
+     * @param ttl           过期时间
+     * @return 是否拿到锁
+     */
+    public static boolean lock(RedisTemplate<String, String> redisTemplate, String key, String owner, Duration ttl) {
+        return Boolean.TRUE.equals(redisTemplate.opsForValue().setIfAbsent(key, owner, ttl));
+    }
+
+    /**
+     * 续期，锁还是自己的才续
+     *
+     * @param redisTemplate redis
+     * @param key           锁
+     * @param owner         持有者
+     * @param ttl           过期时间
+     * @return 锁已经不是自己的了返回 false
+     */
+    public static boolean renew(RedisTemplate<String, String> redisTemplate, String key, String owner, Duration ttl) {
+        Long renewed = redisTemplate.execute(RENEW_SCRIPT, List.of(key), owner, String.valueOf(ttl.toMillis()));
+        return renewed != null && renewed > 0;
+    }
+
+    /**
+     * 释放，锁还是自己的才删
+     *
+     * @param redisTemplate redis
+     * @param key           锁
+     * @param owner         持有者
+     */
+    public static void unlock(RedisTemplate<String, String> redisTemplate, String key, String owner) {
+        redisTemplate.execute(UNLOCK_SCRIPT, List.of(key), owner);
+    }
+}
@@ -97,6 +97,16 @@ public class ChatController {
         return SaResult.data(chatService.getList());
     }
 
+    /**
+     * 获取会话摘要，聊天列表的最后一条消息和角标
+     *
+     * @return 会话摘要
+     */
+    @GetMapping("/summary")
+    public SaResult summary() {
+        return SaResult.data(chatService.getSummary());
+    }
+
     /**
      * 删除聊天
      *
@@ -0,0 +1,46 @@
+package com.vim.modules.chat.result;
+
+import lombok.Data;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+/**
+ * 会话摘要，聊天列表和角标直接用它，不用再拉取聊天记录计算。
+ */
+@Data
+public class ChatSummary implements Serializable {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 聊天会话的唯一标识符，私聊是对方的用户id，群聊是群id。
+     */
+    private String chatId;
+
+    /**
+     * 最后一条消息的预览。
+     */
+    private String preview;
+
+    /**
+     * 最后一条消息的发送人。
+     */
+    private String fromId;
+
+    /**
+     * 最后一条消息的时间戳。
+     */
+    private long timestamp;
+
+    /**
+     * 未读消息的数量。
+     */
+    private long unreadCount;
+
+    /**
+     * 未读消息里是否有@自己的。
+     */
+    private boolean mention;
+}
@@ -1,6 +1,7 @@
 package com.vim.modules.chat.service;
 
 import com.vim.modules.chat.result.Chat;
+import com.vim.modules.chat.result.ChatSummary;
 
 import java.util.List;
 
@@ -54,6 +55,13 @@ public interface IChatService {
      * @return 聊天列表
      */
     List<Chat> getList();
+
+    /**
+     * 获取所有会话的摘要，包括最后一条消息、未读数和是否被@
+     *
+     * @return 会话摘要，按最后一条消息的时间倒序
+     */
+    List<ChatSummary> getSummary();
     
     /**
      * 删除聊天
@@ -2,23 +2,47 @@ package com.vim.modules.chat.service.impl;
 
 import cn.hutool.core.util.StrUtil;
 import com.alibaba.fastjson2.JSON;
+import com.vim.common.config.VimConfig;
+import com.vim.common.utils.RedisLockUtils;
 import com.vim.common.utils.VimUtil;
 import com.vim.modules.chat.result.Chat;
+import com.vim.modules.chat.result.ChatSummary;
 import com.vim.modules.chat.service.IChatService;
+import com.vim.sdk.cache.ChatSummaryStore;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.data.redis.core.ListOperations;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.connection.DataType;
+import org.springframework.data.redis.connection.DefaultTuple;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands.Tuple;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.GenericToStringSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
 import org.springframework.stereotype.Service;
 
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Objects;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 聊天服务实现类
+ * 聊天列表和置顶列表各是一个 zset，score 是最后活动时间，会话内容放在一个 hash 里。
+ * 去重、移到最前、置顶和取消置顶都是 O(log n) 的单条命令，读取列表用一个 lua 脚本 ZREVRANGE + HMGET，一次往返。
+ * 原来的 list 结构启动后由一个节点在后台迁移，迁移完成前访问某个用户时先迁移他的；迁移完成记在 redis 里，每个节点定时检查一次
  *
  * @author vim
  * @since 2024-01-01
@@ -27,56 +51,120 @@ import java.util.stream.Collectors;
 @Service
 public class ChatServiceImpl implements IChatService {
 
-    /** Redis中聊天列表key */
-    private static final String CHAT_LIST = "chat:list:{}";
-    /** Redis中置顶聊天列表key */
-    private static final String TOP_CHAT_LIST = "chat:top:list:{}";
-    /** Redis中单个聊天key */
-    private static final String CHAT = "{}:chat:{}";
+    /** Redis中聊天列表key，zset */
+    private static final String CHAT_LIST = "chat:zset:{}";
+    /** Redis中置顶聊天列表key，zset */
+    private static final String TOP_CHAT_LIST = "chat:top:zset:{}";
+    /** Redis中聊天内容key，hash，field 为聊天ID */
+    private static final String CHAT_DATA = "chat:data:{}";
+
+    /** 原来的聊天列表key，list */
+    private static final String LEGACY_CHAT_LIST = "chat:list:{}";
+    /** 原来的置顶聊天列表key，list */
+    private static final String LEGACY_TOP_CHAT_LIST = "chat:top:list:{}";
+    /** 原来的单个聊天key */
+    private static final String LEGACY_CHAT = "{}:chat:{}";
+    /** 原来的两种列表key里用户ID前面的部分 */
+    private static final List<String> LEGACY_PREFIXES = List.of(StrUtil.format(LEGACY_CHAT_LIST, ""), StrUtil.format(LEGACY_TOP_CHAT_LIST, ""));
+
+    /** 不能用 chat:list: 开头，否则会被当成原来的列表 */
+    private static final String MIGRATED_KEY = "chat-list:migrated";
+
+    private static final String LOCK_KEY = "chat-list:migrator:lock";
+
+    private static final Duration LOCK_TTL = Duration.ofHours(1);
+
+    /**
+     * 迁移没完成时多久检查一次
+     */
+    private static final long MIGRATED_CHECK_MILLIS = 10000;
+
+    /**
+     * 按时间倒序读取列表，再取出内容，用 EVAL 执行，返回值按字节数组读取
+     * KEYS: zset, hash；返回 id 和内容交替的列表，内容不存在的是空
+     */
+    private static final byte[] READ_SCRIPT = """
+            local ids = redis.call('zrevrange', KEYS[1], 0, -1)
+            local result = {}
+            for i = 1, #ids, 1000 do
+                local batch = {unpack(ids, i, math.min(i + 999, #ids))}
+                local bodies = redis.call('hmget', KEYS[2], unpack(batch))
+                for j = 1, #batch do
+                    result[#result + 1] = batch[j]
+                    result[#result + 1] = bodies[j] or ''
+                end
+            end
+            return result
+            """.getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * 从一个列表移到另一个列表的最前面，已经在目标列表里的保持原位
+     * KEYS: 原列表, 目标列表；ARGV: 聊天ID, 时间
+     */
+    private static final DefaultRedisScript<Long> SWITCH_SCRIPT = new DefaultRedisScript<>("""
+            redis.call('zrem', KEYS[1], ARGV[1])
+            return redis.call('zadd', KEYS[2], 'NX', ARGV[2], ARGV[1])
+            """, Long.class);
+
+    private static final GenericToStringSerializer<Long> LONG_SERIALIZER = new GenericToStringSerializer<>(Long.class);
+
+    @Resource
+    private VimConfig vimConfig;
 
     @Resource
     private RedisTemplate<String, String> redisTemplate;
 
+    @Resource
+    private ChatSummaryStore chatSummaryStore;
+
+    private final String nodeId = ManagementFactory.getRuntimeMXBean().getName();
+
+    /**
+     * 原来的列表是否已经全部迁移完，任何一个节点迁移完都算
+     */
+    private volatile boolean migrated;
+
+    /**
+     * 下次检查迁移是否完成的时间
+     */
+    private volatile long migratedCheckAt;
+
     @Override
     public void add(Chat chat) throws Exception {
-        String userId = VimUtil.getLoginId();
-        String chatListKey = StrUtil.format(CHAT_LIST, userId);
-        addToListIfNotExists(chatListKey, chat.getId());
-        String chatKey = StrUtil.format(CHAT, userId, chat.getId());
-        redisTemplate.opsForValue().set(chatKey, JSON.toJSONString(chat));
+        String userId = loginUser();
+        String chatId = chat.getId();
+        redisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.zSetCommands().zAdd(bytes(key(CHAT_LIST, userId)), System.currentTimeMillis(), bytes(chatId), RedisZSetCommands.ZAddArgs.ifNotExists());
+            connection.hashCommands().hSet(bytes(key(CHAT_DATA, userId)), bytes(chatId), bytes(JSON.toJSONString(chat)));
+            return null;
+        });
     }
 
     @Override
     public void update(Chat chat) throws Exception {
-        String userId = VimUtil.getLoginId();
-        String chatKey = StrUtil.format(CHAT, userId, chat.getId());
-        redisTemplate.opsForValue().set(chatKey, JSON.toJSONString(chat));
+        batchUpdate(List.of(chat));
     }
 
     @Override
     public void batchUpdate(List<Chat> chatList) {
-        String userId = VimUtil.getLoginId();
-        chatList.forEach(chat -> {
-            String chatKey = StrUtil.format(CHAT, userId, chat.getId());
-            try {
-                redisTemplate.opsForValue().set(chatKey, JSON.toJSONString(chat));
-            } catch (Exception e) {
-                log.error("json解析错误：", e);
-                throw new RuntimeException(e);
-            }
+        if (chatList.isEmpty()) {
+            return;
+        }
+        String userId = loginUser();
+        Map<byte[], byte[]> fields = new HashMap<>(chatList.size());
+        chatList.forEach(chat -> fields.put(bytes(chat.getId()), bytes(JSON.toJSONString(chat))));
+        redisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.hashCommands().hMSet(bytes(key(CHAT_DATA, userId)), fields);
+            return null;
         });
     }
 
     @Override
     public void move(String chatId) {
-        String userId = VimUtil.getLoginId();
-        String chatListKey = StrUtil.format(CHAT_LIST, userId, chatId);
-        ListOperations<String, String> listOps = redisTemplate.opsForList();
-        Long index = listOps.indexOf(chatListKey, chatId);
-        if (index >= 0) {
-            listOps.remove(chatListKey, 0, chatId);
-            listOps.leftPush(chatListKey, chatId);
-        }
+        String userId = loginUser();
+        // 只移动已经在列表里的
+        redisTemplate.execute((RedisCallback<Object>) connection -> connection.zSetCommands()
+                .zAdd(bytes(key(CHAT_LIST, userId)), System.currentTimeMillis(), bytes(chatId), RedisZSetCommands.ZAddArgs.ifExists()));
     }
 
     @Override
@@ -84,83 +172,227 @@ public class ChatServiceImpl implements IChatService {
         return getChats(TOP_CHAT_LIST);
     }
 
-    private List<Chat> getChats(String topChatList) {
-        String key = StrUtil.format(topChatList, VimUtil.getLoginId());
-        ListOperations<String, String> listOps = redisTemplate.opsForList();
-        List<String> chatIds = listOps.range(key, 0, -1);
-        return getChats(key, chatIds == null ? new ArrayList<>() : chatIds);
-    }
-
     @Override
     public List<Chat> getList() {
         return getChats(CHAT_LIST);
     }
 
+    @Override
+    public List<ChatSummary> getSummary() {
+        return new ArrayList<>(chatSummaryStore.list(VimUtil.getLoginId()).values());
+    }
+
     @Override
     public void delete(String chatId) {
-        String userId = VimUtil.getLoginId();
-        String chatKey = StrUtil.format(CHAT_LIST, userId);
-        String topChatKey = StrUtil.format(TOP_CHAT_LIST, userId);
-        ListOperations<String, String> listOps = redisTemplate.opsForList();
-        listOps.remove(chatKey, 0, chatId);
-        listOps.remove(topChatKey, 0, chatId);
+        String userId = loginUser();
+        redisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.zSetCommands().zRem(bytes(key(CHAT_LIST, userId)), bytes(chatId));
+            connection.zSetCommands().zRem(bytes(key(TOP_CHAT_LIST, userId)), bytes(chatId));
+            connection.hashCommands().hDel(bytes(key(CHAT_DATA, userId)), bytes(chatId));
+            return null;
+        });
+        chatSummaryStore.remove(userId, chatId);
     }
 
     @Override
     public void top(String chatId) {
-        String userId = VimUtil.getLoginId();
-        String chatKey = StrUtil.format(CHAT_LIST, userId);
-        String topChatKey = StrUtil.format(TOP_CHAT_LIST, userId);
-        ListOperations<String, String> listOps = redisTemplate.opsForList();
-        listOps.remove(chatKey, 0, chatId);
-        addToListIfNotExists(topChatKey, chatId);
+        String userId = loginUser();
+        switchList(key(CHAT_LIST, userId), key(TOP_CHAT_LIST, userId), chatId);
     }
 
     @Override
     public void cancelTop(String chatId) {
-        String userId = VimUtil.getLoginId();
-        String chatKey = StrUtil.format(CHAT_LIST, userId);
-        String topChatKey = StrUtil.format(TOP_CHAT_LIST, userId);
-        ListOperations<String, String> listOps = redisTemplate.opsForList();
-        listOps.remove(topChatKey, 0, chatId);
-        addToListIfNotExists(chatKey, chatId);
+        String userId = loginUser();
+        switchList(key(TOP_CHAT_LIST, userId), key(CHAT_LIST, userId), chatId);
     }
 
     /**
-     * 获取聊天列表
+     * 获取聊天列表，未读数用会话摘要里的
      *
-     * @param key Redis键
-     * @param chatIds 聊天ID列表
+     * @param template 列表key模板
      * @return 聊天列表
      */
-    private List<Chat> getChats(String key, List<String> chatIds) {
+    private List<Chat> getChats(String template) {
+        String userId = loginUser();
+        List<Object> reply = redisTemplate.execute((RedisCallback<List<Object>>) connection -> connection.scriptingCommands()
+                .eval(READ_SCRIPT, ReturnType.MULTI, 2, bytes(key(template, userId)), bytes(key(CHAT_DATA, userId))));
+        List<Chat> chats = new ArrayList<>();
+        if (reply == null || reply.isEmpty()) {
+            return chats;
+        }
+        Map<String, ChatSummary> summaries = chatSummaryStore.list(userId);
+        for (int i = 0; i + 1 < reply.size(); i += 2) {
+            String body = string(reply.get(i + 1));
+            if (StrUtil.isEmpty(body)) {
+                continue;
+            }
+            Chat chat = JSON.parseObject(body, Chat.class);
+            if (chat == null) {
+                continue;
+            }
+            ChatSummary summary = summaries.get(string(reply.get(i)));
+            if (summary != null) {
+                chat.setUnreadCount(summary.getUnreadCount());
+            }
+            chats.add(chat);
+        }
+        return chats;
+    }
+
+    private void switchList(String from, String to, String chatId) {
+        redisTemplate.execute(SWITCH_SCRIPT, StringRedisSerializer.UTF_8, LONG_SERIALIZER,
+                List.of(from, to), chatId, String.valueOf(System.currentTimeMillis()));
+    }
+
+    /**
+     * 当前登录用户，原来的列表还没迁移完时先迁移他的
+     */
+    private String loginUser() {
         String userId = VimUtil.getLoginId();
-        ValueOperations<String, String> valueOperations = redisTemplate.opsForValue();
-        ListOperations<String, String> listOps = redisTemplate.opsForList();
+        if (!isMigrated()) {
+            migrateUser(userId);
+        }
+        return userId;
+    }
 
-        return chatIds.stream().map(chatId -> {
-            String chatKey = StrUtil.format(CHAT, userId, chatId);
-            String str = valueOperations.get(chatKey);
-            return JSON.parseObject(str, Chat.class);
-        }).filter(Objects::nonNull).collect(Collectors.toList());
+    /**
+     * 原来的列表是否已经全部迁移完，没完成时最多每 {@link #MIGRATED_CHECK_MILLIS} 读一次 redis
+     */
+    private boolean isMigrated() {
+        if (migrated) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now >= migratedCheckAt) {
+            migratedCheckAt = now + MIGRATED_CHECK_MILLIS;
+            migrated = Boolean.TRUE.toString().equals(redisTemplate.opsForValue().get(MIGRATED_KEY));
+        }
+        return migrated;
     }
 
     /**
-     * 将聊天ID添加到列表中（如果不存在）
-     *
-     * @param key Redis键
-     * @param chatId 聊天ID
+     * 启动后在后台迁移原来的 list 结构，只有一个节点迁移
      */
-    private void addToListIfNotExists(String key, String chatId) {
-        ListOperations<String, String> listOps = redisTemplate.opsForList();
-        Long size = listOps.size(key);
-        if (size != null) {
-            for (int i = 0; i < size; i++) {
-                if (chatId.equals(listOps.index(key, i))) {
-                    return;
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrate() {
+        if (isMigrated()) {
+            return;
+        }
+        if (!vimConfig.getChatList().isMigrate()) {
+            return;
+        }
+        Thread.ofPlatform().daemon().name("vim-chat-list-migrator").start(this::migrateAll);
+    }
+
+    private void migrateAll() {
+        if (!RedisLockUtils.lock(redisTemplate, LOCK_KEY, nodeId, LOCK_TTL)) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        long users = 0;
+        try {
+            Set<String> userIds = new LinkedHashSet<>();
+            for (String prefix : LEGACY_PREFIXES) {
+                ScanOptions options = ScanOptions.scanOptions().match(prefix + "*").count(vimConfig.getChatList().getScanCount()).build();
+                redisTemplate.execute((RedisCallback<Object>) connection -> {
+                    try (Cursor<byte[]> cursor = connection.scan(options)) {
+                        while (cursor.hasNext()) {
+                            byte[] key = cursor.next();
+                            // 同样前缀的其他 key 不是原来的列表，跳过
+                            if (connection.keyCommands().type(key) == DataType.LIST) {
+                                userIds.add(new String(key, StandardCharsets.UTF_8).substring(prefix.length()));
+                            }
+                        }
+                    }
+                    return null;
+                });
+            }
+            for (String userId : userIds) {
+                migrateUser(userId);
+                users++;
+                if (!RedisLockUtils.renew(redisTemplate, LOCK_KEY, nodeId, LOCK_TTL)) {
+                    throw new IllegalStateException("迁移的锁已经过期");
                 }
+                TimeUnit.MILLISECONDS.sleep(vimConfig.getChatList().getMigratePauseMillis());
             }
-            listOps.leftPush(key, chatId);
+            redisTemplate.opsForValue().set(MIGRATED_KEY, Boolean.TRUE.toString());
+            migrated = true;
+            log.info("聊天列表迁移完成，{} 个用户，耗时 {}ms", users, System.currentTimeMillis() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("聊天列表迁移失败，已迁移 {} 个用户，下次启动继续", users, e);
+        } finally {
+            RedisLockUtils.unlock(redisTemplate, LOCK_KEY, nodeId);
         }
     }
-} 
\ No newline at end of file
+
+    /**
+     * 把一个用户原来的列表和聊天内容写到新结构，保持原来的顺序，新结构里已经有的不覆盖，写完删除原来的 key
+     */
+    private void migrateUser(String userId) {
+        String listKey = StrUtil.format(LEGACY_CHAT_LIST, userId);
+        String topKey = StrUtil.format(LEGACY_TOP_CHAT_LIST, userId);
+        Long exists = redisTemplate.countExistingKeys(List.of(listKey, topKey));
+        if (exists == null || exists == 0) {
+            return;
+        }
+        List<String> chatIds = redisTemplate.opsForList().range(listKey, 0, -1);
+        List<String> topIds = redisTemplate.opsForList().range(topKey, 0, -1);
+        chatIds = chatIds == null ? List.of() : chatIds;
+        topIds = topIds == null ? List.of() : topIds;
+        Set<String> all = new LinkedHashSet<>(chatIds);
+        all.addAll(topIds);
+        List<String> legacyKeys = all.stream().map(chatId -> StrUtil.format(LEGACY_CHAT, userId, chatId)).toList();
+        List<String> bodies = legacyKeys.isEmpty() ? List.of() : redisTemplate.opsForValue().multiGet(legacyKeys);
+
+        long now = System.currentTimeMillis();
+        Set<Tuple> list = tuples(chatIds, now);
+        Set<Tuple> top = tuples(topIds, now);
+        Map<byte[], byte[]> data = new HashMap<>(all.size());
+        int i = 0;
+        for (String chatId : all) {
+            String body = bodies == null ? null : bodies.get(i++);
+            if (body != null) {
+                data.put(bytes(chatId), bytes(body));
+            }
+        }
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            if (!list.isEmpty()) {
+                connection.zSetCommands().zAdd(bytes(key(CHAT_LIST, userId)), list, RedisZSetCommands.ZAddArgs.ifNotExists());
+            }
+            if (!top.isEmpty()) {
+                connection.zSetCommands().zAdd(bytes(key(TOP_CHAT_LIST, userId)), top, RedisZSetCommands.ZAddArgs.ifNotExists());
+            }
+            data.forEach((field, value) -> connection.hashCommands().hSetNX(bytes(key(CHAT_DATA, userId)), field, value));
+            return null;
+        });
+        List<String> delete = new ArrayList<>(legacyKeys);
+        delete.add(listKey);
+        delete.add(topKey);
+        redisTemplate.delete(delete);
+    }
+
+    /**
+     * 原来 list 头部是最新的，按位置递减生成 score
+     */
+    private static Set<Tuple> tuples(List<String> chatIds, long now) {
+        Set<Tuple> tuples = new LinkedHashSet<>();
+        for (int i = 0; i < chatIds.size(); i++) {
+            tuples.add(new DefaultTuple(bytes(chatIds.get(i)), (double) (now - i)));
+        }
+        return tuples;
+    }
+
+    private static String key(String template, String userId) {
+        return StrUtil.format(template, userId);
+    }
+
+    private static String string(Object reply) {
+        return reply instanceof byte[] value ? new String(value, StandardCharsets.UTF_8) : null;
+    }
+
+    private static byte[] bytes(String str) {
+        return str.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,297 @@
+package com.vim.sdk.cache;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONObject;
+import com.vim.common.config.VimConfig;
+import com.vim.common.enums.ChatTypeEnum;
+import com.vim.common.enums.MessageTypeEnum;
+import com.vim.common.utils.ChatUtils;
+import com.vim.modules.chat.result.ChatSummary;
+import com.vim.sdk.service.VimGroupApiService;
+import com.vim.tio.messages.Message;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ApplicationContext;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.GenericToStringSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 会话摘要
+ * 每个用户一个 hash chat-summary-{userId}，每个会话一个 field：会话id -> 时间:未读数:@标记:发送人:预览，
+ * 预览放在最后，里面可以有冒号。一个会话只占一个 field，会话数不超过 hash-max-listpack-entries 时 hash 是 listpack 编码。
+ * 发消息时用 lua 脚本增量更新收件人和发送人的摘要（群消息每批 batchSize 个成员一次调用），已读时把未读数和@标记清零，
+ * 聊天列表和角标一次 HGETALL 就能拿到，不用再拉取聊天记录计算。
+ * 摘要只是展示用的，redis 出错时只记录日志
+ *
+ * @author 乐天
+ */
+@Slf4j
+@Component
+public class ChatSummaryStore {
+
+    /**
+     * 摘要的字段数
+     */
+    private static final int PARTS = 5;
+
+    /**
+     * 收件人，未读数加一
+     */
+    private static final String FLAG_UNREAD = "n";
+
+    /**
+     * 被@的收件人，未读数加一并打上@标记
+     */
+    private static final String FLAG_MENTION = "m";
+
+    /**
+     * 发送人，发了消息说明已经看过这个会话，未读数清零
+     */
+    private static final String FLAG_SENDER = "s";
+
+    /**
+     * 更新一批用户的摘要，最后一条消息只在时间不早于已有的时候覆盖
+     * KEYS: 每个用户的摘要；ARGV: 时间戳, 预览, 发送人, 之后每两个一组 会话id, 标记
+     */
+    private static final DefaultRedisScript<Long> UPDATE_SCRIPT = new DefaultRedisScript<>("""
+            local ts = tonumber(ARGV[1])
+            for i, key in ipairs(KEYS) do
+                local chatId = ARGV[2 + i * 2]
+                local flag = ARGV[3 + i * 2]
+                local t, u, m, f, p = '0', 0, '0', '', ''
+                local old = redis.call('hget', key, chatId)
+                if old then
+                    local a, b, c, d, e = string.match(old, '^(%d+):(%d+):(%d):([^:]*):(.*)$')
+                    if a then
+                        t, u, m, f, p = a, tonumber(b), c, d, e
+                    end
+                end
+                if ts >= tonumber(t) then
+                    t, p, f = ARGV[1], ARGV[2], ARGV[3]
+                end
+                if flag == 's' then
+                    u, m = 0, '0'
+                else
+                    u = u + 1
+                    if flag == 'm' then
+                        m = '1'
+                    end
+                end
+                redis.call('hset', key, chatId, t .. ':' .. u .. ':' .. m .. ':' .. f .. ':' .. p)
+            end
+            return #KEYS
+            """, Long.class);
+
+    /**
+     * 已读，有摘要时未读数和@标记清零
+     * KEYS: 用户的摘要；ARGV: 会话id
+     */
+    private static final DefaultRedisScript<Long> READ_SCRIPT = new DefaultRedisScript<>("""
+            local old = redis.call('hget', KEYS[1], ARGV[1])
+            if not old then
+                return 0
+            end
+            local t, f, p = string.match(old, '^(%d+):%d+:%d:([^:]*):(.*)$')
+            if not t then
+                return 0
+            end
+            redis.call('hset', KEYS[1], ARGV[1], t .. ':0:0:' .. f .. ':' .. p)
+            return 1
+            """, Long.class);
+
+    private static final GenericToStringSerializer<Long> LONG_SERIALIZER = new GenericToStringSerializer<>(Long.class);
+
+    @Resource
+    private VimConfig vimConfig;
+
+    @Resource
+    private RedisTemplate<String, String> redisTemplate;
+
+    /**
+     * 群服务依赖消息服务，消息服务又依赖这里，用到的时候再取
+     */
+    @Resource
+    private ApplicationContext applicationContext;
+
+    /**
+     * 是否开启
+     *
+     * @return boolean
+     */
+    public boolean isEnabled() {
+        return vimConfig.getSummary().isEnabled();
+    }
+
+    /**
+     * 发送消息后更新发送人和收件人的摘要
+     * 私聊：收件人的会话是发送人，发送人的会话是收件人；群聊：群里每个成员的会话都是群
+     *
+     * @param message 消息
+     */
+    public void onSend(Message message) {
+        if (!isEnabled()) {
+            return;
+        }
+        String fromId = message.getFromId();
+        Map<String, String[]> targets = new LinkedHashMap<>();
+        if (ChatTypeEnum.FRIEND.getCode().equals(message.getChatType())) {
+            targets.put(message.getChatId(), new String[]{fromId, FLAG_UNREAD});
+            targets.put(fromId, new String[]{message.getChatId(), FLAG_SENDER});
+        } else {
+            JSONObject extend = message.getExtend();
+            boolean atAll = extend != null && extend.getBool("atAll", false);
+            List<String> atUserIds = extend == null ? List.of() : extend.getBeanList("atUserIds", String.class);
+            for (String userId : applicationContext.getBean(VimGroupApiService.class).getUserIdsByGroupId(message.getChatId())) {
+                boolean mention = atAll || (atUserIds != null && atUserIds.contains(userId));
+                targets.put(userId, new String[]{message.getChatId(), mention ? FLAG_MENTION : FLAG_UNREAD});
+            }
+            targets.put(fromId, new String[]{message.getChatId(), FLAG_SENDER});
+        }
+        long timestamp = message.getTimestamp() == null ? System.currentTimeMillis() : message.getTimestamp();
+        String preview = preview(message);
+        int batchSize = Math.max(1, vimConfig.getSummary().getBatchSize());
+        List<String> keys = new ArrayList<>(batchSize);
+        List<Object> args = new ArrayList<>(3 + batchSize * 2);
+        for (Map.Entry<String, String[]> entry : targets.entrySet()) {
+            if (keys.isEmpty()) {
+                args.add(String.valueOf(timestamp));
+                args.add(preview);
+                args.add(fromId);
+            }
+            keys.add(key(entry.getKey()));
+            args.add(entry.getValue()[0]);
+            args.add(entry.getValue()[1]);
+            if (keys.size() >= batchSize) {
+                update(keys, args);
+                keys.clear();
+                args.clear();
+            }
+        }
+        if (!keys.isEmpty()) {
+            update(keys, args);
+        }
+    }
+
+    /**
+     * 已读，未读数和@标记清零，没有这个会话的摘要时不写入
+     *
+     * @param userId 读消息的人
+     * @param chatId 会话id
+     */
+    public void read(String userId, String chatId) {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            redisTemplate.execute(READ_SCRIPT, StringRedisSerializer.UTF_8, LONG_SERIALIZER, List.of(key(userId)), chatId);
+        } catch (Exception e) {
+            log.warn("会话摘要清零失败 {} {}: {}", userId, chatId, e.getMessage());
+        }
+    }
+
+    /**
+     * 删除会话的摘要
+     *
+     * @param userId 用户id
+     * @param chatId 会话id
+     */
+    public void remove(String userId, String chatId) {
+        try {
+            redisTemplate.execute((RedisCallback<Object>) connection -> connection.hashCommands().hDel(bytes(key(userId)), bytes(chatId)));
+        } catch (Exception e) {
+            log.warn("删除会话摘要失败 {} {}: {}", userId, chatId, e.getMessage());
+        }
+    }
+
+    /**
+     * 用户所有会话的摘要，一次 HGETALL，按最后一条消息的时间倒序
+     *
+     * @param userId 用户id
+     * @return 会话id -> 摘要
+     */
+    public Map<String, ChatSummary> list(String userId) {
+        Map<String, ChatSummary> summaries = new LinkedHashMap<>();
+        if (!isEnabled()) {
+            return summaries;
+        }
+        Map<byte[], byte[]> entries;
+        try {
+            entries = redisTemplate.execute((RedisCallback<Map<byte[], byte[]>>) connection -> connection.hashCommands().hGetAll(bytes(key(userId))));
+        } catch (Exception e) {
+            log.warn("读取会话摘要失败 {}: {}", userId, e.getMessage());
+            return summaries;
+        }
+        if (entries == null || entries.isEmpty()) {
+            return summaries;
+        }
+        List<ChatSummary> unsorted = new ArrayList<>(entries.size());
+        for (Map.Entry<byte[], byte[]> entry : entries.entrySet()) {
+            String[] parts = new String(entry.getValue(), StandardCharsets.UTF_8).split(":", PARTS);
+            if (parts.length < PARTS) {
+                continue;
+            }
+            try {
+                ChatSummary summary = new ChatSummary();
+                summary.setChatId(new String(entry.getKey(), StandardCharsets.UTF_8));
+                summary.setTimestamp(Long.parseLong(parts[0]));
+                summary.setUnreadCount(Long.parseLong(parts[1]));
+                summary.setMention(!"0".equals(parts[2]));
+                summary.setFromId(parts[3]);
+                summary.setPreview(parts[4]);
+                unsorted.add(summary);
+            } catch (NumberFormatException e) {
+                log.warn("会话摘要格式不对 {} {}", userId, new String(entry.getKey(), StandardCharsets.UTF_8));
+            }
+        }
+        unsorted.stream()
+                .sorted(Comparator.comparingLong(ChatSummary::getTimestamp).reversed())
+                .forEach(summary -> summaries.put(summary.getChatId(), summary));
+        return summaries;
+    }
+
+    private void update(List<String> keys, List<Object> args) {
+        try {
+            redisTemplate.execute(UPDATE_SCRIPT, StringRedisSerializer.UTF_8, LONG_SERIALIZER, keys, args.toArray());
+        } catch (Exception e) {
+            log.warn("更新会话摘要失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 最后一条消息的预览，文本截取前 previewLength 个字，其他类型用占位文字
+     */
+    private String preview(Message message) {
+        String type = message.getMessageType();
+        if (MessageTypeEnum.IMAGE.getCode().equals(type)) {
+            return "[图片]";
+        } else if (MessageTypeEnum.FILE.getCode().equals(type)) {
+            return "[文件]";
+        } else if (MessageTypeEnum.VOICE.getCode().equals(type)) {
+            return "[语音]";
+        } else if (MessageTypeEnum.VIDEO.getCode().equals(type)) {
+            return "[视频]";
+        } else if (MessageTypeEnum.FORWARD.getCode().equals(type)) {
+            return "[聊天记录]";
+        }
+        return StrUtil.sub(StrUtil.nullToEmpty(message.getContent()), 0, vimConfig.getSummary().getPreviewLength());
+    }
+
+    private static String key(String userId) {
+        return StrUtil.format(ChatUtils.SUMMARY_TEMPLATE, userId);
+    }
+
+    private static byte[] bytes(String str) {
+        return str.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,250 @@
+package com.vim.sdk.cache;
+
+import com.vim.common.config.VimConfig;
+import com.vim.modules.group.service.IImGroupService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 群成员索引
+ * 每条群消息都要检查发送人是不是群成员，原来要从 redis 读出整个成员列表反序列化再线性查找。
+ * 这里每个节点在内存里给每个群建一个只读的成员集合，数字 id 放在开放寻址的 long 数组里，查找不分配对象。
+ * 第一次用到某个群时从数据库加载，群成员变动时（和 group:user:ids 缓存的 @CacheEvict 同样的地方）删除本地的，
+ * 并通过 redis 频道通知其他节点删除；漏掉的通知靠加载后 ttlSeconds 过期兜底。
+ * 加载前先放一个占位，加载完只替换自己的占位，加载期间被删除的不会把旧的成员放回去
+ *
+ * @author 乐天
+ */
+@Slf4j
+@Component
+public class GroupMemberIndex {
+
+    /**
+     * 群成员变动的通知频道，消息内容是群id
+     */
+    public static final String CHANNEL = "vim:group:members:invalidate";
+
+    @Resource
+    private VimConfig vimConfig;
+
+    @Resource
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Resource
+    private RedisConnectionFactory redisConnectionFactory;
+
+    @Resource
+    private IImGroupService iImGroupService;
+
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+
+    private RedisMessageListenerContainer container;
+
+    @PostConstruct
+    public void init() {
+        container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(redisConnectionFactory);
+        container.addMessageListener((message, pattern) -> {
+            Object groupId = redisTemplate.getValueSerializer().deserialize(message.getBody());
+            if (groupId != null) {
+                evict(groupId.toString());
+            }
+        }, new ChannelTopic(CHANNEL));
+        container.afterPropertiesSet();
+        container.start();
+    }
+
+    @PreDestroy
+    public void destroy() throws Exception {
+        container.destroy();
+    }
+
+    /**
+     * 是否是群成员
+     *
+     * @param groupId 群id
+     * @param userId  用户id
+     * @return boolean
+     */
+    public boolean contains(String groupId, String userId) {
+        if (userId == null) {
+            return false;
+        }
+        Entry entry = index.get(groupId);
+        Members members = entry == null || entry.members == null || entry.expireAt < System.currentTimeMillis() ? load(groupId, entry) : entry.members;
+        return members.contains(userId);
+    }
+
+    /**
+     * 群成员变动，删除本地索引并通知其他节点；在事务里调用时等提交以后再删，避免其他节点读到还没提交的旧数据
+     *
+     * @param groupId 群id
+     */
+    public void invalidate(String groupId) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    broadcast(groupId);
+                }
+            });
+        } else {
+            broadcast(groupId);
+        }
+    }
+
+    private void broadcast(String groupId) {
+        evict(groupId);
+        try {
+            redisTemplate.convertAndSend(CHANNEL, groupId);
+        } catch (Exception e) {
+            log.error("通知其他节点群 {} 成员变动失败", groupId, e);
+        }
+    }
+
+    private void evict(String groupId) {
+        index.remove(groupId);
+    }
+
+    /**
+     * 从数据库加载，先用占位替换掉看到的旧条目，加载完再换成结果；占位已经被删除或者被别的线程换掉的，结果只用这一次
+     *
+     * @param current 调用方看到的条目，可以为空
+     */
+    private Members load(String groupId, Entry current) {
+        Entry pending = new Entry(null, 0);
+        boolean claimed;
+        if (current == null) {
+            if (index.size() >= vimConfig.getGroupIndex().getMaxGroups()) {
+                // 群太多的时候整个清空，重新按需加载
+                index.clear();
+            }
+            claimed = index.putIfAbsent(groupId, pending) == null;
+        } else {
+            claimed = index.replace(groupId, current, pending);
+        }
+        Members members = Members.of(iImGroupService.getUserIdsByGroupId(groupId, -1));
+        if (claimed) {
+            long expireAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(vimConfig.getGroupIndex().getTtlSeconds());
+            index.replace(groupId, pending, new Entry(members, expireAt));
+        }
+        return members;
+    }
+
+    /**
+     * 索引里的一个群，members 为空表示正在加载
+     */
+    private record Entry(Members members, long expireAt) {
+    }
+
+    /**
+     * 一个群的成员，建好以后只读
+     * 数字 id 放在开放寻址的 long 数组里（0 表示空位，单独记录），其他 id 放在普通集合里
+     */
+    static final class Members {
+
+        private static final long EMPTY = 0L;
+
+        private final long[] table;
+
+        private final int mask;
+
+        private final boolean hasZero;
+
+        private final Set<String> others;
+
+        private Members(long[] table, boolean hasZero, Set<String> others) {
+            this.table = table;
+            this.mask = table.length - 1;
+            this.hasZero = hasZero;
+            this.others = others;
+        }
+
+        static Members of(Collection<String> userIds) {
+            int capacity = Integer.highestOneBit(Math.max(4, userIds.size() * 2 - 1)) << 1;
+            long[] table = new long[capacity];
+            int mask = capacity - 1;
+            boolean hasZero = false;
+            Set<String> others = null;
+            for (String userId : userIds) {
+                long id = parse(userId);
+                if (id < 0) {
+                    if (others == null) {
+                        others = new HashSet<>();
+                    }
+                    others.add(userId);
+                } else if (id == EMPTY) {
+                    hasZero = true;
+                } else {
+                    int slot = hash(id) & mask;
+                    while (table[slot] != EMPTY && table[slot] != id) {
+                        slot = (slot + 1) & mask;
+                    }
+                    table[slot] = id;
+                }
+            }
+            return new Members(table, hasZero, others == null ? Set.of() : others);
+        }
+
+        boolean contains(String userId) {
+            long id = parse(userId);
+            if (id < 0) {
+                return others.contains(userId);
+            }
+            if (id == EMPTY) {
+                return hasZero;
+            }
+            int slot = hash(id) & mask;
+            while (true) {
+                long value = table[slot];
+                if (value == id) {
+                    return true;
+                }
+                if (value == EMPTY) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private static int hash(long id) {
+            long h = id * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        /**
+         * 不分配对象地解析数字 id，不是规范的非负数字（有前导 0、超出 long）返回 -1
+         */
+        static long parse(String userId) {
+            int length = userId.length();
+            if (length == 0 || length > 19 || (length > 1 && userId.charAt(0) == '0')) {
+                return -1;
+            }
+            long value = 0;
+            for (int i = 0; i < length; i++) {
+                int digit = userId.charAt(i) - '0';
+                if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                    return -1;
+                }
+                value = value * 10 + digit;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.vim.sdk.cache;
+
+import cn.hutool.core.util.StrUtil;
+import com.vim.common.config.VimConfig;
+import com.vim.common.utils.ChatUtils;
+import com.vim.common.utils.RedisLockUtils;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 已读时间
+ * 每个用户一个 hash chat-read-{userId}，field 为会话id，value 为最后一次查看消息的时间，
+ * 重连时一次 HGETALL 拿到所有会话的已读时间。
+ * 原来每个会话一个的 read-{userId}-{chatId} key 启动后由一个节点在后台用 SCAN 分批迁移，迁移过的 key 会删除，中断了下次从头遍历剩下的；
+ * 迁移完成前 hash 里没有的再去读原来的 key。迁移完成记在 redis 里，每个节点定时检查一次，看到以后不再读原来的 key
+ *
+ * @author 乐天
+ */
+@Slf4j
+@Component
+public class ReadMarkStore {
+
+    private static final String LEGACY_PATTERN = StrUtil.format(ChatUtils.READ_TEMPLATE, "*", "*");
+
+    private static final String LEGACY_PREFIX = "read";
+
+    private static final String MIGRATED_KEY = "chat-read:migrated";
+
+    private static final String LOCK_KEY = "chat-read:migrator:lock";
+
+    private static final Duration LOCK_TTL = Duration.ofHours(1);
+
+    /**
+     * 迁移没完成时多久检查一次
+     */
+    private static final long MIGRATED_CHECK_MILLIS = 10000;
+
+    @Resource
+    private VimConfig vimConfig;
+
+    @Resource
+    private RedisTemplate<String, String> redisTemplate;
+
+    private final String nodeId = ManagementFactory.getRuntimeMXBean().getName();
+
+    /**
+     * 原来的 key 是否已经全部迁移完，任何一个节点迁移完都算
+     */
+    private volatile boolean migrated;
+
+    /**
+     * 下次检查迁移是否完成的时间
+     */
+    private volatile long migratedCheckAt;
+
+    /**
+     * 记录已读时间
+     *
+     * @param userId    读取人
+     * @param chatId    会话id
+     * @param timestamp 已读时间
+     */
+    public void set(String userId, String chatId, long timestamp) {
+        redisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.hashCommands().hSet(bytes(key(userId)), bytes(chatId), bytes(String.valueOf(timestamp))));
+    }
+
+    /**
+     * 一个会话的已读时间
+     *
+     * @param userId 读取人
+     * @param chatId 会话id
+     * @return 已读时间，没有读过返回 null
+     */
+    public Long get(String userId, String chatId) {
+        byte[] value = redisTemplate.execute((RedisCallback<byte[]>) connection -> connection.hashCommands().hGet(bytes(key(userId)), bytes(chatId)));
+        if (value != null) {
+            return parse(new String(value, StandardCharsets.UTF_8));
+        }
+        return isMigrated() ? null : parse(redisTemplate.opsForValue().get(ChatUtils.getReadKey(userId, chatId)));
+    }
+
+    /**
+     * 用户所有会话的已读时间，一次 HGETALL
+     *
+     * @param userId 读取人
+     * @param chatIds 需要的会话id，迁移完成前用来读取原来的 key，迁移完成后不需要
+     * @return 会话id -> 已读时间
+     */
+    public Map<String, Long> getAll(String userId, Collection<String> chatIds) {
+        Map<byte[], byte[]> entries = redisTemplate.execute((RedisCallback<Map<byte[], byte[]>>) connection -> connection.hashCommands().hGetAll(bytes(key(userId))));
+        Map<String, Long> marks = new HashMap<>(entries == null ? 16 : entries.size() * 2);
+        if (entries != null) {
+            entries.forEach((field, value) -> {
+                Long mark = parse(new String(value, StandardCharsets.UTF_8));
+                if (mark != null) {
+                    marks.put(new String(field, StandardCharsets.UTF_8), mark);
+                }
+            });
+        }
+        if (chatIds == null || isMigrated()) {
+            return marks;
+        }
+        List<String> missing = chatIds.stream().filter(chatId -> !marks.containsKey(chatId)).toList();
+        if (!missing.isEmpty()) {
+            List<String> values = redisTemplate.opsForValue().multiGet(missing.stream().map(chatId -> ChatUtils.getReadKey(userId, chatId)).toList());
+            for (int i = 0; values != null && i < missing.size(); i++) {
+                Long mark = parse(values.get(i));
+                if (mark != null) {
+                    marks.put(missing.get(i), mark);
+                }
+            }
+        }
+        return marks;
+    }
+
+    /**
+     * 启动后在后台迁移原来的 key，只有一个节点迁移
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrate() {
+        if (isMigrated()) {
+            return;
+        }
+        if (!vimConfig.getReadMark().isMigrate()) {
+            return;
+        }
+        Thread.ofPlatform().daemon().name("vim-read-mark-migrator").start(this::migrateAll);
+    }
+
+    private void migrateAll() {
+        if (!RedisLockUtils.lock(redisTemplate, LOCK_KEY, nodeId, LOCK_TTL)) {
+            return;
+        }
+        VimConfig.ReadMark config = vimConfig.getReadMark();
+        long start = System.currentTimeMillis();
+        int batchSize = Math.max(1, config.getScanCount());
+        long[] count = new long[1];
+        try {
+            Boolean finished = redisTemplate.execute((RedisCallback<Boolean>) connection -> {
+                ScanOptions options = ScanOptions.scanOptions().match(LEGACY_PATTERN).count(batchSize).build();
+                try (Cursor<byte[]> cursor = connection.scan(options)) {
+                    List<String> keys = new ArrayList<>(batchSize);
+                    while (cursor.hasNext()) {
+                        keys.add(new String(cursor.next(), StandardCharsets.UTF_8));
+                        if (keys.size() < batchSize) {
+                            continue;
+                        }
+                        count[0] += migrateKeys(keys);
+                        keys.clear();
+                        if (!RedisLockUtils.renew(redisTemplate, LOCK_KEY, nodeId, LOCK_TTL)) {
+                            throw new IllegalStateException("迁移的锁已经过期");
+                        }
+                        if (!pause(config.getPauseMillis())) {
+                            return false;
+                        }
+                    }
+                    count[0] += migrateKeys(keys);
+                    return true;
+                }
+            });
+            if (Boolean.TRUE.equals(finished)) {
+                redisTemplate.opsForValue().set(MIGRATED_KEY, Boolean.TRUE.toString());
+                migrated = true;
+                log.info("已读时间迁移完成，{} 个 key，耗时 {}ms", count[0], System.currentTimeMillis() - start);
+            }
+        } catch (Exception e) {
+            log.error("已读时间迁移失败，已迁移 {} 个 key，下次启动继续", count[0], e);
+        } finally {
+            RedisLockUtils.unlock(redisTemplate, LOCK_KEY, nodeId);
+        }
+    }
+
+    /**
+     * 原来的 key 是否已经全部迁移完，没完成时最多每 {@link #MIGRATED_CHECK_MILLIS} 读一次 redis
+     */
+    private boolean isMigrated() {
+        if (migrated) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now >= migratedCheckAt) {
+            migratedCheckAt = now + MIGRATED_CHECK_MILLIS;
+            migrated = Boolean.TRUE.toString().equals(redisTemplate.opsForValue().get(MIGRATED_KEY));
+        }
+        return migrated;
+    }
+
+    /**
+     * @return 被中断时返回 false
+     */
+    private static boolean pause(long millis) {
+        try {
+            Thread.sleep(Math.max(0, millis));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 一批原来的 key 写到各自用户的 hash 里，hash 里已经有的是迁移开始后新写的，不覆盖，写完删除原来的 key
+     *
+     * @return 迁移的 key 数
+     */
+    private long migrateKeys(List<String> keys) {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        List<String> values = redisTemplate.opsForValue().multiGet(keys);
+        Map<String, Map<String, String>> users = new LinkedHashMap<>();
+        List<String> migratedKeys = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            // read-{userId}-{chatId}，id 里没有 -
+            List<String> parts = StrUtil.split(keys.get(i), '-');
+            String value = values == null ? null : values.get(i);
+            if (parts.size() != 3 || !LEGACY_PREFIX.equals(parts.get(0)) || parse(value) == null) {
+                continue;
+            }
+            users.computeIfAbsent(parts.get(1), k -> new LinkedHashMap<>()).put(parts.get(2), value);
+            migratedKeys.add(keys.get(i));
+        }
+        if (migratedKeys.isEmpty()) {
+            return 0;
+        }
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            users.forEach((userId, marks) -> marks.forEach((chatId, value) ->
+                    connection.hashCommands().hSetNX(bytes(key(userId)), bytes(chatId), bytes(value))));
+            return null;
+        });
+        redisTemplate.delete(migratedKeys);
+        return migratedKeys.size();
+    }
+
+    private static Long parse(String value) {
+        if (StrUtil.isBlank(value)) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String key(String userId) {
+        return StrUtil.format(ChatUtils.READ_MARK_TEMPLATE, userId);
+    }
+
+    private static byte[] bytes(String str) {
+        return str.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,326 @@
+package com.vim.sdk.cache;
+
+import cn.hutool.core.util.StrUtil;
+import com.alibaba.fastjson2.JSON;
+import com.vim.common.config.VimConfig;
+import com.vim.common.utils.ChatUtils;
+import com.vim.tio.messages.Message;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 会话最近消息缓存
+ * 每个会话在 redis 里保留最近 size 条：recent-{chatKey}（zset，消息id，score 为时间戳）和
+ * recent-body-{chatKey}（hash，消息id -> 消息 json），两个 key 都只通过 lua 脚本修改，追加和裁剪是原子的。
+ * <p>
+ * 发送时无条件追加，第一次读的时候从 mongo 补齐最近 size 条并打上完整标记，之后只有带完整标记的缓存才会被读，
+ * 这样还在异步入库队列里的消息也不会漏掉。删除消息会去掉完整标记，下次读的时候重新补齐；清空会话直接删除缓存。
+ * <p>
+ * 补齐和删除可能交错：读的一方从 mongo 读到消息后，删除的一方删掉了缓存和 mongo 里的消息，读的一方再补齐就把删掉的消息写回去了。
+ * 所以每个会话有一个版本 recent-version-{chatKey}，删除和清空时加一；读 mongo 之前先取版本，补齐时版本变了就不写。
+ * 调用方要在 mongo 删除之后再删除缓存，这样删除之前读到旧数据的补齐一定会被拒绝
+ * redis 出错时调用方回退到 mongo
+ *
+ * @author 乐天
+ */
+@Slf4j
+@Component
+public class RecentMessageCache {
+
+    /**
+     * 完整标记，hash 里的一个特殊 field，消息id不会是这个值
+     */
+    private static final String FULL_FIELD = "@full";
+
+    /**
+     * 追加一条消息并裁剪到 size 条
+     * KEYS: zset, hash；ARGV: 时间戳, id, 内容, size, 过期毫秒数
+     */
+    private static final DefaultRedisScript<Long> APPEND_SCRIPT = new DefaultRedisScript<>("""
+            redis.call('zadd', KEYS[1], ARGV[1], ARGV[2])
+            redis.call('hset', KEYS[2], ARGV[2], ARGV[3])
+            local removed = redis.call('zrange', KEYS[1], 0, -tonumber(ARGV[4]) - 1)
+            if #removed > 0 then
+                redis.call('zrem', KEYS[1], unpack(removed))
+                redis.call('hdel', KEYS[2], unpack(removed))
+            end
+            redis.call('pexpire', KEYS[1], ARGV[5])
+            redis.call('pexpire', KEYS[2], ARGV[5])
+            return #removed
+            """, Long.class);
+
+    /**
+     * 用 mongo 里的最近消息补齐，合并已经追加的消息，裁剪后打上完整标记；读之后版本变了不写，返回 -1
+     * KEYS: zset, hash, 版本；ARGV: size, 过期毫秒数, 完整标记, 读之前的版本, 之后每三个一组 时间戳, id, 内容
+     */
+    private static final DefaultRedisScript<Long> FILL_SCRIPT = new DefaultRedisScript<>("""
+            if tonumber(redis.call('get', KEYS[3]) or '0') ~= tonumber(ARGV[4]) then
+                return -1
+            end
+            for i = 5, #ARGV, 3 do
+                redis.call('zadd', KEYS[1], ARGV[i], ARGV[i + 1])
+                redis.call('hset', KEYS[2], ARGV[i + 1], ARGV[i + 2])
+            end
+            local removed = redis.call('zrange', KEYS[1], 0, -tonumber(ARGV[1]) - 1)
+            if #removed > 0 then
+                redis.call('zrem', KEYS[1], unpack(removed))
+                redis.call('hdel', KEYS[2], unpack(removed))
+            end
+            redis.call('hset', KEYS[2], ARGV[3], 1)
+            redis.call('pexpire', KEYS[1], ARGV[2])
+            redis.call('pexpire', KEYS[2], ARGV[2])
+            return redis.call('zcard', KEYS[1])
+            """, Long.class);
+
+    /**
+     * 读取最近 count 条，按时间倒序，第一个元素是完整标记，没有完整标记返回空列表
+     * KEYS: zset, hash；ARGV: count, 过期毫秒数, 完整标记
+     */
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> READ_SCRIPT = new DefaultRedisScript<>("""
+            if redis.call('hexists', KEYS[2], ARGV[3]) == 0 then
+                return {}
+            end
+            redis.call('pexpire', KEYS[1], ARGV[2])
+            redis.call('pexpire', KEYS[2], ARGV[2])
+            local ids = redis.call('zrevrange', KEYS[1], 0, tonumber(ARGV[1]) - 1)
+            if #ids == 0 then
+                return {ARGV[3]}
+            end
+            local bodies = redis.call('hmget', KEYS[2], unpack(ids))
+            table.insert(bodies, 1, ARGV[3])
+            return bodies
+            """, List.class);
+
+    /**
+     * 读取版本，没有为 0
+     * KEYS: 版本
+     */
+    private static final DefaultRedisScript<Long> VERSION_SCRIPT = new DefaultRedisScript<>("""
+            return tonumber(redis.call('get', KEYS[1]) or '0')
+            """, Long.class);
+
+    /**
+     * 删除一批消息，去掉完整标记，版本加一
+     * KEYS: zset, hash, 版本；ARGV: 完整标记, 版本过期毫秒数, 之后是消息id
+     */
+    private static final DefaultRedisScript<Long> EVICT_SCRIPT = new DefaultRedisScript<>("""
+            redis.call('incr', KEYS[3])
+            redis.call('pexpire', KEYS[3], ARGV[2])
+            local ids = {}
+            for i = 3, #ARGV do
+                ids[#ids + 1] = ARGV[i]
+            end
+            redis.call('zrem', KEYS[1], unpack(ids))
+            return redis.call('hdel', KEYS[2], ARGV[1], unpack(ids))
+            """, Long.class);
+
+    /**
+     * 删除会话的缓存，版本加一
+     * KEYS: zset, hash, 版本；ARGV: 版本过期毫秒数
+     */
+    private static final DefaultRedisScript<Long> CLEAR_SCRIPT = new DefaultRedisScript<>("""
+            redis.call('incr', KEYS[3])
+            redis.call('pexpire', KEYS[3], ARGV[1])
+            return redis.call('del', KEYS[1], KEYS[2])
+            """, Long.class);
+
+    @Resource
+    private VimConfig vimConfig;
+
+    @Resource
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private Counter hitCounter;
+
+    private Counter missCounter;
+
+    @PostConstruct
+    public void init() {
+        hitCounter = Counter.builder("vim.recent.hit").register(meterRegistry);
+        missCounter = Counter.builder("vim.recent.miss").register(meterRegistry);
+    }
+
+    /**
+     * 是否开启
+     *
+     * @return boolean
+     */
+    public boolean isEnabled() {
+        return vimConfig.getRecent().isEnabled();
+    }
+
+    /**
+     * 缓存的条数，查询条数超过它的直接查 mongo
+     *
+     * @return 每个会话缓存的条数
+     */
+    public int size() {
+        return vimConfig.getRecent().getSize();
+    }
+
+    /**
+     * 发送消息时追加到缓存
+     *
+     * @param message 消息，chatKey 和时间戳已经设置好
+     */
+    public void append(Message message) {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            redisTemplate.execute(APPEND_SCRIPT, keys(message.getChatKey()),
+                    message.getTimestamp(), message.getId(), JSON.toJSONString(message), size(), ttlMillis());
+        } catch (Exception e) {
+            // 追加失败会让缓存缺一条，直接删掉，下次从 mongo 补齐
+            log.warn("追加最近消息缓存失败 {}: {}", message.getChatKey(), e.getMessage());
+            clear(message.getChatKey());
+        }
+    }
+
+    /**
+     * 读取最近的消息
+     *
+     * @param chatKey 会话key
+     * @param count   条数，不超过 {@link #size()}
+     * @return 按时间倒序的消息，缓存不完整时返回 null
+     */
+    public List<Message> recent(String chatKey, int count) {
+        if (!isEnabled() || count > size()) {
+            return null;
+        }
+        try {
+            List<?> bodies = redisTemplate.execute(READ_SCRIPT, keys(chatKey), count, ttlMillis(), FULL_FIELD);
+            List<Message> messages = toMessages(bodies);
+            if (messages == null) {
+                missCounter.increment();
+            } else {
+                hitCounter.increment();
+            }
+            return messages;
+        } catch (Exception e) {
+            log.warn("读取最近消息缓存失败 {}: {}", chatKey, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 缓存的版本，读 mongo 之前取，补齐时带上
+     *
+     * @param chatKey 会话key
+     * @return 版本，redis 出错时返回 null，这时不要补齐
+     */
+    public Long version(String chatKey) {
+        if (!isEnabled()) {
+            return null;
+        }
+        try {
+            return redisTemplate.execute(VERSION_SCRIPT, List.of(StrUtil.format(ChatUtils.RECENT_VERSION_TEMPLATE, chatKey)));
+        } catch (Exception e) {
+            log.warn("读取最近消息缓存版本失败 {}: {}", chatKey, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 用 mongo 查出来的最近消息补齐缓存，读 mongo 之后有删除（版本变了）就不补齐
+     *
+     * @param chatKey  会话key
+     * @param messages mongo 里最近的 size 条（不足 size 条说明会话只有这么多）
+     * @param version  读 mongo 之前取的 {@link #version}
+     */
+    public void fill(String chatKey, List<Message> messages, Long version) {
+        if (!isEnabled() || version == null) {
+            return;
+        }
+        List<Object> args = new ArrayList<>(4 + messages.size() * 3);
+        args.add(size());
+        args.add(ttlMillis());
+        args.add(FULL_FIELD);
+        args.add(version);
+        for (Message message : messages) {
+            args.add(message.getTimestamp());
+            args.add(message.getId());
+            args.add(JSON.toJSONString(message));
+        }
+        try {
+            redisTemplate.execute(FILL_SCRIPT, keys(chatKey), args.toArray());
+        } catch (Exception e) {
+            log.warn("补齐最近消息缓存失败 {}: {}", chatKey, e.getMessage());
+        }
+    }
+
+    /**
+     * 删除一批消息，去掉完整标记，下次读的时候重新补齐；在 mongo 删除之后调用
+     *
+     * @param chatKey 会话key
+     * @param ids     消息id
+     */
+    public void evict(String chatKey, Collection<String> ids) {
+        if (!isEnabled() || ids.isEmpty()) {
+            return;
+        }
+        List<Object> args = new ArrayList<>(ids.size() + 2);
+        args.add(FULL_FIELD);
+        args.add(ttlMillis());
+        args.addAll(ids);
+        try {
+            redisTemplate.execute(EVICT_SCRIPT, keys(chatKey), args.toArray());
+        } catch (Exception e) {
+            log.warn("删除最近消息缓存失败 {}: {}", chatKey, e.getMessage());
+            clear(chatKey);
+        }
+    }
+
+    /**
+     * 清空会话的缓存；清空聊天记录时在 mongo 删除之后调用
+     *
+     * @param chatKey 会话key
+     */
+    public void clear(String chatKey) {
+        try {
+            redisTemplate.execute(CLEAR_SCRIPT, keys(chatKey), ttlMillis());
+        } catch (Exception e) {
+            log.error("清空最近消息缓存失败 {}", chatKey, e);
+        }
+    }
+
+    private long ttlMillis() {
+        return vimConfig.getRecent().getTtlSeconds() * 1000;
+    }
+
+    private static List<String> keys(String chatKey) {
+        return List.of(StrUtil.format(ChatUtils.RECENT_TEMPLATE, chatKey), StrUtil.format(ChatUtils.RECENT_BODY_TEMPLATE, chatKey),
+                StrUtil.format(ChatUtils.RECENT_VERSION_TEMPLATE, chatKey));
+    }
+
+    /**
+     * 缓存里的 json 转成消息，没有完整标记或者有内容缺失就当作不完整
+     */
+    private static List<Message> toMessages(List<?> bodies) {
+        if (bodies == null || bodies.isEmpty() || !FULL_FIELD.equals(bodies.get(0))) {
+            return null;
+        }
+        List<Message> messages = new ArrayList<>(bodies.size() - 1);
+        for (Object body : bodies.subList(1, bodies.size())) {
+            if (body == null) {
+                return null;
+            }
+            messages.add(JSON.parseObject(body.toString(), Message.class));
+        }
+        return messages;
+    }
+}
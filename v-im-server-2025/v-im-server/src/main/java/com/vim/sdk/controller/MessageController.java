@@ -9,16 +9,18 @@ import com.vim.common.annotation.Log;
 import com.vim.common.enums.BusinessType;
 import com.vim.common.enums.ChatTypeEnum;
 import com.vim.common.enums.MessageTypeEnum;
-import com.vim.common.utils.ChatUtils;
 import com.vim.common.utils.VimUtil;
+import com.vim.sdk.cache.ReadMarkStore;
 import com.vim.sdk.service.VimGroupApiService;
 import com.vim.sdk.service.VimMessageService;
 import com.vim.tio.messages.Message;
+import com.vim.tio.result.MessageCursor;
 import com.vim.tio.result.MessagePage;
 import jakarta.annotation.Resource;
-import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.List;
+
 /**
  * 消息推送接口服务
  *
@@ -34,7 +36,7 @@ public class MessageController {
     private VimGroupApiService vimGroupApiService;
 
     @Resource
-    private RedisTemplate<String, String> redisTemplate;
+    private ReadMarkStore readMarkStore;
 
     /**
      * 查询聊天记录
@@ -89,6 +91,26 @@ public class MessageController {
         return SaResult.data(vimMessageService.page(messagePage.getChatId(), userId, messagePage.getMessageType(), messagePage.getChatType(), messagePage.getSearchText(), messagePage.getDateRange(), page));
     }
 
+    /**
+     * 游标分页查询，翻页时把上一页返回的 next 作为 cursor 传回
+     *
+     * @param messagePage   查询条件
+     * @param messageCursor 游标分页参数
+     * @return CursorPage
+     */
+    @GetMapping(value = "cursor")
+    @Log(title = "游标分页查询消息")
+    public SaResult cursor(MessagePage messagePage, MessageCursor messageCursor) {
+        String userId = VimUtil.getLoginId();
+        if (messagePage.getChatType().equals(ChatTypeEnum.GROUP.getCode())) {
+            boolean is = vimGroupApiService.isMember(messagePage.getChatId(), userId);
+            if (!is) {
+                return SaResult.error("您不是该群成员");
+            }
+        }
+        return SaResult.data(vimMessageService.cursorPage(messagePage.getChatId(), userId, messagePage.getMessageType(), messagePage.getChatType(), messagePage.getSearchText(), messagePage.getDateRange(), messageCursor));
+    }
+
 
 
     /**
@@ -101,8 +123,8 @@ public class MessageController {
     @GetMapping(value = "getReadTime")
     @Log(title = "获取消息读取时间")
     public SaResult getReadTime(String chatId, String fromId) {
-        String key = ChatUtils.getReadKey(fromId, chatId);
-        return SaResult.data(redisTemplate.opsForValue().get(key));
+        Long mark = readMarkStore.get(fromId, chatId);
+        return SaResult.data(mark == null ? null : String.valueOf(mark));
     }
     /**
      * 推送消息
@@ -213,6 +235,49 @@ public class MessageController {
     }
 
 
+    /**
+     * 批量撤回自己发的消息
+     *
+     * @param chatId   接收人或者群id
+     * @param chatType 消息类型
+     * @param ids      消息id
+     * @return 撤回成功的消息id
+     */
+    @PostMapping(value = "recall")
+    @Log(title = "撤回消息", businessType = BusinessType.DELETE)
+    public SaResult recall(String chatId, String chatType, @RequestParam List<String> ids) {
+        String userId = VimUtil.getLoginId();
+        if (chatType.equals(ChatTypeEnum.GROUP.getCode())) {
+            boolean is = vimGroupApiService.isMember(chatId, userId);
+            if (!is) {
+                return SaResult.error("您不是该群成员");
+            }
+        }
+        return SaResult.data(vimMessageService.recall(chatId, userId, chatType, ids));
+    }
+
+    /**
+     * 批量删除自己发的消息，不通知会话里的人
+     *
+     * @param chatId   接收人或者群id
+     * @param chatType 消息类型
+     * @param ids      消息id
+     * @return 删除的消息id
+     */
+    @PostMapping(value = "delete")
+    @Log(title = "删除消息", businessType = BusinessType.DELETE)
+    public SaResult delete(String chatId, String chatType, @RequestParam List<String> ids) {
+        String userId = VimUtil.getLoginId();
+        if (chatType.equals(ChatTypeEnum.GROUP.getCode())) {
+            boolean is = vimGroupApiService.isMember(chatId, userId);
+            if (!is) {
+                return SaResult.error("您不是该群成员");
+            }
+        }
+        return SaResult.data(vimMessageService.delete(chatId, userId, chatType, ids));
+    }
+
+
 
     private void initAndPush(String chatType, Message message, JSONObject object) throws Exception {
         message.setExtend(object);
@@ -0,0 +1,108 @@
+package com.vim.sdk.persist;
+
+import cn.hutool.core.util.StrUtil;
+import com.vim.common.config.VimConfig;
+import com.vim.common.utils.ChatUtils;
+import com.vim.tio.messages.Message;
+import com.vim.tio.task.MessageArchiveTask;
+import jakarta.annotation.Resource;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 读取归档到 mongo 集合的聊天记录
+ * 归档集合按月分（archive-message-yyyyMM），月份之间时间不重叠，按月从新到旧依次查询，拼起来就是按时间倒序。
+ * 只有聊天记录游标分页（mongo 里的读完以后接着读）和按 id 读取会读归档；总条数、偏移分页和搜索不包含归档的记录。
+ * 归档到文件的不能在线读取，见 {@link MessageArchiveTask}
+ *
+ * @author 乐天
+ */
+@Component
+public class MessageArchiveReader {
+
+    /**
+     * 归档集合列表多久刷新一次
+     */
+    private static final long REFRESH_MILLIS = 60000;
+
+    @Resource
+    private VimConfig vimConfig;
+
+    @Resource
+    private MongoTemplate mongoTemplate;
+
+    private volatile List<String> collections = List.of();
+
+    private volatile long refreshAt;
+
+    /**
+     * 是否有可以在线读取的归档
+     *
+     * @return boolean
+     */
+    public boolean isEnabled() {
+        VimConfig.Retention retention = vimConfig.getRetention();
+        return retention.isArchiveEnabled() && MessageArchiveTask.TARGET_COLLECTION.equals(retention.getArchiveTarget());
+    }
+
+    /**
+     * 按查询条件和排序（时间倒序）读取归档，取够 limit 条就停
+     *
+     * @param query 查询，limit 和 skip 不用
+     * @param limit 最多多少条
+     * @return 消息，按时间倒序
+     */
+    public List<Message> find(Query query, int limit) {
+        List<Message> messages = new ArrayList<>();
+        for (String collectionName : collections()) {
+            if (messages.size() >= limit) {
+                break;
+            }
+            Query part = Query.of(query).skip(0).limit(limit - messages.size());
+            messages.addAll(mongoTemplate.find(part, Message.class, collectionName));
+        }
+        return messages;
+    }
+
+    /**
+     * 按 id 读取归档
+     *
+     * @param id 消息id
+     * @return 不在归档里返回 null
+     */
+    public Message findById(String id) {
+        for (String collectionName : collections()) {
+            Message message = mongoTemplate.findById(id, Message.class, collectionName);
+            if (message != null) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 所有归档集合，月份从新到旧
+     */
+    private List<String> collections() {
+        long now = System.currentTimeMillis();
+        if (now < refreshAt) {
+            return collections;
+        }
+        String prefix = StrUtil.format(ChatUtils.ARCHIVE_COLLECTION_TEMPLATE, "");
+        List<String> names = new ArrayList<>();
+        for (String name : mongoTemplate.getCollectionNames()) {
+            if (name.startsWith(prefix)) {
+                names.add(name);
+            }
+        }
+        names.sort(Comparator.reverseOrder());
+        collections = names;
+        refreshAt = now + REFRESH_MILLIS;
+        return names;
+    }
+}
@@ -0,0 +1,230 @@
+package com.vim.sdk.persist;
+
+import cn.hutool.core.util.StrUtil;
+import com.vim.common.config.VimConfig;
+import com.vim.common.utils.ChatUtils;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 消息集合的索引管理
+ * 启动后并行给所有消息分片和离线收件箱建索引，之后新出现的集合在第一次写入时建；
+ * 建过的集合记在登记表里，不会重复建。每天检查一次缺少的索引和从来没用过的索引
+ *
+ * @author 乐天
+ */
+@Slf4j
+@Component
+public class MessageIndexManager {
+
+    /**
+     * 消息分片集合的索引，分别对应 会话分页/搜索、按类型分页
+     */
+    private static final List<Index> MESSAGE_INDEXES = List.of(
+            new Index().named("chat_key_timestamp_id")
+                    .on("chat_key", Sort.Direction.ASC).on("timestamp", Sort.Direction.DESC).on("_id", Sort.Direction.DESC),
+            new Index().named("chat_key_type_timestamp_id")
+                    .on("chat_key", Sort.Direction.ASC).on("message_type", Sort.Direction.ASC)
+                    .on("timestamp", Sort.Direction.DESC).on("_id", Sort.Direction.DESC)
+    );
+
+    /**
+     * 以前建过、现在没有查询用到的索引，建索引时删掉，省掉写入时的维护开销
+     */
+    private static final List<String> OBSOLETE_INDEXES = List.of("chat_id_timestamp");
+
+    /**
+     * 归档集合的索引，聊天记录游标分页读完 mongo 以后按会话读归档
+     */
+    private static final List<Index> ARCHIVE_COLLECTION_INDEXES = List.of(MESSAGE_INDEXES.get(0));
+
+    /**
+     * 开启聊天记录归档后消息分片集合多的索引，归档按时间范围读取
+     */
+    private static final Index ARCHIVE_INDEX = new Index().named("timestamp").on("timestamp", Sort.Direction.ASC);
+
+    /**
+     * 离线收件箱的索引，分别对应 按用户补发和清理、按发送人读取、过期删除
+     */
+    private static final List<Index> OFFLINE_INDEXES = List.of(
+            new Index().named("user_id_timestamp").on("user_id", Sort.Direction.ASC).on("timestamp", Sort.Direction.ASC),
+            new Index().named("user_id_from_id_timestamp")
+                    .on("user_id", Sort.Direction.ASC).on("from_id", Sort.Direction.ASC).on("timestamp", Sort.Direction.ASC),
+            new Index().named("expire_at").on("expire_at", Sort.Direction.ASC).expire(0)
+    );
+
+    @Resource
+    private VimConfig vimConfig;
+
+    @Resource
+    private MongoTemplate mongoTemplate;
+
+    /**
+     * 已经建好索引的集合
+     */
+    private final Set<String> registry = ConcurrentHashMap.newKeySet();
+
+    private ExecutorService executor;
+
+    @PreDestroy
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 启动完成后在后台并行建索引，不影响启动速度
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void provision() {
+        VimConfig.Index config = vimConfig.getIndex();
+        if (!config.isEnabled()) {
+            return;
+        }
+        AtomicInteger index = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(Math.max(1, config.getThreads()), r -> {
+            Thread thread = new Thread(r, "vim-index-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<String> collections = new ArrayList<>(ChatUtils.getShardCollectionNames());
+        collections.add(OfflineInbox.COLLECTION);
+        Thread.ofPlatform().daemon().name("vim-index-provision").start(() -> {
+            long start = System.currentTimeMillis();
+            List<Future<?>> futures = new ArrayList<>(collections.size());
+            for (String name : collections) {
+                futures.add(executor.submit(() -> ensure(name)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    log.error("建索引失败", e);
+                }
+            }
+            log.info("消息集合索引检查完成，{} 个集合，耗时 {}ms", collections.size(), System.currentTimeMillis() - start);
+        });
+    }
+
+    /**
+     * 确保集合的索引已经建好，登记过的直接返回，写入前调用
+     *
+     * @param collectionName 集合名
+     */
+    public void ensure(String collectionName) {
+        if (registry.contains(collectionName) || !vimConfig.getIndex().isEnabled()) {
+            return;
+        }
+        List<Index> indexes = indexesOf(collectionName);
+        if (indexes.isEmpty()) {
+            return;
+        }
+        try {
+            IndexOperations indexOps = mongoTemplate.indexOps(collectionName);
+            for (Index index : indexes) {
+                indexOps.ensureIndex(index);
+            }
+            if (indexes != OFFLINE_INDEXES && indexes != ARCHIVE_COLLECTION_INDEXES) {
+                List<String> existing = indexOps.getIndexInfo().stream().map(IndexInfo::getName).toList();
+                for (String obsolete : OBSOLETE_INDEXES) {
+                    if (existing.contains(obsolete)) {
+                        indexOps.dropIndex(obsolete);
+                        log.info("集合 {} 删除不再使用的索引 {}", collectionName, obsolete);
+                    }
+                }
+            }
+            registry.add(collectionName);
+        } catch (Exception e) {
+            log.error("集合 {} 建索引失败", collectionName, e);
+        }
+    }
+
+    /**
+     * 检查登记过的集合：缺少的索引，以及启动以来一次都没用过的索引（按索引名汇总）
+     */
+    @Scheduled(cron = "${vim.index.reportCron:0 30 4 * * ?}")
+    public void report() {
+        if (!vimConfig.getIndex().isEnabled() || registry.isEmpty()) {
+            return;
+        }
+        Map<String, Integer> missing = new TreeMap<>();
+        Map<String, long[]> usage = new TreeMap<>();
+        for (String collectionName : registry) {
+            try {
+                List<String> existing = mongoTemplate.indexOps(collectionName).getIndexInfo().stream().map(IndexInfo::getName).toList();
+                for (Index index : indexesOf(collectionName)) {
+                    String name = index.getIndexOptions().getString("name");
+                    if (!existing.contains(name)) {
+                        missing.merge(collectionName, 1, Integer::sum);
+                        registry.remove(collectionName);
+                    }
+                }
+                for (Document stats : mongoTemplate.getCollection(collectionName)
+                        .aggregate(List.of(new Document("$indexStats", new Document())))) {
+                    Document accesses = stats.get("accesses", Document.class);
+                    long ops = accesses == null ? 0 : ((Number) accesses.get("ops")).longValue();
+                    long[] total = usage.computeIfAbsent(stats.getString("name"), k -> new long[2]);
+                    total[0] += ops;
+                    total[1]++;
+                }
+            } catch (Exception e) {
+                log.warn("检查集合 {} 的索引失败: {}", collectionName, e.getMessage());
+            }
+        }
+        if (!missing.isEmpty()) {
+            log.warn("缺少索引的集合 {} 个，下次写入时补建: {}", missing.size(), missing.keySet());
+        }
+        usage.forEach((name, total) -> {
+            if (total[0] == 0 && !"_id_".equals(name)) {
+                log.warn("索引 {} 在 {} 个集合上启动以来没有被使用过", name, total[1]);
+            } else {
+                log.info("索引 {} 使用 {} 次，{} 个集合", name, total[0], total[1]);
+            }
+        });
+    }
+
+    private List<Index> indexesOf(String collectionName) {
+        if (OfflineInbox.COLLECTION.equals(collectionName)) {
+            return OFFLINE_INDEXES;
+        }
+        if (collectionName.startsWith(StrUtil.format(ChatUtils.COLLECTION_TEMPLATE_SINGLE, ""))
+                || collectionName.startsWith(StrUtil.format(ChatUtils.COLLECTION_TEMPLATE_GROUP, ""))) {
+            if (vimConfig.getRetention().isArchiveEnabled()) {
+                List<Index> indexes = new ArrayList<>(MESSAGE_INDEXES);
+                indexes.add(ARCHIVE_INDEX);
+                return indexes;
+            }
+            return MESSAGE_INDEXES;
+        }
+        if (collectionName.startsWith(StrUtil.format(ChatUtils.ARCHIVE_COLLECTION_TEMPLATE, ""))) {
+            return ARCHIVE_COLLECTION_INDEXES;
+        }
+        return List.of();
+    }
+}
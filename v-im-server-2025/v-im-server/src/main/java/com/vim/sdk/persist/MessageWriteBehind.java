@@ -0,0 +1,363 @@
+package com.vim.sdk.persist;
+
+import com.alibaba.fastjson2.JSON;
+import com.mongodb.bulk.BulkWriteError;
+import com.vim.common.config.VimConfig;
+import com.vim.common.utils.ChatUtils;
+import com.vim.tio.messages.Message;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 聊天消息异步批量入库
+ * 消息先放进有界队列，由单独的线程按 {@link ChatUtils#getCollectionName} 分组后批量 insert，
+ * 攒够 batchSize 条或者到了 flushIntervalMillis 就写一次。
+ * 队列满时调用线程最多等待 offerTimeoutMillis，还放不进去就自己同步写入；
+ * 写入失败的消息最多重试 maxRetries 次（关闭时 shutdownRetries 次），还是失败就把消息内容打到错误日志里放弃，不会卡住后面的消息。
+ * 删除消息时正在攒和正在写的批次也要处理：刷新线程只在锁里从队列取消息，取出的同时放进 inflight，没有哪一刻消息两边都不在；
+ * 写入和 {@link #discard} 用同一把锁，删除要么在写入前把消息从批次里拿掉，要么等这次写完，
+ * 调用方随后从 mongo 删除，删掉的消息不会再被写回去
+ *
+ * @author 乐天
+ */
+@Slf4j
+@Component
+public class MessageWriteBehind {
+
+    /**
+     * 主键重复，说明消息已经写过了
+     */
+    private static final int DUPLICATE_KEY = 11000;
+
+    @Resource
+    private VimConfig vimConfig;
+
+    @Resource
+    private MongoTemplate mongoTemplate;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private MessageIndexManager messageIndexManager;
+
+    private BlockingQueue<Message> queue;
+
+    /**
+     * 刷新线程已经从队列取出、还没写完的消息（包括正在攒的批次），按 id 索引
+     */
+    private final Map<String, Message> inflight = new ConcurrentHashMap<>();
+
+    /**
+     * 写入 mongo 和从正在写的批次里删除消息互斥
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * 只用来唤醒刷新线程，放进队列一条加一；刷新线程取消息时清零，删除时从队列拿掉的不扣减，多出来的只是空唤醒一次
+     */
+    private final Semaphore available = new Semaphore(0);
+
+    private Thread flusher;
+
+    private volatile boolean running;
+
+    private Timer flushTimer;
+
+    private Counter fallbackCounter;
+
+    private Counter abandonedCounter;
+
+    @PostConstruct
+    public void init() {
+        VimConfig.Persist persist = vimConfig.getPersist();
+        queue = new ArrayBlockingQueue<>(persist.getCapacity());
+        flushTimer = Timer.builder("vim.persist.flush").register(meterRegistry);
+        fallbackCounter = Counter.builder("vim.persist.fallback").register(meterRegistry);
+        abandonedCounter = Counter.builder("vim.persist.abandoned").register(meterRegistry);
+        Gauge.builder("vim.persist.queue", queue, BlockingQueue::size).register(meterRegistry);
+        running = true;
+        flusher = new Thread(this::run, "vim-message-persist");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * 应用关闭前写完队列里剩下的消息
+     */
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        flusher.interrupt();
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!queue.isEmpty()) {
+            log.warn("消息入库线程没有及时退出，剩余 {} 条消息", queue.size());
+        }
+    }
+
+    /**
+     * 保存消息，正常情况下只是放进队列
+     *
+     * @param message 消息，放进来以后不能再修改
+     */
+    public void save(Message message) {
+        if (!vimConfig.getPersist().isEnabled() || !running) {
+            saveNow(message);
+            return;
+        }
+        boolean offered;
+        try {
+            offered = queue.offer(message, vimConfig.getPersist().getOfferTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            offered = false;
+        }
+        if (offered) {
+            available.release();
+        } else {
+            // 队列满了，调用线程自己写，相当于把入库速度反压给发送方
+            fallbackCounter.increment();
+            saveNow(message);
+        }
+    }
+
+    /**
+     * 移除一个会话还没有写入的消息，包括正在写的批次，删除消息时调用，避免删除以后又被写进去。
+     * 正在写入时会等这次写完，返回后再从 mongo 删除就不会漏掉
+     *
+     * @param chatKey 会话key，其他会话的同 id 消息不受影响
+     * @param ids     消息id
+     */
+    public void discard(String chatKey, Collection<String> ids) {
+        Set<String> set = new HashSet<>(ids);
+        queue.removeIf(message -> set.contains(message.getId()) && chatKey.equals(message.getChatKey()));
+        synchronized (writeLock) {
+            inflight.values().removeIf(message -> set.contains(message.getId()) && chatKey.equals(message.getChatKey()));
+        }
+    }
+
+    /**
+     * 还没有写入的消息，包括正在写的批次
+     *
+     * @param ids 消息id
+     * @return 还没有写入的消息
+     */
+    public List<Message> pending(Collection<String> ids) {
+        Set<String> set = new HashSet<>(ids);
+        synchronized (writeLock) {
+            List<Message> messages = new ArrayList<>(queue.stream().filter(message -> set.contains(message.getId())).toList());
+            for (String id : set) {
+                Message message = inflight.get(id);
+                if (message != null) {
+                    messages.add(message);
+                }
+            }
+            return messages;
+        }
+    }
+
+    /**
+     * 一个会话还没有写入的消息，包括正在攒和正在写的批次，从 mongo 补齐最近消息缓存时合并进去
+     *
+     * @param chatKey 会话key
+     * @return 还没有写入的消息
+     */
+    public List<Message> pending(String chatKey) {
+        synchronized (writeLock) {
+            List<Message> messages = new ArrayList<>(queue.stream().filter(message -> chatKey.equals(message.getChatKey())).toList());
+            for (Message message : inflight.values()) {
+                if (chatKey.equals(message.getChatKey())) {
+                    messages.add(message);
+                }
+            }
+            return messages;
+        }
+    }
+
+    /**
+     * 移除一个会话还没有写入的消息，包括正在写的批次，清空聊天记录时调用
+     *
+     * @param chatKey 会话key
+     */
+    public void discardChat(String chatKey) {
+        queue.removeIf(message -> chatKey.equals(message.getChatKey()));
+        synchronized (writeLock) {
+            inflight.values().removeIf(message -> chatKey.equals(message.getChatKey()));
+        }
+    }
+
+    private void saveNow(Message message) {
+        String collectionName = collectionName(message);
+        messageIndexManager.ensure(collectionName);
+        mongoTemplate.save(message, collectionName);
+    }
+
+    private void run() {
+        VimConfig.Persist persist = vimConfig.getPersist();
+        List<Message> batch = new ArrayList<>(persist.getBatchSize());
+        while (running || !queue.isEmpty()) {
+            try {
+                // 等不到也取一次，兜底
+                available.tryAcquire(persist.getFlushIntervalMillis(), TimeUnit.MILLISECONDS);
+                take(batch);
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(persist.getFlushIntervalMillis());
+                while (batch.size() < persist.getBatchSize()) {
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0 || !available.tryAcquire(wait, TimeUnit.NANOSECONDS)) {
+                        break;
+                    }
+                    take(batch);
+                }
+            } catch (InterruptedException e) {
+                // 关闭时被唤醒，继续把队列写完
+                take(batch);
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 从队列取消息放进批次，同时放进 inflight，和删除互斥
+     */
+    private void take(List<Message> batch) {
+        int from = batch.size();
+        synchronized (writeLock) {
+            // 先清零再取，清零之后进来的消息要么这次取到（多一次空唤醒），要么留着许可下次唤醒
+            available.drainPermits();
+            queue.drainTo(batch, vimConfig.getPersist().getBatchSize() - from);
+            for (int i = from; i < batch.size(); i++) {
+                Message message = batch.get(i);
+                inflight.put(message.getId(), message);
+            }
+        }
+    }
+
+    /**
+     * 按集合分组批量写入，失败的消息按次数重试，超过次数的放弃
+     */
+    private void flush(List<Message> batch) {
+        Map<String, List<Message>> collections = new HashMap<>();
+        for (Message message : batch) {
+            collections.computeIfAbsent(collectionName(message), k -> new ArrayList<>()).add(message);
+        }
+        long start = System.nanoTime();
+        try {
+            for (Map.Entry<String, List<Message>> entry : collections.entrySet()) {
+                List<Message> pending = entry.getValue();
+                int attempts = 0;
+                while (true) {
+                    synchronized (writeLock) {
+                        // 等待重试期间被删除的消息不再写入
+                        pending = pending.stream().filter(message -> inflight.containsKey(message.getId())).toList();
+                        if (pending.isEmpty()) {
+                            break;
+                        }
+                        pending = insert(entry.getKey(), pending);
+                    }
+                    if (pending.isEmpty()) {
+                        break;
+                    }
+                    if (++attempts > maxRetries()) {
+                        abandon(entry.getKey(), pending);
+                        break;
+                    }
+                    sleepBeforeRetry();
+                }
+            }
+        } finally {
+            inflight.clear();
+        }
+        flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 关闭时只再重试 shutdownRetries 次，避免拖住应用退出
+     */
+    private int maxRetries() {
+        VimConfig.Persist persist = vimConfig.getPersist();
+        return running ? persist.getMaxRetries() : Math.min(persist.getMaxRetries(), persist.getShutdownRetries());
+    }
+
+    /**
+     * 重试次数用完，把消息内容打到错误日志里，需要时可以从日志补录
+     */
+    private void abandon(String collectionName, List<Message> messages) {
+        abandonedCounter.increment(messages.size());
+        for (Message message : messages) {
+            log.error("消息写入 {} 重试后仍然失败，放弃: {}", collectionName, JSON.toJSONString(message));
+        }
+    }
+
+    /**
+     * 批量写入一个集合
+     *
+     * @return 需要重试的消息
+     */
+    private List<Message> insert(String collectionName, List<Message> messages) {
+        messageIndexManager.ensure(collectionName);
+        try {
+            mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Message.class, collectionName).insert(messages).execute();
+            return List.of();
+        } catch (BulkOperationException e) {
+            List<Message> retry = new ArrayList<>();
+            for (BulkWriteError error : e.getErrors()) {
+                if (error.getCode() != DUPLICATE_KEY) {
+                    retry.add(messages.get(error.getIndex()));
+                }
+            }
+            if (!retry.isEmpty()) {
+                log.error("批量写入 {} 失败 {} 条，稍后重试", collectionName, retry.size(), e);
+            }
+            return retry;
+        } catch (Exception e) {
+            log.error("批量写入 {} 失败 {} 条，稍后重试", collectionName, messages.size(), e);
+            return messages;
+        }
+    }
+
+    private void sleepBeforeRetry() {
+        try {
+            Thread.sleep(vimConfig.getPersist().getRetryIntervalMillis());
+        } catch (InterruptedException e) {
+            // 关闭时的唤醒，不再恢复中断标记，后面的重试照常等待间隔，次数由 shutdownRetries 限制
+            log.debug("消息入库线程等待重试时被唤醒");
+        }
+    }
+
+    private String collectionName(Message message) {
+        return ChatUtils.getCollectionName(message.getFromId(), message.getChatId(), message.getChatType());
+    }
+}
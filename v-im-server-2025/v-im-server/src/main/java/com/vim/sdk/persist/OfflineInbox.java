@@ -0,0 +1,297 @@
+package com.vim.sdk.persist;
+
+import cn.hutool.core.util.StrUtil;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.InsertManyOptions;
+import com.vim.common.config.VimConfig;
+import com.vim.common.utils.ChatUtils;
+import com.vim.common.utils.RedisLockUtils;
+import com.vim.tio.messages.Message;
+import com.vim.tio.messages.OfflineMessage;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 离线收件箱
+ * 所有用户的离线消息放在同一个 offline-inbox 集合里，按 (user_id, timestamp) 索引读取，
+ * expire_at 上的 TTL 索引负责删除过期的，读完以后按用户一次删除，不用先 count。
+ * 原来每个用户一个的 offline-message-{userId} 集合在启动后由一个节点在后台迁移，
+ * 迁移完成前读取某个用户时先把他的旧集合迁移过来；迁移完成记在 redis 里，每个节点定时检查一次，看到以后不再检查
+ *
+ * @author 乐天
+ */
+@Slf4j
+@Component
+public class OfflineInbox {
+
+    public static final String COLLECTION = "offline-inbox";
+
+    private static final String LEGACY_PREFIX = StrUtil.format(ChatUtils.UNREAD_TEMPLATE, "");
+
+    private static final String MIGRATED_KEY = "offline-inbox:migrated";
+
+    private static final String LOCK_KEY = "offline-inbox:migrator:lock";
+
+    private static final Duration LOCK_TTL = Duration.ofHours(1);
+
+    /**
+     * 迁移没完成时多久检查一次
+     */
+    private static final long MIGRATED_CHECK_MILLIS = 10000;
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    @Resource
+    private VimConfig vimConfig;
+
+    @Resource
+    private MongoTemplate mongoTemplate;
+
+    @Resource
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Resource
+    private MessageIndexManager messageIndexManager;
+
+    private final String nodeId = ManagementFactory.getRuntimeMXBean().getName();
+
+    /**
+     * 旧集合是否已经全部迁移完，任何一个节点迁移完都算
+     */
+    private volatile boolean migrated;
+
+    /**
+     * 下次检查迁移是否完成的时间
+     */
+    private volatile long migratedCheckAt;
+
+    /**
+     * 放进收件箱，重发的同一条消息已经在收件箱里就忽略
+     *
+     * @param message 消息
+     * @param userId  收件人id
+     */
+    public void save(Message message, String userId) {
+        messageIndexManager.ensure(COLLECTION);
+        try {
+            mongoTemplate.insert(OfflineMessage.of(message, userId, expireAt(System.currentTimeMillis())), COLLECTION);
+        } catch (DuplicateKeyException e) {
+            log.debug("离线消息 {} 已经在收件箱里", message.getId());
+        }
+    }
+
+    /**
+     * 用户的离线消息，按时间升序，游标分批读取，用完必须关闭
+     *
+     * @param userId    用户id
+     * @param batchSize 游标每批读取多少条
+     * @return Stream
+     */
+    public Stream<Message> stream(String userId, int batchSize) {
+        migrateLegacy(userId);
+        Query query = Query.query(Criteria.where("user_id").is(userId))
+                .with(Sort.by(Sort.Direction.ASC, "timestamp"))
+                .cursorBatchSize(batchSize);
+        return mongoTemplate.stream(query, Message.class, COLLECTION);
+    }
+
+    /**
+     * 用户收到的某个人的离线消息，按时间升序
+     *
+     * @param userId 用户id
+     * @param fromId 发送人id，为空时返回所有
+     * @return List
+     */
+    public List<Message> list(String userId, String fromId) {
+        migrateLegacy(userId);
+        Criteria criteria = Criteria.where("user_id").is(userId);
+        if (StrUtil.isNotBlank(fromId)) {
+            criteria.and("from_id").is(fromId);
+        }
+        return mongoTemplate.find(Query.query(criteria).with(Sort.by(Sort.Direction.ASC, "timestamp")), Message.class, COLLECTION);
+    }
+
+    /**
+     * 删除用户的所有离线消息，一次 deleteMany
+     *
+     * @param userId 用户id
+     * @return 删除的条数
+     */
+    public long clear(String userId) {
+        return mongoTemplate.remove(Query.query(Criteria.where("user_id").is(userId)), COLLECTION).getDeletedCount();
+    }
+
+    /**
+     * 按 id 删除一个会话的离线消息
+     *
+     * @param chatKey 会话key
+     * @param ids     消息id
+     */
+    public void remove(String chatKey, Collection<String> ids) {
+        mongoTemplate.remove(Query.query(Criteria.where("_id").in(ids).and("chat_key").is(chatKey)), COLLECTION);
+    }
+
+    /**
+     * 启动后在后台迁移旧的离线集合，只有一个节点迁移
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrate() {
+        shardCollection();
+        if (isMigrated()) {
+            return;
+        }
+        if (!vimConfig.getOffline().isMigrate()) {
+            return;
+        }
+        Thread.ofPlatform().daemon().name("vim-offline-migrator").start(this::migrateAll);
+    }
+
+    private void migrateAll() {
+        if (!RedisLockUtils.lock(redisTemplate, LOCK_KEY, nodeId, LOCK_TTL)) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        long users = 0;
+        long messages = 0;
+        try {
+            for (String name : mongoTemplate.getCollectionNames()) {
+                if (!name.startsWith(LEGACY_PREFIX)) {
+                    continue;
+                }
+                messages += migrateCollection(name, name.substring(LEGACY_PREFIX.length()));
+                users++;
+                if (!RedisLockUtils.renew(redisTemplate, LOCK_KEY, nodeId, LOCK_TTL)) {
+                    throw new IllegalStateException("迁移的锁已经过期");
+                }
+                TimeUnit.MILLISECONDS.sleep(vimConfig.getOffline().getMigratePauseMillis());
+            }
+            redisTemplate.opsForValue().set(MIGRATED_KEY, Boolean.TRUE.toString());
+            migrated = true;
+            log.info("离线消息迁移到收件箱完成，{} 个用户 {} 条，耗时 {}ms", users, messages, System.currentTimeMillis() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("离线消息迁移失败，已迁移 {} 个用户，下次启动继续", users, e);
+        } finally {
+            RedisLockUtils.unlock(redisTemplate, LOCK_KEY, nodeId);
+        }
+    }
+
+    /**
+     * 读取前先迁移这个用户的旧集合，全部迁移完以后不再检查
+     */
+    private void migrateLegacy(String userId) {
+        if (isMigrated()) {
+            return;
+        }
+        String name = ChatUtils.getOffLineCollectionName(userId);
+        if (mongoTemplate.collectionExists(name)) {
+            migrateCollection(name, userId);
+        }
+    }
+
+    /**
+     * 旧集合是否已经全部迁移完，没完成时最多每 {@link #MIGRATED_CHECK_MILLIS} 读一次 redis
+     */
+    private boolean isMigrated() {
+        if (migrated) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now >= migratedCheckAt) {
+            migratedCheckAt = now + MIGRATED_CHECK_MILLIS;
+            migrated = Boolean.TRUE.toString().equals(redisTemplate.opsForValue().get(MIGRATED_KEY));
+        }
+        return migrated;
+    }
+
+    /**
+     * 分批复制到收件箱，重复的忽略，复制完删除旧集合；旧集合不再有新的写入，中途失败重新复制即可
+     *
+     * @return 迁移的条数
+     */
+    private long migrateCollection(String name, String userId) {
+        messageIndexManager.ensure(COLLECTION);
+        int batchSize = Math.max(1, vimConfig.getOffline().getMigrateBatchSize());
+        long now = System.currentTimeMillis();
+        long count = 0;
+        Object lastId = null;
+        while (true) {
+            Query query = new Query().with(Sort.by(Sort.Direction.ASC, "_id")).limit(batchSize);
+            if (lastId != null) {
+                query.addCriteria(Criteria.where("_id").gt(lastId));
+            }
+            List<Document> documents = mongoTemplate.find(query, Document.class, name);
+            if (documents.isEmpty()) {
+                break;
+            }
+            List<Document> inbox = new ArrayList<>(documents.size());
+            for (Document document : documents) {
+                // 迁移过来的从迁移时开始计算过期时间
+                inbox.add(new Document(document).append("user_id", userId).append("expire_at", expireAt(now)));
+            }
+            insert(inbox);
+            count += documents.size();
+            lastId = documents.get(documents.size() - 1).get("_id");
+            if (documents.size() < batchSize) {
+                break;
+            }
+        }
+        mongoTemplate.dropCollection(name);
+        return count;
+    }
+
+    private void insert(List<Document> documents) {
+        try {
+            mongoTemplate.getCollection(COLLECTION).insertMany(documents, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            for (BulkWriteError error : e.getWriteErrors()) {
+                if (error.getCode() != DUPLICATE_KEY) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * 按 (user_id, timestamp) 分片，集合已经分片或者不是 mongos 时忽略
+     */
+    private void shardCollection() {
+        if (!vimConfig.getOffline().isShardCollection()) {
+            return;
+        }
+        messageIndexManager.ensure(COLLECTION);
+        String namespace = mongoTemplate.getDb().getName() + "." + COLLECTION;
+        try {
+            mongoTemplate.getMongoDatabaseFactory().getMongoDatabase("admin").runCommand(new Document("shardCollection", namespace)
+                    .append("key", new Document("user_id", 1).append("timestamp", 1)));
+            log.info("离线收件箱 {} 按 (user_id, timestamp) 分片", namespace);
+        } catch (Exception e) {
+            log.warn("离线收件箱分片失败: {}", e.getMessage());
+        }
+    }
+
+    private Date expireAt(long from) {
+        return new Date(from + TimeUnit.DAYS.toMillis(vimConfig.getOffline().getTtlDays()));
+    }
+}
@@ -0,0 +1,287 @@
+package com.vim.sdk.persist;
+
+import com.mongodb.bulk.BulkWriteError;
+import com.vim.common.config.VimConfig;
+import com.vim.common.shard.RoutingTable;
+import com.vim.common.shard.ShardRouter;
+import com.vim.common.shard.ShardRouting;
+import com.vim.common.utils.RedisLockUtils;
+import com.vim.tio.messages.Message;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * 分片路由表管理和会话搬迁
+ * 路由表存在 mongo 的 shard-routing 集合，启动时读取，配置的分片方式或分片数变了就发布新版本；
+ * 所有节点定时刷新路由表，新消息写到新位置，搬迁完成前读的时候新旧位置都查。
+ * 发布后等 graceMillis 让所有节点都换上新路由，再由一个节点（redis 锁）按会话分批搬迁，进度记在路由表里，重启后继续
+ *
+ * @author 乐天
+ */
+@Slf4j
+@Component
+public class ShardRoutingManager {
+
+    private static final String COLLECTION = "shard-routing";
+
+    private static final String TABLE_ID = "message";
+
+    private static final String LOCK_KEY = "shard:migrator:lock";
+
+    private static final int MOVE_BATCH_SIZE = 500;
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    @Resource
+    private VimConfig vimConfig;
+
+    @Resource
+    private MongoTemplate mongoTemplate;
+
+    @Resource
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Resource
+    private MessageIndexManager messageIndexManager;
+
+    private final String nodeId = ManagementFactory.getRuntimeMXBean().getName();
+
+    private volatile RoutingTable table;
+
+    @PostConstruct
+    public void init() {
+        RoutingTable current = mongoTemplate.findById(TABLE_ID, RoutingTable.class, COLLECTION);
+        if (current == null) {
+            current = initialTable();
+        } else if (!matchesConfig(current)) {
+            current = publish(current);
+        }
+        apply(current);
+    }
+
+    /**
+     * 定时刷新路由表，其他节点发布的新版本或者搬迁完成在这里生效
+     */
+    @Scheduled(fixedDelayString = "${vim.shard.refreshMillis:10000}")
+    public void refresh() {
+        try {
+            RoutingTable latest = mongoTemplate.findById(TABLE_ID, RoutingTable.class, COLLECTION);
+            if (latest != null) {
+                apply(latest);
+            }
+        } catch (Exception e) {
+            log.warn("刷新分片路由表失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 搬迁一批会话
+     */
+    @Scheduled(fixedDelayString = "${vim.shard.migrateIntervalMillis:1000}")
+    public void migrate() {
+        RoutingTable current = table;
+        if (current == null || !RoutingTable.MIGRATING.equals(current.getState())
+                || System.currentTimeMillis() < current.getMigrateAfter() || !lock()) {
+            return;
+        }
+        try {
+            step(current);
+        } catch (Exception e) {
+            log.error("分片搬迁失败，下次继续", e);
+        }
+    }
+
+    /**
+     * 第一次启动，按配置建路由表；已有数据的部署默认取模 1000 片，和原来一致
+     */
+    private RoutingTable initialTable() {
+        VimConfig.Shard config = vimConfig.getShard();
+        RoutingTable initial = new RoutingTable();
+        initial.setId(TABLE_ID);
+        initial.setVersion(1);
+        initial.setStrategy(config.getStrategy());
+        initial.setShards(config.getShards());
+        initial.setVirtualNodes(config.getVirtualNodes());
+        initial.setState(RoutingTable.ACTIVE);
+        initial.setUpdateTime(System.currentTimeMillis());
+        try {
+            mongoTemplate.insert(initial, COLLECTION);
+            log.info("创建分片路由表 v1 {} {} 片", initial.getStrategy(), initial.getShards());
+            return initial;
+        } catch (Exception e) {
+            // 其他节点同时创建了
+            return mongoTemplate.findById(TABLE_ID, RoutingTable.class, COLLECTION);
+        }
+    }
+
+    /**
+     * 配置变了就发布新版本，搬迁没完成时不能再换
+     */
+    private RoutingTable publish(RoutingTable current) {
+        if (RoutingTable.MIGRATING.equals(current.getState())) {
+            log.warn("分片路由 v{} 还在搬迁，配置的新分片方式等搬迁完成后重启生效", current.getVersion());
+            return current;
+        }
+        VimConfig.Shard config = vimConfig.getShard();
+        Update update = new Update()
+                .set("version", current.getVersion() + 1)
+                .set("strategy", config.getStrategy())
+                .set("shards", config.getShards())
+                .set("virtualNodes", config.getVirtualNodes())
+                .set("state", RoutingTable.MIGRATING)
+                .set("previousStrategy", current.getStrategy())
+                .set("previousShards", current.getShards())
+                .set("previousVirtualNodes", current.getVirtualNodes())
+                .set("migrateAfter", System.currentTimeMillis() + config.getGraceMillis())
+                .set("migrateCollection", 0)
+                .set("migrateLastKey", null)
+                .set("migrated", 0L)
+                .set("updateTime", System.currentTimeMillis());
+        // 按版本号做条件更新，多个节点同时启动只有一个能发布成功
+        Query query = Query.query(Criteria.where("_id").is(TABLE_ID).and("version").is(current.getVersion()));
+        RoutingTable published = mongoTemplate.findAndModify(query, update,
+                FindAndModifyOptions.options().returnNew(true), RoutingTable.class, COLLECTION);
+        if (published == null) {
+            return mongoTemplate.findById(TABLE_ID, RoutingTable.class, COLLECTION);
+        }
+        log.info("发布分片路由 v{}：{} {} 片 -> {} {} 片，{}ms 后开始搬迁", published.getVersion(),
+                current.getStrategy(), current.getShards(), published.getStrategy(), published.getShards(), config.getGraceMillis());
+        return published;
+    }
+
+    private boolean matchesConfig(RoutingTable current) {
+        VimConfig.Shard config = vimConfig.getShard();
+        return Objects.equals(current.getStrategy(), config.getStrategy())
+                && current.getShards() == config.getShards()
+                && (!RoutingTable.CONSISTENT_HASH.equals(config.getStrategy()) || current.getVirtualNodes() == config.getVirtualNodes());
+    }
+
+    private void apply(RoutingTable latest) {
+        RoutingTable current = table;
+        if (current != null && current.getVersion() == latest.getVersion() && Objects.equals(current.getState(), latest.getState())) {
+            table = latest;
+            return;
+        }
+        ShardRouting.apply(latest.getVersion(), latest.router(), latest.previousRouter());
+        table = latest;
+        log.info("分片路由 v{} 生效，状态 {}", latest.getVersion(), latest.getState());
+    }
+
+    /**
+     * 搬迁上一版一个集合里的一批会话，会话的新位置和原来一样就跳过
+     */
+    private void step(RoutingTable current) {
+        ShardRouter router = current.router();
+        List<String> previousCollections = current.previousRouter().collections();
+        int index = current.getMigrateCollection();
+        if (index >= previousCollections.size()) {
+            finish(current);
+            return;
+        }
+        String from = previousCollections.get(index);
+        List<String> chatKeys = nextChatKeys(from, current.getMigrateLastKey(), vimConfig.getShard().getMigrateBatchSize());
+        long moved = 0;
+        String lastKey = current.getMigrateLastKey();
+        for (String chatKey : chatKeys) {
+            String to = router.route(chatKey);
+            if (!to.equals(from)) {
+                move(chatKey, from, to);
+                moved++;
+            }
+            lastKey = chatKey;
+        }
+        Update update = new Update().inc("migrated", moved).set("updateTime", System.currentTimeMillis());
+        if (chatKeys.size() < vimConfig.getShard().getMigrateBatchSize()) {
+            update.set("migrateCollection", index + 1).set("migrateLastKey", null);
+        } else {
+            update.set("migrateLastKey", lastKey);
+        }
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(TABLE_ID).and("version").is(current.getVersion())), update, COLLECTION);
+        refresh();
+    }
+
+    /**
+     * 按 chat_key 顺序取 after 之后的一批会话，每个会话在 chat_key 索引上定位一次，不用 group 扫整个集合
+     */
+    private List<String> nextChatKeys(String collectionName, String after, int limit) {
+        List<String> chatKeys = new ArrayList<>(limit);
+        String last = after;
+        while (chatKeys.size() < limit) {
+            Query query = Query.query(last == null ? Criteria.where("chat_key").gte("") : Criteria.where("chat_key").gt(last))
+                    .with(Sort.by(Sort.Direction.ASC, "chat_key"))
+                    .limit(1);
+            query.fields().include("chat_key").exclude("_id");
+            Document document = mongoTemplate.findOne(query, Document.class, collectionName);
+            if (document == null) {
+                break;
+            }
+            last = document.getString("chat_key");
+            chatKeys.add(last);
+        }
+        return chatKeys;
+    }
+
+    /**
+     * 搬迁一个会话：分批复制到新集合，复制成功的再从旧集合删掉；中途失败重复复制也没关系
+     */
+    private void move(String chatKey, String from, String to) {
+        messageIndexManager.ensure(to);
+        Query query = Query.query(Criteria.where("chat_key").is(chatKey)).limit(MOVE_BATCH_SIZE);
+        while (true) {
+            List<Message> messages = mongoTemplate.find(query, Message.class, from);
+            if (messages.isEmpty()) {
+                return;
+            }
+            try {
+                mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Message.class, to).insert(messages).execute();
+            } catch (BulkOperationException e) {
+                for (BulkWriteError error : e.getErrors()) {
+                    if (error.getCode() != DUPLICATE_KEY) {
+                        throw e;
+                    }
+                }
+            }
+            List<String> ids = messages.stream().map(Message::getId).toList();
+            mongoTemplate.remove(Query.query(Criteria.where("_id").in(ids)), from);
+        }
+    }
+
+    private void finish(RoutingTable current) {
+        Update update = new Update()
+                .set("state", RoutingTable.ACTIVE)
+                .set("previousStrategy", null)
+                .set("previousShards", 0)
+                .set("previousVirtualNodes", 0)
+                .set("updateTime", System.currentTimeMillis());
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(TABLE_ID).and("version").is(current.getVersion())), update, COLLECTION);
+        log.info("分片路由 v{} 搬迁完成，共搬迁 {} 个会话", current.getVersion(), current.getMigrated());
+        refresh();
+    }
+
+    /**
+     * 只有一个节点搬迁，锁过期前一直由同一个节点续期，续期时比较持有者是原子的
+     */
+    private boolean lock() {
+        Duration ttl = Duration.ofMillis(vimConfig.getShard().getMigrateIntervalMillis() * 10 + 30000);
+        return RedisLockUtils.lock(redisTemplate, LOCK_KEY, nodeId, ttl) || RedisLockUtils.renew(redisTemplate, LOCK_KEY, nodeId, ttl);
+    }
+}
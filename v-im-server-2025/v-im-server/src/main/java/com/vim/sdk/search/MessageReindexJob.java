@@ -0,0 +1,146 @@
+package com.vim.sdk.search;
+
+import com.vim.common.config.VimConfig;
+import com.vim.common.utils.ChatUtils;
+import com.vim.common.utils.RedisLockUtils;
+import com.vim.tio.messages.Message;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 从 mongo 的消息分片补 elasticsearch 索引
+ * 开启搜索之前的消息、缓冲区满了丢弃的索引都靠这里补。启动后在后台按分片集合、按 _id 顺序分批读出来同步写入索引，
+ * 每批写完把集合和最后一个 _id 记在 redis 里，中断或者重启后从这里继续；全部补完记下版本，同一个版本不再补。
+ * 只有一个节点在补，文档 id 是消息 id，重复写入只是覆盖
+ *
+ * @author 乐天
+ */
+@Slf4j
+@Component
+public class MessageReindexJob {
+
+    /**
+     * 进度，hash：version、collection、id
+     */
+    private static final String PROGRESS_KEY = "search:reindex:progress";
+
+    /**
+     * 已经补完的版本
+     */
+    private static final String DONE_KEY = "search:reindex:done";
+
+    private static final String LOCK_KEY = "search:reindex:lock";
+
+    private static final Duration LOCK_TTL = Duration.ofMinutes(10);
+
+    @Resource
+    private VimConfig vimConfig;
+
+    @Resource
+    private MongoTemplate mongoTemplate;
+
+    @Resource
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Resource
+    private MessageSearchService messageSearchService;
+
+    private final String nodeId = ManagementFactory.getRuntimeMXBean().getName();
+
+    /**
+     * 启动后在后台补索引
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        VimConfig.Search config = vimConfig.getSearch();
+        if (!config.isEnabled() || !config.isReindex()) {
+            return;
+        }
+        if (config.getReindexVersion().equals(redisTemplate.opsForValue().get(DONE_KEY))) {
+            return;
+        }
+        Thread.ofPlatform().daemon().name("vim-search-reindex").start(this::reindexAll);
+    }
+
+    private void reindexAll() {
+        if (!RedisLockUtils.lock(redisTemplate, LOCK_KEY, nodeId, LOCK_TTL)) {
+            return;
+        }
+        VimConfig.Search config = vimConfig.getSearch();
+        String version = config.getReindexVersion();
+        Map<Object, Object> progress = redisTemplate.opsForHash().entries(PROGRESS_KEY);
+        // 上一个版本留下的进度不用，从头开始
+        boolean resume = version.equals(progress.get("version"));
+        String savedCollection = resume ? (String) progress.get("collection") : null;
+        String savedId = resume ? (String) progress.get("id") : null;
+        List<String> collections = ChatUtils.getShardCollectionNames();
+        int from = savedCollection == null ? 0 : Math.max(0, collections.indexOf(savedCollection));
+        long start = System.currentTimeMillis();
+        long count = 0;
+        String collectionName = null;
+        try {
+            messageSearchService.ensureIndex();
+            for (int i = from; i < collections.size(); i++) {
+                collectionName = collections.get(i);
+                count += reindex(collectionName, collectionName.equals(savedCollection) ? savedId : null, version, config);
+            }
+            redisTemplate.opsForValue().set(DONE_KEY, version);
+            redisTemplate.delete(PROGRESS_KEY);
+            log.info("消息补索引完成，版本 {}，{} 条，耗时 {}ms", version, count, System.currentTimeMillis() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("消息补索引失败，已补 {} 条，下次启动从 {} 继续", count, collectionName, e);
+        } finally {
+            RedisLockUtils.unlock(redisTemplate, LOCK_KEY, nodeId);
+        }
+    }
+
+    /**
+     * 补一个集合，从 after 之后的 _id 开始
+     *
+     * @return 读出来的条数
+     */
+    private long reindex(String collectionName, String after, String version, VimConfig.Search config) throws IOException, InterruptedException {
+        int batchSize = Math.max(1, config.getReindexBatchSize());
+        long count = 0;
+        while (true) {
+            Criteria criteria = after == null ? new Criteria() : Criteria.where("_id").gt(after);
+            Query query = Query.query(criteria).with(Sort.by(Sort.Direction.ASC, "_id")).limit(batchSize);
+            List<Message> messages = mongoTemplate.find(query, Message.class, collectionName);
+            if (messages.isEmpty()) {
+                return count;
+            }
+            for (Message message : messages) {
+                if (message.getChatKey() == null) {
+                    message.setChatKey(ChatUtils.getChatKey(message.getFromId(), message.getChatId(), message.getChatType()));
+                }
+            }
+            messageSearchService.reindex(messages);
+            after = messages.get(messages.size() - 1).getId();
+            redisTemplate.opsForHash().putAll(PROGRESS_KEY, Map.of("version", version, "collection", collectionName, "id", after));
+            if (!RedisLockUtils.renew(redisTemplate, LOCK_KEY, nodeId, LOCK_TTL)) {
+                throw new IllegalStateException("补索引的锁已经过期");
+            }
+            count += messages.size();
+            if (messages.size() < batchSize) {
+                return count;
+            }
+            Thread.sleep(config.getReindexPauseMillis());
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package com.vim.sdk.search;
+
+import cn.hutool.core.util.StrUtil;
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.SortOrder;
+import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
+import co.elastic.clients.elasticsearch.core.BulkResponse;
+import co.elastic.clients.elasticsearch.core.SearchRequest;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.bulk.BulkOperation;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+import com.vim.common.config.VimConfig;
+import com.vim.common.utils.MpscRingBuffer;
+import com.vim.tio.messages.Message;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 聊天记录全文搜索
+ * 消息入库后放进无锁缓冲区，由单独的线程批量写入 elasticsearch，文档 id 为消息 id，按 chat_key 路由，
+ * 同一个会话的消息在同一个分片上，搜索时只查一个分片。索引里只有搜索用到的字段，消息内容以 mongo 为准。
+ * 没有开启时不做任何事，搜索由调用方回退到 mongo。缓冲区满了丢弃的、开启之前的消息由 {@link MessageReindexJob} 从 mongo 补索引
+ *
+ * @author 乐天
+ */
+@Slf4j
+@Component
+public class MessageSearchService {
+
+    private static final String CHAT_KEY = "chat_key";
+
+    private static final String TIMESTAMP = "timestamp";
+
+    private static final String ID = "id";
+
+    @Resource
+    private VimConfig vimConfig;
+
+    @Resource
+    private ElasticsearchClient elasticsearchClient;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private MpscRingBuffer<IndexOp> buffer;
+
+    private Thread indexer;
+
+    private volatile boolean running;
+
+    private Timer bulkTimer;
+
+    private Counter indexedCounter;
+
+    private Counter droppedCounter;
+
+    @PostConstruct
+    public void init() {
+        VimConfig.Search search = vimConfig.getSearch();
+        if (!search.isEnabled()) {
+            return;
+        }
+        buffer = new MpscRingBuffer<>(search.getCapacity());
+        bulkTimer = Timer.builder("vim.search.bulk").register(meterRegistry);
+        indexedCounter = Counter.builder("vim.search.indexed").register(meterRegistry);
+        droppedCounter = Counter.builder("vim.search.dropped").register(meterRegistry);
+        Gauge.builder("vim.search.backlog", buffer, MpscRingBuffer::size).register(meterRegistry);
+        running = true;
+        indexer = new Thread(this::run, "vim-search-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (indexer == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(indexer);
+        try {
+            indexer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 是否开启了 elasticsearch 搜索
+     *
+     * @return boolean
+     */
+    public boolean isEnabled() {
+        return vimConfig.getSearch().isEnabled();
+    }
+
+    /**
+     * 索引一条消息，只有文本内容才索引
+     *
+     * @param message 已经入库的消息
+     */
+    public void index(Message message) {
+        if (isEnabled() && StrUtil.isNotBlank(message.getContent())) {
+            offer(new IndexOp(IndexOp.INDEX, message.getId(), message.getChatKey(), message));
+        }
+    }
+
+    /**
+     * 删除一条消息的索引
+     *
+     * @param id      消息id
+     * @param chatKey 会话key
+     */
+    public void delete(String id, String chatKey) {
+        if (isEnabled()) {
+            offer(new IndexOp(IndexOp.DELETE, id, chatKey, null));
+        }
+    }
+
+    /**
+     * 删除一个会话的所有索引
+     *
+     * @param chatKey 会话key
+     */
+    public void clear(String chatKey) {
+        if (isEnabled()) {
+            offer(new IndexOp(IndexOp.CLEAR, null, chatKey, null));
+        }
+    }
+
+    /**
+     * 在一个会话里搜索，按时间倒序
+     *
+     * @param chatKey     会话key
+     * @param messageType 消息类型
+     * @param searchText  搜索内容
+     * @param dateRange   时间范围
+     * @param from        跳过多少条，和 searchAfter 二选一
+     * @param size        条数
+     * @param searchAfter 上一页最后一条的 timestamp 和 id
+     * @return 命中的消息id和总数
+     * @throws IOException elasticsearch 不可用
+     */
+    public SearchResult search(String chatKey, String messageType, String searchText, Date[] dateRange,
+                               int from, int size, List<FieldValue> searchAfter) throws IOException {
+        BoolQuery.Builder bool = new BoolQuery.Builder();
+        bool.filter(f -> f.term(t -> t.field(CHAT_KEY).value(chatKey)));
+        if (StrUtil.isNotBlank(messageType)) {
+            bool.filter(f -> f.term(t -> t.field("message_type").value(messageType)));
+        }
+        if (dateRange != null) {
+            double start = dateRange[0].getTime();
+            double end = dateRange[1].getTime() + 24 * 60 * 60 * 1000;
+            bool.filter(f -> f.range(r -> r.number(n -> n.field(TIMESTAMP).gte(start).lt(end))));
+        }
+        bool.must(m -> m.matchPhrase(p -> p.field("content").query(searchText)));
+        SearchRequest.Builder request = new SearchRequest.Builder()
+                .index(vimConfig.getSearch().getIndex())
+                .routing(chatKey)
+                .query(q -> q.bool(bool.build()))
+                .sort(s -> s.field(f -> f.field(TIMESTAMP).order(SortOrder.Desc)))
+                .sort(s -> s.field(f -> f.field(ID).order(SortOrder.Desc)))
+                .source(s -> s.fetch(false))
+                .trackTotalHits(t -> t.enabled(true))
+                .size(size);
+        if (searchAfter != null && !searchAfter.isEmpty()) {
+            request.searchAfter(searchAfter);
+        } else {
+            request.from(from);
+        }
+        SearchResponse<Void> response = elasticsearchClient.search(request.build(), Void.class);
+        List<String> ids = new ArrayList<>();
+        List<FieldValue> last = null;
+        for (Hit<Void> hit : response.hits().hits()) {
+            ids.add(hit.id());
+            last = hit.sort();
+        }
+        long total = response.hits().total() == null ? ids.size() : response.hits().total().value();
+        return new SearchResult(ids, total, last);
+    }
+
+    /**
+     * 同步批量索引，补索引用，不经过缓冲区
+     *
+     * @param messages 消息，没有文本内容的跳过
+     * @return 索引的条数
+     * @throws IOException elasticsearch 不可用，调用方从这一批重试
+     */
+    public int reindex(List<Message> messages) throws IOException {
+        List<BulkOperation> operations = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            if (StrUtil.isNotBlank(message.getContent())) {
+                operations.add(toOperation(new IndexOp(IndexOp.INDEX, message.getId(), message.getChatKey(), message)));
+            }
+        }
+        if (operations.isEmpty()) {
+            return 0;
+        }
+        BulkResponse response = elasticsearchClient.bulk(b -> b.index(vimConfig.getSearch().getIndex()).operations(operations));
+        if (response.errors()) {
+            long failed = response.items().stream().filter(item -> item.error() != null).count();
+            log.warn("补索引部分失败 {}/{}", failed, operations.size());
+        }
+        indexedCounter.increment(operations.size());
+        return operations.size();
+    }
+
+    private void offer(IndexOp op) {
+        if (!buffer.offer(op)) {
+            // 索引可以从 mongo 重建，满了直接丢弃
+            droppedCounter.increment();
+        }
+    }
+
+    private void run() {
+        VimConfig.Search search = vimConfig.getSearch();
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(search.getFlushIntervalMillis());
+        ensureIndex();
+        List<IndexOp> batch = new ArrayList<>(search.getBatchSize());
+        while (true) {
+            boolean stopping = !running;
+            buffer.drainTo(batch, search.getBatchSize());
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+                continue;
+            }
+            if (stopping) {
+                break;
+            }
+            LockSupport.parkNanos(this, intervalNanos);
+        }
+    }
+
+    /**
+     * 写入一批索引，清空会话的操作单独执行，保证顺序
+     */
+    private void flush(List<IndexOp> batch) {
+        List<BulkOperation> operations = new ArrayList<>(batch.size());
+        for (IndexOp op : batch) {
+            if (op.type() == IndexOp.CLEAR) {
+                bulk(operations);
+                operations.clear();
+                clearChat(op.chatKey());
+                continue;
+            }
+            operations.add(toOperation(op));
+        }
+        bulk(operations);
+    }
+
+    private BulkOperation toOperation(IndexOp op) {
+        if (op.type() == IndexOp.DELETE) {
+            return BulkOperation.of(o -> o.delete(d -> d.id(op.id()).routing(op.chatKey())));
+        }
+        Message message = op.message();
+        Map<String, Object> document = new HashMap<>(8);
+        document.put(ID, message.getId());
+        document.put(CHAT_KEY, message.getChatKey());
+        document.put("message_type", message.getMessageType());
+        document.put("from_id", message.getFromId());
+        document.put(TIMESTAMP, message.getTimestamp());
+        document.put("content", message.getContent());
+        return BulkOperation.of(o -> o.index(i -> i.id(message.getId()).routing(message.getChatKey()).document(document)));
+    }
+
+    private void bulk(List<BulkOperation> operations) {
+        if (operations.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            BulkResponse response = elasticsearchClient.bulk(b -> b.index(vimConfig.getSearch().getIndex()).operations(operations));
+            if (response.errors()) {
+                long failed = response.items().stream().filter(item -> item.error() != null).count();
+                log.warn("消息索引部分失败 {}/{}", failed, operations.size());
+            }
+            indexedCounter.increment(operations.size());
+        } catch (Exception e) {
+            droppedCounter.increment(operations.size());
+            log.error("消息索引失败 {} 条", operations.size(), e);
+        }
+        bulkTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private void clearChat(String chatKey) {
+        try {
+            elasticsearchClient.deleteByQuery(d -> d.index(vimConfig.getSearch().getIndex())
+                    .routing(chatKey)
+                    .query(q -> q.term(t -> t.field(CHAT_KEY).value(chatKey))));
+        } catch (Exception e) {
+            log.error("清空会话 {} 的索引失败", chatKey, e);
+        }
+    }
+
+    /**
+     * 索引不存在时创建，只有过滤、排序用到的字段是 keyword/long
+     */
+    void ensureIndex() {
+        String index = vimConfig.getSearch().getIndex();
+        try {
+            if (elasticsearchClient.indices().exists(e -> e.index(index)).value()) {
+                return;
+            }
+            elasticsearchClient.indices().create(c -> c.index(index).mappings(m -> m
+                    .properties(ID, p -> p.keyword(k -> k))
+                    .properties(CHAT_KEY, p -> p.keyword(k -> k))
+                    .properties("message_type", p -> p.keyword(k -> k))
+                    .properties("from_id", p -> p.keyword(k -> k))
+                    .properties(TIMESTAMP, p -> p.long_(l -> l))
+                    .properties("content", p -> p.text(t -> t))));
+            log.info("创建消息索引 {}", index);
+        } catch (Exception e) {
+            log.error("创建消息索引 {} 失败", index, e);
+        }
+    }
+
+    /**
+     * 搜索结果
+     *
+     * @param ids   命中的消息id，按时间倒序
+     * @param total 命中总数
+     * @param last  最后一条的排序值，游标翻页用
+     */
+    public record SearchResult(List<String> ids, long total, List<FieldValue> last) {
+    }
+
+    /**
+     * 缓冲区里的索引操作
+     */
+    private record IndexOp(int type, String id, String chatKey, Message message) {
+        private static final int INDEX = 0;
+        private static final int DELETE = 1;
+        private static final int CLEAR = 2;
+    }
+}
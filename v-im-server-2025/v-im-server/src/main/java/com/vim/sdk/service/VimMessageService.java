@@ -1,17 +1,18 @@
 package com.vim.sdk.service;
 
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
-import com.vim.common.enums.ChatTypeEnum;
 import com.vim.tio.messages.Message;
-import com.vim.tio.messages.SendInfo;
-import org.tio.core.ChannelContext;
-import org.tio.core.Tio;
+import com.vim.tio.messages.MessageContext;
+import com.vim.tio.result.CursorPage;
+import com.vim.tio.result.GroupUnread;
+import com.vim.tio.result.MessageCursor;
 import org.tio.core.TioConfig;
-import org.tio.utils.lock.SetWithLock;
-import org.tio.websocket.common.WsResponse;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 
 /**
@@ -43,13 +44,35 @@ public interface VimMessageService {
     void saveOffLine(Message message) throws Exception;
 
     /**
-     * 删除消息
+     * 按 id 批量删除一个会话的消息，代价只和 id 的个数有关，和会话的消息数无关
      *
-     * @param message  消息
-     * @param isOnline 是否在线
-     * @throws Exception 抛出异常
+     * @param chatKey 会话key
+     * @param ids     消息id
+     * @return 从 mongo 删除的条数
+     */
+    long delete(String chatKey, Collection<String> ids);
+
+    /**
+     * 批量删除自己发的消息，不通知会话里的人，要通知用 {@link #recall}
+     *
+     * @param chatId   聊天室id
+     * @param fromId   删除人id
+     * @param chatType 聊天类型
+     * @param ids      消息id
+     * @return 删除的消息id，不是自己发的或者不存在的不会删除
      */
-    void delete(Message message, boolean isOnline) throws Exception;
+    List<String> delete(String chatId, String fromId, String chatType, Collection<String> ids);
+
+    /**
+     * 批量撤回自己发的消息，删除后通知会话里的人
+     *
+     * @param chatId   聊天室id
+     * @param fromId   撤回人id
+     * @param chatType 聊天类型
+     * @param ids      消息id
+     * @return 撤回成功的消息id，不是自己发的或者不存在的不会撤回
+     */
+    List<String> recall(String chatId, String fromId, String chatType, Collection<String> ids);
 
     /**
      * 查询消息
@@ -77,6 +100,20 @@ public interface VimMessageService {
      */
     Page<Message> page(String chatId, String fromId, String messageType, String chatType, String searchText, Date[] dateRange, Page<Message> page);
 
+    /**
+     * 游标分页查询，按 (timestamp, _id) 倒序翻页，翻到多深都只扫描一页的数据
+     *
+     * @param chatId      聊天室id
+     * @param fromId      发送人id
+     * @param messageType 消息类型
+     * @param chatType    聊天类型
+     * @param searchText  搜索内容
+     * @param dateRange   时间范围
+     * @param cursor      游标分页参数
+     * @return CursorPage
+     */
+    CursorPage<Message> cursorPage(String chatId, String fromId, String messageType, String chatType, String searchText, Date[] dateRange, MessageCursor cursor);
+
     /**
      * 读取未读消息，并清空
      * 未读消息只存私聊消息，群聊消息还在群列表里
@@ -100,7 +137,7 @@ public interface VimMessageService {
     List<Message> list(String chatId, String chatType, String fromId, String messageId);
 
     /**
-     * 查询一个群的未读消息
+     * 查询一个群的未读消息，最多补发上限的条数
      *
      * @param userId 用户id
      * @param chatId 群id
@@ -108,6 +145,34 @@ public interface VimMessageService {
      */
     List<Message> unreadGroupList(String userId, String chatId);
 
+    /**
+     * 用户的私聊离线消息，游标分批读取
+     * 返回的 Stream 用完必须关闭
+     *
+     * @param userId    用户id
+     * @param batchSize 游标每批读取多少条
+     * @return 按时间升序的消息流
+     */
+    Stream<Message> unreadStream(String userId, int batchSize);
+
+    /**
+     * 可能有未读消息的群：群最新消息时间不早于已读时间的才返回，其他的群不用查 mongo
+     *
+     * @param userId   用户id
+     * @param groupIds 用户的群id
+     * @return 群id -> 已读时间，没有已读时间为 -1
+     */
+    Map<String, Long> unreadGroupMarks(String userId, Collection<String> groupIds);
+
+    /**
+     * 一个群已读时间之后的消息，超过补发上限时只返回最近的部分和更早未读的游标
+     *
+     * @param chatId   群id
+     * @param readMark 已读时间
+     * @return 群未读
+     */
+    GroupUnread<Message> unreadGroup(String chatId, long readMark);
+
     /**
      * 已读消息的条数
      *
@@ -137,33 +202,14 @@ public interface VimMessageService {
     void push(Message message) throws Exception;
 
     /**
-     * 发送消息
+     * 发送消息，集群模式下其他节点上的连接也能收到
      *
-     * @param tioConfig  tioConfig
-     * @param message    消息
-     * @param wsResponse 响应
-     * @param chatId     聊天室id
+     * @param tioConfig tioConfig
+     * @param context   消息
+     * @param chatId    聊天室id
      * @throws Exception 抛出异常
      */
-    default void sendMessage(TioConfig tioConfig, Message message, SendInfo sendInfo, WsResponse wsResponse, String chatId) throws Exception {
-        //单聊
-        if (ChatTypeEnum.FRIEND.getCode().equals(message.getChatType())) {
-            SetWithLock<ChannelContext> channelContextSetWithLock = Tio.getByUserid(tioConfig, chatId);
-            //用户没有登录，存储到离线文件
-            if (channelContextSetWithLock == null || channelContextSetWithLock.size() == 0) {
-                saveOffLine(message);
-            } else {
-                //入库操作
-                saveOnLine(message, true);
-                Tio.sendToUser(tioConfig, chatId, wsResponse);
-            }
-            Tio.sendToUser(tioConfig, message.getFromId(), wsResponse);
-        } else {
-            Tio.sendToGroup(tioConfig, chatId, wsResponse);
-            //入库操作
-            saveOnLine(message, true);
-        }
-    }
+    void sendMessage(TioConfig tioConfig, MessageContext context, String chatId) throws Exception;
 
     /**
      * 清除聊天记录
@@ -25,12 +25,15 @@ import com.vim.modules.group.service.IImGroupService;
 import com.vim.modules.upload.utils.CommonAvatarUtil;
 import com.vim.modules.upload.utils.NineCellAvatarUtil;
 import com.vim.modules.user.result.User;
+import com.vim.sdk.cache.GroupMemberIndex;
 import com.vim.sdk.service.VimGroupApiService;
 import com.vim.sdk.service.VimMessageService;
 import com.vim.tio.StartTioRunner;
 import com.vim.tio.messages.Message;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.cache.annotation.Caching;
@@ -92,6 +95,10 @@ public class VimGroupApiServiceImpl implements VimGroupApiService {
     private VimMessageService vimMessageService;
     @Resource
     private VimBridgeService vimBridgeService;
+    @Resource
+    private GroupMemberIndex groupMemberIndex;
+    @Resource
+    private CacheManager cacheManager;
     /**
      * 群消息推送
      *
@@ -257,6 +264,7 @@ public class VimGroupApiServiceImpl implements VimGroupApiService {
                 imGroupInvite.setCheckUserId(userId);
                 imGroupInviteMapper.updateById(imGroupInvite);
             });
+            groupMemberIndex.invalidate(groupId);
             User user = vimBridgeService.getUserById(userId);
             this.pushGroupText(StrUtil.format("{} 成为了新的管理员", user.getName()), groupId);
         } else {
@@ -288,9 +296,10 @@ public class VimGroupApiServiceImpl implements VimGroupApiService {
             if (DictSwitchEnum.YES.getCode().equals(prohibition)) {
                 Tio.unbindGroup(tioServerConfig, userId, groupId);
             }
-            redisTemplate.delete(CACHE_GROUP_LIST + "::" + userId);
+            evict(CACHE_GROUP_LIST, userId);
 
         }
+        groupMemberIndex.invalidate(groupId);
         if (canGenGroupAvatar(groupId)) {
             ImGroup group = iImGroupService.getById(groupId);
             group.setAvatar(genGroupAvatar(groupId));
@@ -326,10 +335,11 @@ public class VimGroupApiServiceImpl implements VimGroupApiService {
         queryWrapper.eq(ImGroupUser::getGroupId, groupId)
                 .in(ImGroupUser::getUserId, userIds);
         imGroupUserMapper.delete(queryWrapper);
+        groupMemberIndex.invalidate(groupId);
         List<String> names = new ArrayList<>();
         // 批量清除用户缓存
         userIds.forEach(userId -> {
-            redisTemplate.delete(CACHE_GROUP_LIST + "::" + userId);
+            evict(CACHE_GROUP_LIST, userId);
             Tio.unbindGroup(tioServerConfig, userId, groupId);
 
             if (sendTips) {
@@ -430,7 +440,7 @@ public class VimGroupApiServiceImpl implements VimGroupApiService {
         //禁言操作
         boolean isChange = !imGroup.getProhibition().equals(group.getProhibition());
         prohibition(imGroup, isChange, false);
-        redisTemplate.delete(CACHE_GROUP_ONE + "::" + group.getId());
+        evict(CACHE_GROUP_ONE, group.getId());
         if(isUpdate){
             this.pushGroupText(StrUtil.format("群名称修改为：{}", group.getName()), imGroup.getId());
         }
@@ -544,12 +554,25 @@ public class VimGroupApiServiceImpl implements VimGroupApiService {
         imGroup.setName(groupName);
         imGroup.preUpdate();
         iImGroupService.updateById(imGroup);
-        redisTemplate.delete(CACHE_GROUP_ONE + "::" + id);
+        evict(CACHE_GROUP_ONE, id);
         if(isUpdate){
             this.pushGroupText(StrUtil.format("群名称修改为：{}", groupName), imGroup.getId());
         }
     }
 
+    /**
+     * 删除缓存，经过缓存管理器才会同时删除各个节点的本地缓存
+     *
+     * @param cacheName 缓存名
+     * @param key       缓存 key
+     */
+    private void evict(String cacheName, String key) {
+        Cache cache = cacheManager.getCache(cacheName);
+        if (cache != null) {
+            cache.evict(key);
+        }
+    }
+
     // 抽取的辅助方法
     private TioServerConfig getTioServerConfig() {
         StartTioRunner startTioRunner = applicationContext.getBean(StartTioRunner.class);
@@ -10,11 +10,13 @@ import com.vim.modules.group.mapper.ImGroupInviteMapper;
 import com.vim.modules.group.mapper.ImGroupUserMapper;
 import com.vim.modules.group.result.GroupInvite;
 import com.vim.modules.group.result.GroupInviteCount;
+import com.vim.sdk.cache.GroupMemberIndex;
 import com.vim.sdk.service.VimGroupInviteService;
 import com.vim.tio.StartTioRunner;
 import jakarta.annotation.Resource;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
 import org.springframework.context.ApplicationContext;
-import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.tio.core.Tio;
@@ -45,7 +47,10 @@ public class VimGroupInviteServiceImpl implements VimGroupInviteService {
     private ApplicationContext applicationContext;
 
     @Resource
-    private RedisTemplate<String, String> redisTemplate;
+    private GroupMemberIndex groupMemberIndex;
+
+    @Resource
+    private CacheManager cacheManager;
 
     /**
      * 获取群邀请列表
@@ -119,8 +124,11 @@ public class VimGroupInviteServiceImpl implements VimGroupInviteService {
         TioServerConfig tioServerConfig = startTioRunner.getAppStarter().getWsServerStarter().getTioServerConfig();
         //用户绑定到tio群组里，这样用户会收到消息
         Tio.bindGroup(tioServerConfig, imGroupInvite.getUserId(), imGroupInvite.getGroupId());
-        //清除缓存的群用户，等待重新加载
-        redisTemplate.delete(CACHE_KEY + ":user:list::" + imGroupInvite.getGroupId());
+        //清除缓存的群用户、用户的群列表，等待重新加载，经过缓存管理器才会同时删除各个节点的本地缓存
+        evict(CACHE_KEY + ":user:list", imGroupInvite.getGroupId());
+        evict(CACHE_KEY + ":user:ids", imGroupInvite.getGroupId());
+        evict(CACHE_KEY + ":list", imGroupInvite.getUserId());
+        groupMemberIndex.invalidate(imGroupInvite.getGroupId());
     }
 
     /**
@@ -141,4 +149,11 @@ public class VimGroupInviteServiceImpl implements VimGroupInviteService {
         imGroupInvite.setUpdateTime(new Date());
         imGroupInviteMapper.updateById(imGroupInvite);
     }
+
+    private void evict(String cacheName, String key) {
+        Cache cache = cacheManager.getCache(cacheName);
+        if (cache != null) {
+            cache.evict(key);
+        }
+    }
 }
@@ -1,36 +1,58 @@
 package com.vim.sdk.service.impl;
 
+import cn.hutool.core.util.ReUtil;
 import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import co.elastic.clients.elasticsearch._types.FieldValue;
 import com.alibaba.fastjson2.JSON;
 import com.baomidou.dynamic.datasource.annotation.DS;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
-import com.mongodb.client.result.DeleteResult;
+import com.vim.common.config.VimConfig;
 import com.vim.common.enums.ChatTypeEnum;
 import com.vim.common.enums.SendCodeEnum;
 import com.vim.common.utils.ChatUtils;
+import com.vim.sdk.cache.ChatSummaryStore;
+import com.vim.sdk.cache.ReadMarkStore;
+import com.vim.sdk.cache.RecentMessageCache;
+import com.vim.sdk.persist.MessageArchiveReader;
+import com.vim.sdk.persist.MessageIndexManager;
+import com.vim.sdk.persist.MessageWriteBehind;
+import com.vim.sdk.persist.OfflineInbox;
+import com.vim.sdk.search.MessageSearchService;
 import com.vim.sdk.service.VimMessageService;
 import com.vim.tio.StartTioRunner;
+import com.vim.tio.TioWsMsgHandler;
+import com.vim.tio.codec.WsSender;
 import com.vim.tio.messages.Message;
+import com.vim.tio.messages.MessageContext;
 import com.vim.tio.messages.ReadReceipt;
 import com.vim.tio.messages.SendInfo;
+import com.vim.tio.result.CursorPage;
+import com.vim.tio.result.GroupUnread;
+import com.vim.tio.result.MessageCursor;
 import com.vim.tio.service.ConnStatusService;
+import com.vim.tio.service.MessageHandlerService;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
 import org.springframework.context.ApplicationContext;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
-import org.tio.core.Tio;
+import org.tio.core.TioConfig;
 import org.tio.server.TioServerConfig;
-import org.tio.websocket.common.WsResponse;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * 消息处理
@@ -44,6 +66,29 @@ public class VimMessageServiceImpl implements VimMessageService {
 
     public static final String CHAT_KEY = "chat_key";
 
+    /**
+     * 游标里 timestamp 和 _id 的分隔符
+     */
+    private static final String CURSOR_SEPARATOR = "_";
+
+    /**
+     * 游标分页每页最多条数
+     */
+    private static final int MAX_CURSOR_SIZE = 100;
+
+    /**
+     * 批量删除、撤回一次最多多少条
+     */
+    private static final int MAX_BATCH_IDS = 500;
+
+    /**
+     * 估算总条数时最多统计到多少条
+     */
+    private static final int COUNT_LIMIT = 10000;
+
+    @Resource
+    private VimConfig vimConfig;
+
     @Resource
     private RedisTemplate<String, String> redisTemplate;
 
@@ -56,6 +101,30 @@ public class VimMessageServiceImpl implements VimMessageService {
     @Resource
     private ApplicationContext applicationContext;
 
+    @Resource
+    private MessageWriteBehind messageWriteBehind;
+
+    @Resource
+    private MessageIndexManager messageIndexManager;
+
+    @Resource
+    private MessageArchiveReader messageArchiveReader;
+
+    @Resource
+    private MessageSearchService messageSearchService;
+
+    @Resource
+    private RecentMessageCache recentMessageCache;
+
+    @Resource
+    private OfflineInbox offlineInbox;
+
+    @Resource
+    private ChatSummaryStore chatSummaryStore;
+
+    @Resource
+    private ReadMarkStore readMarkStore;
+
 
     /**
      * 添加消息到redis 队列，有可能受到的是离线消息，所以要去删除下离线消息里面的记录
@@ -85,31 +154,122 @@ public class VimMessageServiceImpl implements VimMessageService {
      */
     @Override
     public Message get(String id, String chatKey) throws Exception {
-        String collectionName = ChatUtils.getCollectionNameByChatKey(chatKey);
-        return mongoTemplate.findById(id, Message.class, collectionName);
+        for (String collectionName : ChatUtils.getCollectionNames(chatKey)) {
+            Message message = mongoTemplate.findById(id, Message.class, collectionName);
+            if (message != null) {
+                return message;
+            }
+        }
+        return messageArchiveReader.isEnabled() ? messageArchiveReader.findById(id) : null;
     }
 
     /**
-     * 删除消息
+     * 按 id 批量删除：入库队列、最近消息缓存、搜索索引、离线收件箱和 mongo 都按 id 删除，
+     * 不再把整个会话读出来逐条比较；都限定在这个会话里，别的会话的 id 删不掉
      *
-     * @param message  消息对象
-     * @param isOnline 是否在线
-     * @throws Exception 抛出异常
+     * @param chatKey 会话key
+     * @param ids     消息id
+     * @return 从 mongo 删除的条数
      */
     @Override
-    public void delete(Message message, boolean isOnline) throws Exception {
-        String key = isOnline ? ChatUtils.getChatKey(message.getFromId(), message.getChatId(), message.getChatType()) : StrUtil.format(ChatUtils.UNREAD_TEMPLATE, message.getChatId());
-        Set<String> set = redisTemplate.opsForZSet().range(key, 0, -1);
-        // 如果是离线消息，去离线队列里处理
-        if (set != null && !set.isEmpty()) {
-            set.forEach(item -> {
-                Message msg = toMessage(item);
-                if (msg != null && msg.getId().equals(message.getId())) {
-                    redisTemplate.opsForZSet().remove(key, item);
-                }
-            });
+    public long delete(String chatKey, Collection<String> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return 0;
+        }
+        List<String> idList = checkBatch(ids);
+        messageWriteBehind.discard(chatKey, idList);
+        for (String id : idList) {
+            messageSearchService.delete(id, chatKey);
+        }
+        offlineInbox.remove(chatKey, idList);
+        long deleted = 0;
+        Query query = Query.query(Criteria.where("_id").in(idList).and(CHAT_KEY).is(chatKey));
+        for (String collectionName : ChatUtils.getCollectionNames(chatKey)) {
+            deleted += mongoTemplate.remove(query, Message.class, collectionName).getDeletedCount();
+        }
+        // mongo 删完再删缓存，删除之前从 mongo 读到这些消息的补齐会因为版本变了被拒绝
+        recentMessageCache.evict(chatKey, idList);
+        return deleted;
+    }
+
+    /**
+     * 批量撤回，只撤回自己发的，还在入库队列里的也算
+     *
+     * @param chatId   聊天室id
+     * @param fromId   撤回人id
+     * @param chatType 聊天类型
+     * @param ids      消息id
+     * @return 撤回成功的消息id
+     */
+    @Override
+    public List<String> recall(String chatId, String fromId, String chatType, Collection<String> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return List.of();
+        }
+        List<String> recalled = delete(chatId, fromId, chatType, ids);
+        if (recalled.isEmpty()) {
+            return List.of();
+        }
+
+        JSONObject notice = new JSONObject();
+        notice.set("chatId", chatId);
+        notice.set("chatType", chatType);
+        notice.set("fromId", fromId);
+        notice.set("ids", recalled);
+        MessageContext context = MessageContext.of(new SendInfo(SendCodeEnum.RECALL.getCode(), notice));
+        StartTioRunner startTioRunner = applicationContext.getBean(StartTioRunner.class);
+        TioServerConfig tioServerConfig = startTioRunner.getAppStarter().getWsServerStarter().getTioServerConfig();
+        // 经过消息处理服务发送，集群模式下其他节点上的连接也能收到
+        MessageHandlerService messageHandlerService = messageHandlerService();
+        if (ChatTypeEnum.FRIEND.getCode().equals(chatType)) {
+            messageHandlerService.sendToUser(tioServerConfig, chatId, context);
+            messageHandlerService.sendToUser(tioServerConfig, fromId, context);
+        } else {
+            messageHandlerService.sendToGroup(tioServerConfig, chatId, context);
+        }
+        return recalled;
+    }
+
+    /**
+     * 批量删除自己发的消息，还在入库队列里的也算
+     *
+     * @param chatId   聊天室id
+     * @param fromId   删除人id
+     * @param chatType 聊天类型
+     * @param ids      消息id
+     * @return 删除的消息id
+     */
+    @Override
+    public List<String> delete(String chatId, String fromId, String chatType, Collection<String> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return List.of();
+        }
+        List<String> idList = checkBatch(ids);
+        String chatKey = ChatUtils.getChatKey(fromId, chatId, chatType);
+        Query query = Query.query(Criteria.where("_id").in(idList).and(CHAT_KEY).is(chatKey).and("from_id").is(fromId));
+        query.fields().include("_id");
+        Set<String> own = new LinkedHashSet<>();
+        find(query, chatKey).forEach(message -> own.add(message.getId()));
+        messageWriteBehind.pending(idList).stream()
+                .filter(message -> fromId.equals(message.getFromId()) && chatKey.equals(message.getChatKey()))
+                .forEach(message -> own.add(message.getId()));
+        if (own.isEmpty()) {
+            return List.of();
         }
-        mongoTemplate.remove(message, ChatUtils.getCollectionName(message.getFromId(), message.getChatId(), message.getChatType()));
+        List<String> deleted = new ArrayList<>(own);
+        delete(chatKey, deleted);
+        return deleted;
+    }
+
+    /**
+     * 去重并检查条数
+     */
+    private List<String> checkBatch(Collection<String> ids) {
+        List<String> idList = new ArrayList<>(new LinkedHashSet<>(ids));
+        if (idList.size() > MAX_BATCH_IDS) {
+            throw new IllegalArgumentException(StrUtil.format("一次最多处理 {} 条消息", MAX_BATCH_IDS));
+        }
+        return idList;
     }
 
     /**
@@ -121,12 +281,17 @@ public class VimMessageServiceImpl implements VimMessageService {
         String chatId = message.getChatId();
         String chatKey = ChatUtils.getChatKey(message.getFromId(), chatId, message.getChatType());
         message.setChatKey(chatKey);
-        String collectionName = ChatUtils.getCollectionName(message.getFromId(), chatId, message.getChatType());
-        mongoTemplate.save(message, collectionName);
+        messageWriteBehind.save(message);
+        messageSearchService.index(message);
+        recentMessageCache.append(message);
+        if (ChatTypeEnum.GROUP.getCode().equals(message.getChatType())) {
+            // 群的最新消息时间，离线补发时据此跳过没有新消息的群
+            redisTemplate.opsForHash().put(ChatUtils.getGroupLatestKey(chatId), chatId, String.valueOf(message.getTimestamp()));
+        }
     }
 
     /**
-     * 保存离线消息到monngodb
+     * 保存离线消息到离线收件箱，收件人是 chatId
      *
      * @param message
      */
@@ -134,12 +299,12 @@ public class VimMessageServiceImpl implements VimMessageService {
         String chatId = message.getChatId();
         String chatKey = ChatUtils.getChatKey(message.getFromId(), chatId, message.getChatType());
         message.setChatKey(chatKey);
-        String collectionName = ChatUtils.getOffLineCollectionName(chatId);
-        mongoTemplate.save(message, collectionName);
+        offlineInbox.save(message, chatId);
     }
 
     /**
-     * 查询消息
+     * 查询最近的消息，条数不超过缓存条数时先读 redis 里的最近消息缓存，
+     * 缓存不完整时从 mongo 读最近的缓存条数，合并还在入库队列里的消息后补齐缓存
      *
      * @param chatId   聊天室ID
      * @param fromId   发送人ID
@@ -149,14 +314,29 @@ public class VimMessageServiceImpl implements VimMessageService {
      */
     @Override
     public List<Message> list(String chatId, String fromId, String chatType, Long pageSize) {
-        String collectionName = ChatUtils.getCollectionName(fromId, chatId, chatType);
+        String chatKey = ChatUtils.getChatKey(fromId, chatId, chatType);
+        int size = pageSize.intValue();
 
         // 查询最近的消息（按时间倒序）
-        Query query = Query.query(Criteria.where("chat_id").is(chatId))
-                .with(Sort.by(Sort.Direction.DESC, "timestamp"))
-                .limit(pageSize.intValue());
-
-        List<Message> recentMessages = mongoTemplate.find(query, Message.class, collectionName);
+        List<Message> recentMessages = recentMessageCache.recent(chatKey, size);
+        if (recentMessages == null) {
+            boolean cacheable = recentMessageCache.isEnabled() && size <= recentMessageCache.size();
+            int limit = cacheable ? recentMessageCache.size() : size;
+            // 版本在读之前取，读完之后有删除就不补齐
+            Long version = cacheable ? recentMessageCache.version(chatKey) : null;
+            // 先取入库队列里的再查 mongo，中间写进 mongo 的两边至少有一边有
+            List<Message> queued = messageWriteBehind.pending(chatKey);
+            Query query = Query.query(Criteria.where(CHAT_KEY).is(chatKey))
+                    .with(Sort.by(Sort.Direction.DESC, "timestamp", "_id"))
+                    .limit(limit);
+            recentMessages = merge(find(query, chatKey), queued, limit);
+            if (cacheable) {
+                recentMessageCache.fill(chatKey, recentMessages, version);
+            }
+            if (recentMessages.size() > size) {
+                recentMessages = new ArrayList<>(recentMessages.subList(0, size));
+            }
+        }
 
         // 反转列表，保持时间正序
         Collections.reverse(recentMessages);
@@ -181,7 +361,227 @@ public class VimMessageServiceImpl implements VimMessageService {
      */
     @Override
     public Page<Message> page(String chatId, String fromId, String messageType, String chatType, String searchText, Date[] dataRange, Page<Message> page) {
+        String chatKey = ChatUtils.getChatKey(fromId, chatId, chatType);
+        // 有搜索内容时优先走 elasticsearch，不可用再回退到 mongo
+        if (StrUtil.isNotBlank(searchText) && messageSearchService.isEnabled()) {
+            try {
+                MessageSearchService.SearchResult result = messageSearchService.search(chatKey,
+                        messageType, searchText, dataRange, (int) ((page.getCurrent() - 1) * page.getSize()), (int) page.getSize(), null);
+                page.setTotal(result.total());
+                page.setRecords(findByIds(result.ids(), chatKey));
+                return page;
+            } catch (Exception e) {
+                log.warn("elasticsearch 搜索失败，改用 mongo: {}", e.getMessage());
+            }
+        }
+        Query query = historyQuery(chatId, fromId, messageType, chatType, searchText, dataRange);
+
+        // 查询总条数
+        page.setTotal(count(query, chatKey));
+
+        query.with(Sort.by(Sort.Direction.DESC, "_id"));
+        int skip = (int) ((page.getCurrent() - 1) * page.getSize());
+        query.skip(skip).limit((int) page.getSize());
+        page.setRecords(find(query, chatKey));
+        return page;
+    }
+
+    /**
+     * 游标分页查询消息
+     * 游标是上一页最后一条的 timestamp 和 _id，下一页只查比它更早的，配合 (chat_key, timestamp, _id) 索引，
+     * 翻到多深都只扫描一页的数据；总条数可以不统计，或者只统计到上限
+     *
+     * @param chatId      聊天室ID
+     * @param fromId      发送人ID
+     * @param messageType 消息类型
+     * @param chatType    聊天类型（私聊/群聊）
+     * @param searchText  搜索文本
+     * @param dataRange   时间范围
+     * @param cursor      游标分页参数
+     * @return 当前页和下一页的游标
+     */
+    @Override
+    public CursorPage<Message> cursorPage(String chatId, String fromId, String messageType, String chatType, String searchText, Date[] dataRange, MessageCursor cursor) {
+        String chatKey = ChatUtils.getChatKey(fromId, chatId, chatType);
+        String collectionName = ChatUtils.getCollectionName(fromId, chatId, chatType);
+        if (StrUtil.isNotBlank(searchText) && messageSearchService.isEnabled()) {
+            try {
+                return searchCursorPage(chatKey, messageType, searchText, dataRange, cursor);
+            } catch (Exception e) {
+                log.warn("elasticsearch 搜索失败，改用 mongo: {}", e.getMessage());
+            }
+        }
+        messageIndexManager.ensure(collectionName);
+        Query query = historyQuery(chatId, fromId, messageType, chatType, searchText, dataRange);
+        CursorPage<Message> result = new CursorPage<>();
+
+        // 总条数不受游标影响
+        if (MessageCursor.COUNT_EXACT.equals(cursor.getCount())) {
+            result.setTotal(count(query, chatKey));
+        } else if (MessageCursor.COUNT_ESTIMATE.equals(cursor.getCount())) {
+            long total = Math.min(COUNT_LIMIT, count(Query.of(query).limit(COUNT_LIMIT), chatKey));
+            result.setTotal(total);
+            result.setTotalEstimated(total >= COUNT_LIMIT);
+        }
+
+        if (StrUtil.isNotBlank(cursor.getCursor())) {
+            int index = cursor.getCursor().indexOf(CURSOR_SEPARATOR);
+            if (index <= 0) {
+                throw new IllegalArgumentException("游标格式不正确");
+            }
+            long timestamp = Long.parseLong(cursor.getCursor().substring(0, index));
+            String id = cursor.getCursor().substring(index + 1);
+            query.addCriteria(new Criteria().orOperator(
+                    Criteria.where("timestamp").lt(timestamp),
+                    new Criteria().andOperator(Criteria.where("timestamp").is(timestamp), Criteria.where("_id").lt(id))
+            ));
+        }
+        int size = Math.max(1, Math.min(cursor.getSize(), MAX_CURSOR_SIZE));
+        query.with(Sort.by(Sort.Direction.DESC, "timestamp", "_id")).limit(size + 1);
+        List<Message> records = find(query, chatKey);
+        if (records.size() <= size && messageArchiveReader.isEnabled()) {
+            // mongo 里的读完了，接着读归档，归档的都比 mongo 里的旧
+            Set<String> ids = records.stream().map(Message::getId).collect(Collectors.toSet());
+            for (Message message : messageArchiveReader.find(query, size + 1)) {
+                if (records.size() > size) {
+                    break;
+                }
+                if (ids.add(message.getId())) {
+                    records.add(message);
+                }
+            }
+        }
+        if (records.size() > size) {
+            records = new ArrayList<>(records.subList(0, size));
+            Message last = records.get(size - 1);
+            result.setNext(last.getTimestamp() + CURSOR_SEPARATOR + last.getId());
+        }
+        result.setRecords(records);
+        return result;
+    }
+
+    /**
+     * 用 elasticsearch 搜索的游标分页，排序和游标格式与 mongo 一致
+     */
+    private CursorPage<Message> searchCursorPage(String chatKey, String messageType, String searchText, Date[] dataRange,
+                                                 MessageCursor cursor) throws IOException {
+        List<FieldValue> searchAfter = null;
+        if (StrUtil.isNotBlank(cursor.getCursor())) {
+            int index = cursor.getCursor().indexOf(CURSOR_SEPARATOR);
+            if (index <= 0) {
+                throw new IllegalArgumentException("游标格式不正确");
+            }
+            searchAfter = List.of(FieldValue.of(Long.parseLong(cursor.getCursor().substring(0, index))),
+                    FieldValue.of(cursor.getCursor().substring(index + 1)));
+        }
+        int size = Math.max(1, Math.min(cursor.getSize(), MAX_CURSOR_SIZE));
+        MessageSearchService.SearchResult result = messageSearchService.search(chatKey, messageType, searchText, dataRange, 0, size, searchAfter);
+        CursorPage<Message> page = new CursorPage<>();
+        page.setRecords(findByIds(result.ids(), chatKey));
+        if (!MessageCursor.COUNT_NONE.equals(cursor.getCount())) {
+            page.setTotal(result.total());
+        }
+        if (result.ids().size() == size && result.last() != null) {
+            page.setNext(result.last().get(0).longValue() + CURSOR_SEPARATOR + result.last().get(1).stringValue());
+        }
+        return page;
+    }
+
+    /**
+     * 按 id 从 mongo 取消息，保持 id 的顺序，已经删除的跳过
+     */
+    private List<Message> findByIds(List<String> ids, String chatKey) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Map<String, Message> messages = find(Query.query(Criteria.where("_id").in(ids)), chatKey)
+                .stream().collect(Collectors.toMap(Message::getId, m -> m, (a, b) -> a));
+        return ids.stream().map(messages::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    /**
+     * 查询一个会话的聊天记录，分片搬迁期间新旧两个集合都查，按查询的排序合并后再做 skip/limit
+     */
+    private List<Message> find(Query query, String chatKey) {
+        List<String> collectionNames = ChatUtils.getCollectionNames(chatKey);
+        if (collectionNames.size() == 1) {
+            return mongoTemplate.find(query, Message.class, collectionNames.get(0));
+        }
+        long skip = query.getSkip();
+        int limit = query.getLimit();
+        List<Message> merged = new ArrayList<>();
+        for (String collectionName : collectionNames) {
+            Query part = Query.of(query).skip(0);
+            if (limit > 0) {
+                part.limit((int) (skip + limit));
+            }
+            merged.addAll(mongoTemplate.find(part, Message.class, collectionName));
+        }
+        Comparator<Message> comparator = comparator(query.getSortObject());
+        if (comparator != null) {
+            merged.sort(comparator);
+        }
+        int from = (int) Math.min(skip, merged.size());
+        int to = limit > 0 ? Math.min(from + limit, merged.size()) : merged.size();
+        return new ArrayList<>(merged.subList(from, to));
+    }
+
+    /**
+     * 把还在入库队列里的消息合并进 mongo 查出来的最近消息（时间倒序），同一个 id 以 mongo 里的为准，取前 limit 条
+     */
+    private static List<Message> merge(List<Message> found, List<Message> queued, int limit) {
+        if (queued.isEmpty()) {
+            return found;
+        }
+        Map<String, Message> messages = new LinkedHashMap<>();
+        for (Message message : found) {
+            messages.put(message.getId(), message);
+        }
+        for (Message message : queued) {
+            messages.putIfAbsent(message.getId(), message);
+        }
+        List<Message> merged = new ArrayList<>(messages.values());
+        merged.sort(comparator(new Document("timestamp", -1).append("_id", -1)));
+        return merged.size() > limit ? new ArrayList<>(merged.subList(0, limit)) : merged;
+    }
+
+    private long count(Query query, String chatKey) {
+        long total = 0;
+        for (String collectionName : ChatUtils.getCollectionNames(chatKey)) {
+            total += mongoTemplate.count(query, Message.class, collectionName);
+        }
+        return total;
+    }
+
+    /**
+     * 按查询的排序字段合并结果，只用到了 timestamp 和 _id
+     */
+    private static Comparator<Message> comparator(Document sort) {
+        Comparator<Message> comparator = null;
+        for (Map.Entry<String, Object> entry : sort.entrySet()) {
+            Comparator<Message> next = switch (entry.getKey()) {
+                case "timestamp" -> Comparator.comparing(Message::getTimestamp, Comparator.nullsFirst(Comparator.naturalOrder()));
+                case "_id", "id" -> Comparator.comparing(Message::getId, Comparator.nullsFirst(Comparator.naturalOrder()));
+                default -> null;
+            };
+            if (next == null) {
+                continue;
+            }
+            if (((Number) entry.getValue()).intValue() < 0) {
+                next = next.reversed();
+            }
+            comparator = comparator == null ? next : comparator.thenComparing(next);
+        }
+        return comparator;
+    }
+
+    /**
+     * 聊天记录的查询条件
+     */
+    private Query historyQuery(String chatId, String fromId, String messageType, String chatType, String searchText, Date[] dataRange) {
         Query query = new Query();
+        String key = ChatUtils.getChatKey(fromId, chatId, chatType);
+        query.addCriteria(Criteria.where(CHAT_KEY).is(key));
         if (StrUtil.isNotBlank(messageType)) {
             query.addCriteria(Criteria.where("message_type").is(messageType));
         }
@@ -193,21 +593,10 @@ public class VimMessageServiceImpl implements VimMessageService {
             ));
         }
         if (StrUtil.isNotBlank(searchText)) {
-            String regex = ".*" + searchText + ".*";
-            query.addCriteria(Criteria.where("content").regex(regex));
+            // 转义后按字面匹配，避免用户输入的正则拖垮查询
+            query.addCriteria(Criteria.where("content").regex(ReUtil.escape(searchText)));
         }
-        String key = ChatUtils.getChatKey(fromId, chatId, chatType);
-        query.addCriteria(Criteria.where(CHAT_KEY).is(key));
-        String collectionName = ChatUtils.getCollectionName(fromId, chatId, chatType);
-
-        // 查询总条数
-        page.setTotal(mongoTemplate.count(query, Message.class, collectionName));
-
-        query.with(Sort.by(Sort.Direction.DESC, "_id"));
-        int skip = (int) ((page.getCurrent() - 1) * page.getSize());
-        query.skip(skip).limit((int) page.getSize());
-        page.setRecords(mongoTemplate.find(query, Message.class, collectionName));
-        return page;
+        return query;
     }
 
     /**
@@ -227,7 +616,7 @@ public class VimMessageServiceImpl implements VimMessageService {
             query.addCriteria(Criteria.where("id").is(messageId));
         }
         query.with(Sort.by(Sort.Direction.DESC, "id"));
-        return mongoTemplate.find(query, Message.class, ChatUtils.getCollectionName(fromId, chatId, chatType));
+        return find(query, ChatUtils.getChatKey(fromId, chatId, chatType));
     }
 
     /**
@@ -244,14 +633,8 @@ public class VimMessageServiceImpl implements VimMessageService {
     }
 
     public List<Message> unreadListFromMongo(String chatId, String fromId) {
-        String collectionName = ChatUtils.getOffLineCollectionName(chatId);
-        Criteria criteria = new Criteria();
-        if (StrUtil.isNotBlank(fromId)) {
-            criteria.and("from_id").is(fromId);
-        }
-        Query query = Query.query(criteria).with(Sort.by(Sort.Direction.ASC, "timestamp")); // 按时间排序
-        // 从MongoDB查询未读消息
-        return mongoTemplate.find(query, Message.class, collectionName);
+        // 从离线收件箱查询未读消息，按时间排序
+        return offlineInbox.list(chatId, fromId);
     }
 
     /**
@@ -259,29 +642,124 @@ public class VimMessageServiceImpl implements VimMessageService {
      *
      * @param userId 用户ID
      * @param chatId 群ID
-     * @return 未读群消息列表
+     * @return 未读群消息列表，最多补发上限的条数
      */
     @Override
     public List<Message> unreadGroupList(String userId, String chatId) {
-        String key = ChatUtils.getReadKey(userId, chatId);
-        String value = redisTemplate.opsForValue().get(key);
-        long score = -1;
-        if (StrUtil.isNotBlank(value)) {
-            score = Long.parseLong(value);
-        }
-        String collectionName = ChatUtils.getCollectionName(userId, chatId, ChatTypeEnum.GROUP.getCode());
-//        Set<String> set = redisTemplate.opsForZSet().rangeByScore(StrUtil.format(ChatUtils.GROUP_TEMPLATE, chatId), score, System.currentTimeMillis());
-//        if (set != null) {
-//            return set.stream().map(this::toMessage).collect(Collectors.toList());
-//        }
-        // 构建查询条件：timestamp 在 [score, currentTime] 范围内
-        Criteria criteria = Criteria.where("timestamp")
-                .gte(score)  // 大于等于 score
-                .lte(System.currentTimeMillis());  // 小于等于当前时间
+        Long mark = readMarkStore.get(userId, chatId);
+        return unreadGroup(chatId, mark == null ? -1 : mark).getRecords();
+    }
 
+    /**
+     * 用户的私聊离线消息，按 (user_id, timestamp) 索引读取，通过游标按批读取
+     *
+     * @param userId    用户id
+     * @param batchSize 游标每批读取多少条
+     * @return 按时间升序的消息流
+     */
+    @Override
+    public Stream<Message> unreadStream(String userId, int batchSize) {
+        return offlineInbox.stream(userId, batchSize);
+    }
+
+    /**
+     * 可能有未读消息的群
+     * 已读时间一次 HGETALL，群最新消息时间按所在的 hash 分组后一次管道批量读取，最新消息时间早于已读时间的群直接跳过，
+     * 重连时只有真正错过了消息的群才会去查 mongo。没有记录最新时间的群（比如升级前就没有新消息的群）照常查询
+     *
+     * @param userId   用户id
+     * @param groupIds 用户的群id
+     * @return 群id -> 已读时间
+     */
+    @Override
+    public Map<String, Long> unreadGroupMarks(String userId, Collection<String> groupIds) {
+        Map<String, Long> marks = new LinkedHashMap<>();
+        if (groupIds == null || groupIds.isEmpty()) {
+            return marks;
+        }
+        List<String> groupIdList = new ArrayList<>(groupIds);
+        Map<String, Long> readTimes = readMarkStore.getAll(userId, groupIdList);
+        Map<String, Object> latestTimes = groupLatest(groupIdList);
+        long skew = vimConfig.getReplay().getSkewMillis();
+        for (int i = 0; i < groupIdList.size(); i++) {
+            long score = readTimes.getOrDefault(groupIdList.get(i), -1L);
+            Object latest = latestTimes.get(groupIdList.get(i));
+            if (latest != null && Long.parseLong(latest.toString()) + skew < score) {
+                continue;
+            }
+            marks.put(groupIdList.get(i), score);
+        }
+        return marks;
+    }
+
+    /**
+     * 群最新消息时间，每个 hash 一次 HMGET，放在一个管道里
+     *
+     * @return 群id -> 最新消息时间，没有记录的群不在里面
+     */
+    private Map<String, Object> groupLatest(List<String> groupIds) {
+        Map<String, List<String>> shards = new LinkedHashMap<>();
+        for (String groupId : groupIds) {
+            shards.computeIfAbsent(ChatUtils.getGroupLatestKey(groupId), k -> new ArrayList<>()).add(groupId);
+        }
+        List<String> keys = new ArrayList<>(shards.keySet());
+        List<Object> replies = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                byte[][] fields = shards.get(key).stream().map(field -> field.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+                connection.hashCommands().hMGet(key.getBytes(StandardCharsets.UTF_8), fields);
+            }
+            return null;
+        }, redisTemplate.getHashValueSerializer());
+        Map<String, Object> latest = new HashMap<>(groupIds.size());
+        for (int i = 0; i < keys.size() && i < replies.size(); i++) {
+            if (replies.get(i) instanceof List<?> values) {
+                List<String> fields = shards.get(keys.get(i));
+                for (int j = 0; j < fields.size() && j < values.size(); j++) {
+                    if (values.get(j) != null) {
+                        latest.put(fields.get(j), values.get(j));
+                    }
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * 一个群已读时间之后的消息
+     * 按 (chat_key, timestamp) 索引倒序取 groupLimit + 1 条，没有超过上限就全部补发；
+     * 超过了只补发最近的 groupTail 条，并返回更早未读的游标，由客户端通过游标分页接口按需拉取
+     *
+     * @param chatId   群id
+     * @param readMark 已读时间
+     * @return 群未读
+     */
+    @Override
+    public GroupUnread<Message> unreadGroup(String chatId, long readMark) {
+        VimConfig.Replay config = vimConfig.getReplay();
+        String chatKey = StrUtil.format(ChatUtils.GROUP_TEMPLATE, chatId);
+        Criteria criteria = Criteria.where(CHAT_KEY).is(chatKey)
+                .and("timestamp").gte(readMark).lte(System.currentTimeMillis());
+        int limit = Math.max(1, config.getGroupLimit());
         Query query = Query.query(criteria)
-                .with(Sort.by(Sort.Direction.ASC, "timestamp"));  // 按时间升序
-        return mongoTemplate.find(query, Message.class, collectionName);
+                .with(Sort.by(Sort.Direction.DESC, "timestamp", "_id"))
+                .limit(limit + 1);
+        List<Message> records = find(query, chatKey);
+        GroupUnread<Message> unread = new GroupUnread<>();
+        unread.setChatId(chatId);
+        if (records.size() > limit) {
+            records = new ArrayList<>(records.subList(0, Math.max(1, Math.min(config.getGroupTail(), limit))));
+            Message oldest = records.get(records.size() - 1);
+            long count = Math.min(COUNT_LIMIT, count(Query.query(criteria).limit(COUNT_LIMIT), chatKey));
+            unread.setOverflow(true);
+            unread.setNext(oldest.getTimestamp() + CURSOR_SEPARATOR + oldest.getId());
+            unread.setCount(count);
+            unread.setCountEstimated(count >= COUNT_LIMIT);
+        } else {
+            unread.setCount(records.size());
+        }
+        Collections.reverse(records);
+        unread.setRecords(records);
+        return unread;
     }
 
     /**
@@ -308,8 +786,8 @@ public class VimMessageServiceImpl implements VimMessageService {
      */
     @Override
     public void receipt(String chatId, String fromId, String type, long timestamp) {
-        String key = ChatUtils.getReadKey(fromId, chatId);
-        redisTemplate.opsForValue().set(key, String.valueOf(timestamp));
+        readMarkStore.set(fromId, chatId, timestamp);
+        chatSummaryStore.read(fromId, chatId);
         clearOfflineMessage(chatId, fromId, type);
         sendReceiptMessage(chatId, fromId, type, timestamp);
     }
@@ -360,22 +838,10 @@ public class VimMessageServiceImpl implements VimMessageService {
             return;
         }
 
-        String collectionName = ChatUtils.getOffLineCollectionName(fromId);
-
-        // 更精确的查询条件：指定会话和接收者
-        Criteria criteria = new Criteria();
-        criteria.and("chat_id").is(fromId);
-        Query query = Query.query(criteria);
-        // 检查是否有离线消息
-        long count = mongoTemplate.count(query, collectionName);
-        if (count == 0) {
-            connStatusService.setConnStatus(fromId, false);
-            return;
-        }
-
-        DeleteResult result = mongoTemplate.remove(query, collectionName);
-        if (result.getDeletedCount() > 0) {
-            log.info("删除用户 {} 的 {} 条离线消息", chatId, result.getDeletedCount());
+        // 离线消息已经补发过了，一次删除，不用先 count
+        long deleted = offlineInbox.clear(fromId);
+        if (deleted > 0) {
+            log.info("删除用户 {} 的 {} 条离线消息", fromId, deleted);
         }
         connStatusService.setConnStatus(fromId, false);
     }
@@ -390,16 +856,6 @@ public class VimMessageServiceImpl implements VimMessageService {
         return JSON.toJSONString(message);
     }
 
-    /**
-     * 将JSON字符串转换为消息对象
-     *
-     * @param str JSON字符串
-     * @return 消息对象
-     */
-    private Message toMessage(String str) {
-        return JSONUtil.toBean(str, Message.class);
-    }
-
     /**
      * 发送已读消息回执给对方
      *
@@ -417,8 +873,7 @@ public class VimMessageServiceImpl implements VimMessageService {
         SendInfo sendInfo = new SendInfo(SendCodeEnum.READ.getCode(), JSONUtil.parseObj(readReceipt));
         StartTioRunner startTioRunner = applicationContext.getBean(StartTioRunner.class);
         TioServerConfig tioServerConfig = startTioRunner.getAppStarter().getWsServerStarter().getTioServerConfig();
-        WsResponse wsResponse = WsResponse.fromText(JSON.toJSONString(sendInfo), "utf-8");
-        Tio.sendToUser(tioServerConfig, chatId, wsResponse);
+        WsSender.sendToUser(tioServerConfig, chatId, MessageContext.of(sendInfo));
 
     }
 
@@ -430,11 +885,49 @@ public class VimMessageServiceImpl implements VimMessageService {
      */
     @Override
     public void push(Message message) throws Exception {
-        SendInfo sendInfo = new SendInfo(SendCodeEnum.MESSAGE.getCode(), JSONUtil.parseObj(message));
+        MessageContext context = MessageContext.of(message);
         StartTioRunner startTioRunner = applicationContext.getBean(StartTioRunner.class);
         TioServerConfig tioServerConfig = startTioRunner.getAppStarter().getWsServerStarter().getTioServerConfig();
-        WsResponse wsResponse = WsResponse.fromText(JSON.toJSONString(sendInfo), "utf-8");
-        this.sendMessage(tioServerConfig, message, sendInfo, wsResponse, message.getChatId());
+        this.sendMessage(tioServerConfig, context, message.getChatId());
+        chatSummaryStore.onSend(message);
+    }
+
+    /**
+     * 发送消息，在线判断和投递都经过消息处理服务，集群模式下对方连在其他节点上也算在线并转发过去
+     *
+     * @param tioConfig tioConfig
+     * @param context   消息
+     * @param chatId    聊天室id
+     * @throws Exception 抛出异常
+     */
+    @Override
+    public void sendMessage(TioConfig tioConfig, MessageContext context, String chatId) throws Exception {
+        Message message = context.getMessage();
+        MessageHandlerService messageHandlerService = messageHandlerService();
+        //单聊
+        if (ChatTypeEnum.FRIEND.getCode().equals(message.getChatType())) {
+            //用户没有登录，存储到离线文件
+            if (!messageHandlerService.isOnline(tioConfig, chatId)) {
+                saveOffLine(message);
+            } else {
+                //入库操作
+                saveOnLine(message, true);
+                messageHandlerService.sendToUser(tioConfig, chatId, context);
+            }
+            messageHandlerService.sendToUser(tioConfig, message.getFromId(), context);
+        } else {
+            // 入群、解散这类系统通知也经过 GroupFanout 分片扇出
+            messageHandlerService.sendToGroup(tioConfig, chatId, context);
+            //入库操作
+            saveOnLine(message, true);
+        }
+    }
+
+    /**
+     * 消息处理服务，和 tio 的消息处理互相依赖，用到时再取
+     */
+    private MessageHandlerService messageHandlerService() {
+        return applicationContext.getBean(TioWsMsgHandler.class).getMessageHandlerService();
     }
 
 
@@ -452,10 +945,16 @@ public class VimMessageServiceImpl implements VimMessageService {
         redisTemplate.opsForZSet().removeRangeByScore(key, 0, System.currentTimeMillis());
         // 清除未读消息
         redisTemplate.opsForZSet().removeRangeByScore(StrUtil.format(ChatUtils.UNREAD_TEMPLATE, chatId), 0, System.currentTimeMillis());
-        // 清除数据库消息
+        // 清除数据库消息，包括还没有写入的
+        messageWriteBehind.discardChat(key);
         Query query = new Query();
-        query.addCriteria(Criteria.where(CHAT_KEY).is(ChatUtils.getChatKey(fromId, chatId, chatType)));
-        mongoTemplate.remove(query, Message.class, ChatUtils.getCollectionName(fromId, chatId, chatType));
+        query.addCriteria(Criteria.where(CHAT_KEY).is(key));
+        for (String collectionName : ChatUtils.getCollectionNames(key)) {
+            mongoTemplate.remove(query, Message.class, collectionName);
+        }
+        // mongo 删完再删缓存，见 RecentMessageCache 的版本
+        recentMessageCache.clear(key);
+        messageSearchService.clear(key);
     }
 
 }
@@ -1,5 +1,7 @@
 package com.vim.tio;
 
+import com.vim.common.utils.SpringUtils;
+import com.vim.tio.outbound.OutboundGuard;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.tio.core.ChannelContext;
@@ -48,7 +50,7 @@ public class ServerAioListener extends WsTioServerListener {
 
     /**
      * 数据发送之后调用
-     * 记录发送的数据包和通道上下文信息
+     * 记录发送的数据包和通道上下文信息，并扣减连接的发送积压
      *
      * @param channelContext 通道上下文，包含连接信息
      * @param packet 发送的数据包
@@ -58,6 +60,7 @@ public class ServerAioListener extends WsTioServerListener {
     @Override
     public void onAfterSent(ChannelContext channelContext, Packet packet, boolean isSentSuccess) throws Exception {
         super.onAfterSent(channelContext, packet, isSentSuccess);
+        OutboundGuard.sent(channelContext, packet);
         if (log.isInfoEnabled()) {
             log.debug("onAfterSent\r\n{}\r\n{}", packet.logstr(), channelContext);
         }
@@ -79,6 +82,12 @@ public class ServerAioListener extends WsTioServerListener {
         if (log.isInfoEnabled()) {
             log.debug("onBeforeClose\r\n{}", channelContext);
         }
+        try {
+            SpringUtils.getBean(TioWsMsgHandler.class).onBeforeClose(channelContext);
+        } catch (Exception e) {
+            log.error("清理用户绑定信息失败", e);
+        }
+        OutboundGuard.closed(channelContext);
         WsSessionContext wsSessionContext = (WsSessionContext) channelContext.getAttribute();
         log.debug("channelId:", channelContext.getId());
         if (wsSessionContext.isHandshaked()) {
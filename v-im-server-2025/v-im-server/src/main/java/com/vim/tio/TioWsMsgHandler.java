@@ -4,11 +4,16 @@ package com.vim.tio;
 import cn.dev33.satoken.stp.StpUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
-import com.alibaba.fastjson2.JSON;
 import com.vim.common.config.VimConfig;
 import com.vim.common.enums.SendCodeEnum;
+import com.vim.tio.codec.BinaryCodec;
+import com.vim.tio.codec.WsCodec;
+import com.vim.tio.codec.WsSender;
+import com.vim.tio.dispatch.BusinessDispatcher;
+import com.vim.tio.messages.MessageContext;
 import com.vim.tio.messages.ReadyAuth;
 import com.vim.tio.messages.SendInfo;
+import com.vim.tio.outbound.OutboundGuard;
 import com.vim.tio.service.ConnStatusService;
 import com.vim.tio.service.MessageHandlerService;
 import com.vim.tio.service.MessageLogService;
@@ -16,6 +21,7 @@ import jakarta.annotation.PostConstruct;
 import jakarta.annotation.Resource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 import org.tio.core.ChannelContext;
@@ -50,15 +56,32 @@ public class TioWsMsgHandler implements IWsMsgHandler {
     @Qualifier("singleMessageHandlerService")
     private MessageHandlerService singleMessageHandlerService;
 
+    @Autowired(required = false)
+    @Qualifier("clusterMessageHandlerService")
+    private MessageHandlerService clusterMessageHandlerService;
+
     private MessageHandlerService messageHandlerService;
 
+    /**
+     * 当前使用的消息处理服务，单机或者集群
+     *
+     * @return MessageHandlerService
+     */
+    public MessageHandlerService getMessageHandlerService() {
+        return messageHandlerService;
+    }
+
     /**
      * 初始化消息处理服务
      * 自动区分是否是单机模式还是集群模式
      */
     @PostConstruct
     public void messageHandlerService() {
-        messageHandlerService = singleMessageHandlerService;
+        if (vimConfig.getCluster().isEnabled() && clusterMessageHandlerService != null) {
+            messageHandlerService = clusterMessageHandlerService;
+        } else {
+            messageHandlerService = singleMessageHandlerService;
+        }
     }
 
 
@@ -68,6 +91,9 @@ public class TioWsMsgHandler implements IWsMsgHandler {
     @Resource
     private ConnStatusService connStatusService;
 
+    @Resource
+    private BusinessDispatcher businessDispatcher;
+
 
     /**
      * 握手时走这个方法，业务可以在这里获取cookie，request参数等
@@ -116,6 +142,7 @@ public class TioWsMsgHandler implements IWsMsgHandler {
 
     /**
      * 字符消息（binaryType = blob）过来后会走这个方法
+     * 心跳直接回，其他消息交给 {@link BusinessDispatcher} 在虚拟线程里按连接顺序处理
      *
      * @param wsRequest      wsRequest
      * @param text           text
@@ -124,34 +151,48 @@ public class TioWsMsgHandler implements IWsMsgHandler {
      */
     @Override
     public Object onText(WsRequest wsRequest, String text, ChannelContext channelContext) {
-        try {
-            String userId = channelContext.userid;
+        if (PING.equals(text)) {
+            WsResponse wsResponse = WsResponse.fromText(PONG, "utf-8");
+            OutboundGuard.sendControl(channelContext, wsResponse);
+            return null;
+        }
+        businessDispatcher.dispatch(channelContext, () -> {
+            try {
+                // 记录消息日志
+                messageLogService.logMessage(text, channelContext.userid);
 
-            if (PING.equals(text)) {
-                WsResponse wsResponse = WsResponse.fromText(PONG, "utf-8");
-                Tio.send(channelContext, wsResponse);
-                return null;
-            }
-            // 记录消息日志
-            messageLogService.logMessage(text, userId);
-
-            SendInfo sendInfo = JSON.parseObject(text, SendInfo.class);
-            String code = sendInfo.getCode();
-            if (SendCodeEnum.MESSAGE.getCode().equals(code)) {
-                messageHandlerService.handleMessage(channelContext, sendInfo);
-            } else if (SendCodeEnum.READY.getCode().equals(code)) {
-                bindUserInfo(JSONUtil.toBean(sendInfo.getMessage(), ReadyAuth.class), channelContext);
-                messageHandlerService.handleOffLineMessage(channelContext);
-            } else if (SendCodeEnum.READ.getCode().equals(code)) {
-                messageHandlerService.handleReadMessage(sendInfo);
-            }else {
-                messageHandlerService.handleOtherMessage(channelContext, sendInfo, text);
+                // 只解析一次，后面的处理都复用
+                handle(MessageContext.parse(text), WsCodec.JSON, channelContext);
+            } catch (Exception e) {
+                log.error("处理消息失败", e);
             }
+        });
+        return null;
+    }
 
-        } catch (Exception e) {
-            log.error("处理消息失败", e);
+    /**
+     * 处理解析好的消息
+     *
+     * @param context        消息
+     * @param frameCodec     收到的帧的编码
+     * @param channelContext channelContext
+     * @throws Exception 异常
+     */
+    private void handle(MessageContext context, WsCodec frameCodec, ChannelContext channelContext) throws Exception {
+        String code = context.getCode();
+        if (SendCodeEnum.MESSAGE.getCode().equals(code)) {
+            messageHandlerService.handleMessage(channelContext, context);
+        } else if (SendCodeEnum.READY.getCode().equals(code)) {
+            ReadyAuth readyAuth = JSONUtil.toBean(context.getSendInfo().getMessage(), ReadyAuth.class);
+            // 用二进制帧发 READY，或者 READY 里声明了 binary，之后都给这个连接发二进制帧
+            WsCodec.bind(channelContext, frameCodec == WsCodec.BINARY ? WsCodec.BINARY : WsCodec.of(readyAuth.getCodec()));
+            bindUserInfo(readyAuth, channelContext);
+            messageHandlerService.handleOffLineMessage(channelContext);
+        } else if (SendCodeEnum.READ.getCode().equals(code)) {
+            messageHandlerService.handleReadMessage(context);
+        } else {
+            messageHandlerService.handleOtherMessage(channelContext, context);
         }
-        return null;
     }
 
     /**
@@ -164,8 +205,7 @@ public class TioWsMsgHandler implements IWsMsgHandler {
         JSONObject jsonObject = new JSONObject();
         jsonObject.set("uuid", uuid);
         SendInfo sendInfo = new SendInfo(SendCodeEnum.OTHER_LOGIN.getCode(),jsonObject);
-        WsResponse wsResponse = WsResponse.fromText(JSON.toJSONString(sendInfo), "utf-8");
-        Tio.sendToGroup(tioConfig, userGroupId, wsResponse);
+        WsSender.sendToGroup(tioConfig, userGroupId, MessageContext.of(sendInfo));
     }
 
     /**
@@ -181,12 +221,53 @@ public class TioWsMsgHandler implements IWsMsgHandler {
 
     /**
      * 字节消息（binaryType = arraybuffer）过来后会走这个方法
+     * 帧格式见 {@link BinaryCodec}
      */
     @Override
     public Object onBytes(WsRequest wsRequest, byte[] bytes, ChannelContext channelContext) {
+        try {
+            if (BinaryCodec.code(bytes) == SendCodeEnum.PING) {
+                WsResponse wsResponse = WsResponse.fromBytes(BinaryCodec.encode(SendCodeEnum.PING));
+                OutboundGuard.sendControl(channelContext, wsResponse);
+                return null;
+            }
+        } catch (Exception e) {
+            log.error("处理二进制消息失败", e);
+            return null;
+        }
+        businessDispatcher.dispatch(channelContext, () -> {
+            try {
+                MessageContext context = MessageContext.parse(bytes);
+                // 记录消息日志
+                messageLogService.logMessage(context.getText(), channelContext.userid);
+                handle(context, WsCodec.BINARY, channelContext);
+            } catch (Exception e) {
+                log.error("处理二进制消息失败", e);
+            }
+        });
         return null;
     }
 
+    /**
+     * 连接关闭之前调用，清理用户的绑定信息
+     * 排在这个连接已经收到的消息后面执行，避免清理完又被排队中的 READY 绑定上。
+     * 这个方法返回后 tio 就会解绑用户、把 userid 清空，所以用户id 在这里先记下来；
+     * 关闭时还没绑定用户、排队中的 READY 在关闭后才绑定的，按清理时连接上的 userid 解绑
+     *
+     * @param channelContext channelContext
+     */
+    public void onBeforeClose(ChannelContext channelContext) {
+        String userId = channelContext.userid;
+        TioConfig config = channelContext.tioConfig;
+        businessDispatcher.close(channelContext, () -> {
+            WsCodec.unbind(channelContext);
+            String boundUserId = userId != null ? userId : channelContext.userid;
+            if (boundUserId != null) {
+                messageHandlerService.unbindUser(config, boundUserId, channelContext);
+            }
+        });
+    }
+
     /**
      * 当客户端发close flag时，会走这个方法
      */
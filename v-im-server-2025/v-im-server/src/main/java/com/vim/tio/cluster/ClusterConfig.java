@@ -0,0 +1,79 @@
+package com.vim.tio.cluster;
+
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.StrUtil;
+import com.vim.common.config.VimConfig;
+import com.vim.tio.service.impl.ClusterMessageHandlerServiceImpl;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+
+/**
+ * 集群模式配置，vim.cluster.enabled=true 时生效
+ * 同一台机器起多个节点时，只要 server.port、vim.wsPort 不同并连同一个 redis 即可
+ *
+ * @author 乐天
+ */
+@Slf4j
+@Configuration
+@ConditionalOnProperty(prefix = "vim.cluster", name = "enabled", havingValue = "true")
+public class ClusterConfig {
+
+    @Resource
+    private VimConfig vimConfig;
+
+    @Resource
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Bean(destroyMethod = "leave")
+    public ClusterNodeRegistry clusterNodeRegistry() {
+        VimConfig.Cluster cluster = vimConfig.getCluster();
+        String nodeId = cluster.getNodeId();
+        if (StrUtil.isBlank(nodeId)) {
+            nodeId = NetUtil.getLocalhostStr() + ":" + vimConfig.getWsPort();
+        }
+        ClusterNodeRegistry registry = new ClusterNodeRegistry(nodeId, redisTemplate, cluster.getNodeTtlSeconds() * 1000L, cluster.getRouteCacheMillis());
+        registry.heartbeat();
+        log.info("集群模式已开启，当前节点：{}", nodeId);
+        return registry;
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public ClusterForwarder clusterForwarder(ClusterNodeRegistry clusterNodeRegistry) {
+        VimConfig.Cluster cluster = vimConfig.getCluster();
+        return new ClusterForwarder(clusterNodeRegistry.getNodeId(), new RedisClusterTransport(redisTemplate), cluster.getBatchSize(), cluster.getFlushIntervalMillis());
+    }
+
+    /**
+     * 订阅当前节点的频道
+     */
+    @Bean
+    public RedisMessageListenerContainer clusterMessageListenerContainer(RedisConnectionFactory redisConnectionFactory,
+                                                                         ClusterNodeRegistry clusterNodeRegistry,
+                                                                         ClusterMessageHandlerServiceImpl clusterMessageHandlerService) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(redisConnectionFactory);
+        ClusterMessageReceiver receiver = new ClusterMessageReceiver(redisTemplate.getValueSerializer(), clusterNodeRegistry, clusterMessageHandlerService::deliverLocal);
+        container.addMessageListener(receiver, new ChannelTopic(RedisClusterTransport.channel(clusterNodeRegistry.getNodeId())));
+        return container;
+    }
+
+    /**
+     * 节点心跳
+     */
+    @Scheduled(fixedDelay = 5000)
+    public void heartbeat() {
+        try {
+            clusterNodeRegistry().heartbeat();
+        } catch (Exception e) {
+            log.error("集群节点心跳失败", e);
+        }
+    }
+}
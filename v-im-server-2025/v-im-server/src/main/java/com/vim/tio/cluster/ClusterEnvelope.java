@@ -0,0 +1,63 @@
+package com.vim.tio.cluster;
+
+import lombok.Data;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+/**
+ * 节点间转发的消息信封
+ *
+ * @author 乐天
+ */
+@Data
+public class ClusterEnvelope implements Serializable {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 投递给某个用户
+     */
+    public static final String TYPE_USER = "user";
+
+    /**
+     * 投递给某个群
+     */
+    public static final String TYPE_GROUP = "group";
+
+    /**
+     * 用户所在节点变了，收到的节点删除这个用户的本地路由缓存
+     */
+    public static final String TYPE_ROUTE = "route";
+
+    /**
+     * 投递类型 user|group|route
+     */
+    private String type;
+
+    /**
+     * 用户id 或者 群id
+     */
+    private String target;
+
+    /**
+     * 已经编码好的 websocket 文本帧内容
+     */
+    private String payload;
+
+    /**
+     * 发出消息的节点
+     */
+    private String origin;
+
+    public ClusterEnvelope() {
+    }
+
+    public ClusterEnvelope(String type, String target, String payload, String origin) {
+        this.type = type;
+        this.target = target;
+        this.payload = payload;
+        this.origin = origin;
+    }
+}
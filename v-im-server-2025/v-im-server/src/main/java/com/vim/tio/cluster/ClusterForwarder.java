@@ -0,0 +1,138 @@
+package com.vim.tio.cluster;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 节点间批量转发
+ * 每个目标节点一个队列，达到批量条数或者到了刷新间隔就打包发送一次，
+ * 这样群消息、在线消息在节点之间只需要很少的 publish 次数
+ *
+ * @author 乐天
+ */
+@Slf4j
+public class ClusterForwarder {
+
+    private final String nodeId;
+
+    private final ClusterTransport transport;
+
+    private final int batchSize;
+
+    private final long flushIntervalMillis;
+
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "vim-cluster-forwarder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ClusterForwarder(String nodeId, ClusterTransport transport, int batchSize, long flushIntervalMillis) {
+        this.nodeId = nodeId;
+        this.transport = transport;
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::flushAll, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止前把还没有发出去的消息全部发出去
+     */
+    public void stop() {
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
+                scheduler.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushAll();
+    }
+
+    /**
+     * 转发给用户
+     *
+     * @param nodes   用户所在节点
+     * @param userId  用户id
+     * @param payload 文本帧
+     */
+    public void forwardToUser(Collection<String> nodes, String userId, String payload) {
+        forward(nodes, new ClusterEnvelope(ClusterEnvelope.TYPE_USER, userId, payload, nodeId));
+    }
+
+    /**
+     * 转发给群
+     *
+     * @param nodes   其他节点
+     * @param groupId 群id
+     * @param payload 文本帧
+     */
+    public void forwardToGroup(Collection<String> nodes, String groupId, String payload) {
+        forward(nodes, new ClusterEnvelope(ClusterEnvelope.TYPE_GROUP, groupId, payload, nodeId));
+    }
+
+    /**
+     * 通知其他节点用户所在节点变了
+     *
+     * @param nodes  其他节点
+     * @param userId 用户id
+     */
+    public void forwardRoute(Collection<String> nodes, String userId) {
+        forward(nodes, new ClusterEnvelope(ClusterEnvelope.TYPE_ROUTE, userId, null, nodeId));
+    }
+
+    private void forward(Collection<String> nodes, ClusterEnvelope envelope) {
+        for (String node : nodes) {
+            Pending queue = pending.computeIfAbsent(node, k -> new Pending());
+            queue.envelopes.add(envelope);
+            if (queue.size.incrementAndGet() >= batchSize) {
+                scheduler.execute(() -> flush(node, queue));
+            }
+        }
+    }
+
+    private void flushAll() {
+        pending.forEach(this::flush);
+    }
+
+    private void flush(String node, Pending queue) {
+        while (queue.size.get() > 0) {
+            List<ClusterEnvelope> batch = new ArrayList<>(Math.min(queue.size.get(), batchSize));
+            ClusterEnvelope envelope;
+            while (batch.size() < batchSize && (envelope = queue.envelopes.poll()) != null) {
+                batch.add(envelope);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            queue.size.addAndGet(-batch.size());
+            try {
+                transport.publish(node, batch);
+            } catch (Exception e) {
+                log.error("转发消息到节点 {} 失败，丢弃 {} 条", node, batch.size(), e);
+            }
+        }
+    }
+
+    private static class Pending {
+        private final Queue<ClusterEnvelope> envelopes = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+    }
+}
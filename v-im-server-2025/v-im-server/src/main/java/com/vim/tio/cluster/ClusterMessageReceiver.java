@@ -0,0 +1,55 @@
+package com.vim.tio.cluster;
+
+import com.alibaba.fastjson2.JSON;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 接收其他节点转发过来的消息，路由变更直接删除本地路由缓存，其他的交给本地投递
+ *
+ * @author 乐天
+ */
+@Slf4j
+public class ClusterMessageReceiver implements MessageListener {
+
+    private final RedisSerializer<?> serializer;
+
+    private final ClusterNodeRegistry registry;
+
+    private final Consumer<ClusterEnvelope> consumer;
+
+    public ClusterMessageReceiver(RedisSerializer<?> serializer, ClusterNodeRegistry registry, Consumer<ClusterEnvelope> consumer) {
+        this.serializer = serializer;
+        this.registry = registry;
+        this.consumer = consumer;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        try {
+            Object body = serializer.deserialize(message.getBody());
+            if (body == null) {
+                return;
+            }
+            List<ClusterEnvelope> batch = JSON.parseArray(body.toString(), ClusterEnvelope.class);
+            for (ClusterEnvelope envelope : batch) {
+                try {
+                    if (ClusterEnvelope.TYPE_ROUTE.equals(envelope.getType())) {
+                        registry.invalidate(envelope.getTarget());
+                        continue;
+                    }
+                    consumer.accept(envelope);
+                } catch (Exception e) {
+                    log.error("投递集群消息失败: type={}, target={}", envelope.getType(), envelope.getTarget(), e);
+                }
+            }
+        } catch (Exception e) {
+            log.error("解析集群消息失败", e);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.vim.tio.cluster;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 集群节点登记
+ * 节点心跳放在 vim:cluster:nodes（zset，score 为最后心跳时间），
+ * 用户所在节点放在 vim:cluster:user:{userId}（set），
+ * 本地再缓存一份 用户->节点 的路由，避免每条消息都去查 redis；
+ * 用户在某个节点登记或者取消登记时，由这个节点通知其他节点删除本地路由（见 {@link ClusterForwarder#forwardRoute}），
+ * 重连到其他节点后不用等路由缓存过期
+ *
+ * @author 乐天
+ */
+@Slf4j
+public class ClusterNodeRegistry {
+
+    /**
+     * 存活节点
+     */
+    public static final String NODES_KEY = "vim:cluster:nodes";
+
+    /**
+     * 用户所在的节点
+     */
+    public static final String USER_NODES_KEY = "vim:cluster:user:{}";
+
+    @Getter
+    private final String nodeId;
+
+    private final RedisTemplate<String, String> redisTemplate;
+
+    private final long nodeTtlMillis;
+
+    private final long routeCacheMillis;
+
+    /**
+     * 用户 -> 其他节点 的本地路由缓存
+     */
+    private final Map<String, Route> routeCache = new ConcurrentHashMap<>();
+
+    private volatile Set<String> liveNodes = Collections.emptySet();
+
+    private volatile long liveNodesExpireAt;
+
+    public ClusterNodeRegistry(String nodeId, RedisTemplate<String, String> redisTemplate, long nodeTtlMillis, long routeCacheMillis) {
+        this.nodeId = nodeId;
+        this.redisTemplate = redisTemplate;
+        this.nodeTtlMillis = nodeTtlMillis;
+        this.routeCacheMillis = routeCacheMillis;
+    }
+
+    /**
+     * 上报心跳，同时清理掉已经超时的节点
+     */
+    public void heartbeat() {
+        long now = System.currentTimeMillis();
+        redisTemplate.opsForZSet().add(NODES_KEY, nodeId, now);
+        redisTemplate.opsForZSet().removeRangeByScore(NODES_KEY, 0, now - nodeTtlMillis);
+        liveNodesExpireAt = 0;
+    }
+
+    /**
+     * 节点下线
+     */
+    public void leave() {
+        redisTemplate.opsForZSet().remove(NODES_KEY, nodeId);
+    }
+
+    /**
+     * 登记用户在当前节点
+     *
+     * @param userId 用户id
+     * @return 之前没有登记在当前节点，需要通知其他节点
+     */
+    public boolean register(String userId) {
+        Long added = redisTemplate.opsForSet().add(StrUtil.format(USER_NODES_KEY, userId), nodeId);
+        routeCache.remove(userId);
+        return added != null && added > 0;
+    }
+
+    /**
+     * 用户在当前节点已经没有连接了
+     *
+     * @param userId 用户id
+     * @return 之前登记在当前节点，需要通知其他节点
+     */
+    public boolean unregister(String userId) {
+        Long removed = redisTemplate.opsForSet().remove(StrUtil.format(USER_NODES_KEY, userId), nodeId);
+        routeCache.remove(userId);
+        return removed != null && removed > 0;
+    }
+
+    /**
+     * 删除用户的本地路由缓存，其他节点通知用户所在节点变了时调用
+     *
+     * @param userId 用户id
+     */
+    public void invalidate(String userId) {
+        routeCache.remove(userId);
+    }
+
+    /**
+     * 用户所在的其他存活节点（不包含当前节点）
+     *
+     * @param userId 用户id
+     * @return 节点id
+     */
+    public Set<String> remoteNodesOf(String userId) {
+        long now = System.currentTimeMillis();
+        Route route = routeCache.get(userId);
+        if (route != null && route.expireAt > now) {
+            return route.nodes;
+        }
+        Set<String> members = redisTemplate.opsForSet().members(StrUtil.format(USER_NODES_KEY, userId));
+        Set<String> nodes = Collections.emptySet();
+        if (members != null && !members.isEmpty()) {
+            Set<String> live = liveNodes();
+            nodes = new HashSet<>(members.size());
+            for (String member : members) {
+                if (!nodeId.equals(member) && live.contains(member)) {
+                    nodes.add(member);
+                }
+            }
+        }
+        routeCache.put(userId, new Route(nodes, now + routeCacheMillis));
+        return nodes;
+    }
+
+    /**
+     * 除当前节点以外所有存活的节点
+     *
+     * @return 节点id
+     */
+    public Set<String> remoteNodes() {
+        Set<String> live = liveNodes();
+        if (!live.contains(nodeId)) {
+            return live;
+        }
+        Set<String> nodes = new HashSet<>(live);
+        nodes.remove(nodeId);
+        return nodes;
+    }
+
+    /**
+     * 存活节点，按路由缓存时间刷新
+     *
+     * @return 节点id
+     */
+    private Set<String> liveNodes() {
+        long now = System.currentTimeMillis();
+        if (liveNodesExpireAt > now) {
+            return liveNodes;
+        }
+        Set<String> nodes = redisTemplate.opsForZSet().rangeByScore(NODES_KEY, now - nodeTtlMillis, Double.MAX_VALUE);
+        liveNodes = nodes == null ? Collections.emptySet() : Set.copyOf(nodes);
+        liveNodesExpireAt = now + routeCacheMillis;
+        return liveNodes;
+    }
+
+    private record Route(Set<String> nodes, long expireAt) {
+    }
+}
@@ -0,0 +1,20 @@
+package com.vim.tio.cluster;
+
+import java.util.List;
+
+/**
+ * 节点间消息传输通道
+ * 默认基于 redis 发布订阅实现，同一个 JVM 里可以替换成内存实现来模拟多个节点
+ *
+ * @author 乐天
+ */
+public interface ClusterTransport {
+
+    /**
+     * 把一批消息发送给指定节点
+     *
+     * @param nodeId 目标节点
+     * @param batch  消息
+     */
+    void publish(String nodeId, List<ClusterEnvelope> batch);
+}
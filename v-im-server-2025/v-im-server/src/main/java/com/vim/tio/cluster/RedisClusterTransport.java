@@ -0,0 +1,35 @@
+package com.vim.tio.cluster;
+
+import cn.hutool.core.util.StrUtil;
+import com.alibaba.fastjson2.JSON;
+import org.springframework.data.redis.core.RedisTemplate;
+
+import java.util.List;
+
+/**
+ * 基于 redis 发布订阅的节点间传输，每个节点订阅自己的频道
+ *
+ * @author 乐天
+ */
+public class RedisClusterTransport implements ClusterTransport {
+
+    /**
+     * 节点频道 vim:cluster:node:{nodeId}
+     */
+    public static final String NODE_CHANNEL = "vim:cluster:node:{}";
+
+    private final RedisTemplate<String, String> redisTemplate;
+
+    public RedisClusterTransport(RedisTemplate<String, String> redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    public static String channel(String nodeId) {
+        return StrUtil.format(NODE_CHANNEL, nodeId);
+    }
+
+    @Override
+    public void publish(String nodeId, List<ClusterEnvelope> batch) {
+        redisTemplate.convertAndSend(channel(nodeId), JSON.toJSONString(batch));
+    }
+}
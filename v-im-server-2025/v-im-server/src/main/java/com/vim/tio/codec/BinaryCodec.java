@@ -0,0 +1,328 @@
+package com.vim.tio.codec;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.alibaba.fastjson2.JSON;
+import com.vim.common.enums.SendCodeEnum;
+import com.vim.tio.messages.Message;
+import com.vim.tio.messages.ReadReceipt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 二进制帧编解码
+ * <p>
+ * 帧的第一个字节是 {@link SendCodeEnum#getType()}，后面按发送码区分：
+ * <pre>
+ * message: flags(1) [id] chatId fromId [timestamp] chatType messageType content extend
+ * read:    flags(1) chatId fromId [timestamp] type
+ * ping:    没有内容
+ * 其他:    utf-8 json，直到帧结束
+ * </pre>
+ * id 和时间戳是 varint；字符串是 varint 长度 + utf-8 内容，长度写的是 字节数+1，0 表示 null。
+ * flags 的 {@link #TEXT_IDS} 位表示 id 不是数字（或者为空），这时所有 id 按字符串写。
+ *
+ * @author 乐天
+ */
+public final class BinaryCodec {
+
+    /**
+     * 带消息 id
+     */
+    private static final int HAS_ID = 0x01;
+
+    /**
+     * 带时间戳
+     */
+    private static final int HAS_TIMESTAMP = 0x02;
+
+    /**
+     * id 按字符串写
+     */
+    private static final int TEXT_IDS = 0x04;
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * 帧的发送码
+     *
+     * @param frame 帧
+     * @return 发送码
+     */
+    public static SendCodeEnum code(byte[] frame) {
+        if (frame == null || frame.length == 0) {
+            throw new IllegalArgumentException("空的二进制帧");
+        }
+        SendCodeEnum code = SendCodeEnum.of(frame[0]);
+        if (code == null) {
+            throw new IllegalArgumentException("不认识的发送码: " + frame[0]);
+        }
+        return code;
+    }
+
+    /**
+     * 只有发送码的帧，比如心跳
+     *
+     * @param code 发送码
+     * @return 帧
+     */
+    public static byte[] encode(SendCodeEnum code) {
+        return new byte[]{code.getType()};
+    }
+
+    /**
+     * 编码聊天消息
+     *
+     * @param message 消息
+     * @return 帧
+     */
+    public static byte[] encodeMessage(Message message) {
+        Writer writer = new Writer(64 + length(message.getContent()));
+        writer.write(SendCodeEnum.MESSAGE.getType());
+        boolean hasId = message.getId() != null;
+        boolean textIds = (hasId && !isNumber(message.getId())) || !isNumber(message.getChatId()) || !isNumber(message.getFromId());
+        int flags = (hasId ? HAS_ID : 0) | (message.getTimestamp() != null ? HAS_TIMESTAMP : 0) | (textIds ? TEXT_IDS : 0);
+        writer.write(flags);
+        if (hasId) {
+            writer.writeId(message.getId(), textIds);
+        }
+        writer.writeId(message.getChatId(), textIds);
+        writer.writeId(message.getFromId(), textIds);
+        if (message.getTimestamp() != null) {
+            writer.writeVarLong(message.getTimestamp());
+        }
+        writer.writeString(message.getChatType());
+        writer.writeString(message.getMessageType());
+        writer.writeString(message.getContent());
+        writer.writeString(message.getExtend() == null ? null : JSON.toJSONString(message.getExtend()));
+        return writer.toByteArray();
+    }
+
+    /**
+     * 解码聊天消息
+     *
+     * @param frame 帧
+     * @return 消息
+     */
+    public static Message decodeMessage(byte[] frame) {
+        Reader reader = new Reader(frame);
+        int flags = reader.read();
+        boolean textIds = (flags & TEXT_IDS) != 0;
+        Message message = new Message();
+        if ((flags & HAS_ID) != 0) {
+            message.setId(reader.readId(textIds));
+        }
+        message.setChatId(reader.readId(textIds));
+        message.setFromId(reader.readId(textIds));
+        if ((flags & HAS_TIMESTAMP) != 0) {
+            message.setTimestamp(reader.readVarLong());
+        }
+        message.setChatType(reader.readString());
+        message.setMessageType(reader.readString());
+        message.setContent(reader.readString());
+        String extend = reader.readString();
+        if (extend != null) {
+            message.setExtend(JSONUtil.parseObj(extend));
+        }
+        return message;
+    }
+
+    /**
+     * 编码已读回执
+     *
+     * @param readReceipt 已读回执
+     * @return 帧
+     */
+    public static byte[] encodeReceipt(ReadReceipt readReceipt) {
+        Writer writer = new Writer(32);
+        writer.write(SendCodeEnum.READ.getType());
+        boolean textIds = !isNumber(readReceipt.getChatId()) || !isNumber(readReceipt.getFromId());
+        writer.write((readReceipt.getTimestamp() != null ? HAS_TIMESTAMP : 0) | (textIds ? TEXT_IDS : 0));
+        writer.writeId(readReceipt.getChatId(), textIds);
+        writer.writeId(readReceipt.getFromId(), textIds);
+        if (readReceipt.getTimestamp() != null) {
+            writer.writeVarLong(readReceipt.getTimestamp());
+        }
+        writer.writeString(readReceipt.getType());
+        return writer.toByteArray();
+    }
+
+    /**
+     * 解码已读回执
+     *
+     * @param frame 帧
+     * @return 已读回执
+     */
+    public static ReadReceipt decodeReceipt(byte[] frame) {
+        Reader reader = new Reader(frame);
+        int flags = reader.read();
+        boolean textIds = (flags & TEXT_IDS) != 0;
+        ReadReceipt readReceipt = new ReadReceipt();
+        readReceipt.setChatId(reader.readId(textIds));
+        readReceipt.setFromId(reader.readId(textIds));
+        if ((flags & HAS_TIMESTAMP) != 0) {
+            readReceipt.setTimestamp(reader.readVarLong());
+        }
+        readReceipt.setType(reader.readString());
+        return readReceipt;
+    }
+
+    /**
+     * 编码其他消息，内容直接用 json
+     *
+     * @param code    发送码
+     * @param payload 内容
+     * @return 帧
+     */
+    public static byte[] encodeJson(SendCodeEnum code, JSONObject payload) {
+        if (payload == null) {
+            return encode(code);
+        }
+        byte[] json = JSON.toJSONBytes(payload);
+        byte[] frame = new byte[json.length + 1];
+        frame[0] = code.getType();
+        System.arraycopy(json, 0, frame, 1, json.length);
+        return frame;
+    }
+
+    /**
+     * 解码其他消息
+     *
+     * @param frame 帧
+     * @return 内容，没有内容返回 null
+     */
+    public static JSONObject decodeJson(byte[] frame) {
+        if (frame.length <= 1) {
+            return null;
+        }
+        return JSONUtil.parseObj(new String(frame, 1, frame.length - 1, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 是否可以按 varint 写，不能有前导 0，否则解码回来不一样
+     */
+    private static boolean isNumber(String str) {
+        if (str == null || str.isEmpty() || str.length() > 19 || (str.charAt(0) == '0' && str.length() > 1)) {
+            return false;
+        }
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int length(String str) {
+        return str == null ? 0 : str.length() * 3;
+    }
+
+    private static final class Writer {
+
+        private byte[] buf;
+
+        private int count;
+
+        private Writer(int capacity) {
+            this.buf = new byte[capacity];
+        }
+
+        private void write(int b) {
+            ensureCapacity(1);
+            buf[count++] = (byte) b;
+        }
+
+        private void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[count++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[count++] = (byte) value;
+        }
+
+        private void writeId(String id, boolean text) {
+            if (text) {
+                writeString(id);
+            } else {
+                writeVarLong(Long.parseUnsignedLong(id));
+            }
+        }
+
+        private void writeString(String str) {
+            if (str == null) {
+                writeVarLong(0);
+                return;
+            }
+            byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length + 1L);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buf, count, bytes.length);
+            count += bytes.length;
+        }
+
+        private void ensureCapacity(int size) {
+            if (count + size > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + size));
+            }
+        }
+
+        private byte[] toByteArray() {
+            return count == buf.length ? buf : Arrays.copyOf(buf, count);
+        }
+    }
+
+    private static final class Reader {
+
+        private final byte[] buf;
+
+        /**
+         * 跳过发送码
+         */
+        private int pos = 1;
+
+        private Reader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        private int read() {
+            if (pos >= buf.length) {
+                throw new IllegalArgumentException("二进制帧不完整");
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = read();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("varint 格式错误");
+        }
+
+        private String readId(boolean text) {
+            return text ? readString() : Long.toUnsignedString(readVarLong());
+        }
+
+        private String readString() {
+            long length = readVarLong();
+            if (length == 0) {
+                return null;
+            }
+            int size = (int) (length - 1);
+            if (length < 0 || length - 1 > buf.length - pos) {
+                throw new IllegalArgumentException("二进制帧不完整");
+            }
+            String str = new String(buf, pos, size, StandardCharsets.UTF_8);
+            pos += size;
+            return str;
+        }
+    }
+}
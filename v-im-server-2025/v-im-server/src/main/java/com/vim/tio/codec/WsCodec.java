@@ -0,0 +1,73 @@
+package com.vim.tio.codec;
+
+import lombok.Getter;
+import org.tio.core.ChannelContext;
+
+/**
+ * 连接使用的帧编码，客户端在 READY 时协商，默认 json
+ *
+ * @author 乐天
+ */
+@Getter
+public enum WsCodec {
+
+    /**
+     * json 文本帧
+     */
+    JSON("json"),
+
+    /**
+     * 二进制帧，格式见 {@link BinaryCodec}
+     */
+    BINARY("binary");
+
+    /**
+     * 连接上保存编码的属性名
+     */
+    private static final String ATTRIBUTE = "vim:codec";
+
+    private final String name;
+
+    WsCodec(String name) {
+        this.name = name;
+    }
+
+    /**
+     * 根据名称查找，不认识的都按 json 处理
+     *
+     * @param name 名称
+     * @return WsCodec
+     */
+    public static WsCodec of(String name) {
+        return BINARY.name.equalsIgnoreCase(name) ? BINARY : JSON;
+    }
+
+    /**
+     * 连接使用的编码
+     *
+     * @param channelContext 连接
+     * @return WsCodec
+     */
+    public static WsCodec of(ChannelContext channelContext) {
+        return channelContext.get(ATTRIBUTE) == BINARY ? BINARY : JSON;
+    }
+
+    /**
+     * 设置连接使用的编码
+     *
+     * @param channelContext 连接
+     * @param codec          编码
+     */
+    public static void bind(ChannelContext channelContext, WsCodec codec) {
+        channelContext.set(ATTRIBUTE, codec);
+    }
+
+    /**
+     * 连接关闭，清理编码
+     *
+     * @param channelContext 连接
+     */
+    public static void unbind(ChannelContext channelContext) {
+        channelContext.remove(ATTRIBUTE);
+    }
+}
@@ -0,0 +1,51 @@
+package com.vim.tio.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 服务端 websocket 帧编码（RFC 6455，服务端发出的帧不带掩码）
+ * 群消息只编码一次，所有接收人共用同一份内容（不能再修改），每个连接拿一个 {@link ByteBuffer#duplicate()} 各自维护读写位置
+ *
+ * @author 乐天
+ */
+public final class WsFrameEncoder {
+
+    /**
+     * 文本帧
+     */
+    public static final int TEXT = 0x1;
+
+    /**
+     * 二进制帧
+     */
+    public static final int BINARY = 0x2;
+
+    private WsFrameEncoder() {
+    }
+
+    /**
+     * 编码一个完整的帧
+     *
+     * @param opcode 帧类型
+     * @param body   内容
+     * @return ByteBuffer，position 为 0
+     */
+    public static ByteBuffer encode(int opcode, byte[] body) {
+        int length = body.length;
+        int headerLength = length < 126 ? 2 : (length <= 0xFFFF ? 4 : 10);
+        ByteBuffer buffer = ByteBuffer.allocate(headerLength + length);
+        buffer.put((byte) (0x80 | opcode));
+        if (length < 126) {
+            buffer.put((byte) length);
+        } else if (length <= 0xFFFF) {
+            buffer.put((byte) 126);
+            buffer.putShort((short) length);
+        } else {
+            buffer.put((byte) 127);
+            buffer.putLong(length);
+        }
+        buffer.put(body);
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,69 @@
+package com.vim.tio.codec;
+
+import com.vim.tio.messages.MessageContext;
+import com.vim.tio.outbound.OutboundGuard;
+import org.tio.core.ChannelContext;
+import org.tio.core.Tio;
+import org.tio.core.TioConfig;
+import org.tio.utils.lock.SetWithLock;
+
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 按连接协商的编码发送消息
+ * 逐个连接选择 json 帧或者二进制帧，两种帧都只编码一次；每个连接经过 {@link OutboundGuard} 检查发送队列积压
+ *
+ * @author 乐天
+ */
+public final class WsSender {
+
+    private WsSender() {
+    }
+
+    /**
+     * 发送给单个连接
+     *
+     * @param channelContext 连接
+     * @param context        消息
+     */
+    public static void send(ChannelContext channelContext, MessageContext context) {
+        OutboundGuard.send(channelContext, context, context.getResponse(channelContext));
+    }
+
+    /**
+     * 发送给用户的所有连接
+     *
+     * @param tioConfig tio 配置
+     * @param userId    用户id
+     * @param context   消息
+     */
+    public static void sendToUser(TioConfig tioConfig, String userId, MessageContext context) {
+        sendToSet(Tio.getByUserid(tioConfig, userId), context);
+    }
+
+    /**
+     * 发送给群组的所有连接
+     *
+     * @param tioConfig tio 配置
+     * @param groupId   群组id
+     * @param context   消息
+     */
+    public static void sendToGroup(TioConfig tioConfig, String groupId, MessageContext context) {
+        sendToSet(Tio.getByGroup(tioConfig, groupId), context);
+    }
+
+    private static void sendToSet(SetWithLock<ChannelContext> setWithLock, MessageContext context) {
+        if (setWithLock == null) {
+            return;
+        }
+        Lock lock = setWithLock.readLock();
+        lock.lock();
+        try {
+            for (ChannelContext channelContext : setWithLock.getObj()) {
+                send(channelContext, context);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.vim.tio.dispatch;
+
+import com.vim.common.config.VimConfig;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.tio.core.ChannelContext;
+import org.tio.core.Tio;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 业务分发
+ * tio 的处理线程只负责解码，收到的帧交给这里在虚拟线程里处理，mongo、redis、sa-token 这些阻塞调用不会卡住 tio 的线程。
+ * 每个连接一个串行队列，同一个连接的帧按收到的顺序一个一个处理；
+ * 同一个用户（多端登录有多个连接）同时处理的帧数有上限，一个用户刷消息占不满数据库连接
+ *
+ * @author 乐天
+ */
+@Slf4j
+@Component
+public class BusinessDispatcher {
+
+    private static final String ATTRIBUTE = "vim:dispatch";
+
+    @Resource
+    private VimConfig vimConfig;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private ExecutorService executor;
+
+    /**
+     * 每个用户正在处理的帧数限制，没有连接在用时删除
+     */
+    private final Map<String, UserPermits> users = new ConcurrentHashMap<>();
+
+    /**
+     * 所有连接排队中的帧数
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private Counter rejected;
+
+    @PostConstruct
+    public void init() {
+        executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("vim-biz-", 0).factory());
+        Gauge.builder("vim.dispatch.pending", pending, AtomicInteger::get).register(meterRegistry);
+        Gauge.builder("vim.dispatch.users", users, Map::size).register(meterRegistry);
+        rejected = Counter.builder("vim.dispatch.rejected").register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 把一个帧的处理放进连接的串行队列，连接排队的帧太多时关闭连接
+     *
+     * @param channelContext 连接
+     * @param task           处理
+     */
+    public void dispatch(ChannelContext channelContext, Runnable task) {
+        VimConfig.Dispatch config = vimConfig.getDispatch();
+        if (!config.isEnabled()) {
+            task.run();
+            return;
+        }
+        if (!queue(channelContext).offer(task, config.getMaxPending())) {
+            rejected.increment();
+            log.warn("连接 {} 用户 {} 排队的消息超过 {} 条，关闭连接", channelContext.getId(), channelContext.userid, config.getMaxPending());
+            Tio.close(channelContext, "排队的消息太多");
+        }
+    }
+
+    /**
+     * 连接关闭时的清理，排在已经收到的帧后面执行，不受队列长度限制
+     *
+     * @param channelContext 连接
+     * @param task           清理
+     */
+    public void close(ChannelContext channelContext, Runnable task) {
+        if (!vimConfig.getDispatch().isEnabled()) {
+            task.run();
+            return;
+        }
+        queue(channelContext).offer(task, Integer.MAX_VALUE);
+    }
+
+    private ChannelQueue queue(ChannelContext channelContext) {
+        Object queue = channelContext.get(ATTRIBUTE);
+        if (queue == null) {
+            synchronized (channelContext) {
+                queue = channelContext.get(ATTRIBUTE);
+                if (queue == null) {
+                    queue = new ChannelQueue(channelContext);
+                    channelContext.set(ATTRIBUTE, queue);
+                }
+            }
+        }
+        return (ChannelQueue) queue;
+    }
+
+    /**
+     * 执行一个帧的处理，登录后的连接先拿到用户的许可
+     */
+    private void execute(ChannelContext channelContext, Runnable task) {
+        String userId = channelContext.userid;
+        UserPermits permits = userId == null ? null : acquire(userId);
+        try {
+            task.run();
+        } catch (Exception e) {
+            log.error("处理连接 {} 的消息失败", channelContext.getId(), e);
+        } finally {
+            if (permits != null) {
+                release(userId, permits);
+            }
+        }
+    }
+
+    private UserPermits acquire(String userId) {
+        UserPermits permits = users.compute(userId, (k, v) -> {
+            UserPermits p = v == null ? new UserPermits(vimConfig.getDispatch().getUserConcurrency()) : v;
+            p.refs++;
+            return p;
+        });
+        permits.semaphore.acquireUninterruptibly();
+        return permits;
+    }
+
+    private void release(String userId, UserPermits permits) {
+        permits.semaphore.release();
+        users.computeIfPresent(userId, (k, v) -> --v.refs == 0 ? null : v);
+    }
+
+    /**
+     * 一个用户的许可，refs 只在 users.compute 里改
+     */
+    private static final class UserPermits {
+
+        private final Semaphore semaphore;
+
+        private int refs;
+
+        private UserPermits(int permits) {
+            this.semaphore = new Semaphore(Math.max(1, permits));
+        }
+    }
+
+    /**
+     * 一个连接的串行队列，同一时间最多一个虚拟线程在处理
+     */
+    private final class ChannelQueue implements Runnable {
+
+        private final ChannelContext channelContext;
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private final AtomicInteger size = new AtomicInteger();
+
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private ChannelQueue(ChannelContext channelContext) {
+            this.channelContext = channelContext;
+        }
+
+        boolean offer(Runnable task, int max) {
+            if (size.incrementAndGet() > max) {
+                size.decrementAndGet();
+                return false;
+            }
+            pending.incrementAndGet();
+            tasks.add(task);
+            schedule();
+            return true;
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                size.decrementAndGet();
+                pending.decrementAndGet();
+                execute(channelContext, task);
+            }
+            scheduled.set(false);
+            // 放开标记前后刚好有新的帧进来，再调度一次
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.vim.tio.fanout;
+
+import com.vim.common.config.VimConfig;
+import com.vim.tio.messages.MessageContext;
+import com.vim.tio.outbound.OutboundGuard;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.tio.core.ChannelContext;
+import org.tio.core.Tio;
+import org.tio.core.TioConfig;
+import org.tio.utils.lock.SetWithLock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 群消息扇出
+ * 帧只编码一次，所有接收人共用；小群直接在当前线程发送，
+ * 大群按 sliceSize 切成分片，放到有界线程池里并行发送，避免一个大群占住 tio 的处理线程。
+ * 每次扇出的耗时按群统计，超过阈值打警告，定时输出最慢的群
+ *
+ * @author 乐天
+ */
+@Slf4j
+@Component
+public class GroupFanout {
+
+    /**
+     * 统计窗口里最多记录多少个群
+     */
+    private static final int MAX_TRACKED_GROUPS = 10000;
+
+    @Resource
+    private VimConfig vimConfig;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private ThreadPoolExecutor executor;
+
+    private Timer smallTimer;
+
+    private Timer largeTimer;
+
+    private DistributionSummary recipients;
+
+    /**
+     * 当前统计窗口里每个群的扇出耗时
+     */
+    private final Map<String, GroupStats> stats = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        VimConfig.Fanout fanout = vimConfig.getFanout();
+        int threads = fanout.getThreads() > 0 ? fanout.getThreads() : Runtime.getRuntime().availableProcessors();
+        AtomicInteger index = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(fanout.getQueueCapacity()),
+                r -> {
+                    Thread thread = new Thread(r, "vim-fanout-" + index.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        smallTimer = Timer.builder("vim.fanout.latency").tag("size", "inline").register(meterRegistry);
+        largeTimer = Timer.builder("vim.fanout.latency").tag("size", "sliced").register(meterRegistry);
+        recipients = DistributionSummary.builder("vim.fanout.recipients").register(meterRegistry);
+        Gauge.builder("vim.fanout.queue", executor, e -> e.getQueue().size()).register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 发送给群里所有在线连接
+     *
+     * @param tioConfig tio 配置
+     * @param groupId   群id
+     * @param context   消息
+     */
+    public void fanout(TioConfig tioConfig, String groupId, MessageContext context) {
+        long start = System.nanoTime();
+        ChannelContext[] channels = snapshot(Tio.getByGroup(tioConfig, groupId));
+        if (channels.length == 0) {
+            return;
+        }
+        VimConfig.Fanout fanout = vimConfig.getFanout();
+        if (channels.length <= fanout.getInlineSize()) {
+            send(channels, 0, channels.length, context);
+            record(groupId, channels.length, 1, System.nanoTime() - start);
+            return;
+        }
+        int sliceSize = Math.max(1, fanout.getSliceSize());
+        int slices = (channels.length + sliceSize - 1) / sliceSize;
+        AtomicInteger remaining = new AtomicInteger(slices);
+        for (int i = 0; i < slices; i++) {
+            int from = i * sliceSize;
+            int to = Math.min(from + sliceSize, channels.length);
+            executor.execute(() -> {
+                try {
+                    send(channels, from, to, context);
+                } catch (Exception e) {
+                    log.error("群 {} 扇出分片 [{}, {}) 发送失败", groupId, from, to, e);
+                } finally {
+                    if (remaining.decrementAndGet() == 0) {
+                        record(groupId, channels.length, slices, System.nanoTime() - start);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * 在扇出线程池里执行发送以后的后续工作，不占用发送消息的线程；队列满时在当前线程执行
+     *
+     * @param task 任务
+     */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    private void send(ChannelContext[] channels, int from, int to, MessageContext context) {
+        for (int i = from; i < to; i++) {
+            ChannelContext channelContext = channels[i];
+            if (!channelContext.isClosed) {
+                OutboundGuard.send(channelContext, context, context.newResponse(channelContext));
+            }
+        }
+    }
+
+    /**
+     * 复制一份群的连接，发送时不再持有 tio 的锁
+     */
+    private ChannelContext[] snapshot(SetWithLock<ChannelContext> setWithLock) {
+        if (setWithLock == null) {
+            return new ChannelContext[0];
+        }
+        Lock lock = setWithLock.readLock();
+        lock.lock();
+        try {
+            return setWithLock.getObj().toArray(new ChannelContext[0]);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void record(String groupId, int size, int slices, long nanos) {
+        (slices > 1 ? largeTimer : smallTimer).record(nanos, TimeUnit.NANOSECONDS);
+        recipients.record(size);
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        if (millis >= vimConfig.getFanout().getSlowMillis()) {
+            log.warn("群 {} 扇出耗时 {}ms，连接数 {}，分片数 {}", groupId, millis, size, slices);
+        }
+        GroupStats groupStats = stats.get(groupId);
+        if (groupStats == null) {
+            if (stats.size() >= MAX_TRACKED_GROUPS) {
+                return;
+            }
+            groupStats = stats.computeIfAbsent(groupId, k -> new GroupStats());
+        }
+        groupStats.record(size, nanos);
+    }
+
+    /**
+     * 每分钟输出一次最慢的群，然后开始新的统计窗口
+     */
+    @Scheduled(fixedDelay = 60000)
+    public void report() {
+        if (stats.isEmpty()) {
+            return;
+        }
+        List<Map.Entry<String, GroupStats>> entries = new ArrayList<>(stats.entrySet());
+        stats.clear();
+        entries.sort((a, b) -> Long.compare(b.getValue().maxNanos, a.getValue().maxNanos));
+        int top = Math.min(vimConfig.getFanout().getReportTop(), entries.size());
+        for (int i = 0; i < top; i++) {
+            GroupStats groupStats = entries.get(i).getValue();
+            log.info("群扇出统计 group={} 次数={} 平均={}ms 最大={}ms 最近连接数={}", entries.get(i).getKey(), groupStats.count,
+                    TimeUnit.NANOSECONDS.toMillis(groupStats.totalNanos / Math.max(1, groupStats.count)),
+                    TimeUnit.NANOSECONDS.toMillis(groupStats.maxNanos), groupStats.size);
+        }
+    }
+
+    private static class GroupStats {
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+        private int size;
+
+        private synchronized void record(int size, long nanos) {
+            this.count++;
+            this.totalNanos += nanos;
+            this.maxNanos = Math.max(this.maxNanos, nanos);
+            this.size = size;
+        }
+    }
+}
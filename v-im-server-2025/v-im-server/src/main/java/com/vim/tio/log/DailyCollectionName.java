@@ -0,0 +1,52 @@
+package com.vim.tio.log;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * 消息日志按天分的集合名 message-log-yyyyMMdd
+ * 缓存当天的时间范围，日期变化时才重新格式化；不是线程安全的，每个写入线程各用一个
+ *
+ * @author 乐天
+ */
+public final class DailyCollectionName {
+
+    private static final String PREFIX = "message-log-";
+
+    private static final DateTimeFormatter DAY_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    private final ZoneId zone = ZoneId.systemDefault();
+
+    private Day current;
+
+    /**
+     * 时间所在那天的集合名
+     *
+     * @param time 毫秒时间戳
+     * @return 集合名
+     */
+    public String of(long time) {
+        Day day = current;
+        if (day != null && time >= day.start() && time < day.end()) {
+            return day.name();
+        }
+        LocalDate date = LocalDate.ofInstant(Instant.ofEpochMilli(time), zone);
+        Day other = new Day(
+                date.atStartOfDay(zone).toInstant().toEpochMilli(),
+                date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli(),
+                PREFIX + date.format(DAY_FORMATTER));
+        // 跨天前后的旧日志不替换当天的缓存
+        if (day == null || other.start() > day.start()) {
+            current = other;
+        }
+        return other.name();
+    }
+
+    /**
+     * 一天的集合名和时间范围 [start, end)
+     */
+    private record Day(long start, long end, String name) {
+    }
+}
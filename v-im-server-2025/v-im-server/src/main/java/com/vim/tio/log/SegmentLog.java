@@ -0,0 +1,371 @@
+package com.vim.tio.log;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 本地只追加的消息日志段文件
+ * 当前段用内存映射写入，写满或者到时间就封存（.active 改名为 .seg），换一个新段继续写；
+ * 进程崩溃后数据还在页缓存里，重启时把没封存的段直接封存，交给 {@link SegmentShipper} 导入。
+ * <p>
+ * 锁按段加：写入线程用 CAS 在当前段里占一块位置后各自写，只持有这个段的读锁；封存拿这个段的写锁，等正在写的线程写完。
+ * 只有换段时用一把锁，写入之间不互相等待。
+ * <p>
+ * 每条记录：int 长度 | long 时间 | int 发送者长度（-1 为 null） | 发送者 utf-8 | 内容 utf-8，
+ * 长度在内容写完之后才写，读到 0 就说明后面没有完整的记录了；读到不合法的长度说明段文件损坏，导入时隔离（改名为 .corrupt）
+ *
+ * @author 乐天
+ */
+@Slf4j
+public final class SegmentLog implements Closeable {
+
+    private static final String ACTIVE_SUFFIX = ".active";
+
+    private static final String SEALED_SUFFIX = ".seg";
+
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Path dir;
+
+    private final int segmentBytes;
+
+    /**
+     * 换段用的锁
+     */
+    private final Object rollLock = new Object();
+
+    private volatile Segment active;
+
+    private int sequence;
+
+    /**
+     * @param dir          段文件目录
+     * @param segmentBytes 每个段的大小
+     * @throws IOException 目录或者文件无法创建
+     */
+    public SegmentLog(Path dir, int segmentBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(dir);
+        // 上次没有封存的段（比如进程崩溃）直接封存
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + ACTIVE_SUFFIX)) {
+            for (Path file : files) {
+                Files.move(file, rename(file, ACTIVE_SUFFIX, SEALED_SUFFIX));
+                log.info("封存上次未关闭的消息日志段 {}", file.getFileName());
+            }
+        }
+        roll(null);
+    }
+
+    /**
+     * 追加一条记录
+     *
+     * @param time    时间
+     * @param userId  发送者
+     * @param content 内容
+     * @return 记录太大或者无法换段时返回 false
+     */
+    public boolean append(long time, String userId, String content) {
+        byte[] user = userId == null ? EMPTY : userId.getBytes(StandardCharsets.UTF_8);
+        byte[] body = content == null ? EMPTY : content.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 4 + user.length + body.length;
+        if (4 + length > segmentBytes) {
+            return false;
+        }
+        while (true) {
+            Segment segment = active;
+            if (segment != null && segment.append(length, time, userId == null ? -1 : user.length, user, body)) {
+                return true;
+            }
+            // 当前段写满了或者正在封存，换段后重试
+            try {
+                roll(segment);
+            } catch (IOException e) {
+                log.error("消息日志换段失败", e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 当前段写了内容并且超过 maxAgeMillis 就封存，低流量时也能按时导入
+     *
+     * @param maxAgeMillis 最长写多久
+     */
+    public void sealIfOlderThan(long maxAgeMillis) {
+        Segment segment = active;
+        if (segment != null && segment.written() && System.currentTimeMillis() - segment.since >= maxAgeMillis) {
+            try {
+                roll(segment);
+            } catch (IOException e) {
+                log.error("消息日志封存失败", e);
+            }
+        }
+    }
+
+    /**
+     * 已经封存的段，按写入顺序
+     *
+     * @return 段文件
+     * @throws IOException 读取目录失败
+     */
+    public List<Path> sealed() throws IOException {
+        return list(SEALED_SUFFIX);
+    }
+
+    /**
+     * 隔离的损坏段
+     *
+     * @return 段文件
+     * @throws IOException 读取目录失败
+     */
+    public List<Path> quarantined() throws IOException {
+        return list(CORRUPT_SUFFIX);
+    }
+
+    /**
+     * 隔离一个封存的段，不再导入，留着排查
+     *
+     * @param sealed 封存的段
+     * @return 隔离后的文件
+     * @throws IOException 改名失败
+     */
+    public Path quarantine(Path sealed) throws IOException {
+        return Files.move(sealed, rename(sealed, SEALED_SUFFIX, CORRUPT_SUFFIX));
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (rollLock) {
+            Segment segment = active;
+            active = null;
+            if (segment != null) {
+                segment.seal();
+            }
+        }
+    }
+
+    private List<Path> list(String suffix) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + suffix)) {
+            stream.forEach(files::add);
+        }
+        files.sort(null);
+        return files;
+    }
+
+    /**
+     * 换一个新段，再封存旧段
+     *
+     * @param current 调用方看到的当前段，已经被别的线程换掉了就什么都不做
+     */
+    private void roll(Segment current) throws IOException {
+        synchronized (rollLock) {
+            if (active != current) {
+                return;
+            }
+            long since = System.currentTimeMillis();
+            Path file = dir.resolve(String.format("segment-%013d-%06d%s", since, sequence++ % 1000000, ACTIVE_SUFFIX));
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            active = new Segment(file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes), since);
+            if (current != null) {
+                current.seal();
+            }
+        }
+    }
+
+    private static Path rename(Path file, String from, String to) {
+        String name = file.getFileName().toString();
+        return file.resolveSibling(name.substring(0, name.length() - from.length()) + to);
+    }
+
+    /**
+     * 一个正在写的段，写入持有读锁，封存持有写锁
+     */
+    private final class Segment {
+
+        private final Path file;
+
+        private final FileChannel channel;
+
+        private final MappedByteBuffer buffer;
+
+        private final long since;
+
+        /**
+         * 下一条记录的位置，写入线程 CAS 占位，写满以后可能超过段大小
+         */
+        private final AtomicInteger position = new AtomicInteger();
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        private boolean sealed;
+
+        private Segment(Path file, FileChannel channel, MappedByteBuffer buffer, long since) {
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.since = since;
+        }
+
+        /**
+         * @return 写满了或者已经封存时返回 false
+         */
+        boolean append(int length, long time, int userLength, byte[] user, byte[] body) {
+            if (!lock.readLock().tryLock()) {
+                return false;
+            }
+            try {
+                if (sealed) {
+                    return false;
+                }
+                int start = position.getAndAdd(4 + length);
+                if (start > segmentBytes - 4 - length) {
+                    return false;
+                }
+                // 只用绝对位置读写，多个线程写不同的区域
+                buffer.putLong(start + 4, time);
+                buffer.putInt(start + 12, userLength);
+                buffer.put(start + 16, user);
+                buffer.put(start + 16 + user.length, body);
+                buffer.putInt(start, length);
+                return true;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        boolean written() {
+            return position.get() > 0;
+        }
+
+        void seal() throws IOException {
+            lock.writeLock().lock();
+            try {
+                if (sealed) {
+                    return;
+                }
+                sealed = true;
+                buffer.force();
+                channel.close();
+                Files.move(file, rename(file, ACTIVE_SUFFIX, SEALED_SUFFIX));
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * 一条记录
+     */
+    public record Entry(long time, String userId, String content) {
+    }
+
+    /**
+     * 顺序读取一个封存的段
+     * 长度合法但内容不对的记录跳过；长度不合法就没法找到下一条，标记为损坏，后面的内容不再读取
+     */
+    public static final class Reader implements Closeable {
+
+        private final FileChannel channel;
+
+        private final MappedByteBuffer buffer;
+
+        private boolean corrupt;
+
+        private int skipped;
+
+        public Reader(Path file, long offset) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            this.buffer.position((int) Math.min(offset, buffer.limit()));
+        }
+
+        /**
+         * 读取下一批记录
+         *
+         * @param max 最多读多少条
+         * @param out 放到这里
+         * @return 读到的条数，0 表示读完了或者后面损坏了
+         */
+        public int next(int max, List<Entry> out) {
+            int count = 0;
+            while (count < max && !corrupt && buffer.remaining() >= 4) {
+                int start = buffer.position();
+                int length = buffer.getInt(start);
+                if (length == 0) {
+                    break;
+                }
+                if (length < 12 || length > buffer.remaining() - 4) {
+                    corrupt = true;
+                    break;
+                }
+                buffer.position(start + 4 + length);
+                long time = buffer.getLong(start + 4);
+                int userLength = buffer.getInt(start + 12);
+                if (userLength < -1 || userLength > length - 12) {
+                    skipped++;
+                    continue;
+                }
+                String userId = null;
+                if (userLength >= 0) {
+                    byte[] user = new byte[userLength];
+                    buffer.get(start + 16, user);
+                    userId = new String(user, StandardCharsets.UTF_8);
+                }
+                byte[] body = new byte[length - 12 - Math.max(0, userLength)];
+                buffer.get(start + 16 + Math.max(0, userLength), body);
+                out.add(new Entry(time, userId, new String(body, StandardCharsets.UTF_8)));
+                count++;
+            }
+            return count;
+        }
+
+        /**
+         * 是否读到了损坏的记录
+         *
+         * @return 损坏时 {@link #position()} 是损坏记录的位置
+         */
+        public boolean isCorrupt() {
+            return corrupt;
+        }
+
+        /**
+         * 跳过的记录数
+         *
+         * @return 条数
+         */
+        public int skipped() {
+            return skipped;
+        }
+
+        /**
+         * 下一条记录的位置，导入失败时从这里继续
+         *
+         * @return 偏移量
+         */
+        public long position() {
+            return buffer.position();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.vim.tio.log;
+
+import com.vim.common.config.VimConfig;
+import com.vim.tio.domain.MessageLog;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 把封存的消息日志段导入 mongo
+ * 按配置的速率分批 insert 到 message-log-yyyyMMdd，整段导入成功后删除；
+ * mongo 出问题时停在当前位置，下一轮从这里继续，超过保留时间还没导入的段直接删除。
+ * 内容不对的记录跳过；段文件损坏（长度不合法、打不开）时导入损坏位置之前的记录，然后把段隔离，不会每一轮都卡在同一个段上
+ *
+ * @author 乐天
+ */
+@Slf4j
+public class SegmentShipper {
+
+    private final SegmentLog segmentLog;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final VimConfig.MessageLog config;
+
+    private final DailyCollectionName collectionName = new DailyCollectionName();
+
+    /**
+     * 每个段已经导入到的位置，只有导入线程使用
+     */
+    private final Map<Path, Long> offsets = new HashMap<>();
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final Counter shippedCounter;
+
+    private final Counter expiredCounter;
+
+    private final Counter skippedCounter;
+
+    private final Counter corruptCounter;
+
+    private ScheduledExecutorService scheduler;
+
+    public SegmentShipper(SegmentLog segmentLog, MongoTemplate mongoTemplate, VimConfig.MessageLog config, MeterRegistry meterRegistry) {
+        this.segmentLog = segmentLog;
+        this.mongoTemplate = mongoTemplate;
+        this.config = config;
+        this.shippedCounter = Counter.builder("vim.messagelog.shipped").register(meterRegistry);
+        this.expiredCounter = Counter.builder("vim.messagelog.expired").register(meterRegistry);
+        this.skippedCounter = Counter.builder("vim.messagelog.skipped").register(meterRegistry);
+        this.corruptCounter = Counter.builder("vim.messagelog.corrupt").register(meterRegistry);
+        Gauge.builder("vim.messagelog.segments", pending, AtomicInteger::get).register(meterRegistry);
+    }
+
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "vim-message-log-shipper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::ship, config.getShipIntervalMillis(), config.getShipIntervalMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止导入，没导入完的段留在磁盘上，下次启动继续
+     */
+    public void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(10, TimeUnit.SECONDS)) {
+                scheduler.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 导入一轮，最多导入 shipRecordsPerSecond * shipIntervalMillis 条
+     */
+    void ship() {
+        try {
+            segmentLog.sealIfOlderThan(config.getSealIntervalMillis());
+            List<Path> segments = segmentLog.sealed();
+            pending.set(segments.size());
+            long budget = Math.max(config.getBatchSize(), config.getShipRecordsPerSecond() * config.getShipIntervalMillis() / 1000);
+            long expireBefore = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(config.getRetentionHours());
+            for (Path quarantined : segmentLog.quarantined()) {
+                if (Files.getLastModifiedTime(quarantined).toMillis() < expireBefore) {
+                    Files.delete(quarantined);
+                }
+            }
+            for (Path segment : segments) {
+                if (budget <= 0) {
+                    return;
+                }
+                if (Files.getLastModifiedTime(segment).toMillis() < expireBefore) {
+                    expire(segment);
+                    continue;
+                }
+                budget -= ship(segment, budget);
+            }
+        } catch (Exception e) {
+            log.warn("导入消息日志段失败，下一轮重试: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 导入一个段
+     *
+     * @return 导入的条数
+     */
+    private long ship(Path segment, long budget) throws IOException {
+        long offset = offsets.getOrDefault(segment, 0L);
+        SegmentLog.Reader reader;
+        try {
+            reader = new SegmentLog.Reader(segment, offset);
+        } catch (IOException e) {
+            log.warn("消息日志段 {} 无法读取: {}", segment.getFileName(), e.getMessage());
+            quarantine(segment, offset);
+            return 0;
+        }
+        long shipped = 0;
+        boolean corrupt;
+        List<SegmentLog.Entry> batch = new ArrayList<>(config.getBatchSize());
+        try (reader) {
+            try {
+                while (shipped < budget) {
+                    batch.clear();
+                    if (reader.next((int) Math.min(config.getBatchSize(), budget - shipped), batch) == 0) {
+                        break;
+                    }
+                    insert(batch);
+                    offsets.put(segment, reader.position());
+                    shipped += batch.size();
+                    shippedCounter.increment(batch.size());
+                }
+            } finally {
+                skippedCounter.increment(reader.skipped());
+            }
+            if (shipped >= budget) {
+                return shipped;
+            }
+            corrupt = reader.isCorrupt();
+            offset = reader.position();
+        }
+        if (corrupt) {
+            quarantine(segment, offset);
+            return shipped;
+        }
+        offsets.remove(segment);
+        Files.delete(segment);
+        pending.decrementAndGet();
+        return shipped;
+    }
+
+    /**
+     * 隔离损坏的段，offset 之前的记录已经导入
+     */
+    private void quarantine(Path segment, long offset) throws IOException {
+        Path quarantined = segmentLog.quarantine(segment);
+        log.warn("消息日志段 {} 在位置 {} 损坏，之前的记录已导入，已隔离为 {}", segment.getFileName(), offset, quarantined.getFileName());
+        corruptCounter.increment();
+        offsets.remove(segment);
+        pending.decrementAndGet();
+    }
+
+    private void insert(List<SegmentLog.Entry> batch) {
+        Map<String, List<MessageLog>> collections = new LinkedHashMap<>();
+        for (SegmentLog.Entry entry : batch) {
+            collections.computeIfAbsent(collectionName.of(entry.time()), k -> new ArrayList<>())
+                    .add(MessageLog.builder().content(entry.content()).senderId(entry.userId()).sendTime(entry.time()).build());
+        }
+        // 重试时整批重新写入，崩溃或失败前已经写入的部分可能重复
+        collections.forEach((name, messageLogs) -> mongoTemplate.insert(messageLogs, name));
+    }
+
+    private void expire(Path segment) throws IOException {
+        long offset = offsets.getOrDefault(segment, 0L);
+        List<SegmentLog.Entry> rest = new ArrayList<>();
+        try (SegmentLog.Reader reader = new SegmentLog.Reader(segment, offset)) {
+            while (reader.next(config.getBatchSize(), rest) > 0) {
+                expiredCounter.increment(rest.size());
+                rest.clear();
+            }
+        }
+        log.warn("消息日志段 {} 超过保留时间仍未导入，已删除", segment.getFileName());
+        offsets.remove(segment);
+        Files.delete(segment);
+        pending.decrementAndGet();
+    }
+}
@@ -0,0 +1,316 @@
+package com.vim.tio.messages;
+
+import cn.hutool.core.util.IdUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.alibaba.fastjson2.JSON;
+import com.vim.common.enums.SendCodeEnum;
+import com.vim.common.utils.ChatUtils;
+import com.vim.tio.codec.BinaryCodec;
+import com.vim.tio.codec.WsCodec;
+import com.vim.tio.codec.WsFrameEncoder;
+import org.tio.core.ChannelContext;
+import org.tio.websocket.common.Opcode;
+import org.tio.websocket.common.WsResponse;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 一帧 websocket 消息的解析结果
+ * 收到消息时只解析一次，时间戳和 id 也只在这里生成一次，
+ * 后面的存储、投递都复用这里的 {@link Message} 和已经编码好的帧，保证存储和下发的是同一份数据。
+ * json 帧和二进制帧都是第一次用到时才编码，之后所有接收人共用
+ *
+ * @author 乐天
+ */
+public final class MessageContext {
+
+    /**
+     * 发送码
+     */
+    private final String code;
+
+    /**
+     * 解析好的消息，只有聊天消息和其他转发消息才有
+     */
+    private final Message message;
+
+    /**
+     * 原始的 SendInfo，二进制帧解码出来的聊天消息用到时才生成
+     */
+    private volatile SendInfo sendInfo;
+
+    /**
+     * json 帧（utf-8）
+     */
+    private volatile byte[] frame;
+
+    /**
+     * 二进制帧
+     */
+    private volatile byte[] binaryFrame;
+
+    private volatile WsResponse response;
+
+    private volatile WsResponse binaryResponse;
+
+    /**
+     * 编码好的完整 websocket 帧，群发时所有接收人共用
+     */
+    private volatile ByteBuffer encoded;
+
+    private volatile ByteBuffer binaryEncoded;
+
+    private MessageContext(String code, SendInfo sendInfo, Message message, byte[] frame, byte[] binaryFrame) {
+        this.code = code;
+        this.sendInfo = sendInfo;
+        this.message = message;
+        this.frame = frame;
+        this.binaryFrame = binaryFrame;
+    }
+
+    /**
+     * 解析客户端发上来的文本帧
+     *
+     * @param text 文本帧
+     * @return MessageContext
+     */
+    public static MessageContext parse(String text) {
+        SendInfo sendInfo = JSON.parseObject(text, SendInfo.class);
+        String code = sendInfo.getCode();
+        if (SendCodeEnum.MESSAGE.getCode().equals(code)) {
+            JSONObject jsonObject = sendInfo.getMessage();
+            jsonObject.set("timestamp", System.currentTimeMillis());
+            if (StrUtil.isBlank(jsonObject.getStr("id"))) {
+                jsonObject.set("id", IdUtil.getSnowflakeNextIdStr());
+            }
+            Message message = JSONUtil.toBean(jsonObject, Message.class);
+            message.setChatKey(ChatUtils.getChatKey(message.getFromId(), message.getChatId(), message.getChatType()));
+            return new MessageContext(code, sendInfo, message, null, null);
+        }
+        // 其他消息原样转发
+        return new MessageContext(code, sendInfo, toMessage(sendInfo), text.getBytes(StandardCharsets.UTF_8), null);
+    }
+
+    /**
+     * 解析客户端发上来的二进制帧，格式见 {@link BinaryCodec}
+     *
+     * @param bytes 二进制帧
+     * @return MessageContext
+     */
+    public static MessageContext parse(byte[] bytes) {
+        SendCodeEnum code = BinaryCodec.code(bytes);
+        switch (code) {
+            case MESSAGE -> {
+                Message message = BinaryCodec.decodeMessage(bytes);
+                message.setTimestamp(System.currentTimeMillis());
+                if (StrUtil.isBlank(message.getId())) {
+                    message.setId(IdUtil.getSnowflakeNextIdStr());
+                }
+                message.setChatKey(ChatUtils.getChatKey(message.getFromId(), message.getChatId(), message.getChatType()));
+                return new MessageContext(code.getCode(), null, message, null, null);
+            }
+            case READ -> {
+                ReadReceipt readReceipt = BinaryCodec.decodeReceipt(bytes);
+                JSONObject jsonObject = new JSONObject();
+                jsonObject.set("chatId", readReceipt.getChatId());
+                jsonObject.set("fromId", readReceipt.getFromId());
+                jsonObject.set("timestamp", readReceipt.getTimestamp());
+                jsonObject.set("type", readReceipt.getType());
+                SendInfo sendInfo = new SendInfo(code.getCode(), jsonObject);
+                return new MessageContext(code.getCode(), sendInfo, null, null, bytes);
+            }
+            default -> {
+                SendInfo sendInfo = new SendInfo(code.getCode(), BinaryCodec.decodeJson(bytes));
+                return new MessageContext(code.getCode(), sendInfo, toMessage(sendInfo), null, bytes);
+            }
+        }
+    }
+
+    /**
+     * 已经编码好的帧，比如其他节点转发过来的，不再生成时间戳和 id
+     *
+     * @param text 文本帧
+     * @return MessageContext
+     */
+    public static MessageContext wrap(String text) {
+        SendInfo sendInfo = JSON.parseObject(text, SendInfo.class);
+        return new MessageContext(sendInfo.getCode(), sendInfo, null, text.getBytes(StandardCharsets.UTF_8), null);
+    }
+
+    /**
+     * 服务端自己产生的聊天消息，比如接口推送、离线消息
+     *
+     * @param message 消息
+     * @return MessageContext
+     */
+    public static MessageContext of(Message message) {
+        return new MessageContext(SendCodeEnum.MESSAGE.getCode(), null, message, null, null);
+    }
+
+    /**
+     * 服务端自己产生的其他消息，比如已读回执、下线通知
+     *
+     * @param sendInfo 消息
+     * @return MessageContext
+     */
+    public static MessageContext of(SendInfo sendInfo) {
+        return new MessageContext(sendInfo.getCode(), sendInfo, null, null, null);
+    }
+
+    private static Message toMessage(SendInfo sendInfo) {
+        String code = sendInfo.getCode();
+        if (SendCodeEnum.READY.getCode().equals(code) || SendCodeEnum.READ.getCode().equals(code) || sendInfo.getMessage() == null) {
+            return null;
+        }
+        return JSONUtil.toBean(sendInfo.getMessage(), Message.class);
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    public SendInfo getSendInfo() {
+        SendInfo info = sendInfo;
+        if (info == null) {
+            info = new SendInfo(code, JSONUtil.parseObj(message));
+            sendInfo = info;
+        }
+        return info;
+    }
+
+    /**
+     * json 帧内容（utf-8）
+     *
+     * @return 帧
+     */
+    public byte[] getFrame() {
+        byte[] bytes = frame;
+        if (bytes == null) {
+            bytes = JSON.toJSONBytes(getSendInfo());
+            frame = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * json 帧的文本形式
+     *
+     * @return 文本
+     */
+    public String getText() {
+        return new String(getFrame(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 二进制帧内容
+     *
+     * @return 帧
+     */
+    public byte[] getBinaryFrame() {
+        byte[] bytes = binaryFrame;
+        if (bytes == null) {
+            SendCodeEnum sendCode = SendCodeEnum.of(code);
+            if (sendCode == null) {
+                throw new IllegalArgumentException("不认识的发送码: " + code);
+            }
+            bytes = switch (sendCode) {
+                case MESSAGE -> BinaryCodec.encodeMessage(message != null ? message : JSONUtil.toBean(getSendInfo().getMessage(), Message.class));
+                case READ -> BinaryCodec.encodeReceipt(JSONUtil.toBean(getSendInfo().getMessage(), ReadReceipt.class));
+                default -> BinaryCodec.encodeJson(sendCode, getSendInfo().getMessage());
+            };
+            binaryFrame = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * json 响应，所有接收人共用
+     *
+     * @return WsResponse
+     */
+    public WsResponse getResponse() {
+        WsResponse wsResponse = response;
+        if (wsResponse == null) {
+            wsResponse = new WsResponse();
+            wsResponse.setBody(getFrame());
+            wsResponse.setWsOpcode(Opcode.TEXT);
+            response = wsResponse;
+        }
+        return wsResponse;
+    }
+
+    /**
+     * 二进制响应，所有接收人共用
+     *
+     * @return WsResponse
+     */
+    public WsResponse getBinaryResponse() {
+        WsResponse wsResponse = binaryResponse;
+        if (wsResponse == null) {
+            wsResponse = new WsResponse();
+            wsResponse.setBody(getBinaryFrame());
+            wsResponse.setWsOpcode(Opcode.BINARY);
+            binaryResponse = wsResponse;
+        }
+        return wsResponse;
+    }
+
+    /**
+     * 按连接协商的编码取响应
+     *
+     * @param channelContext 连接
+     * @return WsResponse
+     */
+    public WsResponse getResponse(ChannelContext channelContext) {
+        return WsCodec.of(channelContext) == WsCodec.BINARY ? getBinaryResponse() : getResponse();
+    }
+
+    /**
+     * 给一个接收人生成单独的响应，websocket 帧只编码一次，所有接收人共用同一份内容
+     *
+     * @param channelContext 连接
+     * @return WsResponse
+     */
+    public WsResponse newResponse(ChannelContext channelContext) {
+        WsResponse wsResponse = new WsResponse();
+        if (WsCodec.of(channelContext) == WsCodec.BINARY) {
+            wsResponse.setBody(getBinaryFrame());
+            wsResponse.setWsOpcode(Opcode.BINARY);
+        } else {
+            wsResponse.setBody(getFrame());
+            wsResponse.setWsOpcode(Opcode.TEXT);
+        }
+        wsResponse.setPreEncodedByteBuffer(getEncoded(channelContext));
+        return wsResponse;
+    }
+
+    /**
+     * 按连接协商的编码取编码好的完整 websocket 帧
+     *
+     * @param channelContext 连接
+     * @return 共用内容的 ByteBuffer，调用方各自维护读写位置
+     */
+    public ByteBuffer getEncoded(ChannelContext channelContext) {
+        if (WsCodec.of(channelContext) == WsCodec.BINARY) {
+            ByteBuffer buffer = binaryEncoded;
+            if (buffer == null) {
+                buffer = WsFrameEncoder.encode(WsFrameEncoder.BINARY, getBinaryFrame());
+                binaryEncoded = buffer;
+            }
+            return buffer.duplicate();
+        }
+        ByteBuffer buffer = encoded;
+        if (buffer == null) {
+            buffer = WsFrameEncoder.encode(WsFrameEncoder.TEXT, getFrame());
+            encoded = buffer;
+        }
+        return buffer.duplicate();
+    }
+}
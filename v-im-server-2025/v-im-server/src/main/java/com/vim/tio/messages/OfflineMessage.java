@@ -0,0 +1,49 @@
+package com.vim.tio.messages;
+
+import cn.hutool.core.bean.BeanUtil;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+import java.io.Serial;
+import java.util.Date;
+
+/**
+ * 离线收件箱里的消息，所有用户的离线消息在同一个集合里，按 (user_id, timestamp) 查询
+ *
+ * @author 乐天
+ */
+@Data
+@EqualsAndHashCode(callSuper = true)
+public class OfflineMessage extends Message {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 收件人id
+     */
+    @Field("user_id")
+    private String userId;
+
+    /**
+     * 过期时间，TTL 索引到时间自动删除
+     */
+    @Field("expire_at")
+    private Date expireAt;
+
+    /**
+     * 放进收件箱的消息
+     *
+     * @param message  消息
+     * @param userId   收件人id
+     * @param expireAt 过期时间
+     * @return OfflineMessage
+     */
+    public static OfflineMessage of(Message message, String userId, Date expireAt) {
+        OfflineMessage offlineMessage = BeanUtil.copyProperties(message, OfflineMessage.class);
+        offlineMessage.setUserId(userId);
+        offlineMessage.setExpireAt(expireAt);
+        return offlineMessage;
+    }
+}
@@ -16,4 +16,7 @@ public class ReadyAuth {
 
     // uuid
     private String uuid;
+
+    // 帧编码，json 或者 binary，不传默认 json
+    private String codec;
 }
@@ -0,0 +1,29 @@
+package com.vim.tio.outbound;
+
+import org.tio.core.intf.Packet;
+import org.tio.websocket.common.WsResponse;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * 合并写的响应，内容是多个编码好的 websocket 帧首尾相接，tio 一次写出去
+ *
+ * @author 乐天
+ */
+public class BatchResponse extends WsResponse {
+
+    /**
+     * 合并的原始响应，发出去以后按这些响应减去记账
+     */
+    private final List<Packet> packets;
+
+    public BatchResponse(ByteBuffer buffer, List<Packet> packets) {
+        this.packets = packets;
+        setPreEncodedByteBuffer(buffer);
+    }
+
+    public List<Packet> getPackets() {
+        return packets;
+    }
+}
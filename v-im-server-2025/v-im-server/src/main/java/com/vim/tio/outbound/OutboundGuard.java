@@ -0,0 +1,390 @@
+package com.vim.tio.outbound;
+
+import cn.hutool.json.JSONObject;
+import com.vim.common.config.VimConfig;
+import com.vim.common.enums.SendCodeEnum;
+import com.vim.tio.messages.MessageContext;
+import com.vim.tio.messages.SendInfo;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.tio.core.ChannelContext;
+import org.tio.core.Tio;
+import org.tio.core.intf.Packet;
+import org.tio.websocket.common.WsPacket;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 发送队列限制
+ * tio 的发送队列没有上限，一个网络很差的手机连接在活跃的大群里会在堆上积压大量待发送的帧。
+ * 这里按连接记录已经交给 tio 还没发出去的帧数和字节数：发送时记下这个响应和它的字节数，{@code onAfterSent} 时只减记过账的响应
+ * （合并写的按合并的原始响应减），没记账就发出去的（resume 提示、开启限制之前交给 tio 的）不影响计数。
+ * 超过高水位后连接进入拥塞状态，低优先级的帧（正在输入这类客户端自定义的事件、未读提醒）按策略丢弃或者合并成最新的一条
+ * （按发送码加会话合并，离线补发给每个群的未读提醒各留一条），降到低水位以下再把合并的帧发出去；
+ * disconnect 策略或者超过上限时，发一个 resume 提示后断开，客户端重连后按已读位置补发。
+ * 定时输出积压最多的连接
+ *
+ * @author 乐天
+ */
+@Slf4j
+@Component
+public class OutboundGuard {
+
+    public static final String POLICY_DROP = "drop";
+
+    public static final String POLICY_COALESCE = "coalesce";
+
+    public static final String POLICY_DISCONNECT = "disconnect";
+
+    private static final String ATTRIBUTE = "vim:outbound";
+
+    /**
+     * ServerAioListener 和 WsSender 不是 spring 管理的，通过静态方法调用
+     */
+    private static volatile OutboundGuard instance;
+
+    @Resource
+    private VimConfig vimConfig;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 所有有发送记录的连接，关闭时删除
+     */
+    private final Set<Stats> channels = ConcurrentHashMap.newKeySet();
+
+    private volatile Set<String> lowPriorityCodes = Set.of();
+
+    private Counter dropped;
+
+    private Counter coalesced;
+
+    private Counter disconnects;
+
+    @PostConstruct
+    public void init() {
+        lowPriorityCodes = new HashSet<>(vimConfig.getOutbound().getLowPriorityCodes());
+        dropped = Counter.builder("vim.outbound.dropped").register(meterRegistry);
+        coalesced = Counter.builder("vim.outbound.coalesced").register(meterRegistry);
+        disconnects = Counter.builder("vim.outbound.disconnects").register(meterRegistry);
+        Gauge.builder("vim.outbound.pending.bytes", channels, set -> set.stream().mapToLong(s -> s.bytes.get()).sum()).register(meterRegistry);
+        Gauge.builder("vim.outbound.pending.max", channels, set -> set.stream().mapToLong(s -> s.bytes.get()).max().orElse(0)).register(meterRegistry);
+        Gauge.builder("vim.outbound.congested", channels, set -> set.stream().filter(s -> s.congested).count()).register(meterRegistry);
+        instance = this;
+    }
+
+    /**
+     * 发送一条消息，拥塞时低优先级的按策略丢弃或合并，积压超过上限时断开
+     *
+     * @param channelContext 连接
+     * @param context        消息
+     * @param packet         给这个连接的响应
+     */
+    public static void send(ChannelContext channelContext, MessageContext context, Packet packet) {
+        OutboundGuard guard = instance;
+        // 已经关闭的连接不再建记录，否则关闭时删掉的记录又会加回来
+        if (guard == null || !guard.vimConfig.getOutbound().isEnabled() || channelContext.isClosed) {
+            WriteBatcher.write(channelContext, context, packet);
+            return;
+        }
+        guard.admit(channelContext, context, packet);
+    }
+
+    /**
+     * 发送心跳这类控制帧，只记账，不会被丢弃
+     *
+     * @param channelContext 连接
+     * @param packet         响应
+     */
+    public static void sendControl(ChannelContext channelContext, Packet packet) {
+        OutboundGuard guard = instance;
+        if (guard != null && guard.vimConfig.getOutbound().isEnabled() && !channelContext.isClosed) {
+            guard.stats(channelContext).add(packet, size(packet));
+        }
+        Tio.send(channelContext, packet);
+    }
+
+    /**
+     * 帧发出去以后调用，在 ServerAioListener.onAfterSent 里
+     *
+     * @param channelContext 连接
+     * @param packet         响应
+     */
+    public static void sent(ChannelContext channelContext, Packet packet) {
+        OutboundGuard guard = instance;
+        if (guard == null || !(packet instanceof WsPacket)) {
+            return;
+        }
+        Object stats = channelContext.get(ATTRIBUTE);
+        if (stats == null) {
+            return;
+        }
+        boolean released;
+        if (packet instanceof BatchResponse batch) {
+            released = ((Stats) stats).remove(batch.getPackets());
+        } else {
+            released = ((Stats) stats).remove(List.of(packet));
+        }
+        if (released) {
+            guard.release((Stats) stats);
+        }
+    }
+
+    /**
+     * 连接关闭，删除记录
+     *
+     * @param channelContext 连接
+     */
+    public static void closed(ChannelContext channelContext) {
+        OutboundGuard guard = instance;
+        Object stats = channelContext.get(ATTRIBUTE);
+        if (guard != null && stats != null) {
+            guard.channels.remove(stats);
+            channelContext.remove(ATTRIBUTE);
+        }
+    }
+
+    private void admit(ChannelContext channelContext, MessageContext context, Packet packet) {
+        VimConfig.Outbound config = vimConfig.getOutbound();
+        Stats stats = stats(channelContext);
+        if (stats.closing.get()) {
+            dropped.increment();
+            return;
+        }
+        if (!stats.congested && (stats.bytes.get() >= config.getHighBytes() || stats.packets.get() >= config.getHighPackets())) {
+            stats.congested = true;
+        }
+        if (stats.congested) {
+            if (POLICY_DISCONNECT.equals(config.getPolicy())) {
+                disconnect(stats, "发送队列超过高水位");
+                return;
+            }
+            if (isLowPriority(context)) {
+                if (POLICY_COALESCE.equals(config.getPolicy())) {
+                    stats.coalesce(context);
+                } else {
+                    stats.dropped++;
+                    dropped.increment();
+                }
+                return;
+            }
+        }
+        int size = size(packet);
+        if (stats.bytes.get() + size > config.getMaxBytes() || stats.packets.get() >= config.getMaxPackets()) {
+            disconnect(stats, "发送队列超过上限");
+            return;
+        }
+        stats.add(packet, size);
+        WriteBatcher.write(channelContext, context, packet);
+    }
+
+    private void release(Stats stats) {
+        if (!stats.congested) {
+            return;
+        }
+        VimConfig.Outbound config = vimConfig.getOutbound();
+        if (stats.bytes.get() > config.getLowBytes() || stats.packets.get() > config.getLowPackets()) {
+            return;
+        }
+        stats.congested = false;
+        // 降到低水位以下，把合并的帧发出去
+        for (MessageContext context : stats.drainCoalesced()) {
+            admit(stats.channelContext, context, context.getResponse(stats.channelContext));
+        }
+    }
+
+    /**
+     * 发一个 resume 提示后断开，提示本身不记账
+     * 用阻塞发送，等提示写出去（或者发送失败）以后再关闭，否则关闭会把还在队列里的提示一起丢掉；
+     * 慢连接上阻塞发送可能要等很久，放在虚拟线程里，不占用扇出和 tio 的发送线程
+     */
+    private void disconnect(Stats stats, String reason) {
+        if (!stats.closing.compareAndSet(false, true)) {
+            return;
+        }
+        disconnects.increment();
+        ChannelContext channelContext = stats.channelContext;
+        log.warn("连接 {} 用户 {} {}，积压 {} 条 {} 字节，断开", channelContext.getId(), channelContext.userid, reason,
+                stats.packets.get(), stats.bytes.get());
+        JSONObject hint = new JSONObject();
+        hint.set("reason", "slow-consumer");
+        hint.set("retryAfter", vimConfig.getOutbound().getResumeAfterMillis());
+        MessageContext context = MessageContext.of(new SendInfo(SendCodeEnum.RESUME.getCode(), hint));
+        Thread.ofVirtual().name("vim-outbound-disconnect").start(() -> {
+            Tio.bSend(channelContext, context.getResponse(channelContext));
+            Tio.close(channelContext, reason);
+        });
+    }
+
+    /**
+     * 客户端自定义的事件（不是已知的发送码）和配置里的发送码是低优先级
+     */
+    private boolean isLowPriority(MessageContext context) {
+        String code = context.getCode();
+        return SendCodeEnum.of(code) == null || lowPriorityCodes.contains(code);
+    }
+
+    private Stats stats(ChannelContext channelContext) {
+        Object stats = channelContext.get(ATTRIBUTE);
+        if (stats == null) {
+            synchronized (channelContext) {
+                stats = channelContext.get(ATTRIBUTE);
+                if (stats == null) {
+                    Stats created = new Stats(channelContext);
+                    channelContext.set(ATTRIBUTE, created);
+                    channels.add(created);
+                    stats = created;
+                }
+            }
+        }
+        return (Stats) stats;
+    }
+
+    /**
+     * 合并的 key，发送码加会话id，没有会话id 的只按发送码
+     */
+    private static String coalesceKey(MessageContext context) {
+        String chatId;
+        if (context.getMessage() != null) {
+            chatId = context.getMessage().getChatId();
+        } else {
+            JSONObject message = context.getSendInfo().getMessage();
+            chatId = message == null ? null : message.getStr("chatId");
+        }
+        return chatId == null ? context.getCode() : context.getCode() + ":" + chatId;
+    }
+
+    private static int size(Packet packet) {
+        if (packet instanceof WsPacket wsPacket && wsPacket.getBody() != null) {
+            return wsPacket.getBody().length;
+        }
+        return 0;
+    }
+
+    /**
+     * 每分钟输出一次积压最多的连接，然后开始新的统计窗口
+     */
+    @Scheduled(fixedDelay = 60000)
+    public void report() {
+        List<Stats> entries = new ArrayList<>();
+        for (Stats stats : channels) {
+            if (stats.peakBytes > 0) {
+                entries.add(stats);
+            }
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        entries.sort((a, b) -> Long.compare(b.peakBytes, a.peakBytes));
+        int top = Math.min(vimConfig.getOutbound().getReportTop(), entries.size());
+        for (int i = 0; i < top; i++) {
+            Stats stats = entries.get(i);
+            log.info("发送积压统计 channel={} user={} 当前={}条/{}字节 峰值={}字节 丢弃={} 合并={} 拥塞={}", stats.channelContext.getId(),
+                    stats.channelContext.userid, stats.packets.get(), stats.bytes.get(), stats.peakBytes, stats.dropped,
+                    stats.coalesced, stats.congested);
+        }
+        for (Stats stats : entries) {
+            stats.peakBytes = 0;
+        }
+    }
+
+    /**
+     * 一个连接的发送记录
+     */
+    private final class Stats {
+
+        private final ChannelContext channelContext;
+
+        private final AtomicLong bytes = new AtomicLong();
+
+        private final AtomicInteger packets = new AtomicInteger();
+
+        private final AtomicBoolean closing = new AtomicBoolean();
+
+        private volatile boolean congested;
+
+        /**
+         * 记过账还没发出去的响应和它的字节数，按对象比较
+         */
+        private final Map<Packet, Integer> inflight = new IdentityHashMap<>();
+
+        /**
+         * 拥塞期间合并的低优先级帧，同一个发送码、同一个会话只留最新的一条
+         */
+        private final Map<String, MessageContext> pending = new LinkedHashMap<>();
+
+        private volatile long peakBytes;
+
+        private volatile long dropped;
+
+        private volatile long coalesced;
+
+        private Stats(ChannelContext channelContext) {
+            this.channelContext = channelContext;
+        }
+
+        synchronized void add(Packet packet, int size) {
+            if (inflight.putIfAbsent(packet, size) != null) {
+                return;
+            }
+            packets.incrementAndGet();
+            long current = bytes.addAndGet(size);
+            if (current > peakBytes) {
+                peakBytes = current;
+            }
+        }
+
+        /**
+         * 减去发出去的响应，只减记过账的
+         *
+         * @return 是否有记过账的响应
+         */
+        synchronized boolean remove(List<Packet> sent) {
+            boolean removed = false;
+            for (Packet packet : sent) {
+                Integer size = inflight.remove(packet);
+                if (size != null) {
+                    packets.decrementAndGet();
+                    bytes.addAndGet(-size);
+                    removed = true;
+                }
+            }
+            return removed;
+        }
+
+        synchronized void coalesce(MessageContext context) {
+            String key = coalesceKey(context);
+            if (pending.remove(key) != null) {
+                this.coalesced++;
+                OutboundGuard.this.coalesced.increment();
+            }
+            pending.put(key, context);
+        }
+
+        synchronized List<MessageContext> drainCoalesced() {
+            if (pending.isEmpty()) {
+                return List.of();
+            }
+            List<MessageContext> contexts = new ArrayList<>(pending.values());
+            pending.clear();
+            return contexts;
+        }
+    }
+}
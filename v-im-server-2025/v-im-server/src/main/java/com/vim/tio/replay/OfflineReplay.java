@@ -0,0 +1,165 @@
+package com.vim.tio.replay;
+
+import cn.hutool.json.JSONObject;
+import com.vim.common.config.VimConfig;
+import com.vim.common.enums.SendCodeEnum;
+import com.vim.modules.group.result.Group;
+import com.vim.sdk.service.VimGroupApiService;
+import com.vim.sdk.service.VimMessageService;
+import com.vim.tio.codec.WsSender;
+import com.vim.tio.messages.Message;
+import com.vim.tio.messages.MessageContext;
+import com.vim.tio.messages.SendInfo;
+import com.vim.tio.result.GroupUnread;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.tio.core.ChannelContext;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * 离线消息补发
+ * 连接就绪后先通过游标分批发送私聊离线消息，再逐个发送有新消息的群的未读，
+ * 群未读超过上限时只发最近的部分，再发一条 {@link SendCodeEnum#UNREAD} 通知客户端按需拉取更早的。
+ * 批次之间交给调度线程按间隔继续，不占用 tio 的处理线程，也不再重复保存消息
+ *
+ * @author 乐天
+ */
+@Slf4j
+@Component
+public class OfflineReplay {
+
+    @Resource
+    private VimConfig vimConfig;
+
+    @Resource
+    private VimMessageService vimMessageService;
+
+    @Resource
+    private VimGroupApiService vimGroupApiService;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger index = new AtomicInteger();
+        scheduler = Executors.newScheduledThreadPool(Math.max(1, vimConfig.getReplay().getThreads()), r -> {
+            Thread thread = new Thread(r, "vim-offline-replay-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 开始给连接补发离线消息，立即返回
+     *
+     * @param channelContext 连接
+     */
+    public void replay(ChannelContext channelContext) {
+        scheduler.execute(new ReplayTask(channelContext));
+    }
+
+    private class ReplayTask implements Runnable {
+
+        private final ChannelContext channelContext;
+
+        private final long start = System.currentTimeMillis();
+
+        private Stream<Message> stream;
+
+        private Iterator<Message> iterator;
+
+        /**
+         * 还没有查询的群，群id -> 已读时间
+         */
+        private Iterator<Map.Entry<String, Long>> groups;
+
+        private int sent;
+
+        private int queried;
+
+        private ReplayTask(ChannelContext channelContext) {
+            this.channelContext = channelContext;
+        }
+
+        @Override
+        public void run() {
+            VimConfig.Replay config = vimConfig.getReplay();
+            try {
+                if (channelContext.isClosed) {
+                    close();
+                    return;
+                }
+                if (stream == null) {
+                    String userId = channelContext.userid;
+                    List<String> groupIds = vimGroupApiService.getGroups(userId).stream().map(Group::getId).toList();
+                    stream = vimMessageService.unreadStream(userId, config.getBatchSize());
+                    iterator = stream.iterator();
+                    groups = vimMessageService.unreadGroupMarks(userId, groupIds).entrySet().iterator();
+                }
+                int count = 0;
+                while (count < config.getBatchSize() && hasNext()) {
+                    WsSender.send(channelContext, MessageContext.of(iterator.next()));
+                    count++;
+                }
+                sent += count;
+                if (hasNext()) {
+                    scheduler.schedule(this, config.getIntervalMillis(), TimeUnit.MILLISECONDS);
+                } else {
+                    close();
+                }
+            } catch (Exception e) {
+                log.error("用户 {} 离线消息补发失败，已发送 {} 条", channelContext.userid, sent, e);
+                close();
+            }
+        }
+
+        /**
+         * 当前的消息发完了就查下一个群，群未读超过上限时先发通知
+         */
+        private boolean hasNext() {
+            while (!iterator.hasNext()) {
+                if (!groups.hasNext()) {
+                    return false;
+                }
+                Map.Entry<String, Long> group = groups.next();
+                GroupUnread<Message> unread = vimMessageService.unreadGroup(group.getKey(), group.getValue());
+                queried++;
+                if (unread.isOverflow()) {
+                    JSONObject notice = new JSONObject();
+                    notice.set("chatId", unread.getChatId());
+                    notice.set("count", unread.getCount());
+                    notice.set("countEstimated", unread.isCountEstimated());
+                    notice.set("next", unread.getNext());
+                    WsSender.send(channelContext, MessageContext.of(new SendInfo(SendCodeEnum.UNREAD.getCode(), notice)));
+                }
+                iterator = unread.getRecords().iterator();
+            }
+            return true;
+        }
+
+        private void close() {
+            if (stream != null) {
+                stream.close();
+            }
+            if (sent > 0) {
+                log.debug("用户 {} 离线消息补发 {} 条，查询 {} 个群，耗时 {}ms", channelContext.userid, sent, queried, System.currentTimeMillis() - start);
+            }
+        }
+    }
+}
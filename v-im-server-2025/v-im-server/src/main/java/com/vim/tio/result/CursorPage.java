@@ -0,0 +1,41 @@
+package com.vim.tio.result;
+
+import lombok.Data;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * 游标分页结果。
+ * 按 (timestamp, _id) 倒序翻页，next 为空说明已经到最早的一页。
+ *
+ * @param <T> 记录类型
+ * @author 乐天
+ */
+@Data
+public class CursorPage<T> implements Serializable {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 当前页记录，按时间倒序
+     */
+    private List<T> records;
+
+    /**
+     * 下一页的游标，原样传回即可
+     */
+    private String next;
+
+    /**
+     * 总条数，不统计时为空
+     */
+    private Long total;
+
+    /**
+     * 总条数是否是估算的（超过统计上限）
+     */
+    private boolean totalEstimated;
+}
@@ -0,0 +1,51 @@
+package com.vim.tio.result;
+
+import lombok.Data;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * 一个群的未读消息。
+ * 未读太多时只带最近的一部分，next 是游标分页的游标，客户端用它按需拉取更早的未读
+ *
+ * @param <T> 记录类型
+ * @author 乐天
+ */
+@Data
+public class GroupUnread<T> implements Serializable {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 群id
+     */
+    private String chatId;
+
+    /**
+     * 补发的消息，按时间升序
+     */
+    private List<T> records;
+
+    /**
+     * 未读条数
+     */
+    private long count;
+
+    /**
+     * 未读条数是否是估算的（超过统计上限）
+     */
+    private boolean countEstimated;
+
+    /**
+     * 是否超过了补发上限，只补发了最近的消息
+     */
+    private boolean overflow;
+
+    /**
+     * 更早未读的游标，没有超过上限时为空
+     */
+    private String next;
+}
@@ -0,0 +1,49 @@
+package com.vim.tio.result;
+
+import lombok.Data;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+/**
+ * 消息游标分页参数。
+ * 过滤条件沿用 {@link MessagePage}，这里只有翻页相关的参数。
+ *
+ * @author 乐天
+ */
+@Data
+public class MessageCursor implements Serializable {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 不统计总条数
+     */
+    public static final String COUNT_NONE = "none";
+
+    /**
+     * 统计到上限为止，超过上限返回上限并标记为估算
+     */
+    public static final String COUNT_ESTIMATE = "estimate";
+
+    /**
+     * 精确统计
+     */
+    public static final String COUNT_EXACT = "exact";
+
+    /**
+     * 上一页返回的 next，第一页不传
+     */
+    private String cursor;
+
+    /**
+     * 每页条数
+     */
+    private int size = 20;
+
+    /**
+     * 总条数统计方式：none、estimate、exact
+     */
+    private String count = COUNT_NONE;
+}
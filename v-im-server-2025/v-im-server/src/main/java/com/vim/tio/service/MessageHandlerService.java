@@ -1,8 +1,8 @@
 package com.vim.tio.service;
 
-import com.vim.tio.messages.SendInfo;
+import com.vim.tio.messages.MessageContext;
 import org.tio.core.ChannelContext;
-import org.tio.websocket.common.WsResponse;
+import org.tio.core.TioConfig;
 
 public interface MessageHandlerService {
 
@@ -10,35 +10,34 @@ public interface MessageHandlerService {
      * 处理好友消息
      *
      * @param channelContext tio上下文
-     * @param sendInfo        消息内容
-     * @param wsResponse     websocket响应
+     * @param context        解析好的消息
      */
-    void handleFriendMessage(ChannelContext channelContext, SendInfo sendInfo, WsResponse wsResponse);
+    void handleFriendMessage(ChannelContext channelContext, MessageContext context);
 
     /**
      * 处理群聊消息
      *
      * @param channelContext tio上下文
-     * @param sendInfo        消息内容
-     * @param wsResponse     websocket响应
+     * @param context        解析好的消息
      * @throws Exception 异常
      */
-    void handleGroupMessage(ChannelContext channelContext, SendInfo sendInfo, WsResponse wsResponse) throws Exception;
+    void handleGroupMessage(ChannelContext channelContext, MessageContext context) throws Exception;
 
     /**
      * 处理消息已读
      *
-     * @param sendInfo 消息信息
+     * @param context 解析好的消息
      * @throws Exception 异常
      */
-    void handleReadMessage(SendInfo sendInfo) throws Exception;
+    void handleReadMessage(MessageContext context) throws Exception;
 
     /**
      * 处理其他消息
      *
-     * @param sendInfo 消息信息
+     * @param channelContext 连接上下文
+     * @param context        解析好的消息
      */
-    void handleOtherMessage(ChannelContext channelContext, SendInfo sendInfo, String text);
+    void handleOtherMessage(ChannelContext channelContext, MessageContext context);
 
     /**
      * 加载离线消息，并发送
@@ -52,10 +51,10 @@ public interface MessageHandlerService {
      * 处理接收到的消息
      *
      * @param channelContext 连接上下文
-     * @param sendInfo       消息信息
+     * @param context        解析好的消息
      * @throws Exception 异常
      */
-    void handleMessage(ChannelContext channelContext, SendInfo sendInfo) throws Exception;
+    void handleMessage(ChannelContext channelContext, MessageContext context) throws Exception;
 
 
     /**
@@ -65,4 +64,41 @@ public interface MessageHandlerService {
      * @param userId         用户ID
      */
     void bindUserGroups(ChannelContext channelContext, String userId);
-}
\ No newline at end of file
+
+    /**
+     * 解绑用户，连接关闭前调用
+     * 用户id 和 tio 配置由调用方在关闭时记下来，清理可能排在后面执行，那时 tio 已经把连接上的 userid 清掉了
+     *
+     * @param tioConfig      tio 配置
+     * @param userId         连接绑定的用户ID
+     * @param channelContext 正在关闭的连接
+     */
+    void unbindUser(TioConfig tioConfig, String userId, ChannelContext channelContext);
+
+    /**
+     * 发送给用户的所有连接，集群模式下包括其他节点上的
+     *
+     * @param tioConfig tio 配置
+     * @param userId    用户ID
+     * @param context   解析好的消息
+     */
+    void sendToUser(TioConfig tioConfig, String userId, MessageContext context);
+
+    /**
+     * 用户是否在线，集群模式下包括其他节点上的连接
+     *
+     * @param tioConfig tio 配置
+     * @param userId    用户ID
+     * @return boolean
+     */
+    boolean isOnline(TioConfig tioConfig, String userId);
+
+    /**
+     * 发送给群里的所有连接，集群模式下包括其他节点上的
+     *
+     * @param tioConfig tio 配置
+     * @param groupId   群ID
+     * @param context   解析好的消息
+     */
+    void sendToGroup(TioConfig tioConfig, String groupId, MessageContext context);
+}
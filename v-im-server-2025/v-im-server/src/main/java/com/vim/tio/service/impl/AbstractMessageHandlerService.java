@@ -1,19 +1,19 @@
 package com.vim.tio.service.impl;
 
-import cn.hutool.core.util.IdUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
-import com.alibaba.fastjson2.JSON;
 import com.vim.common.enums.ChatTypeEnum;
 import com.vim.common.enums.DictSwitchEnum;
-import com.vim.common.enums.SendCodeEnum;
 import com.vim.modules.group.result.Group;
+import com.vim.sdk.cache.ChatSummaryStore;
+import com.vim.sdk.cache.GroupMemberIndex;
 import com.vim.sdk.service.VimGroupApiService;
 import com.vim.sdk.service.VimMessageService;
+import com.vim.tio.codec.WsSender;
+import com.vim.tio.fanout.GroupFanout;
 import com.vim.tio.messages.Message;
+import com.vim.tio.messages.MessageContext;
 import com.vim.tio.messages.ReadReceipt;
-import com.vim.tio.messages.SendInfo;
+import com.vim.tio.replay.OfflineReplay;
 import com.vim.tio.service.MessageHandlerService;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
@@ -22,11 +22,9 @@ import org.springframework.stereotype.Service;
 import org.tio.core.ChannelContext;
 import org.tio.core.Tio;
 import org.tio.core.TioConfig;
-import org.tio.websocket.common.WsResponse;
+import org.tio.utils.lock.SetWithLock;
 
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
 
 /**
  * 抽象消息处理服务类，包含处理好友消息、群聊消息、消息已读、加载离线消息等功能。
@@ -54,54 +52,74 @@ public abstract class AbstractMessageHandlerService implements MessageHandlerSer
     @Resource
     protected RedisTemplate<String, String> redisTemplate;
 
+    /**
+     * 群消息扇出
+     */
+    @Resource
+    protected GroupFanout groupFanout;
+
+    /**
+     * 离线消息补发
+     */
+    @Resource
+    protected OfflineReplay offlineReplay;
+
+    /**
+     * 群成员索引
+     */
+    @Resource
+    protected GroupMemberIndex groupMemberIndex;
+
+    /**
+     * 会话摘要
+     */
+    @Resource
+    protected ChatSummaryStore chatSummaryStore;
+
 
     /**
      * 处理好友消息。
      *
      * @param channelContext 当前通道上下文
-     * @param sendInfo       消息对象
-     * @param wsResponse     WebSocket响应对象
+     * @param context        解析好的消息
      */
     @Override
-    public abstract void handleFriendMessage(ChannelContext channelContext, SendInfo sendInfo, WsResponse wsResponse);
+    public abstract void handleFriendMessage(ChannelContext channelContext, MessageContext context);
 
 
     /**
      * 投递在线用户消息。
      *
      * @param channelContext 当前通道上下文
-     * @param sendInfo       消息对象
-     * @param wsResponse     WebSocket响应对象
+     * @param context        解析好的消息
      * @throws Exception 异常
      */
-    protected abstract void deliverOnlineMessage(ChannelContext channelContext, SendInfo sendInfo, WsResponse wsResponse) throws Exception;
+    protected abstract void deliverOnlineMessage(ChannelContext channelContext, MessageContext context) throws Exception;
 
     /**
      * 投递群聊消息。
      *
-     * @param sendInfo       sendInfo
+     * @param context        解析好的消息
      * @param channelContext 当前通道上下文
-     * @param wsResponse     WebSocket响应对象
      * @throws Exception 异常
      */
-    protected abstract void deliverGroupMessage(SendInfo sendInfo, ChannelContext channelContext, WsResponse wsResponse) throws Exception;
+    protected abstract void deliverGroupMessage(MessageContext context, ChannelContext channelContext) throws Exception;
 
 
     /**
      * 接受并处理消息。
      *
      * @param channelContext 当前通道上下文
-     * @param sendInfo       消息信息
+     * @param context        解析好的消息
      * @throws Exception 异常
      */
     @Override
-    public void handleMessage(ChannelContext channelContext, SendInfo sendInfo) throws Exception {
-        Message message = parseMessage(sendInfo);
-        WsResponse wsResponse = WsResponse.fromText(JSON.toJSONString(sendInfo), "utf-8");
-        if (ChatTypeEnum.FRIEND.getCode().equals(message.getChatType())) {
-            handleFriendMessage(channelContext, sendInfo, wsResponse);
+    public void handleMessage(ChannelContext channelContext, MessageContext context) throws Exception {
+        if (ChatTypeEnum.FRIEND.getCode().equals(context.getMessage().getChatType())) {
+            handleFriendMessage(channelContext, context);
+            chatSummaryStore.onSend(context.getMessage());
         } else {
-            handleGroupMessage(channelContext, sendInfo, wsResponse);
+            handleGroupMessage(channelContext, context);
         }
     }
 
@@ -109,13 +127,12 @@ public abstract class AbstractMessageHandlerService implements MessageHandlerSer
      * 处理群聊消息。
      *
      * @param channelContext 当前通道上下文
-     * @param sendInfo       SendInfo
-     * @param wsResponse     WebSocket响应对象
+     * @param context        解析好的消息
      * @throws Exception 异常
      */
     @Override
-    public void handleGroupMessage(ChannelContext channelContext, SendInfo sendInfo, WsResponse wsResponse) throws Exception {
-        Message message = parseMessage(sendInfo);
+    public void handleGroupMessage(ChannelContext channelContext, MessageContext context) throws Exception {
+        Message message = context.getMessage();
         String groupId = message.getChatId();
         if (!canSendGroupMessage(channelContext, groupId)) {
             log.warn("用户 {} 没有权限发送群 {} 的消息", channelContext.userid, groupId);
@@ -123,7 +140,9 @@ public abstract class AbstractMessageHandlerService implements MessageHandlerSer
         }
         try {
             handleGroupMessageStorage(message);
-            deliverGroupMessage(sendInfo, channelContext, wsResponse);
+            deliverGroupMessage(context, channelContext);
+            // 群摘要要更新所有成员，放到扇出线程池里，不拖慢发送
+            groupFanout.execute(() -> updateSummary(message));
         } catch (Exception e) {
             log.error("处理群消息失败: groupId={} ", groupId, e);
             throw e;
@@ -131,6 +150,14 @@ public abstract class AbstractMessageHandlerService implements MessageHandlerSer
     }
 
 
+    private void updateSummary(Message message) {
+        try {
+            chatSummaryStore.onSend(message);
+        } catch (Exception e) {
+            log.warn("更新群 {} 的会话摘要失败: {}", message.getChatId(), e.getMessage());
+        }
+    }
+
     /**
      * 处理群聊消息的存储。
      *
@@ -149,131 +176,114 @@ public abstract class AbstractMessageHandlerService implements MessageHandlerSer
      * @return 是否有权限发送群聊消息
      */
     protected boolean canSendGroupMessage(ChannelContext channelContext, String groupId) {
-        return vimGroupApiService.getUserIdsByGroupId(groupId).contains(channelContext.userid);
+        return groupMemberIndex.contains(groupId, channelContext.userid);
     }
 
     /**
      * 处理消息已读。
      *
-     * @param sendInfo 消息信息
+     * @param context 解析好的消息
      * @throws Exception 异常
      */
     @Override
-    public void handleReadMessage(SendInfo sendInfo) throws Exception {
-        JSONObject jsonObject = sendInfo.getMessage();
-        ReadReceipt readReceipt = JSONUtil.toBean(jsonObject, ReadReceipt.class);
-        readReceipt.setTimestamp(System.currentTimeMillis());
-        vimMessageService.receipt(readReceipt.getChatId(), readReceipt.getFromId(), readReceipt.getType(), System.currentTimeMillis());
+    public void handleReadMessage(MessageContext context) throws Exception {
+        ReadReceipt readReceipt = JSONUtil.toBean(context.getSendInfo().getMessage(), ReadReceipt.class);
+        long timestamp = System.currentTimeMillis();
+        readReceipt.setTimestamp(timestamp);
+        vimMessageService.receipt(readReceipt.getChatId(), readReceipt.getFromId(), readReceipt.getType(), timestamp);
     }
 
     /**
      * 其他消息直接转发
      *
      * @param channelContext Tio 上下文
-     * @param sendInfo       消息信息
+     * @param context        解析好的消息
      */
     @Override
-    public void handleOtherMessage(ChannelContext channelContext, SendInfo sendInfo, String text) {
-        Message message = parseMessage(sendInfo);
+    public void handleOtherMessage(ChannelContext channelContext, MessageContext context) {
+        Message message = context.getMessage();
         String chatId = String.valueOf(message.getChatId());
-        WsResponse wsResponse = WsResponse.fromText(text, "utf-8");
         if (message.getChatType().equals(ChatTypeEnum.FRIEND.getCode())) {
-            Tio.sendToUser(channelContext.tioConfig, chatId, wsResponse);
+            WsSender.sendToUser(channelContext.tioConfig, chatId, context);
         } else {
-            Tio.sendToGroup(channelContext.tioConfig, chatId, wsResponse);
+            groupFanout.fanout(channelContext.tioConfig, chatId, context);
         }
     }
 
     /**
      * 加载离线消息并发送。
+     * 私聊离线消息和所有群的未读消息一次查出，分批发送给当前连接，不阻塞当前线程。
      *
      * @param channelContext 当前通道上下文
      * @throws Exception 异常
      */
     @Override
     public void handleOffLineMessage(ChannelContext channelContext) throws Exception {
-        String userId = channelContext.userid;
-        TioConfig tioConfig = channelContext.tioConfig;
+        offlineReplay.replay(channelContext);
+    }
 
-        // 发送私聊离线消息
-        sendMessage(tioConfig, vimMessageService.unreadList(userId, null), userId);
+    /**
+     * 绑定用户群组。
+     *
+     * @param channelContext 当前通道上下文
+     * @param userId         用户ID
+     */
+    @Override
+    public void bindUserGroups(ChannelContext channelContext, String userId) {
         List<Group> groups = vimGroupApiService.getGroups(userId);
         for (Group group : groups) {
-            // 发送群聊离线消息
-            sendMessage(tioConfig, vimMessageService.unreadGroupList(userId, group.getId()), userId);
+            if (DictSwitchEnum.NO.getCode().equals(group.getProhibition())) {
+                Tio.bindGroup(channelContext, group.getId());
+            }
         }
     }
 
     /**
-     * 发送消息。
+     * 解绑用户，单节点模式下 tio 会自己清理绑定关系，不需要额外处理。
      *
-     * @param tioConfig   TIO配置对象
-     * @param messageList 消息列表
-     * @param userId      用户ID
-     * @throws Exception 异常
+     * @param tioConfig      tio 配置
+     * @param userId         连接绑定的用户ID
+     * @param channelContext 正在关闭的连接
      */
-    protected void sendMessage(TioConfig tioConfig, List<Message> messageList, String userId) throws Exception {
-        if (messageList != null && !messageList.isEmpty()) {
-            Map<String, List<Message>> map = messageList.stream().collect(Collectors.groupingBy(Message::getChatId));
-            for (Map.Entry<String, List<Message>> entry : map.entrySet()) {
-                List<Message> messages = entry.getValue();
-                if (!messages.isEmpty()) {
-                    Message message = messages.get(0);
-                    send(tioConfig, userId, message);
-                    Thread.sleep(500);
-                }
-                messages.remove(0);
-                for (Message message : messages) {
-                    send(tioConfig, userId, message);
-                }
-            }
-        }
+    @Override
+    public void unbindUser(TioConfig tioConfig, String userId, ChannelContext channelContext) {
     }
 
     /**
-     * 保存消息并发送给用户。
+     * 发送给用户在本节点的连接。
      *
-     * @param tioConfig TIO配置对象
+     * @param tioConfig tio 配置
      * @param userId    用户ID
-     * @param message   消息对象
-     * @throws Exception 异常
+     * @param context   解析好的消息
      */
-    protected void send(TioConfig tioConfig, String userId, Message message) throws Exception {
-        vimMessageService.saveOnLine(message, true);
-        SendInfo sendInfo = new SendInfo(SendCodeEnum.MESSAGE.getCode(), JSONUtil.parseObj(message));
-        WsResponse wsResponse = WsResponse.fromText(JSON.toJSONString(sendInfo), "utf-8");
-        Tio.sendToUser(tioConfig, userId, wsResponse);
+    @Override
+    public void sendToUser(TioConfig tioConfig, String userId, MessageContext context) {
+        WsSender.sendToUser(tioConfig, userId, context);
     }
 
     /**
-     * 解析消息。
+     * 用户在本节点是否有连接。
      *
-     * @param sendInfo 消息信息
-     * @return 解析后的消息对象
+     * @param tioConfig tio 配置
+     * @param userId    用户ID
+     * @return boolean
      */
-    protected Message parseMessage(SendInfo sendInfo) {
-        JSONObject jsonObject = sendInfo.getMessage();
-        jsonObject.set("timestamp", System.currentTimeMillis());
-        if (StrUtil.isBlank((String) sendInfo.getMessage().get("id"))) {
-            jsonObject.set("id", IdUtil.getSnowflakeNextIdStr());
-        }
-        return JSONUtil.toBean(jsonObject, Message.class);
+    @Override
+    public boolean isOnline(TioConfig tioConfig, String userId) {
+        SetWithLock<ChannelContext> setWithLock = Tio.getByUserid(tioConfig, userId);
+        return setWithLock != null && setWithLock.size() > 0;
     }
 
     /**
-     * 绑定用户群组。
+     * 发送给群在本节点的连接。
      *
-     * @param channelContext 当前通道上下文
-     * @param userId         用户ID
+     * @param tioConfig tio 配置
+     * @param groupId   群ID
+     * @param context   解析好的消息
      */
     @Override
-    public void bindUserGroups(ChannelContext channelContext, String userId) {
-        List<Group> groups = vimGroupApiService.getGroups(userId);
-        for (Group group : groups) {
-            if (DictSwitchEnum.NO.getCode().equals(group.getProhibition())) {
-                Tio.bindGroup(channelContext, group.getId());
-            }
-        }
+    public void sendToGroup(TioConfig tioConfig, String groupId, MessageContext context) {
+        groupFanout.fanout(tioConfig, groupId, context);
     }
 
     /**
@@ -291,9 +301,9 @@ public abstract class AbstractMessageHandlerService implements MessageHandlerSer
      *
      * @param channelContext 当前通道上下文
      * @param userId         用户ID
-     * @param wsResponse     WebSocket响应对象
+     * @param context        解析好的消息
      */
-    protected void sendToSelf(ChannelContext channelContext, String userId, WsResponse wsResponse) {
-        Tio.sendToUser(channelContext.tioConfig, userId, wsResponse);
+    protected void sendToSelf(ChannelContext channelContext, String userId, MessageContext context) {
+        WsSender.sendToUser(channelContext.tioConfig, userId, context);
     }
 }
@@ -0,0 +1,255 @@
+package com.vim.tio.service.impl;
+
+import cn.hutool.json.JSONUtil;
+import com.alibaba.fastjson2.JSON;
+import com.vim.common.enums.ChatTypeEnum;
+import com.vim.common.enums.SendCodeEnum;
+import com.vim.tio.StartTioRunner;
+import com.vim.tio.cluster.ClusterEnvelope;
+import com.vim.tio.cluster.ClusterForwarder;
+import com.vim.tio.cluster.ClusterNodeRegistry;
+import com.vim.tio.codec.WsSender;
+import com.vim.tio.messages.Message;
+import com.vim.tio.messages.MessageContext;
+import com.vim.tio.messages.ReadReceipt;
+import com.vim.tio.messages.SendInfo;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Service;
+import org.tio.core.ChannelContext;
+import org.tio.core.Tio;
+import org.tio.core.TioConfig;
+import org.tio.utils.lock.SetWithLock;
+
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 集群模式下的消息处理服务实现类。
+ * 本节点的连接直接用 tio 投递，其他节点上的用户和群通过 {@link ClusterForwarder} 批量转发过去，
+ * 由目标节点在本地再投递一次。
+ */
+@Slf4j
+@Service(value = "clusterMessageHandlerService")
+@ConditionalOnProperty(prefix = "vim.cluster", name = "enabled", havingValue = "true")
+public class ClusterMessageHandlerServiceImpl extends AbstractMessageHandlerService {
+
+    @Resource
+    private ClusterNodeRegistry clusterNodeRegistry;
+
+    @Resource
+    private ClusterForwarder clusterForwarder;
+
+    @Resource
+    private ApplicationContext applicationContext;
+
+    /**
+     * 投递在线用户消息。
+     * 目标用户在本节点的连接直接发送，在其他节点的连接转发给对应节点。
+     *
+     * @param channelContext 当前通道上下文
+     * @param context        解析好的消息
+     * @throws Exception 异常
+     */
+    @Override
+    protected void deliverOnlineMessage(ChannelContext channelContext, MessageContext context) throws Exception {
+        Message message = context.getMessage();
+        sendToUser(channelContext.tioConfig, message.getChatId(), context);
+        vimMessageService.saveOnLine(message, true);
+    }
+
+    /**
+     * 投递群聊消息。
+     * 本节点按 tio 群组发送，其他存活节点各转发一份，由对方节点按自己的群组绑定发送。
+     *
+     * @param context        解析好的消息
+     * @param channelContext 当前通道上下文
+     */
+    @Override
+    protected void deliverGroupMessage(MessageContext context, ChannelContext channelContext) {
+        sendToGroup(channelContext.tioConfig, context.getMessage().getChatId(), context);
+    }
+
+    /**
+     * 处理好友消息。
+     * 目标用户在任意节点上在线就按在线投递，否则存为离线消息。
+     *
+     * @param channelContext 当前通道上下文
+     * @param context        解析好的消息
+     */
+    @Override
+    public void handleFriendMessage(ChannelContext channelContext, MessageContext context) {
+        Message message = context.getMessage();
+        String userId = message.getChatId();
+        try {
+            if (!isOnline(channelContext.tioConfig, userId)) {
+                handleOfflineMessage(message);
+            } else {
+                deliverOnlineMessage(channelContext, context);
+            }
+            sendToUser(channelContext.tioConfig, message.getFromId(), context);
+        } catch (Exception e) {
+            log.error("处理好友消息失败", e);
+        }
+    }
+
+    /**
+     * 处理消息已读，回执要发给消息的发送人，发送人可能在其他节点上。
+     *
+     * @param context 解析好的消息
+     * @throws Exception 异常
+     */
+    @Override
+    public void handleReadMessage(MessageContext context) throws Exception {
+        ReadReceipt readReceipt = JSONUtil.toBean(context.getSendInfo().getMessage(), ReadReceipt.class);
+        long timestamp = System.currentTimeMillis();
+        readReceipt.setTimestamp(timestamp);
+        vimMessageService.receipt(readReceipt.getChatId(), readReceipt.getFromId(), readReceipt.getType(), timestamp);
+        Set<String> nodes = clusterNodeRegistry.remoteNodesOf(readReceipt.getChatId());
+        if (!nodes.isEmpty()) {
+            SendInfo receipt = new SendInfo(SendCodeEnum.READ.getCode(), JSONUtil.parseObj(readReceipt));
+            clusterForwarder.forwardToUser(nodes, readReceipt.getChatId(), JSON.toJSONString(receipt));
+        }
+    }
+
+    /**
+     * 其他消息直接转发，包括其他节点
+     *
+     * @param channelContext Tio 上下文
+     * @param context        解析好的消息
+     */
+    @Override
+    public void handleOtherMessage(ChannelContext channelContext, MessageContext context) {
+        Message message = context.getMessage();
+        String chatId = String.valueOf(message.getChatId());
+        if (message.getChatType().equals(ChatTypeEnum.FRIEND.getCode())) {
+            sendToUser(channelContext.tioConfig, chatId, context);
+        } else {
+            sendToGroup(channelContext.tioConfig, chatId, context);
+        }
+    }
+
+    /**
+     * 绑定用户群组，同时登记用户在当前节点，新登记的通知其他节点刷新路由
+     *
+     * @param channelContext 当前通道上下文
+     * @param userId         用户ID
+     */
+    @Override
+    public void bindUserGroups(ChannelContext channelContext, String userId) {
+        super.bindUserGroups(channelContext, userId);
+        if (clusterNodeRegistry.register(userId)) {
+            clusterForwarder.forwardRoute(clusterNodeRegistry.remoteNodes(), userId);
+        }
+    }
+
+    /**
+     * 用户在当前节点的最后一个连接关闭时，取消节点登记并通知其他节点刷新路由
+     *
+     * @param tioConfig      tio 配置
+     * @param userId         连接绑定的用户ID
+     * @param channelContext 正在关闭的连接
+     */
+    @Override
+    public void unbindUser(TioConfig tioConfig, String userId, ChannelContext channelContext) {
+        if (localChannelCount(tioConfig, userId, channelContext) == 0) {
+            if (clusterNodeRegistry.unregister(userId)) {
+                clusterForwarder.forwardRoute(clusterNodeRegistry.remoteNodes(), userId);
+            }
+        }
+    }
+
+    /**
+     * 投递其他节点转发过来的消息，只投递本节点上的连接
+     *
+     * @param envelope 消息信封
+     */
+    public void deliverLocal(ClusterEnvelope envelope) {
+        TioConfig tioConfig = getTioConfig();
+        MessageContext context = MessageContext.wrap(envelope.getPayload());
+        if (ClusterEnvelope.TYPE_GROUP.equals(envelope.getType())) {
+            groupFanout.fanout(tioConfig, envelope.getTarget(), context);
+        } else {
+            WsSender.sendToUser(tioConfig, envelope.getTarget(), context);
+        }
+    }
+
+    /**
+     * 发送给用户，自己的其他设备、对方的设备都可能连在其他节点上
+     *
+     * @param tioConfig tio 配置
+     * @param userId    用户ID
+     * @param context   解析好的消息
+     */
+    @Override
+    public void sendToUser(TioConfig tioConfig, String userId, MessageContext context) {
+        WsSender.sendToUser(tioConfig, userId, context);
+        Set<String> nodes = clusterNodeRegistry.remoteNodesOf(userId);
+        if (!nodes.isEmpty()) {
+            clusterForwarder.forwardToUser(nodes, userId, context.getText());
+        }
+    }
+
+    /**
+     * 用户在本节点或者其他节点上有连接
+     *
+     * @param tioConfig tio 配置
+     * @param userId    用户ID
+     * @return boolean
+     */
+    @Override
+    public boolean isOnline(TioConfig tioConfig, String userId) {
+        return localChannelCount(tioConfig, userId, null) > 0 || !clusterNodeRegistry.remoteNodesOf(userId).isEmpty();
+    }
+
+    /**
+     * 发送给群，本节点扇出，其他存活节点各转发一份
+     *
+     * @param tioConfig tio 配置
+     * @param groupId   群ID
+     * @param context   解析好的消息
+     */
+    @Override
+    public void sendToGroup(TioConfig tioConfig, String groupId, MessageContext context) {
+        groupFanout.fanout(tioConfig, groupId, context);
+        Set<String> nodes = clusterNodeRegistry.remoteNodes();
+        if (!nodes.isEmpty()) {
+            clusterForwarder.forwardToGroup(nodes, groupId, context.getText());
+        }
+    }
+
+    /**
+     * 用户在本节点上还有多少个连接
+     *
+     * @param tioConfig tio 配置
+     * @param userId    用户id
+     * @param exclude   不计算在内的连接，可以为空
+     * @return 连接数
+     */
+    private int localChannelCount(TioConfig tioConfig, String userId, ChannelContext exclude) {
+        SetWithLock<ChannelContext> setWithLock = Tio.getByUserid(tioConfig, userId);
+        if (setWithLock == null) {
+            return 0;
+        }
+        Lock lock = setWithLock.readLock();
+        lock.lock();
+        try {
+            int count = 0;
+            for (ChannelContext context : setWithLock.getObj()) {
+                if (context != exclude && !context.isClosed) {
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private TioConfig getTioConfig() {
+        StartTioRunner startTioRunner = applicationContext.getBean(StartTioRunner.class);
+        return startTioRunner.getAppStarter().getWsServerStarter().getTioServerConfig();
+    }
+}
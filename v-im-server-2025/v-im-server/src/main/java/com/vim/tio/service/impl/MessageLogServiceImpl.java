@@ -1,8 +1,17 @@
 package com.vim.tio.service.impl;
 
-import cn.hutool.core.util.StrUtil;
+import com.alibaba.fastjson2.JSON;
+import com.vim.common.config.VimConfig;
+import com.vim.common.utils.MpscRingBuffer;
 import com.vim.tio.domain.MessageLog;
+import com.vim.tio.log.DailyCollectionName;
+import com.vim.tio.log.SegmentLog;
+import com.vim.tio.log.SegmentShipper;
 import com.vim.tio.service.MessageLogService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import jakarta.annotation.Resource;
@@ -10,89 +19,303 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.stereotype.Service;
 
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * 消息日志
+ * tio 线程只把日志放进无锁环形缓冲区，由单独的线程按天分组后批量 insert 到 message-log-yyyyMMdd；
+ * 缓冲区满了不会阻塞 tio 线程，按配置丢弃，或者放进 spill 缓冲区由写入线程追加到本地 spill 文件，等缓冲区空闲时再导入；
+ * 文件读写都在写入线程里，调用线程不碰磁盘。
+ * segment 模式下日志先追加到本地内存映射的段文件，由 {@link SegmentShipper} 异步导入，mongo 完全不在收消息的路径上
+ */
 @Slf4j
 @Service
 public class MessageLogServiceImpl implements MessageLogService {
 
+    private static final String OVERFLOW_SPILL = "spill";
+
+    private static final String SPILL_FILE = "spill.jsonl";
+
+    private static final String LOADING_SUFFIX = ".loading";
+
+    private static final String MODE_SEGMENT = "segment";
+
     @Resource
     private MongoTemplate mongoTemplate;
 
+    @Resource
+    private VimConfig vimConfig;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private MpscRingBuffer<MessageLog> buffer;
+
+    /**
+     * 缓冲区满时等着写 spill 文件的日志，也满了就丢弃
+     */
+    private MpscRingBuffer<MessageLog> spillBuffer;
+
+    private Thread flusher;
+
+    private volatile boolean running;
+
+    private Timer flushTimer;
+
+    private Counter droppedCounter;
+
+    private Counter spilledCounter;
+
+    /**
+     * 按天的集合名，只有写入线程使用
+     */
+    private final DailyCollectionName collectionName = new DailyCollectionName();
+
     /**
-     * 消息日志处理线程池
+     * segment 模式下的本地段文件和导入线程
      */
-    private ThreadPoolExecutor logExecutor;
+    private SegmentLog segmentLog;
 
-    private static final int CORE_POOL_SIZE = 2;
-    private static final int MAX_POOL_SIZE = 4;
-    private static final int QUEUE_CAPACITY = 1000;
-    private static final long KEEP_ALIVE_TIME = 300L;
+    private SegmentShipper segmentShipper;
 
     /**
-     * 初始化线程池
+     * spill 文件，写入线程使用，关闭时由关闭线程收尾
      */
+    private final Object spillLock = new Object();
+
+    private BufferedWriter spillWriter;
+
+    private Path spillDir;
+
     @PostConstruct
     public void init() {
-        logExecutor = new ThreadPoolExecutor(
-            CORE_POOL_SIZE,
-            MAX_POOL_SIZE,
-            KEEP_ALIVE_TIME,
-            TimeUnit.SECONDS,
-            new ArrayBlockingQueue<>(QUEUE_CAPACITY),
-            new ThreadPoolExecutor.CallerRunsPolicy() // 队列满时，由调用线程执行
-        );
+        VimConfig.MessageLog config = vimConfig.getMessageLog();
+        buffer = new MpscRingBuffer<>(config.getCapacity());
+        spillBuffer = new MpscRingBuffer<>(config.getSpillCapacity());
+        spillDir = Paths.get(config.getSpillDir());
+        flushTimer = Timer.builder("vim.messagelog.flush").register(meterRegistry);
+        droppedCounter = Counter.builder("vim.messagelog.overflow").tag("policy", "drop").register(meterRegistry);
+        spilledCounter = Counter.builder("vim.messagelog.overflow").tag("policy", "spill").register(meterRegistry);
+        Gauge.builder("vim.messagelog.buffer", buffer, MpscRingBuffer::size).register(meterRegistry);
+        Gauge.builder("vim.messagelog.spill.buffer", spillBuffer, MpscRingBuffer::size).register(meterRegistry);
+        running = true;
+        flusher = new Thread(this::run, "vim-message-log");
+        flusher.setDaemon(true);
+        flusher.start();
+        if (MODE_SEGMENT.equals(config.getMode())) {
+            try {
+                segmentLog = new SegmentLog(Paths.get(config.getSegmentDir()), config.getSegmentBytes());
+                segmentShipper = new SegmentShipper(segmentLog, mongoTemplate, config, meterRegistry);
+                segmentShipper.start();
+            } catch (IOException e) {
+                segmentLog = null;
+                log.error("消息日志段文件初始化失败，改为直接批量写入 mongo", e);
+            }
+        }
     }
 
     /**
-     * 异步记录消息日志
+     * 记录消息日志，不会阻塞调用线程
      *
      * @param text   消息内容
      * @param userid 发送者ID
      */
     @Override
     public void logMessage(String text, String userid) {
-        logExecutor.execute(() -> {
-            try {
-                String collectionName = StrUtil.format("message-log-{}",
-                    LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd")));
+        MessageLog messageLog = MessageLog.builder()
+                .content(text)
+                .senderId(userid)
+                .sendTime(System.currentTimeMillis())
+                .build();
+        // segment 模式先写本地段文件，写不进去再走缓冲区
+        if (segmentLog != null && segmentLog.append(messageLog.getSendTime(), userid, text)) {
+            return;
+        }
+        if (buffer.offer(messageLog)) {
+            return;
+        }
+        if (OVERFLOW_SPILL.equals(vimConfig.getMessageLog().getOverflow()) && spillBuffer.offer(messageLog)) {
+            return;
+        }
+        droppedCounter.increment();
+    }
 
-                MessageLog messageLog = MessageLog.builder()
-                    .content(text)
-                    .senderId(userid)
-                    .sendTime(System.currentTimeMillis())
-                    .build();
+    /**
+     * 写完缓冲区里剩下的日志
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (segmentShipper != null) {
+            segmentShipper.stop();
+            try {
+                segmentLog.close();
+            } catch (IOException e) {
+                log.error("关闭消息日志段文件失败", e);
+            }
+        }
+        running = false;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            log.error("关闭消息日志线程失败", e);
+            Thread.currentThread().interrupt();
+        }
+        synchronized (spillLock) {
+            closeSpillWriter();
+        }
+    }
 
-                mongoTemplate.save(messageLog, collectionName);
+    private void run() {
+        VimConfig.MessageLog config = vimConfig.getMessageLog();
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getFlushIntervalMillis());
+        List<MessageLog> batch = new ArrayList<>(config.getBatchSize());
+        while (true) {
+            boolean stopping = !running;
+            // 先把溢出的日志落到 spill 文件，本地追加比写 mongo 快，能尽快腾出 spill 缓冲区
+            drainSpillBuffer(batch, config.getBatchSize());
+            buffer.drainTo(batch, config.getBatchSize());
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+                continue;
+            }
+            if (stopping) {
+                break;
+            }
+            // 缓冲区空闲时导入之前溢出的日志
+            if (OVERFLOW_SPILL.equals(config.getOverflow())) {
+                importSpill();
+            }
+            LockSupport.parkNanos(this, intervalNanos);
+        }
+    }
 
+    /**
+     * 按天分组批量写入
+     */
+    private void flush(List<MessageLog> batch) {
+        long start = System.nanoTime();
+        Map<String, List<MessageLog>> collections = new LinkedHashMap<>();
+        for (MessageLog messageLog : batch) {
+            collections.computeIfAbsent(collectionName.of(messageLog.getSendTime()), k -> new ArrayList<>()).add(messageLog);
+        }
+        for (Map.Entry<String, List<MessageLog>> entry : collections.entrySet()) {
+            try {
+                mongoTemplate.insert(entry.getValue(), entry.getKey());
             } catch (Exception e) {
-                log.error("异步记录消息日志失败", e);
+                log.error("批量记录消息日志失败 {} 条", entry.getValue().size(), e);
+                if (OVERFLOW_SPILL.equals(vimConfig.getMessageLog().getOverflow())) {
+                    spill(entry.getValue());
+                }
             }
-        });
+        }
+        flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private void drainSpillBuffer(List<MessageLog> batch, int batchSize) {
+        while (spillBuffer.drainTo(batch, batchSize) > 0) {
+            spill(batch);
+            batch.clear();
+        }
     }
 
     /**
-     * 优雅关闭线程池
+     * 追加到 spill 文件，每行一条 json，只在写入线程里调用
      */
-    @PreDestroy
-    public void shutdown() {
-        if (logExecutor != null) {
+    private void spill(List<MessageLog> messageLogs) {
+        synchronized (spillLock) {
             try {
-                // 停止接收新任务
-                logExecutor.shutdown();
-                // 等待当前任务完成
-                if (!logExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
-                    logExecutor.shutdownNow();
+                if (spillWriter == null) {
+                    Files.createDirectories(spillDir);
+                    spillWriter = Files.newBufferedWriter(spillDir.resolve(SPILL_FILE), StandardCharsets.UTF_8,
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                }
+                for (MessageLog messageLog : messageLogs) {
+                    spillWriter.write(JSON.toJSONString(messageLog));
+                    spillWriter.newLine();
                 }
-            } catch (InterruptedException e) {
-                log.error("关闭消息日志线程池失败", e);
-                Thread.currentThread().interrupt();
+                spilledCounter.increment(messageLogs.size());
+            } catch (IOException e) {
+                droppedCounter.increment(messageLogs.size());
+                log.error("消息日志写入 spill 文件失败，丢弃 {} 条", messageLogs.size(), e);
             }
         }
     }
 
+    /**
+     * 把 spill 文件改名后导入 mongo，导入完删除
+     */
+    private void importSpill() {
+        Path spillFile = spillDir.resolve(SPILL_FILE);
+        synchronized (spillLock) {
+            if (Files.exists(spillFile)) {
+                closeSpillWriter();
+                try {
+                    Files.move(spillFile, spillDir.resolve(System.currentTimeMillis() + LOADING_SUFFIX));
+                } catch (IOException e) {
+                    log.error("消息日志 spill 文件改名失败", e);
+                    return;
+                }
+            }
+        }
+        if (!Files.isDirectory(spillDir)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spillDir, "*" + LOADING_SUFFIX)) {
+            for (Path file : files) {
+                importFile(file);
+            }
+        } catch (IOException e) {
+            log.error("导入消息日志 spill 文件失败", e);
+        }
+    }
+
+    private void importFile(Path file) throws IOException {
+        int batchSize = vimConfig.getMessageLog().getBatchSize();
+        List<MessageLog> batch = new ArrayList<>(batchSize);
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    batch.add(JSON.parseObject(line, MessageLog.class));
+                }
+                if (batch.size() >= batchSize) {
+                    flush(batch);
+                    batch.clear();
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            flush(batch);
+        }
+        Files.delete(file);
+    }
+
+    private void closeSpillWriter() {
+        if (spillWriter == null) {
+            return;
+        }
+        try {
+            spillWriter.close();
+        } catch (IOException e) {
+            log.error("关闭消息日志 spill 文件失败", e);
+        }
+        spillWriter = null;
+    }
+
 }
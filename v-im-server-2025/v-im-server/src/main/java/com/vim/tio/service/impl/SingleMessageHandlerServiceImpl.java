@@ -1,13 +1,13 @@
 package com.vim.tio.service.impl;
 
+import com.vim.tio.codec.WsSender;
 import com.vim.tio.messages.Message;
-import com.vim.tio.messages.SendInfo;
+import com.vim.tio.messages.MessageContext;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import org.tio.core.ChannelContext;
 import org.tio.core.Tio;
 import org.tio.utils.lock.SetWithLock;
-import org.tio.websocket.common.WsResponse;
 
 /**
  * 单节点模式下的消息处理服务实现类。
@@ -22,15 +22,14 @@ public class SingleMessageHandlerServiceImpl extends AbstractMessageHandlerServi
      * 在单节点模式下，直接将消息发送给目标用户。
      *
      * @param channelContext 当前通道上下文
-     * @param sendInfo        消息对象
-     * @param wsResponse     WebSocket响应对象
+     * @param context        解析好的消息
      * @throws Exception 异常
      */
     @Override
-    protected void deliverOnlineMessage(ChannelContext channelContext, SendInfo sendInfo, WsResponse wsResponse) throws Exception {
-        Message message = parseMessage(sendInfo);
+    protected void deliverOnlineMessage(ChannelContext channelContext, MessageContext context) throws Exception {
+        Message message = context.getMessage();
         // 单节点消息投递逻辑
-        Tio.sendToUser(channelContext.tioConfig, message.getChatId(), wsResponse);
+        WsSender.sendToUser(channelContext.tioConfig, message.getChatId(), context);
         vimMessageService.saveOnLine(message, true);
     }
 
@@ -38,17 +37,15 @@ public class SingleMessageHandlerServiceImpl extends AbstractMessageHandlerServi
      * 投递群聊消息。
      * 在单节点模式下，将消息发送给指定群组的所有用户。
      *
-     * @param sendInfo        消息对象
+     * @param context        解析好的消息
      * @param channelContext 当前通道上下文
-     * @param wsResponse     WebSocket响应对象
      * @throws Exception 异常
      */
     @Override
-    protected void deliverGroupMessage(SendInfo sendInfo, ChannelContext channelContext, WsResponse wsResponse) throws Exception {
-        Message message = parseMessage(sendInfo);
+    protected void deliverGroupMessage(MessageContext context, ChannelContext channelContext) throws Exception {
         // 单节点群消息投递逻辑
-        String groupId = message.getChatId();
-        Tio.sendToGroup(channelContext.tioConfig, groupId, wsResponse);
+        String groupId = context.getMessage().getChatId();
+        groupFanout.fanout(channelContext.tioConfig, groupId, context);
        // vimMessageService.save(message, true);
     }
 
@@ -58,21 +55,20 @@ public class SingleMessageHandlerServiceImpl extends AbstractMessageHandlerServi
      * 最后将消息发送给自己。
      *
      * @param channelContext 当前通道上下文
-     * @param sendInfo        SendInfo
-     * @param wsResponse     WebSocket响应对象
+     * @param context        解析好的消息
      */
     @Override
-    public void handleFriendMessage(ChannelContext channelContext, SendInfo sendInfo, WsResponse wsResponse) {
-        Message message = parseMessage(sendInfo);
+    public void handleFriendMessage(ChannelContext channelContext, MessageContext context) {
+        Message message = context.getMessage();
         String userId = message.getChatId();
         SetWithLock<ChannelContext> channelContextSetWithLock = Tio.getByUserid(channelContext.tioConfig, userId);
         try {
             if (channelContextSetWithLock == null || channelContextSetWithLock.size() == 0) {
                 handleOfflineMessage(message);
             } else {
-                deliverOnlineMessage(channelContext, sendInfo, wsResponse);
+                deliverOnlineMessage(channelContext, context);
             }
-            sendToSelf(channelContext, message.getFromId(), wsResponse);
+            sendToSelf(channelContext, message.getFromId(), context);
         } catch (Exception e) {
             log.error("处理好友消息失败", e);
         }
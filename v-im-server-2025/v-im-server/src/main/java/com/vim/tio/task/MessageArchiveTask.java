@@ -0,0 +1,249 @@
+package com.vim.tio.task;
+
+import cn.hutool.core.date.DatePattern;
+import cn.hutool.core.date.DateUtil;
+import cn.hutool.core.util.StrUtil;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.vim.common.config.VimConfig;
+import com.vim.common.utils.ChatUtils;
+import com.vim.sdk.persist.MessageArchiveReader;
+import com.vim.sdk.persist.MessageIndexManager;
+import com.vim.sdk.search.MessageSearchService;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 聊天记录归档
+ * 按 {@link RetentionPolicy} 把 mongo 里超过保留时间的聊天记录按月搬到冷存储：
+ * collection 是 archive-message-yyyyMM 集合（zstd 压缩，按会话建索引，聊天记录游标分页通过 {@link MessageArchiveReader} 读取），
+ * file 是 archive-message-yyyyMM.jsonl.gz 文件（每批追加一个 gzip 段），归档以后不能在线读取，要开启 archiveHardDelete 才会归档。
+ * 每个分片集合按 timestamp 索引分批读取，写入冷存储成功后再删除，批次之间暂停一下；
+ * 当前处理的集合记在 redis 里，超过运行时间或者应用重启，下次从这个集合继续。同一时间只有一个节点在归档
+ *
+ * @author 乐天
+ */
+@Slf4j
+@Component
+public class MessageArchiveTask {
+
+    public static final String TARGET_COLLECTION = "collection";
+
+    public static final String TARGET_FILE = "file";
+
+    private static final String PROGRESS_KEY = "retention:archive:collection";
+
+    private static final String LOCK_KEY = "retention:archive:lock";
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    @Resource
+    private VimConfig vimConfig;
+
+    @Resource
+    private MongoTemplate mongoTemplate;
+
+    @Resource
+    private RedisTemplate<String, String> redisTemplate;
+
+    @Resource
+    private MessageSearchService messageSearchService;
+
+    @Resource
+    private MessageIndexManager messageIndexManager;
+
+    private final String nodeId = ManagementFactory.getRuntimeMXBean().getName();
+
+    /**
+     * 已经建好的归档集合
+     */
+    private final Set<String> archives = ConcurrentHashMap.newKeySet();
+
+    @Scheduled(cron = "${vim.retention.archiveCron:0 30 2 * * ?}")
+    public void archive() {
+        VimConfig.Retention config = vimConfig.getRetention();
+        RetentionPolicy policy = RetentionPolicy.of(config);
+        Duration budget = Duration.ofMinutes(config.getMaxRunMinutes());
+        if (!policy.archives()) {
+            return;
+        }
+        if (TARGET_FILE.equals(config.getArchiveTarget()) && !config.isArchiveHardDelete()) {
+            log.warn("聊天记录归档到文件以后不能在线读取，没有开启 archiveHardDelete，不归档");
+            return;
+        }
+        if (!lock(budget)) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        long deadline = start + budget.toMillis();
+        long cutoff = policy.archiveCutoff(start);
+        List<String> collections = ChatUtils.getShardCollectionNames();
+        String saved = redisTemplate.opsForValue().get(PROGRESS_KEY);
+        int from = saved == null ? 0 : Math.max(0, collections.indexOf(saved));
+        long archived = 0;
+        try {
+            for (int i = from; i < collections.size(); i++) {
+                String collectionName = collections.get(i);
+                redisTemplate.opsForValue().set(PROGRESS_KEY, collectionName);
+                archived += archive(collectionName, cutoff, deadline, config);
+                if (System.currentTimeMillis() > deadline) {
+                    log.warn("聊天记录归档超过 {} 分钟，已归档 {} 条，下次从 {} 继续", config.getMaxRunMinutes(), archived, collectionName);
+                    return;
+                }
+            }
+            redisTemplate.delete(PROGRESS_KEY);
+            log.info("聊天记录归档完成，{} 之前的 {} 条归档到 {}，耗时 {}ms",
+                    DateUtil.formatDate(DateUtil.date(cutoff)), archived, config.getArchiveTarget(), System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            log.error("聊天记录归档失败，已归档 {} 条，下次继续", archived, e);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * 归档一个集合，写入冷存储以后再删除，中途失败重复归档的只会在文件里重复
+     *
+     * @return 归档的条数
+     */
+    private long archive(String collectionName, long cutoff, long deadline, VimConfig.Retention config) {
+        Query query = Query.query(Criteria.where("timestamp").lt(cutoff))
+                .with(Sort.by(Sort.Direction.ASC, "timestamp"))
+                .limit(Math.max(1, config.getArchiveBatchSize()));
+        long archived = 0;
+        while (System.currentTimeMillis() <= deadline) {
+            List<Document> documents = mongoTemplate.find(query, Document.class, collectionName);
+            if (documents.isEmpty()) {
+                break;
+            }
+            write(documents, config);
+            List<Object> ids = new ArrayList<>(documents.size());
+            for (Document document : documents) {
+                ids.add(document.get("_id"));
+                String chatKey = document.getString("chat_key");
+                if (chatKey != null) {
+                    messageSearchService.delete(String.valueOf(document.get("_id")), chatKey);
+                }
+            }
+            mongoTemplate.remove(Query.query(Criteria.where("_id").in(ids)), collectionName);
+            archived += documents.size();
+            if (documents.size() < config.getArchiveBatchSize()) {
+                break;
+            }
+            pause(config.getPauseMillis());
+        }
+        return archived;
+    }
+
+    /**
+     * 按消息的月份写入冷存储
+     */
+    private void write(List<Document> documents, VimConfig.Retention config) {
+        Map<String, List<Document>> months = new TreeMap<>();
+        for (Document document : documents) {
+            Object timestamp = document.get("timestamp");
+            long time = timestamp instanceof Number number ? number.longValue() : 0;
+            months.computeIfAbsent(DateUtil.format(DateUtil.date(time), DatePattern.SIMPLE_MONTH_PATTERN), k -> new ArrayList<>()).add(document);
+        }
+        for (Map.Entry<String, List<Document>> entry : months.entrySet()) {
+            String name = StrUtil.format(ChatUtils.ARCHIVE_COLLECTION_TEMPLATE, entry.getKey());
+            if (TARGET_FILE.equals(config.getArchiveTarget())) {
+                writeFile(Paths.get(config.getArchiveDir(), name + ".jsonl.gz"), entry.getValue());
+            } else {
+                writeCollection(name, entry.getValue());
+            }
+        }
+    }
+
+    private void writeCollection(String name, List<Document> documents) {
+        if (archives.add(name) && !mongoTemplate.collectionExists(name)) {
+            try {
+                // 冷数据很少读，用压缩率更高的 zstd
+                mongoTemplate.getDb().createCollection(name, new CreateCollectionOptions()
+                        .storageEngineOptions(new Document("wiredTiger", new Document("configString", "block_compressor=zstd"))));
+            } catch (Exception e) {
+                log.warn("创建归档集合 {} 失败，使用默认配置: {}", name, e.getMessage());
+            }
+        }
+        messageIndexManager.ensure(name);
+        try {
+            mongoTemplate.getCollection(name).insertMany(documents, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            // 上次归档到一半失败的，已经写过了
+            for (BulkWriteError error : e.getWriteErrors()) {
+                if (error.getCode() != DUPLICATE_KEY) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * 每批一个 gzip 段追加到文件后面，多段的 gzip 文件可以直接用 zcat 读
+     */
+    private void writeFile(Path path, List<Document> documents) {
+        try {
+            Files.createDirectories(path.getParent() == null ? Paths.get(".") : path.getParent());
+            try (OutputStream out = Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                 Writer writer = new OutputStreamWriter(new GZIPOutputStream(out), StandardCharsets.UTF_8)) {
+                for (Document document : documents) {
+                    writer.write(document.toJson());
+                    writer.write('\n');
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("写入归档文件 " + path + " 失败", e);
+        }
+    }
+
+    private boolean lock(Duration budget) {
+        Boolean acquired = redisTemplate.opsForValue().setIfAbsent(LOCK_KEY, nodeId, budget.plusMinutes(5));
+        return Boolean.TRUE.equals(acquired);
+    }
+
+    private void unlock() {
+        if (nodeId.equals(redisTemplate.opsForValue().get(LOCK_KEY))) {
+            redisTemplate.delete(LOCK_KEY);
+        }
+    }
+
+    private static void pause(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,18 +1,28 @@
 package com.vim.tio.task;
 
 
-import cn.hutool.core.util.StrUtil;
+import com.vim.common.config.VimConfig;
+import com.vim.common.utils.RedisLockUtils;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.Scheduled;
 
-import java.util.Set;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * 定时任务，定时清理redis 里面的多余数据
+ * 用 SCAN 游标分批遍历，每批 key 用一个 pipeline 的 ZREMRANGEBYRANK 裁剪，批次之间暂停一下，不会阻塞 redis。
+ * 裁剪可以重复执行，超过运行时间的下次从头遍历，已经裁剪过的 key 不会再删数据。同一时间只有一个节点在清理
  *
  * @author 乐天
  * Configuration 主要用于标记配置类，兼备Component的效果。
@@ -23,29 +33,116 @@ import java.util.Set;
 @EnableScheduling
 public class MessageClearTask {
 
+    private static final String LOCK_KEY = "retention:redis:lock";
+
+    @Resource
+    private VimConfig vimConfig;
+
     @Resource
     private RedisTemplate<String, String> redisTemplate;
 
+    private final String nodeId = ManagementFactory.getRuntimeMXBean().getName();
+
 
     /**
-     * 定时任务，每个聊天redis 里面只保留最新100条数据
-     * 每天4点开始执行
+     * 定时任务，每个聊天redis 里面只保留最新 keepLatest 条数据
+     * 默认每天4点开始执行
      */
-    @Scheduled(cron = "0 0 4 * * ?")
+    @Scheduled(cron = "${vim.retention.redisCron:0 0 4 * * ?}")
     public void clearRedisMessage() {
-        Set<String> keys = redisTemplate.keys("message-*");
-        assert keys != null;
-        for (String key : keys) {
-            Long counted = redisTemplate.opsForZSet().count(key, 0, System.currentTimeMillis());
-            if (counted != null) {
-                long count = counted - 100;
-                if (count > 0) {
-                    Long res = redisTemplate.opsForZSet().removeRange(key, 0, count);
-                    log.info(StrUtil.format("{}:共清理了{}条数据", key, res));
+        VimConfig.Retention config = vimConfig.getRetention();
+        RetentionPolicy policy = RetentionPolicy.of(config);
+        Duration budget = Duration.ofMinutes(config.getMaxRunMinutes());
+        if (!lock(budget)) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        long deadline = start + budget.toMillis();
+        int batchSize = Math.max(1, config.getScanCount());
+        long[] progress = new long[2];
+        try {
+            Boolean finished = redisTemplate.execute((RedisCallback<Boolean>) connection -> {
+                ScanOptions options = ScanOptions.scanOptions().match(config.getRedisPattern()).count(batchSize).build();
+                try (Cursor<byte[]> cursor = connection.scan(options)) {
+                    List<String> keys = new ArrayList<>(batchSize);
+                    while (cursor.hasNext()) {
+                        keys.add(new String(cursor.next(), StandardCharsets.UTF_8));
+                        if (keys.size() < batchSize) {
+                            continue;
+                        }
+                        progress[0] += keys.size();
+                        progress[1] += trim(keys, policy);
+                        keys.clear();
+                        if (System.currentTimeMillis() > deadline) {
+                            return false;
+                        }
+                        pause(config.getPauseMillis());
+                    }
+                    progress[0] += keys.size();
+                    progress[1] += trim(keys, policy);
+                    return true;
                 }
+            });
+            if (Boolean.TRUE.equals(finished)) {
+                log.info("redis 消息清理完成：{} 个 key，共清理了 {} 条数据，耗时 {}ms", progress[0], progress[1], System.currentTimeMillis() - start);
+            } else {
+                log.warn("redis 消息清理超过 {} 分钟，已处理 {} 个 key，清理了 {} 条数据", config.getMaxRunMinutes(), progress[0], progress[1]);
+            }
+        } catch (Exception e) {
+            log.error("redis 消息清理失败，已处理 {} 个 key", progress[0], e);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * 一个 pipeline 裁剪一批 key，不用先查条数
+     *
+     * @return 删掉的条数
+     */
+    private long trim(List<String> keys, RetentionPolicy policy) {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.zSetCommands().zRemRange(bytes(key), 0, policy.trimStop());
             }
+            return null;
+        });
+        long removed = 0;
+        for (Object result : results) {
+            if (result instanceof Number number) {
+                removed += number.longValue();
+            }
+        }
+        return removed;
+    }
+
+    private boolean lock(Duration budget) {
+        return RedisLockUtils.lock(redisTemplate, LOCK_KEY, nodeId, budget.plusMinutes(5));
+    }
+
+    /**
+     * 锁还是自己的才删，比较和删除是原子的
+     */
+    private void unlock() {
+        RedisLockUtils.unlock(redisTemplate, LOCK_KEY, nodeId);
+    }
 
+    private static void pause(long millis) {
+        if (millis <= 0) {
+            return;
         }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static byte[] bytes(String str) {
+        return str.getBytes(StandardCharsets.UTF_8);
     }
 
 
@@ -0,0 +1,57 @@
+package com.vim.tio.task;
+
+import com.vim.common.config.VimConfig;
+
+import java.time.Duration;
+
+/**
+ * 消息保留策略
+ * 热数据：redis 里每个会话只保留最近 keepLatest 条；
+ * 温数据：mongo 里保留 archiveAfter 以内的聊天记录，更早的归档到冷存储，archiveAfter 为空表示不归档
+ *
+ * @param keepLatest   redis 里每个会话保留的条数
+ * @param archiveAfter 多久以后归档
+ * @author 乐天
+ */
+public record RetentionPolicy(int keepLatest, Duration archiveAfter) {
+
+    /**
+     * 按配置生成
+     *
+     * @param retention 配置
+     * @return RetentionPolicy
+     */
+    public static RetentionPolicy of(VimConfig.Retention retention) {
+        Duration archiveAfter = retention.isArchiveEnabled() && retention.getArchiveAfterDays() > 0
+                ? Duration.ofDays(retention.getArchiveAfterDays()) : null;
+        return new RetentionPolicy(Math.max(0, retention.getKeepLatest()), archiveAfter);
+    }
+
+    /**
+     * ZREMRANGEBYRANK 的结束位置，删掉最近 keepLatest 条以外的
+     *
+     * @return 负数的排名
+     */
+    public long trimStop() {
+        return -(keepLatest + 1L);
+    }
+
+    /**
+     * 是否归档
+     *
+     * @return boolean
+     */
+    public boolean archives() {
+        return archiveAfter != null;
+    }
+
+    /**
+     * 早于这个时间的聊天记录需要归档
+     *
+     * @param now 当前时间
+     * @return 时间戳
+     */
+    public long archiveCutoff(long now) {
+        return now - archiveAfter.toMillis();
+    }
+}
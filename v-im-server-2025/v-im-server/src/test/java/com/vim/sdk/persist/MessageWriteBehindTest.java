@@ -0,0 +1,127 @@
+package com.vim.sdk.persist;
+
+import com.vim.common.config.VimConfig;
+import com.vim.common.utils.ChatUtils;
+import com.vim.tio.messages.Message;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 刷新线程攒批期间删除消息：消息已经从队列取出、还没开始写，删除以后不能再被写进 mongo
+ *
+ * @author 乐天
+ */
+public class MessageWriteBehindTest {
+
+    /**
+     * 攒批窗口设得很长，删除一定发生在窗口里
+     */
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final BulkOperations bulkOperations = mock(BulkOperations.class);
+
+    private MessageWriteBehind writeBehind;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        VimConfig vimConfig = new VimConfig();
+        vimConfig.getPersist().setFlushIntervalMillis(FLUSH_INTERVAL_MILLIS);
+        MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+        when(mongoTemplate.bulkOps(any(BulkOperations.BulkMode.class), eq(Message.class), anyString())).thenReturn(bulkOperations);
+        when(bulkOperations.insert(anyList())).thenReturn(bulkOperations);
+        writeBehind = new MessageWriteBehind();
+        ReflectionTestUtils.setField(writeBehind, "vimConfig", vimConfig);
+        ReflectionTestUtils.setField(writeBehind, "mongoTemplate", mongoTemplate);
+        ReflectionTestUtils.setField(writeBehind, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(writeBehind, "messageIndexManager", mock(MessageIndexManager.class));
+        writeBehind.init();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        writeBehind.destroy();
+    }
+
+    @Test
+    public void discardDuringAccumulationIsNotWritten() throws Exception {
+        Message deleted = message("1");
+        writeBehind.save(deleted);
+        awaitTaken();
+
+        writeBehind.discard(deleted.getChatKey(), List.of(deleted.getId()));
+        assertTrue(writeBehind.pending(List.of(deleted.getId())).isEmpty());
+        Message kept = message("2");
+        writeBehind.save(kept);
+
+        assertEquals(List.of(kept), inserted());
+    }
+
+    @Test
+    public void discardChatDuringAccumulationIsNotWritten() throws Exception {
+        Message deleted = message("1");
+        writeBehind.save(deleted);
+        awaitTaken();
+
+        writeBehind.discardChat(deleted.getChatKey());
+        Message kept = message("2");
+        writeBehind.save(kept);
+
+        assertEquals(List.of(kept), inserted());
+    }
+
+    /**
+     * 等刷新线程把消息从队列取走，开始攒批
+     */
+    private void awaitTaken() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (meterRegistry.get("vim.persist.queue").gauge().value() > 0) {
+            assertTrue(System.nanoTime() < deadline, "刷新线程没有取走消息");
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * 等这一批写入，返回写入的消息
+     */
+    @SuppressWarnings("unchecked")
+    private List<Message> inserted() {
+        ArgumentCaptor<List<Message>> captor = ArgumentCaptor.forClass(List.class);
+        verify(bulkOperations, timeout(FLUSH_INTERVAL_MILLIS * 3)).insert(captor.capture());
+        return captor.getValue();
+    }
+
+    private static Message message(String id) {
+        Message message = new Message();
+        message.setId(id);
+        message.setFromId("10001");
+        message.setChatId("10002");
+        message.setChatType("friend");
+        message.setContent("hello");
+        message.setTimestamp(System.currentTimeMillis());
+        message.setChatKey(ChatUtils.getChatKey("10001", "10002", "friend"));
+        return message;
+    }
+}
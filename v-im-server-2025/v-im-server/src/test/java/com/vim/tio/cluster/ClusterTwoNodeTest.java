@@ -0,0 +1,296 @@
+package com.vim.tio.cluster;
+
+import com.alibaba.fastjson2.JSON;
+import com.vim.sdk.service.VimGroupApiService;
+import com.vim.tio.TioWsMsgHandler;
+import com.vim.tio.dispatch.BusinessDispatcher;
+import com.vim.tio.service.impl.ClusterMessageHandlerServiceImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.MockedStatic;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.tio.core.ChannelContext;
+import org.tio.core.Tio;
+import org.tio.core.TioConfig;
+import org.tio.utils.lock.SetWithLock;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.when;
+
+/**
+ * 同一个 JVM 里起多个节点：redis 的节点登记用内存代替，节点间传输用内存实现直接调对方的 {@link ClusterMessageReceiver}，
+ * 每个节点的连接和断开走真正的 {@link ClusterMessageHandlerServiceImpl} 和 {@link TioWsMsgHandler#onBeforeClose}，
+ * tio 的用户连接表用静态 mock 代替。验证跨节点投递，以及用户重连到其他节点后，其他节点的路由缓存马上失效
+ *
+ * @author 乐天
+ */
+public class ClusterTwoNodeTest {
+
+    /**
+     * 路由缓存设得很长，测试里路由能变过来只能是因为收到了通知
+     */
+    private static final long ROUTE_CACHE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final Map<String, Double> nodes = new ConcurrentHashMap<>();
+
+    private final Map<String, Set<String>> sets = new ConcurrentHashMap<>();
+
+    private final Map<String, ClusterMessageReceiver> receivers = new ConcurrentHashMap<>();
+
+    private final List<Node> started = new ArrayList<>();
+
+    private MockedStatic<Tio> tio;
+
+    @BeforeEach
+    public void setUp() {
+        nodes.clear();
+        sets.clear();
+        receivers.clear();
+        tio = mockStatic(Tio.class);
+        tio.when(() -> Tio.getByUserid(any(TioConfig.class), anyString())).thenAnswer(invocation -> {
+            TioConfig tioConfig = invocation.getArgument(0);
+            return started.stream()
+                    .filter(node -> node.tioConfig == tioConfig)
+                    .findFirst()
+                    .map(node -> node.channelsOf(invocation.getArgument(1)))
+                    .orElse(null);
+        });
+    }
+
+    @AfterEach
+    public void tearDown() {
+        tio.close();
+        started.forEach(node -> node.forwarder.stop());
+        started.clear();
+    }
+
+    @Test
+    public void forwardsToUserOnOtherNode() throws Exception {
+        Node a = node("a");
+        Node b = node("b");
+        b.registry.register("10001");
+
+        Set<String> route = a.registry.remoteNodesOf("10001");
+        assertEquals(Set.of("b"), route);
+        a.forwarder.forwardToUser(route, "10001", "{\"code\":\"message\"}");
+
+        ClusterEnvelope envelope = b.awaitDelivery();
+        assertEquals(ClusterEnvelope.TYPE_USER, envelope.getType());
+        assertEquals("10001", envelope.getTarget());
+        assertEquals("a", envelope.getOrigin());
+        assertTrue(a.delivered.isEmpty());
+    }
+
+    @Test
+    public void routeFollowsReconnectToAnotherNode() throws Exception {
+        Node a = node("a");
+        Node b = node("b");
+        Node c = node("c");
+        ChannelContext channelContext = connect(b, "10001");
+        assertEquals(Set.of("b"), a.registry.remoteNodesOf("10001"));
+
+        // 用户从 b 断开，重连到 c
+        close(b, channelContext);
+        connect(c, "10001");
+
+        awaitRoute(a, "10001", Set.of("c"));
+        // 路由通知不会当成消息投递
+        assertTrue(a.delivered.isEmpty());
+    }
+
+    @Test
+    public void closeAfterUseridClearedUnregisters() throws Exception {
+        Node a = node("a");
+        Node b = node("b");
+        ChannelContext channelContext = connect(b, "10001");
+        assertTrue(a.service.isOnline(a.tioConfig, "10001"));
+
+        close(b, channelContext);
+
+        awaitRoute(a, "10001", Set.of());
+        assertFalse(a.service.isOnline(a.tioConfig, "10001"));
+    }
+
+    @Test
+    public void closeOneOfTwoConnectionsKeepsRoute() {
+        Node a = node("a");
+        Node b = node("b");
+        ChannelContext first = connect(b, "10001");
+        connect(b, "10001");
+        assertEquals(Set.of("b"), a.registry.remoteNodesOf("10001"));
+
+        close(b, first);
+
+        // 新节点没有路由缓存，直接读登记
+        assertEquals(Set.of("b"), node("c").registry.remoteNodesOf("10001"));
+    }
+
+    @Test
+    public void registerTwiceDoesNotAnnounceAgain() {
+        Node a = node("a");
+        assertTrue(a.registry.register("10001"));
+        assertFalse(a.registry.register("10001"));
+        assertTrue(a.registry.unregister("10001"));
+        assertFalse(a.registry.unregister("10001"));
+    }
+
+    /**
+     * 和握手后绑定用户一样：连接记进 tio 的用户连接表，再由节点的消息处理服务绑定群组、登记用户
+     */
+    private ChannelContext connect(Node node, String userId) {
+        ChannelContext channelContext = mock(ChannelContext.class);
+        channelContext.tioConfig = node.tioConfig;
+        channelContext.userid = userId;
+        node.channels.computeIfAbsent(userId, k -> ConcurrentHashMap.newKeySet()).add(channelContext);
+        node.service.bindUserGroups(channelContext, userId);
+        return channelContext;
+    }
+
+    /**
+     * 和 tio 关闭连接一样：先调 onBeforeClose，返回后 tio 把连接从用户连接表里删掉、清空 userid，
+     * 这时候排在连接队列里的清理才执行
+     */
+    private void close(Node node, ChannelContext channelContext) {
+        List<Runnable> cleanups = new ArrayList<>();
+        BusinessDispatcher businessDispatcher = mock(BusinessDispatcher.class);
+        doAnswer(invocation -> cleanups.add(invocation.getArgument(1))).when(businessDispatcher).close(any(), any());
+        TioWsMsgHandler handler = new TioWsMsgHandler();
+        ReflectionTestUtils.setField(handler, "businessDispatcher", businessDispatcher);
+        ReflectionTestUtils.setField(handler, "messageHandlerService", node.service);
+
+        handler.onBeforeClose(channelContext);
+        node.channels.get(channelContext.userid).remove(channelContext);
+        channelContext.userid = null;
+        channelContext.isClosed = true;
+        cleanups.forEach(Runnable::run);
+    }
+
+    private void awaitRoute(Node node, String userId, Set<String> expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        Set<String> route = node.registry.remoteNodesOf(userId);
+        while (!expected.equals(route) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            route = node.registry.remoteNodesOf(userId);
+        }
+        assertEquals(expected, route);
+    }
+
+    private Node node(String nodeId) {
+        ClusterNodeRegistry registry = new ClusterNodeRegistry(nodeId, redisTemplate(), TimeUnit.MINUTES.toMillis(1), ROUTE_CACHE_MILLIS);
+        registry.heartbeat();
+        ClusterForwarder forwarder = new ClusterForwarder(nodeId, this::publish, 100, 5);
+        forwarder.start();
+        ClusterMessageHandlerServiceImpl service = new ClusterMessageHandlerServiceImpl();
+        ReflectionTestUtils.setField(service, "clusterNodeRegistry", registry);
+        ReflectionTestUtils.setField(service, "clusterForwarder", forwarder);
+        ReflectionTestUtils.setField(service, "vimGroupApiService", mock(VimGroupApiService.class));
+        Node node = new Node(registry, forwarder, service, mock(TioConfig.class));
+        receivers.put(nodeId, new ClusterMessageReceiver(StringRedisSerializer.UTF_8, registry, node.delivered::add));
+        started.add(node);
+        return node;
+    }
+
+    /**
+     * 内存传输，和 RedisClusterTransport 一样按 json 发给目标节点的接收器
+     */
+    private void publish(String nodeId, List<ClusterEnvelope> batch) {
+        ClusterMessageReceiver receiver = receivers.get(nodeId);
+        if (receiver != null) {
+            byte[] channel = RedisClusterTransport.channel(nodeId).getBytes(StandardCharsets.UTF_8);
+            receiver.onMessage(new DefaultMessage(channel, JSON.toJSONString(batch).getBytes(StandardCharsets.UTF_8)), null);
+        }
+    }
+
+    /**
+     * 节点登记用到的 redis 命令的内存实现，所有节点共用
+     */
+    @SuppressWarnings("unchecked")
+    private RedisTemplate<String, String> redisTemplate() {
+        RedisTemplate<String, String> redisTemplate = mock(RedisTemplate.class);
+        ZSetOperations<String, String> zSet = mock(ZSetOperations.class);
+        SetOperations<String, String> set = mock(SetOperations.class);
+        when(redisTemplate.opsForZSet()).thenReturn(zSet);
+        when(redisTemplate.opsForSet()).thenReturn(set);
+        when(zSet.add(anyString(), anyString(), anyDouble())).thenAnswer(invocation -> {
+            nodes.put(invocation.getArgument(1), invocation.getArgument(2));
+            return true;
+        });
+        when(zSet.rangeByScore(anyString(), anyDouble(), anyDouble())).thenAnswer(invocation -> {
+            double min = invocation.getArgument(1);
+            Set<String> live = ConcurrentHashMap.newKeySet();
+            nodes.forEach((node, score) -> {
+                if (score >= min) {
+                    live.add(node);
+                }
+            });
+            return live;
+        });
+        when(set.add(anyString(), anyString())).thenAnswer(invocation ->
+                sets.computeIfAbsent(invocation.getArgument(0), k -> ConcurrentHashMap.newKeySet()).add(invocation.getArgument(1)) ? 1L : 0L);
+        when(set.remove(anyString(), anyString())).thenAnswer(invocation -> {
+            Set<String> members = sets.get((String) invocation.getArgument(0));
+            return members != null && members.remove((String) invocation.getArgument(1)) ? 1L : 0L;
+        });
+        when(set.members(anyString())).thenAnswer(invocation -> {
+            Set<String> members = sets.get((String) invocation.getArgument(0));
+            return members == null ? Set.of() : Set.copyOf(members);
+        });
+        return redisTemplate;
+    }
+
+    /**
+     * 一个节点，channels 是这个节点上 tio 的用户连接表
+     */
+    private record Node(ClusterNodeRegistry registry, ClusterForwarder forwarder, ClusterMessageHandlerServiceImpl service,
+                        TioConfig tioConfig, Map<String, Set<ChannelContext>> channels, List<ClusterEnvelope> delivered) {
+
+        Node(ClusterNodeRegistry registry, ClusterForwarder forwarder, ClusterMessageHandlerServiceImpl service, TioConfig tioConfig) {
+            this(registry, forwarder, service, tioConfig, new ConcurrentHashMap<>(), new CopyOnWriteArrayList<>());
+        }
+
+        @SuppressWarnings("unchecked")
+        SetWithLock<ChannelContext> channelsOf(String userId) {
+            Set<ChannelContext> set = channels.get(userId);
+            if (set == null || set.isEmpty()) {
+                return null;
+            }
+            SetWithLock<ChannelContext> setWithLock = mock(SetWithLock.class);
+            when(setWithLock.getObj()).thenReturn(set);
+            when(setWithLock.readLock()).thenReturn(new ReentrantReadWriteLock().readLock());
+            return setWithLock;
+        }
+
+        ClusterEnvelope awaitDelivery() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (delivered.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertFalse(delivered.isEmpty(), "没有收到转发的消息");
+            return delivered.get(0);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.vim.tio.codec;
+
+import com.alibaba.fastjson2.JSON;
+import com.vim.tio.messages.Message;
+import com.vim.tio.messages.MessageContext;
+import com.vim.tio.messages.ReadReceipt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * json 帧和二进制帧的对比：帧大小在 main 里打印，解码、编码开销用 JMH 测
+ * <p>
+ * 运行：mvn -pl v-im-server test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.vim.tio.codec.BinaryCodecBenchmark
+ *
+ * @author 乐天
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BinaryCodecBenchmark {
+
+    private static final String TEXT = "{\"code\":\"message\",\"message\":{\"chatId\":\"10002\",\"chatType\":\"0\",\"messageType\":\"0\","
+            + "\"content\":\"晚上一起吃饭吗？带上小王\",\"fromId\":\"10001\",\"extend\":{\"quote\":\"1\"}}}";
+
+    private static final String READ_TEXT = "{\"code\":\"read\",\"message\":{\"chatId\":\"10002\",\"fromId\":\"10001\",\"type\":\"0\"}}";
+
+    private byte[] binary;
+
+    private byte[] readBinary;
+
+    private Message message;
+
+    @Setup
+    public void setup() {
+        MessageContext context = MessageContext.parse(TEXT);
+        message = context.getMessage();
+        binary = BinaryCodec.encodeMessage(message);
+        readBinary = BinaryCodec.encodeReceipt(JSON.parseObject(READ_TEXT).getObject("message", ReadReceipt.class));
+    }
+
+    @Benchmark
+    public Object decodeJson() {
+        return MessageContext.parse(TEXT).getMessage();
+    }
+
+    @Benchmark
+    public Object decodeBinary() {
+        return MessageContext.parse(binary).getMessage();
+    }
+
+    @Benchmark
+    public Object decodeReadJson() {
+        return MessageContext.parse(READ_TEXT).getSendInfo();
+    }
+
+    @Benchmark
+    public Object decodeReadBinary() {
+        return MessageContext.parse(readBinary).getSendInfo();
+    }
+
+    @Benchmark
+    public byte[] encodeJson() {
+        return MessageContext.of(message).getFrame();
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return MessageContext.of(message).getBinaryFrame();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        BinaryCodecBenchmark benchmark = new BinaryCodecBenchmark();
+        benchmark.setup();
+        MessageContext context = MessageContext.of(benchmark.message);
+        System.out.printf("message 帧大小: json %d 字节, binary %d 字节%n", context.getFrame().length, context.getBinaryFrame().length);
+        System.out.printf("read 帧大小: json %d 字节, binary %d 字节%n", READ_TEXT.getBytes(StandardCharsets.UTF_8).length, benchmark.readBinary.length);
+        new Runner(new OptionsBuilder()
+                .include(BinaryCodecBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,81 @@
+package com.vim.tio.messages;
+
+import cn.hutool.core.util.IdUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.alibaba.fastjson2.JSON;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.tio.websocket.common.WsResponse;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 好友消息热路径的解析开销对比：
+ * legacy 是原来的做法，SendInfo 解析后在 handleMessage、handleFriendMessage、deliverOnlineMessage 里各转换一次 Message，再序列化一次下发；
+ * context 是 {@link MessageContext}，只解析、编码一次。
+ * <p>
+ * 运行：mvn -pl v-im-server test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.vim.tio.messages.MessageContextBenchmark
+ *
+ * @author 乐天
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageContextBenchmark {
+
+    private static final String TEXT = "{\"code\":\"message\",\"message\":{\"chatId\":\"10002\",\"chatType\":\"0\",\"messageType\":\"0\","
+            + "\"content\":\"晚上一起吃饭吗？带上小王\",\"fromId\":\"10001\",\"extend\":{\"quote\":\"1\"}}}";
+
+    @Benchmark
+    public void legacy(Blackhole blackhole) {
+        SendInfo sendInfo = JSON.parseObject(TEXT, SendInfo.class);
+        blackhole.consume(parseMessage(sendInfo));
+        WsResponse wsResponse = WsResponse.fromText(JSON.toJSONString(sendInfo), "utf-8");
+        blackhole.consume(parseMessage(sendInfo));
+        blackhole.consume(parseMessage(sendInfo));
+        blackhole.consume(wsResponse);
+    }
+
+    @Benchmark
+    public void context(Blackhole blackhole) {
+        MessageContext context = MessageContext.parse(TEXT);
+        blackhole.consume(context.getMessage());
+        blackhole.consume(context.getResponse());
+    }
+
+    /**
+     * 原来 AbstractMessageHandlerService#parseMessage 的实现
+     */
+    private static Message parseMessage(SendInfo sendInfo) {
+        JSONObject jsonObject = sendInfo.getMessage();
+        jsonObject.set("timestamp", System.currentTimeMillis());
+        if (StrUtil.isBlank((String) sendInfo.getMessage().get("id"))) {
+            jsonObject.set("id", IdUtil.getSnowflakeNextIdStr());
+        }
+        return JSONUtil.toBean(jsonObject, Message.class);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(MessageContextBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,219 @@
+package com.vim.tio.outbound;
+
+import cn.hutool.core.util.StrUtil;
+import com.vim.common.config.VimConfig;
+import com.vim.tio.ServerAioListener;
+import com.vim.tio.messages.MessageContext;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.tio.core.ChannelContext;
+import org.tio.http.common.HttpRequest;
+import org.tio.http.common.HttpResponse;
+import org.tio.websocket.common.WsRequest;
+import org.tio.websocket.server.WsServerStarter;
+import org.tio.websocket.server.handler.IWsMsgHandler;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 合并写的本地压测，对比开关合并写时每秒消息数和延迟：
+ * 本机起一个 tio websocket 服务端（监听器用 {@link ServerAioListener}，发出去的帧经过 {@link OutboundGuard#sent} 减去记账），
+ * 用 JDK 的 websocket 客户端连上去。每次调用按群消息突发的方式，把 burst 条消息经过 {@link OutboundGuard} 和 {@link WriteBatcher}
+ * 交给 tio（和 GroupFanout 一样每条一个新响应，编码好的帧共用），一直等到客户端全部收到。
+ * 结果是一次突发的耗时分布，每秒消息数 = burst / 平均耗时，p99 看 SampleTime 的分位数。
+ * <p>
+ * 运行：mvn -pl v-im-server test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.vim.tio.outbound.WriteBatcherLoadBenchmark
+ *
+ * @author 乐天
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBatcherLoadBenchmark {
+
+    /**
+     * 客户端最多等多久收完一次突发，超过说明帧丢了或者连接断了
+     */
+    private static final long RECEIVE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    @Param({"false", "true"})
+    public boolean batch;
+
+    @Param("64")
+    public int burst;
+
+    @Param("256")
+    public int size;
+
+    /**
+     * 客户端收到的消息数
+     */
+    private final AtomicLong received = new AtomicLong();
+
+    private long expected;
+
+    private WriteBatcher batcher;
+
+    private ChannelContext channelContext;
+
+    private WebSocket client;
+
+    private MessageContext context;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        VimConfig vimConfig = new VimConfig();
+        vimConfig.getBatch().setEnabled(batch);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        batcher = new WriteBatcher();
+        ReflectionTestUtils.setField(batcher, "vimConfig", vimConfig);
+        ReflectionTestUtils.setField(batcher, "meterRegistry", meterRegistry);
+        batcher.init();
+        OutboundGuard guard = new OutboundGuard();
+        ReflectionTestUtils.setField(guard, "vimConfig", vimConfig);
+        ReflectionTestUtils.setField(guard, "meterRegistry", meterRegistry);
+        guard.init();
+
+        int port = freePort();
+        Handler handler = new Handler();
+        WsServerStarter wsServerStarter = new WsServerStarter(port, handler);
+        wsServerStarter.getTioServerConfig().setName("V-IM-benchmark");
+        wsServerStarter.getTioServerConfig().setTioServerListener(ServerAioListener.me);
+        wsServerStarter.start();
+
+        client = HttpClient.newHttpClient().newWebSocketBuilder()
+                .buildAsync(URI.create("ws://127.0.0.1:" + port + "/"), new Receiver())
+                .get(10, TimeUnit.SECONDS);
+        channelContext = handler.connected.get(10, TimeUnit.SECONDS);
+        context = MessageContext.wrap("{\"code\":\"message\",\"message\":{\"chatId\":\"10002\",\"chatType\":\"1\",\"fromId\":\"10001\","
+                + "\"content\":\"" + StrUtil.repeat('a', size) + "\"}}");
+    }
+
+    /**
+     * tio 服务端没有停止的方法，随 fork 出来的 JVM 一起退出
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.abort();
+        batcher.destroy();
+    }
+
+    @Benchmark
+    public long burst() {
+        expected += burst;
+        for (int i = 0; i < burst; i++) {
+            OutboundGuard.send(channelContext, context, context.newResponse(channelContext));
+        }
+        long deadline = System.nanoTime() + RECEIVE_TIMEOUT_NANOS;
+        long count;
+        while ((count = received.get()) < expected) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("客户端只收到 " + count + " 条，应该收到 " + expected + " 条");
+            }
+            Thread.onSpinWait();
+        }
+        return count;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * 服务端只记下握手完成的连接，不处理客户端发上来的消息
+     */
+    private static final class Handler implements IWsMsgHandler {
+
+        private final CompletableFuture<ChannelContext> connected = new CompletableFuture<>();
+
+        @Override
+        public HttpResponse handshake(HttpRequest httpRequest, HttpResponse httpResponse, ChannelContext channelContext) {
+            return httpResponse;
+        }
+
+        @Override
+        public void onAfterHandshaked(HttpRequest httpRequest, HttpResponse httpResponse, ChannelContext channelContext) {
+            connected.complete(channelContext);
+        }
+
+        @Override
+        public Object onBytes(WsRequest wsRequest, byte[] bytes, ChannelContext channelContext) {
+            return null;
+        }
+
+        @Override
+        public Object onClose(WsRequest wsRequest, byte[] bytes, ChannelContext channelContext) {
+            return null;
+        }
+
+        @Override
+        public Object onText(WsRequest wsRequest, String text, ChannelContext channelContext) {
+            return null;
+        }
+    }
+
+    /**
+     * 客户端按完整的消息计数，分片的消息最后一片到了才算收到
+     */
+    private final class Receiver implements WebSocket.Listener {
+
+        @Override
+        public void onOpen(WebSocket webSocket) {
+            webSocket.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            if (last) {
+                received.incrementAndGet();
+            }
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+            if (last) {
+                received.incrementAndGet();
+            }
+            return null;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(WriteBatcherLoadBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}